@@ -16,7 +16,11 @@
  */
 package com.helger.phase4.peppolstandalone;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
@@ -25,16 +29,20 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.annotation.CheckForSigned;
 import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.equals.EqualsHelper;
 import com.helger.config.fallback.IConfigWithFallback;
 import com.helger.httpclient.HttpClientSettings;
 import com.helger.httpclient.HttpClientSettingsConfig;
 import com.helger.peppol.servicedomain.EPeppolNetwork;
 import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.peppolstandalone.dump.AsyncDumpWriter;
+import com.helger.security.certificate.TrustedCAChecker;
 
 @Immutable
 public final class APConfig
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (APConfig.class);
+  private static final AtomicReference <APConfigSnapshot> SNAPSHOT = new AtomicReference <> ();
 
   private APConfig ()
   {}
@@ -45,20 +53,76 @@ public final class APConfig
     return AS4Configuration.getConfig ();
   }
 
+  /**
+   * @return The current snapshot of the configuration values that are needed for every request.
+   *         Never <code>null</code>.
+   */
   @NonNull
-  public static EPeppolNetwork getPeppolStage ()
+  public static APConfigSnapshot getSnapshot ()
   {
-    final String sStageID = getConfig ().getAsString ("peppol.stage");
-    final EPeppolNetwork ret = EPeppolNetwork.getFromIDOrNull (sStageID);
+    APConfigSnapshot ret = SNAPSHOT.get ();
     if (ret == null)
-      throw new IllegalStateException ("Failed to determine peppol stage from value '" + sStageID + "'");
+    {
+      // Created lazily, because the configuration is not available in the static initializer
+      ret = APConfigSnapshot.createFrom (getConfig ());
+      if (!SNAPSHOT.compareAndSet (null, ret))
+        ret = SNAPSHOT.get ();
+    }
     return ret;
   }
 
+  /**
+   * Re-read the file based configuration sources and replace the current snapshot. The Peppol
+   * stage and the seat ID cannot be changed at runtime.
+   */
+  public static void reloadSnapshot ()
+  {
+    if (getConfig ().reloadAllResourceBasedConfigurationSources ().isFailure ())
+      LOGGER.warn ("Failed to reload all configuration sources");
+
+    final APConfigSnapshot aOld = getSnapshot ();
+    final APConfigSnapshot aNew;
+    try
+    {
+      aNew = APConfigSnapshot.createFrom (getConfig ());
+    }
+    catch (final IllegalStateException ex)
+    {
+      LOGGER.error ("Ignoring invalid configuration: " + ex.getMessage ());
+      return;
+    }
+
+    if (aNew.getPeppolStage () != aOld.getPeppolStage () ||
+        !EqualsHelper.equals (aNew.getMyPeppolSeatID (), aOld.getMyPeppolSeatID ()))
+      LOGGER.warn ("Changes to the Peppol stage or the seat ID require a restart and are ignored");
+
+    SNAPSHOT.set (new APConfigSnapshot (aOld.getPeppolStage (),
+                                        aOld.getMyPeppolSeatID (),
+                                        aNew.getPhase4ApiRequiredToken (),
+                                        aNew.isSendingEnabled (),
+                                        aNew.isReceivingEnabled ()));
+    LOGGER.info ("Reloaded configuration: sending is " +
+                 (aNew.isSendingEnabled () ? "enabled" : "disabled") +
+                 ", receiving is " +
+                 (aNew.isReceivingEnabled () ? "enabled" : "disabled"));
+  }
+
+  @NonNull
+  public static EPeppolNetwork getPeppolStage ()
+  {
+    return getSnapshot ().getPeppolStage ();
+  }
+
+  @NonNull
+  public static TrustedCAChecker getAPCAChecker ()
+  {
+    return getSnapshot ().getAPCAChecker ();
+  }
+
   @Nullable
   public static String getMyPeppolSeatID ()
   {
-    return getConfig ().getAsString ("peppol.seatid");
+    return getSnapshot ().getMyPeppolSeatID ();
   }
 
   @Nullable
@@ -70,7 +134,7 @@ public final class APConfig
   @Nullable
   public static String getPhase4ApiRequiredToken ()
   {
-    return getConfig ().getAsString ("phase4.api.requiredtoken");
+    return getSnapshot ().getPhase4ApiRequiredToken ();
   }
 
   @Nullable
@@ -110,12 +174,519 @@ public final class APConfig
 
   public static boolean isSendingEnabled ()
   {
-    return getConfig ().getAsBoolean ("peppol.sending.enabled", true);
+    return getSnapshot ().isSendingEnabled ();
   }
 
   public static boolean isReceivingEnabled ()
   {
-    return getConfig ().getAsBoolean ("peppol.receiving.enabled", true);
+    return getSnapshot ().isReceivingEnabled ();
+  }
+
+  /**
+   * @return The configuration file to watch for changes. Defaults to the file provided in the
+   *         system property <code>config.file</code>. May be <code>null</code>.
+   */
+  @Nullable
+  public static File getConfigWatchFile ()
+  {
+    String sPath = getConfig ().getAsString ("phase4.config.watch-file");
+    if (sPath == null)
+      sPath = System.getProperty ("config.file");
+    return sPath == null ? null : new File (sPath).getAbsoluteFile ();
+  }
+
+  public static boolean isSMPCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.smp.cache.enabled", true);
+  }
+
+  @CheckForSigned
+  public static long getSMPCacheTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.smp.cache.ttl-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static long getSMPCacheNegativeTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.smp.cache.negative-ttl-seconds", 300);
+  }
+
+  @CheckForSigned
+  public static int getSMPCacheMaxSize ()
+  {
+    return getConfig ().getAsInt ("peppol.smp.cache.max-size", 10_000);
+  }
+
+  public static boolean isHttpPoolEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.http.pool.enabled", true);
+  }
+
+  @CheckForSigned
+  public static int getHttpPoolMaxTotal ()
+  {
+    return getConfig ().getAsInt ("phase4.http.pool.max-total", 200);
+  }
+
+  @CheckForSigned
+  public static int getHttpPoolMaxPerRoute ()
+  {
+    return getConfig ().getAsInt ("phase4.http.pool.max-per-route", 20);
+  }
+
+  @CheckForSigned
+  public static long getHttpPoolIdleEvictionSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.http.pool.idle-eviction-seconds", 60);
+  }
+
+  @CheckForSigned
+  public static long getHttpPoolConnectionTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.http.pool.connection-ttl-seconds", 900);
+  }
+
+  /**
+   * @return <code>true</code> if virtual threads should be used. This is the Spring Boot property
+   *         that also switches the embedded Tomcat to virtual threads. Requires Java 21 or later at
+   *         runtime.
+   */
+  public static boolean isVirtualThreadsEnabled ()
+  {
+    return getConfig ().getAsBoolean ("spring.threads.virtual.enabled", false);
+  }
+
+  @CheckForSigned
+  public static int getAsyncSendThreads ()
+  {
+    // Virtual threads are cheap, so allow many more concurrent sends
+    return getConfig ().getAsInt ("phase4.async.threads", APThreadFactory.isUseVirtualThreads () ? 1024 : 16);
+  }
+
+  @CheckForSigned
+  public static int getAsyncSendQueueSize ()
+  {
+    return getConfig ().getAsInt ("phase4.async.queue-size", 1000);
+  }
+
+  @CheckForSigned
+  public static long getAsyncSendResultRetentionSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.async.result-retention-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static long getAsyncSendRetryAfterSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.async.retry-after-seconds", 30);
+  }
+
+  @CheckForSigned
+  public static int getBatchParallelism ()
+  {
+    return getConfig ().getAsInt ("phase4.batch.parallelism", 8);
+  }
+
+  @CheckForSigned
+  public static int getBatchMaxParallelism ()
+  {
+    return getConfig ().getAsInt ("phase4.batch.max-parallelism", APThreadFactory.isUseVirtualThreads () ? 1024 : 32);
+  }
+
+  @CheckForSigned
+  public static int getBatchThreads ()
+  {
+    return getConfig ().getAsInt ("phase4.batch.threads", APThreadFactory.isUseVirtualThreads () ? 1024 : 32);
+  }
+
+  @CheckForSigned
+  public static long getBatchMaxEntryBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.batch.max-entry-bytes", 100L * 1024 * 1024);
+  }
+
+  public static boolean isCRLStoreEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.crl.store.enabled", true);
+  }
+
+  @NonNull
+  public static File getCRLStoreDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("peppol.crl.store.path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "crl").getAbsoluteFile ();
+  }
+
+  @CheckForSigned
+  public static long getCRLRefreshMarginSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.crl.refresh-margin-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static long getCRLMaxRefreshIntervalSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.crl.max-refresh-interval-seconds", 6 * 3600);
+  }
+
+  @CheckForSigned
+  public static long getCRLRequestWaitMillis ()
+  {
+    return getConfig ().getAsLong ("peppol.crl.request-wait-millis", 500);
+  }
+
+  public static int getCRLMaxURLs ()
+  {
+    return getConfig ().getAsInt ("peppol.crl.max-urls", 100);
+  }
+
+  @CheckForSigned
+  public static long getCRLUnusedExpirySeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.crl.unused-expiry-seconds", 7 * 24 * 3600);
+  }
+
+  @NonNull
+  private static List <String> _getCommaSeparatedList (@NonNull final String sKey)
+  {
+    final List <String> ret = new ArrayList <> ();
+    final String sValues = getConfig ().getAsString (sKey);
+    if (sValues != null)
+      for (final String sValue : sValues.split (","))
+        if (!sValue.isBlank ())
+          ret.add (sValue.trim ());
+    return ret;
+  }
+
+  @NonNull
+  public static List <String> getCRLPrefetchURLs ()
+  {
+    return _getCommaSeparatedList ("peppol.crl.prefetch-urls");
+  }
+
+  public static boolean isCertificateCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.certificate.cache.enabled", true);
+  }
+
+  @CheckForSigned
+  public static long getCertificateCacheTTLSeconds ()
+  {
+    return getConfig ().getAsLong ("peppol.certificate.cache.ttl-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static int getCertificateCacheMaxSize ()
+  {
+    return getConfig ().getAsInt ("peppol.certificate.cache.max-size", 10_000);
+  }
+
+  public static boolean isReportCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.reporting.cache.enabled", true);
+  }
+
+  public static boolean isReportCacheDiskEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.reporting.cache.disk", true);
+  }
+
+  public static boolean isReportGzipEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.reporting.gzip.enabled", true);
+  }
+
+  public static boolean isIdentifierCacheEnabled ()
+  {
+    return getConfig ().getAsBoolean ("peppol.identifier.cache.enabled", true);
+  }
+
+  @CheckForSigned
+  public static int getIdentifierCacheMaxSize ()
+  {
+    return getConfig ().getAsInt ("peppol.identifier.cache.max-size", 10_000);
+  }
+
+  @CheckForSigned
+  public static long getPayloadSpillThresholdBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.payload.spill-threshold-bytes", 1024L * 1024);
+  }
+
+  @CheckForSigned
+  public static long getPayloadMaxBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.payload.max-bytes", 100L * 1024 * 1024);
+  }
+
+  @CheckForSigned
+  public static long getPayloadMaxInMemoryBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.payload.max-in-memory-bytes", 50L * 1024 * 1024);
+  }
+
+  @NonNull
+  public static File getPayloadTempDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("phase4.payload.temp-path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "tmp").getAbsoluteFile ();
+  }
+
+  public static boolean isEndpointGuardEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.endpoint-guard.enabled", true);
+  }
+
+  @CheckForSigned
+  public static int getEndpointGuardMaxConcurrent ()
+  {
+    return getConfig ().getAsInt ("phase4.endpoint-guard.max-concurrent", 16);
+  }
+
+  @CheckForSigned
+  public static long getEndpointGuardAcquireTimeoutSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.endpoint-guard.acquire-timeout-seconds", 10);
+  }
+
+  @CheckForSigned
+  public static int getEndpointGuardFailureThreshold ()
+  {
+    return getConfig ().getAsInt ("phase4.endpoint-guard.failure-threshold", 5);
+  }
+
+  @CheckForSigned
+  public static long getEndpointGuardOpenSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.endpoint-guard.open-seconds", 60);
+  }
+
+  public static boolean isOutboundQueueEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.outbound-queue.enabled", false);
+  }
+
+  @NonNull
+  public static File getOutboundQueueDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("phase4.outbound-queue.path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "outbound-queue").getAbsoluteFile ();
+  }
+
+  @CheckForSigned
+  public static long getOutboundQueueSegmentBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.outbound-queue.segment-bytes", 64L * 1024 * 1024);
+  }
+
+  @CheckForSigned
+  public static int getOutboundQueueWorkers ()
+  {
+    return getConfig ().getAsInt ("phase4.outbound-queue.workers", APThreadFactory.isUseVirtualThreads () ? 256 : 8);
+  }
+
+  @CheckForSigned
+  public static int getOutboundQueueMaxAttempts ()
+  {
+    return getConfig ().getAsInt ("phase4.outbound-queue.max-attempts", 10);
+  }
+
+  @CheckForSigned
+  public static long getOutboundQueueInitialBackoffSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.outbound-queue.initial-backoff-seconds", 30);
+  }
+
+  @CheckForSigned
+  public static long getOutboundQueueMaxBackoffSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.outbound-queue.max-backoff-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static int getOutboundQueueMaxPending ()
+  {
+    return getConfig ().getAsInt ("phase4.outbound-queue.max-pending", 100_000);
+  }
+
+  public static boolean isInboundSpoolEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.inbound-spool.enabled", false);
+  }
+
+  @NonNull
+  public static File getInboundSpoolDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("phase4.inbound-spool.path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "inbound-spool").getAbsoluteFile ();
+  }
+
+  @CheckForSigned
+  public static long getInboundSpoolSegmentBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.inbound-spool.segment-bytes", 64L * 1024 * 1024);
+  }
+
+  @CheckForSigned
+  public static int getInboundSpoolWorkers ()
+  {
+    return getConfig ().getAsInt ("phase4.inbound-spool.workers", APThreadFactory.isUseVirtualThreads () ? 64 : 4);
+  }
+
+  @CheckForSigned
+  public static int getInboundSpoolMaxAttempts ()
+  {
+    return getConfig ().getAsInt ("phase4.inbound-spool.max-attempts", 10);
+  }
+
+  @CheckForSigned
+  public static long getInboundSpoolInitialBackoffSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.inbound-spool.initial-backoff-seconds", 10);
+  }
+
+  @CheckForSigned
+  public static long getInboundSpoolMaxBackoffSeconds ()
+  {
+    return getConfig ().getAsLong ("phase4.inbound-spool.max-backoff-seconds", 3600);
+  }
+
+  @CheckForSigned
+  public static int getInboundSpoolMaxPending ()
+  {
+    return getConfig ().getAsInt ("phase4.inbound-spool.max-pending", 100_000);
+  }
+
+  public static boolean isDuplicateIndexEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.duplicate-index.enabled", false);
+  }
+
+  @NonNull
+  public static File getDuplicateIndexDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("phase4.duplicate-index.path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "duplicate-index").getAbsoluteFile ();
+  }
+
+  @CheckForSigned
+  public static int getDuplicateIndexExpectedPerDay ()
+  {
+    return getConfig ().getAsInt ("phase4.duplicate-index.expected-per-day", 100_000);
+  }
+
+  @CheckForSigned
+  public static int getDuplicateIndexRetentionDays ()
+  {
+    return getConfig ().getAsInt ("phase4.duplicate-index.retention-days", 14);
+  }
+
+  public static boolean isAsyncDumpEnabled ()
+  {
+    return getConfig ().getAsBoolean ("phase4.dump.async.enabled", true);
+  }
+
+  @NonNull
+  public static File getAsyncDumpDirectory ()
+  {
+    final String sPath = getConfig ().getAsString ("phase4.dump.async.path");
+    if (sPath != null)
+      return new File (sPath).getAbsoluteFile ();
+    return new File (AS4Configuration.getDataPath (), "phase4-dumps").getAbsoluteFile ();
+  }
+
+  @CheckForSigned
+  public static int getAsyncDumpBufferEntries ()
+  {
+    return getConfig ().getAsInt ("phase4.dump.async.buffer-entries", 1024);
+  }
+
+  @CheckForSigned
+  public static long getAsyncDumpBufferBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.dump.async.buffer-bytes", 64L * 1024 * 1024);
+  }
+
+  @CheckForSigned
+  public static int getAsyncDumpMaxMessageBytes ()
+  {
+    return getConfig ().getAsInt ("phase4.dump.async.max-message-bytes", 16 * 1024 * 1024);
+  }
+
+  public static AsyncDumpWriter.@NonNull EOverflowPolicy getAsyncDumpOverflowPolicy ()
+  {
+    final String sPolicy = getConfig ().getAsString ("phase4.dump.async.overflow-policy");
+    final AsyncDumpWriter.EOverflowPolicy ePolicy = AsyncDumpWriter.EOverflowPolicy.getFromIDOrNull (sPolicy);
+    return ePolicy != null ? ePolicy : AsyncDumpWriter.EOverflowPolicy.DROP;
+  }
+
+  @CheckForSigned
+  public static int getAsyncDumpSampleRate ()
+  {
+    return getConfig ().getAsInt ("phase4.dump.async.sample-rate", 10);
+  }
+
+  @CheckForSigned
+  public static long getAsyncDumpRetentionHours ()
+  {
+    return getConfig ().getAsLong ("phase4.dump.async.retention-hours", 7 * 24);
+  }
+
+  @CheckForSigned
+  public static long getAsyncDumpRetentionMaxBytes ()
+  {
+    return getConfig ().getAsLong ("phase4.dump.async.retention-max-bytes", 10L * 1024 * 1024 * 1024);
+  }
+
+  public static boolean isDumpPolicyAll ()
+  {
+    return getConfig ().getAsBoolean ("phase4.dump.policy.all", true);
+  }
+
+  public static boolean isDumpPolicyFailures ()
+  {
+    return getConfig ().getAsBoolean ("phase4.dump.policy.failures", true);
+  }
+
+  @CheckForSigned
+  public static int getDumpPolicySamplePercent ()
+  {
+    return getConfig ().getAsInt ("phase4.dump.policy.sample-percent", 0);
+  }
+
+  @NonNull
+  public static List <String> getDumpPolicyIDs ()
+  {
+    return _getCommaSeparatedList ("phase4.dump.policy.ids");
+  }
+
+  @NonNull
+  public static List <String> getDumpPolicyDocTypeIDs ()
+  {
+    return _getCommaSeparatedList ("phase4.dump.policy.doctypes");
+  }
+
+  @NonNull
+  public static List <String> getMetricsDocTypeIDs ()
+  {
+    return _getCommaSeparatedList ("phase4.metrics.doctypes");
+  }
+
+  @CheckForSigned
+  public static int getMetricsMaxTagValues ()
+  {
+    return getConfig ().getAsInt ("phase4.metrics.max-tag-values", 50);
   }
 
   private static final AtomicBoolean PROXY_INITED = new AtomicBoolean (false);
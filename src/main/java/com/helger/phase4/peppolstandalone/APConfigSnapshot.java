@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.config.fallback.IConfigWithFallback;
+import com.helger.peppol.security.PeppolTrustedCA;
+import com.helger.peppol.servicedomain.EPeppolNetwork;
+import com.helger.security.certificate.TrustedCAChecker;
+
+/**
+ * The resolved values of the configuration items that are needed for every request. An instance
+ * is created once and replaced as a whole when the configuration is reloaded.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class APConfigSnapshot
+{
+  private final EPeppolNetwork m_eStage;
+  private final TrustedCAChecker m_aAPCAChecker;
+  private final String m_sMyPeppolSeatID;
+  private final String m_sPhase4ApiRequiredToken;
+  private final boolean m_bSendingEnabled;
+  private final boolean m_bReceivingEnabled;
+
+  APConfigSnapshot (@NonNull final EPeppolNetwork eStage,
+                    @Nullable final String sMyPeppolSeatID,
+                    @Nullable final String sPhase4ApiRequiredToken,
+                    final boolean bSendingEnabled,
+                    final boolean bReceivingEnabled)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    m_eStage = eStage;
+    m_aAPCAChecker = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA.peppolTestAP ();
+    m_sMyPeppolSeatID = sMyPeppolSeatID;
+    m_sPhase4ApiRequiredToken = sPhase4ApiRequiredToken;
+    m_bSendingEnabled = bSendingEnabled;
+    m_bReceivingEnabled = bReceivingEnabled;
+  }
+
+  @NonNull
+  public EPeppolNetwork getPeppolStage ()
+  {
+    return m_eStage;
+  }
+
+  /**
+   * @return The Peppol AP CA checker matching the stage. Never <code>null</code>.
+   */
+  @NonNull
+  public TrustedCAChecker getAPCAChecker ()
+  {
+    return m_aAPCAChecker;
+  }
+
+  @Nullable
+  public String getMyPeppolSeatID ()
+  {
+    return m_sMyPeppolSeatID;
+  }
+
+  @Nullable
+  public String getPhase4ApiRequiredToken ()
+  {
+    return m_sPhase4ApiRequiredToken;
+  }
+
+  public boolean isSendingEnabled ()
+  {
+    return m_bSendingEnabled;
+  }
+
+  public boolean isReceivingEnabled ()
+  {
+    return m_bReceivingEnabled;
+  }
+
+  /**
+   * Create a new snapshot from the provided configuration.
+   *
+   * @param aConfig
+   *        The configuration to read from. May not be <code>null</code>.
+   * @return The new snapshot. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the Peppol stage cannot be determined
+   */
+  @NonNull
+  static APConfigSnapshot createFrom (@NonNull final IConfigWithFallback aConfig)
+  {
+    final String sStageID = aConfig.getAsString ("peppol.stage");
+    final EPeppolNetwork eStage = EPeppolNetwork.getFromIDOrNull (sStageID);
+    if (eStage == null)
+      throw new IllegalStateException ("Failed to determine peppol stage from value '" + sStageID + "'");
+
+    return new APConfigSnapshot (eStage,
+                                 aConfig.getAsString ("peppol.seatid"),
+                                 aConfig.getAsString ("phase4.api.requiredtoken"),
+                                 aConfig.getAsBoolean ("peppol.sending.enabled", true),
+                                 aConfig.getAsBoolean ("peppol.receiving.enabled", true));
+  }
+}
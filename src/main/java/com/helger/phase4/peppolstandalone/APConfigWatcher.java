@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Watches the configuration file for changes and reloads the {@link APConfigSnapshot} if it was
+ * modified.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class APConfigWatcher
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (APConfigWatcher.class);
+  // Editors often write a file in several steps
+  private static final long DEBOUNCE_MILLIS = 500;
+  private static final Lock LOCK = new ReentrantLock ();
+  private static WatchService s_aWatchService;
+
+  private APConfigWatcher ()
+  {}
+
+  private static void _run (@NonNull final WatchService aWatchService, @NonNull final Path aFileName)
+  {
+    try
+    {
+      while (true)
+      {
+        final WatchKey aKey = aWatchService.take ();
+        boolean bChanged = false;
+        for (final WatchEvent <?> aEvent : aKey.pollEvents ())
+          if (aFileName.equals (aEvent.context ()))
+            bChanged = true;
+        aKey.reset ();
+
+        if (bChanged)
+        {
+          // Collect further events of the same change
+          WatchKey aNextKey;
+          while ((aNextKey = aWatchService.poll (DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+          {
+            aNextKey.pollEvents ();
+            aNextKey.reset ();
+          }
+
+          LOGGER.info ("Configuration file '" + aFileName + "' changed - reloading");
+          try
+          {
+            APConfig.reloadSnapshot ();
+          }
+          catch (final RuntimeException ex)
+          {
+            LOGGER.error ("Failed to reload the configuration", ex);
+          }
+        }
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final ClosedWatchServiceException ex)
+    {
+      // Stopped
+    }
+  }
+
+  /**
+   * Start watching the configuration file, if one is configured.
+   *
+   * @see APConfig#getConfigWatchFile()
+   */
+  public static void start ()
+  {
+    final File aFile = APConfig.getConfigWatchFile ();
+    if (aFile == null)
+    {
+      LOGGER.info ("No configuration file to watch for changes");
+      return;
+    }
+    final File aDir = aFile.getParentFile ();
+    if (aDir == null || !aDir.isDirectory ())
+    {
+      LOGGER.warn ("Cannot watch configuration file '" + aFile.getAbsolutePath () + "' - the directory does not exist");
+      return;
+    }
+
+    LOCK.lock ();
+    try
+    {
+      if (s_aWatchService != null)
+        return;
+
+      final WatchService aWatchService = FileSystems.getDefault ().newWatchService ();
+      aDir.toPath ()
+          .register (aWatchService,
+                     StandardWatchEventKinds.ENTRY_CREATE,
+                     StandardWatchEventKinds.ENTRY_MODIFY);
+      final Path aFileName = aFile.toPath ().getFileName ();
+      APThreadFactory.create ("phase4-config-watcher-").newThread ( () -> _run (aWatchService, aFileName)).start ();
+      s_aWatchService = aWatchService;
+      LOGGER.info ("Watching configuration file '" + aFile.getAbsolutePath () + "' for changes");
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to watch configuration file '" + aFile.getAbsolutePath () + "'", ex);
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Stop watching the configuration file.
+   */
+  public static void stop ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aWatchService != null)
+      {
+        s_aWatchService.close ();
+        s_aWatchService = null;
+      }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close the configuration file watcher", ex);
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Factory for the threads of all internal executors. If virtual threads are enabled in the
+ * configuration (<code>spring.threads.virtual.enabled</code>) and the runtime supports them (Java
+ * 21+), virtual threads are created, otherwise platform daemon threads.<br>
+ * Note: the project is compiled for Java 17, so virtual threads are created via reflection.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class APThreadFactory
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (APThreadFactory.class);
+
+  private APThreadFactory ()
+  {}
+
+  /**
+   * @return <code>true</code> if the current Java runtime supports virtual threads.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return Runtime.version ().feature () >= 21;
+  }
+
+  /**
+   * @return <code>true</code> if virtual threads are enabled and supported.
+   */
+  public static boolean isUseVirtualThreads ()
+  {
+    return APConfig.isVirtualThreadsEnabled () && isVirtualThreadSupported ();
+  }
+
+  @Nullable
+  private static ThreadFactory _createVirtualThreadFactory (@NonNull final String sNamePrefix)
+  {
+    try
+    {
+      // Thread.ofVirtual ().name (sNamePrefix, 1).factory ()
+      final Class <?> aBuilderClass = Class.forName ("java.lang.Thread$Builder");
+      Object aBuilder = Thread.class.getMethod ("ofVirtual").invoke (null);
+      aBuilder = aBuilderClass.getMethod ("name", String.class, long.class).invoke (aBuilder, sNamePrefix, 1L);
+      return (ThreadFactory) aBuilderClass.getMethod ("factory").invoke (aBuilder);
+    }
+    catch (final ReflectiveOperationException ex)
+    {
+      LOGGER.warn ("Failed to create virtual thread factory - falling back to platform threads", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Create a new thread factory.
+   *
+   * @param sNamePrefix
+   *        The thread name prefix. A running number is appended. May neither be <code>null</code>
+   *        nor empty.
+   * @return A new thread factory. Never <code>null</code>.
+   */
+  @NonNull
+  public static ThreadFactory create (@NonNull @Nonempty final String sNamePrefix)
+  {
+    ValueEnforcer.notEmpty (sNamePrefix, "NamePrefix");
+
+    if (isUseVirtualThreads ())
+    {
+      final ThreadFactory ret = _createVirtualThreadFactory (sNamePrefix);
+      if (ret != null)
+        return ret;
+    }
+
+    final AtomicInteger aThreadCounter = new AtomicInteger (0);
+    return r -> {
+      final Thread t = new Thread (r, sNamePrefix + aThreadCounter.incrementAndGet ());
+      t.setDaemon (true);
+      return t;
+    };
+  }
+
+  /**
+   * Create a new executor for blocking tasks. With virtual threads, every task runs in a new
+   * virtual thread (<code>Executors.newThreadPerTaskExecutor</code>), because pooling virtual
+   * threads is pointless. Otherwise a pool of at most the provided number of platform threads is
+   * used.<br>
+   * Note: the number of threads is no limit for the concurrency in the virtual thread case. Callers
+   * that need a limit, must use a {@link java.util.concurrent.Semaphore}.
+   *
+   * @param sNamePrefix
+   *        The thread name prefix. A running number is appended. May neither be <code>null</code>
+   *        nor empty.
+   * @param nPlatformThreads
+   *        The maximum number of platform threads. Must be &gt; 0.
+   * @return A new executor. Never <code>null</code>.
+   */
+  @NonNull
+  public static ExecutorService createExecutor (@NonNull @Nonempty final String sNamePrefix, final int nPlatformThreads)
+  {
+    ValueEnforcer.notEmpty (sNamePrefix, "NamePrefix");
+    ValueEnforcer.isGT0 (nPlatformThreads, "PlatformThreads");
+
+    if (isUseVirtualThreads ())
+    {
+      final ThreadFactory aVirtualFactory = _createVirtualThreadFactory (sNamePrefix);
+      if (aVirtualFactory != null)
+      {
+        try
+        {
+          // Executors.newThreadPerTaskExecutor (aVirtualFactory)
+          return (ExecutorService) Executors.class.getMethod ("newThreadPerTaskExecutor", ThreadFactory.class)
+                                                  .invoke (null, aVirtualFactory);
+        }
+        catch (final ReflectiveOperationException ex)
+        {
+          LOGGER.warn ("Failed to create thread per task executor - falling back to platform threads", ex);
+        }
+      }
+    }
+
+    final ThreadPoolExecutor ret = new ThreadPoolExecutor (nPlatformThreads,
+                                                           nPlatformThreads,
+                                                           60,
+                                                           TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue <> (),
+                                                           create (sNamePrefix));
+    ret.allowCoreThreadTimeOut (true);
+    return ret;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.Nonnegative;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.string.StringHelper;
+
+/**
+ * Limits the number of different values of a single metric tag, as each value creates new meters
+ * (and with a histogram many time series) that are never removed. If a list of known values is
+ * provided, only these are used. Otherwise the first values up to the maximum number are used. All
+ * other values are mapped to {@link #OTHER}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class MetricTagLimiter
+{
+  /** The tag value used for values that are not known */
+  public static final String OTHER = "other";
+  /** The tag value used for missing values */
+  public static final String UNKNOWN = "unknown";
+
+  private final Set <String> m_aKnownValues;
+  private final int m_nMaxValues;
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  private final Set <String> m_aUsedValues = ConcurrentHashMap.newKeySet ();
+
+  /**
+   * @param aKnownValues
+   *        The values to use. If empty, the first values up to the maximum are used. May not be
+   *        <code>null</code>.
+   * @param nMaxValues
+   *        The maximum number of different values if no known values are provided. Must be &ge; 0.
+   */
+  public MetricTagLimiter (@NonNull final Collection <String> aKnownValues, @Nonnegative final int nMaxValues)
+  {
+    ValueEnforcer.notNull (aKnownValues, "KnownValues");
+    ValueEnforcer.isGE0 (nMaxValues, "MaxValues");
+    m_aKnownValues = new HashSet <> (aKnownValues);
+    m_nMaxValues = nMaxValues;
+  }
+
+  /**
+   * @return A new limiter for document type tags, based on the configuration. Never
+   *         <code>null</code>.
+   */
+  @NonNull
+  public static MetricTagLimiter createForDocTypes ()
+  {
+    return new MetricTagLimiter (APConfig.getMetricsDocTypeIDs (), Math.max (0, APConfig.getMetricsMaxTagValues ()));
+  }
+
+  /**
+   * @return A new limiter for tags without known values, based on the configuration. Never
+   *         <code>null</code>.
+   */
+  @NonNull
+  public static MetricTagLimiter createDefault ()
+  {
+    return new MetricTagLimiter (Set.of (), Math.max (0, APConfig.getMetricsMaxTagValues ()));
+  }
+
+  /**
+   * @param sValue
+   *        The value to use as a tag. May be <code>null</code>.
+   * @return The provided value, {@link #UNKNOWN} if it is empty or {@link #OTHER} if it is not known
+   *         or too many different values are in use. Never <code>null</code>.
+   */
+  @NonNull
+  @Nonempty
+  public String getTagValue (@Nullable final String sValue)
+  {
+    if (StringHelper.isEmpty (sValue))
+      return UNKNOWN;
+
+    if (!m_aKnownValues.isEmpty ())
+      return m_aKnownValues.contains (sValue) ? sValue : OTHER;
+
+    if (m_aUsedValues.contains (sValue))
+      return sValue;
+
+    m_aLock.lock ();
+    try
+    {
+      if (m_aUsedValues.size () >= m_nMaxValues)
+        return OTHER;
+      m_aUsedValues.add (sValue);
+      return sValue;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.string.StringHelper;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.peppol.servicedomain.EPeppolNetwork;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+import com.helger.security.certificate.TrustedCAChecker;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.Part;
+
+/**
+ * REST controller to send many SBDH documents with a single HTTP request. The documents are read
+ * one by one from the request, sent in parallel and the sending report of each document is streamed
+ * back as one JSON line (NDJSON) as soon as it is finished.
+ *
+ * @author Philip Helger
+ */
+@RestController
+public class PeppolBatchSenderController
+{
+  static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolBatchSenderController.class);
+
+  // Shared by all batch requests, so that the total number of parallel sends is bounded
+  private final ExecutorService m_aExecutor;
+  private final Semaphore m_aSendPermits;
+
+  /**
+   * The state of a single batch run. Entries are submitted from the request thread and all
+   * results are written from the request thread as well, so no synchronization on the output is
+   * needed.
+   */
+  private static final class BatchRun
+  {
+    private final ISMLInfo m_aSMLInfo;
+    private final TrustedCAChecker m_aAPCA;
+    private final int m_nParallelism;
+    private final CompletionService <IJsonObject> m_aCompletionService;
+    private final Semaphore m_aSendPermits;
+    private final OutputStream m_aOS;
+    private int m_nSubmitted = 0;
+    private int m_nInFlight = 0;
+
+    BatchRun (@NonNull final ISMLInfo aSMLInfo,
+              @NonNull final TrustedCAChecker aAPCA,
+              final int nParallelism,
+              @NonNull final Executor aExecutor,
+              @NonNull final Semaphore aSendPermits,
+              @NonNull final OutputStream aOS)
+    {
+      m_aSMLInfo = aSMLInfo;
+      m_aSendPermits = aSendPermits;
+      m_aAPCA = aAPCA;
+      m_nParallelism = nParallelism;
+      m_aCompletionService = new ExecutorCompletionService <> (aExecutor);
+      m_aOS = aOS;
+    }
+
+    private void _writeLine (@NonNull final IJsonObject aLine) throws IOException
+    {
+      m_aOS.write (aLine.getAsJsonString ().getBytes (StandardCharsets.UTF_8));
+      m_aOS.write ('\n');
+      m_aOS.flush ();
+    }
+
+    @Nullable
+    private IJsonObject _getNextResult (final boolean bBlocking) throws IOException
+    {
+      try
+      {
+        final Future <IJsonObject> aFuture = bBlocking ? m_aCompletionService.take () : m_aCompletionService.poll ();
+        if (aFuture == null)
+          return null;
+        m_nInFlight--;
+        return aFuture.get ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new IOException ("Interrupted while waiting for batch results", ex);
+      }
+      catch (final ExecutionException ex)
+      {
+        // Should not happen, as all exceptions are caught in the task
+        throw new IOException ("Error in batch sending", ex.getCause ());
+      }
+    }
+
+    private void _writeNextResult (final boolean bBlocking) throws IOException
+    {
+      final IJsonObject aResult = _getNextResult (bBlocking);
+      if (aResult != null)
+        _writeLine (aResult);
+    }
+
+    void submit (@NonNull final String sEntryName, final byte @NonNull [] aSBDHBytes) throws IOException
+    {
+      // Wait until a slot is free - this applies back pressure to reading the
+      // request body
+      while (m_nInFlight >= m_nParallelism)
+        _writeNextResult (true);
+
+      final int nEntryIndex = m_nSubmitted++;
+      m_nInFlight++;
+      m_aCompletionService.submit ( () -> {
+        IJsonObject aReportJson;
+        boolean bAcquired = false;
+        try
+        {
+          // Limits the parallel sends of all batch requests together
+          m_aSendPermits.acquire ();
+          bAcquired = true;
+          final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolMessagePredefinedSbdh (aSBDHBytes,
+                                                                                                         m_aSMLInfo,
+                                                                                                         m_aAPCA,
+                                                                                                         null);
+          aReportJson = aSendingReport.getAsJsonObject ();
+        }
+        catch (final Exception ex)
+        {
+          // Each entry must have a result line
+          if (ex instanceof InterruptedException)
+            Thread.currentThread ().interrupt ();
+          LOGGER.error ("Error sending batch entry '" + sEntryName + "'", ex);
+          aReportJson = new JsonObject ().add ("errorMessage", ex.getMessage ());
+        }
+        finally
+        {
+          if (bAcquired)
+            m_aSendPermits.release ();
+        }
+        return new JsonObject ().add ("entryIndex", nEntryIndex)
+                                .add ("entryName", sEntryName)
+                                .add ("sendingReport", aReportJson);
+      });
+
+      // Write everything that is already finished
+      _writeNextResult (false);
+    }
+
+    /**
+     * Wait for all submitted entries. If writing a result fails, the remaining results are still
+     * collected and logged, and the first write error is thrown at the end.
+     *
+     * @throws IOException
+     *         If writing a result failed or waiting was interrupted
+     */
+    void finish () throws IOException
+    {
+      IOException aWriteEx = null;
+      while (m_nInFlight > 0)
+      {
+        final IJsonObject aResult = _getNextResult (true);
+        if (aWriteEx == null)
+          try
+          {
+            _writeLine (aResult);
+          }
+          catch (final IOException ex)
+          {
+            aWriteEx = ex;
+          }
+        if (aWriteEx != null)
+          LOGGER.warn ("Failed to write batch result " + aResult.getAsJsonString ());
+      }
+      if (aWriteEx != null)
+        throw aWriteEx;
+    }
+
+    /**
+     * Report that the batch was aborted, so that the client knows that not all entries were read.
+     * Failures are only logged, as the response is most likely broken anyway.
+     *
+     * @param ex
+     *        The reason of the abort. May not be <code>null</code>.
+     */
+    void writeAbort (@NonNull final Exception ex)
+    {
+      try
+      {
+        _writeLine (new JsonObject ().add ("batchAborted", true).add ("errorMessage", ex.getMessage ()));
+      }
+      catch (final IOException ex2)
+      {
+        LOGGER.warn ("Failed to write the batch abort line", ex2);
+      }
+    }
+
+    int getSubmittedCount ()
+    {
+      return m_nSubmitted;
+    }
+  }
+
+  public PeppolBatchSenderController ()
+  {
+    final int nThreads = APConfig.getBatchThreads ();
+    ValueEnforcer.isGT0 (nThreads, "BatchThreads");
+    m_aExecutor = APThreadFactory.createExecutor ("phase4-batch-send-", nThreads);
+    m_aSendPermits = new Semaphore (nThreads);
+  }
+
+  /**
+   * Stop accepting new batch entries and wait a short time for the running sends. Called on
+   * application shutdown.
+   */
+  @PreDestroy
+  public void shutdown ()
+  {
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+        LOGGER.warn ("Not all batch sending entries finished in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  private static byte @NonNull [] _readEntry (@NonNull final InputStream aIS, final long nMaxBytes) throws IOException
+  {
+    // Read one more byte than allowed to detect too large entries
+    final byte [] ret = aIS.readNBytes ((int) Math.min (nMaxBytes + 1, Integer.MAX_VALUE - 8));
+    if (ret.length > nMaxBytes)
+      throw new IOException ("Batch entry exceeds the maximum size of " + nMaxBytes + " bytes");
+    return ret;
+  }
+
+  private static void _readZip (@NonNull final InputStream aIS,
+                                @NonNull final String sNamePrefix,
+                                @NonNull final BatchRun aRun) throws IOException
+  {
+    final long nMaxEntryBytes = APConfig.getBatchMaxEntryBytes ();
+    try (final ZipInputStream aZIS = new ZipInputStream (aIS))
+    {
+      ZipEntry aEntry;
+      while ((aEntry = aZIS.getNextEntry ()) != null)
+      {
+        if (!aEntry.isDirectory ())
+          aRun.submit (sNamePrefix + aEntry.getName (), _readEntry (aZIS, nMaxEntryBytes));
+        aZIS.closeEntry ();
+      }
+    }
+  }
+
+  private static void _readRequest (@NonNull final HttpServletRequest aRequest,
+                                    @NonNull final BatchRun aRun) throws IOException, ServletException
+  {
+    final String sContentType = aRequest.getContentType ();
+    if (sContentType != null && sContentType.toLowerCase ().startsWith ("multipart/"))
+    {
+      final long nMaxEntryBytes = APConfig.getBatchMaxEntryBytes ();
+      for (final Part aPart : aRequest.getParts ())
+      {
+        final String sPartName = StringHelper.isNotEmpty (aPart.getSubmittedFileName ()) ? aPart.getSubmittedFileName ()
+                                                                                         : aPart.getName ();
+        final boolean bIsZip = "application/zip".equals (aPart.getContentType ()) ||
+                               sPartName.toLowerCase ().endsWith (".zip");
+        try (final InputStream aIS = aPart.getInputStream ())
+        {
+          if (bIsZip)
+            _readZip (aIS, sPartName + "/", aRun);
+          else
+            aRun.submit (sPartName, _readEntry (aIS, nMaxEntryBytes));
+        }
+      }
+    }
+    else
+    {
+      // Plain ZIP body - read it as a stream
+      _readZip (aRequest.getInputStream (), "", aRun);
+    }
+  }
+
+  /**
+   * Send many SBDH documents at once. The request body is either a ZIP file containing one SBDH
+   * document per entry, or a multipart request where each part is either a single SBDH document or
+   * a ZIP file with SBDH documents.
+   *
+   * @param xtoken
+   *        The X-Token header
+   * @param nParallelism
+   *        The number of documents to be sent in parallel. Values &le; 0 mean to use the configured
+   *        default. It is limited by the configured maximum.
+   * @param aRequest
+   *        The HTTP request
+   * @param aResponse
+   *        The HTTP response. Contains one JSON object per line and document.
+   * @throws IOException
+   *         On I/O error
+   * @throws ServletException
+   *         On multipart handling error
+   */
+  @PostMapping (path = "/sendsbdh-batch", produces = MEDIA_TYPE_NDJSON)
+  public void sendPeppolSbdhBatch (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                   required = true) final String xtoken,
+                                   @RequestParam (name = "parallelism",
+                                                  required = false,
+                                                  defaultValue = "0") final int nParallelism,
+                                   final HttpServletRequest aRequest,
+                                   final HttpServletResponse aResponse) throws IOException, ServletException
+  {
+    if (!APConfig.isSendingEnabled ())
+    {
+      LOGGER.info ("Peppol AP sending is disabled");
+      throw new HttpNotFoundException ();
+    }
+
+    if (StringHelper.isEmpty (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ("AS4 Sender: token is missing");
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ("AS4 Sender: token is invalid");
+    }
+
+    // Make Network decisions
+    final EPeppolNetwork eStage = APConfig.getPeppolStage ();
+    final ISMLInfo aSMLInfo = eStage.getSMLInfo ();
+    final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
+
+    final int nEffectiveParallelism = Math.min (nParallelism > 0 ? nParallelism : APConfig.getBatchParallelism (),
+                                                APConfig.getBatchMaxParallelism ());
+    LOGGER.info ("Starting Peppol " + eStage.name () + " batch sending with parallelism " + nEffectiveParallelism);
+
+    aResponse.setStatus (HttpServletResponse.SC_OK);
+    aResponse.setContentType (MEDIA_TYPE_NDJSON);
+    aResponse.setCharacterEncoding (StandardCharsets.UTF_8.name ());
+
+    // If reading the request or writing the response fails, no further entries are submitted. The
+    // entries already submitted are sent to the end, as they may already be on the wire.
+    final BatchRun aRun = new BatchRun (aSMLInfo,
+                                        aAPCA,
+                                        nEffectiveParallelism,
+                                        m_aExecutor,
+                                        m_aSendPermits,
+                                        aResponse.getOutputStream ());
+
+    try
+    {
+      _readRequest (aRequest, aRun);
+    }
+    catch (final IOException | ServletException | RuntimeException ex)
+    {
+      // The entries already submitted are still sent - report their results
+      LOGGER.error ("Aborting Peppol batch sending after " + aRun.getSubmittedCount () + " documents", ex);
+      try
+      {
+        aRun.finish ();
+      }
+      catch (final IOException ex2)
+      {
+        ex.addSuppressed (ex2);
+      }
+      aRun.writeAbort (ex);
+      throw ex;
+    }
+    aRun.finish ();
+    LOGGER.info ("Finished Peppol batch sending of " + aRun.getSubmittedCount () + " documents");
+  }
+}
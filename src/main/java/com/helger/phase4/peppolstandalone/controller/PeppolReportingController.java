@@ -16,30 +16,36 @@
  */
 package com.helger.phase4.peppolstandalone.controller;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.YearMonth;
+import java.util.zip.GZIPOutputStream;
 
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.helger.base.state.ESuccess;
 import com.helger.base.string.StringHelper;
-import com.helger.collection.commons.CommonsArrayList;
-import com.helger.collection.commons.ICommonsList;
-import com.helger.peppol.reporting.api.PeppolReportingItem;
-import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
-import com.helger.peppol.reporting.eusr.EndUserStatisticsReport;
 import com.helger.peppol.reporting.jaxb.eusr.EndUserStatisticsReport110Marshaller;
 import com.helger.peppol.reporting.jaxb.eusr.v110.EndUserStatisticsReportType;
 import com.helger.peppol.reporting.jaxb.tsr.TransactionStatisticsReport101Marshaller;
 import com.helger.peppol.reporting.jaxb.tsr.v101.TransactionStatisticsReportType;
-import com.helger.peppol.reporting.tsr.TransactionStatisticsReport;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppolstandalone.APConfig;
 import com.helger.phase4.peppolstandalone.reporting.AppReportingHelper;
+import com.helger.phase4.peppolstandalone.reporting.PeppolReportCache;
 
 /**
  * This is the primary REST controller for the APIs to create Peppol Reports TSR and EUSR.<br>
@@ -52,6 +58,134 @@ public class PeppolReportingController
 {
   private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingController.class);
 
+  private static final String CONTENT_CODING_GZIP = "gzip";
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Writes the report XML to the provided stream.
+   */
+  @FunctionalInterface
+  private interface IReportWriter
+  {
+    void writeTo (@NonNull OutputStream aOS) throws IOException;
+  }
+
+  /**
+   * Ensures the servlet output stream is not closed by the marshallers or the GZIP stream.
+   */
+  private static final class NonClosingOutputStream extends FilterOutputStream
+  {
+    NonClosingOutputStream (@NonNull final OutputStream aOS)
+    {
+      super (aOS);
+    }
+
+    @Override
+    public void write (final byte @NonNull [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      out.write (aBuf, nOfs, nLen);
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      flush ();
+    }
+  }
+
+  private static boolean _isGzipAccepted (@Nullable final String sAcceptEncoding)
+  {
+    if (!APConfig.isReportGzipEnabled () || StringHelper.isEmpty (sAcceptEncoding))
+      return false;
+    for (final String sPart : sAcceptEncoding.split (","))
+    {
+      final String [] aParams = sPart.split (";");
+      final String sCoding = aParams[0].trim ();
+      if (CONTENT_CODING_GZIP.equalsIgnoreCase (sCoding) || "x-gzip".equalsIgnoreCase (sCoding))
+      {
+        for (int i = 1; i < aParams.length; ++i)
+        {
+          // A quality of 0 means "not acceptable"
+          if (aParams[i].trim ().matches ("[qQ]\\s*=\\s*0(\\.0{0,3})?"))
+            return false;
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean _matchesETag (@Nullable final String sIfNoneMatch, @NonNull final String sETag)
+  {
+    if (StringHelper.isEmpty (sIfNoneMatch))
+      return false;
+    for (final String sPart : sIfNoneMatch.split (","))
+    {
+      final String sCandidate = sPart.trim ();
+      // Weak comparison as required for If-None-Match
+      if ("*".equals (sCandidate) || sETag.equals (sCandidate.startsWith ("W/") ? sCandidate.substring (2) : sCandidate))
+        return true;
+    }
+    return false;
+  }
+
+  @NonNull
+  private static ResponseEntity <StreamingResponseBody> _createStreamingResponse (final ResponseEntity.@NonNull BodyBuilder aBuilder,
+                                                                                 final boolean bGzip,
+                                                                                 @NonNull final IReportWriter aWriter)
+  {
+    if (APConfig.isReportGzipEnabled ())
+      aBuilder.varyBy (HttpHeaders.ACCEPT_ENCODING);
+    if (bGzip)
+      aBuilder.header (HttpHeaders.CONTENT_ENCODING, CONTENT_CODING_GZIP);
+
+    // The XML is written directly to the response and never buffered as a whole
+    return aBuilder.contentType (MediaType.APPLICATION_XML).body (aOS -> {
+      final OutputStream aTargetOS = new NonClosingOutputStream (aOS);
+      try (final OutputStream aXMLOS = bGzip ? new GZIPOutputStream (aTargetOS, GZIP_BUFFER_SIZE) : aTargetOS)
+      {
+        aWriter.writeTo (aXMLOS);
+      }
+    });
+  }
+
+  @NonNull
+  private static ResponseEntity <StreamingResponseBody> _createCachedResponse (final PeppolReportCache.@NonNull Report aReport,
+                                                                              @Nullable final String sIfNoneMatch,
+                                                                              final boolean bGzip)
+  {
+    // Different content codings need different strong ETags
+    final String sETag = aReport.getETag (bGzip ? CONTENT_CODING_GZIP : null);
+    if (_matchesETag (sIfNoneMatch, sETag))
+    {
+      final ResponseEntity.HeadersBuilder <?> aBuilder = ResponseEntity.status (HttpStatus.NOT_MODIFIED).eTag (sETag);
+      if (APConfig.isReportGzipEnabled ())
+        aBuilder.varyBy (HttpHeaders.ACCEPT_ENCODING);
+      return aBuilder.build ();
+    }
+    return _createStreamingResponse (ResponseEntity.ok ().eTag (sETag),
+                                     bGzip,
+                                     aOS -> aOS.write (aReport.getXMLBytes ()));
+  }
+
+  private static void _checkWritten (@NonNull final ESuccess eSuccess, @NonNull final String sReportType) throws IOException
+  {
+    if (eSuccess.isFailure ())
+      throw new IOException ("Failed to write the " + sReportType + " XML");
+  }
+
+  private static byte @Nullable [] _createTSRXML (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final TransactionStatisticsReportType aReport = AppReportingHelper.createTSR (aYearMonth);
+    return aReport == null ? null : new TransactionStatisticsReport101Marshaller ().getAsBytes (aReport);
+  }
+
+  private static byte @Nullable [] _createEUSRXML (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final EndUserStatisticsReportType aReport = AppReportingHelper.createEUSR (aYearMonth);
+    return aReport == null ? null : new EndUserStatisticsReport110Marshaller ().getAsBytes (aReport);
+  }
+
   /**
    * This API creates a TSR report from the provided year and month
    *
@@ -61,13 +195,23 @@ public class PeppolReportingController
    *        The year to use. Must be &ge; 2024
    * @param nMonth
    *        The month to use. Must be &ge; 1 and &le; 12
+   * @param sIfNoneMatch
+   *        The optional If-None-Match header
+   * @param sAcceptEncoding
+   *        The optional Accept-Encoding header
    * @return The created TSR reporting in XML in UTF-8 encoding
    */
   @GetMapping (path = "/create-tsr/{year}/{month}", produces = MediaType.APPLICATION_XML_VALUE)
-  public String createPeppolReportingTSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
-                                                          required = true) final String xtoken,
-                                          @PathVariable (name = "year", required = true) final int nYear,
-                                          @PathVariable (name = "month", required = true) final int nMonth)
+  public ResponseEntity <StreamingResponseBody> createPeppolReportingTSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                                          required = true) final String xtoken,
+                                                                          @PathVariable (name = "year",
+                                                                                         required = true) final int nYear,
+                                                                          @PathVariable (name = "month",
+                                                                                         required = true) final int nMonth,
+                                                                          @RequestHeader (name = HttpHeaders.IF_NONE_MATCH,
+                                                                                          required = false) final String sIfNoneMatch,
+                                                                          @RequestHeader (name = HttpHeaders.ACCEPT_ENCODING,
+                                                                                          required = false) final String sAcceptEncoding)
   {
     if (StringHelper.isEmpty (xtoken))
     {
@@ -82,28 +226,29 @@ public class PeppolReportingController
 
     // Check parameters
     final YearMonth aYearMonth = AppReportingHelper.getValidYearMonthInAPI (nYear, nMonth);
-
-    LOGGER.info ("Trying to create Peppol Reporting TSR for " + aYearMonth);
+    final boolean bGzip = _isGzipAccepted (sAcceptEncoding);
 
     try
     {
-      // Now get all items from data storage and store them in a list (we start
-      // with an initial size of 1K to avoid too many copy operations)
-      final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-      if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                                aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                           aReportingItems::add))
-                                .isSuccess ())
+      final PeppolReportCache aCache = PeppolReportCache.getInstance ();
+      if (aCache.isCacheable (aYearMonth))
       {
-        // Create report with the read transactions
-        final TransactionStatisticsReportType aReport = TransactionStatisticsReport.builder ()
-                                                                                   .monthOf (aYearMonth)
-                                                                                   .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                                                                   .reportingItemList (aReportingItems)
-                                                                                   .build ();
-        return new TransactionStatisticsReport101Marshaller ().getAsString (aReport);
+        // Reports of completed months are cached
+        final PeppolReportCache.Report aReport = aCache.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                     aYearMonth,
+                                                                     PeppolReportingController::_createTSRXML);
+        if (aReport == null)
+          throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+        return _createCachedResponse (aReport, sIfNoneMatch, bGzip);
       }
-      throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+
+      // Stream the XML to the client
+      final TransactionStatisticsReportType aReport = AppReportingHelper.createTSR (aYearMonth);
+      if (aReport == null)
+        throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+      return _createStreamingResponse (ResponseEntity.ok (),
+                                       bGzip,
+                                       aOS -> _checkWritten (new TransactionStatisticsReport101Marshaller ().write (aReport, aOS), "TSR"));
     }
     catch (final PeppolReportingBackendException ex)
     {
@@ -121,13 +266,23 @@ public class PeppolReportingController
    *        The year to use. Must be &ge; 2024
    * @param nMonth
    *        The month to use. Must be &ge; 1 and &le; 12
+   * @param sIfNoneMatch
+   *        The optional If-None-Match header
+   * @param sAcceptEncoding
+   *        The optional Accept-Encoding header
    * @return The created EUSR reporting in XML in UTF-8 encoding
    */
   @GetMapping (path = "/create-eusr/{year}/{month}", produces = MediaType.APPLICATION_XML_VALUE)
-  public String createPeppolReportingEUSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
-                                                           required = true) final String xtoken,
-                                           @PathVariable (name = "year", required = true) final int nYear,
-                                           @PathVariable (name = "month", required = true) final int nMonth)
+  public ResponseEntity <StreamingResponseBody> createPeppolReportingEUSR (@RequestHeader (name = PeppolSenderController.HEADER_X_TOKEN,
+                                                                                           required = true) final String xtoken,
+                                                                           @PathVariable (name = "year",
+                                                                                          required = true) final int nYear,
+                                                                           @PathVariable (name = "month",
+                                                                                          required = true) final int nMonth,
+                                                                           @RequestHeader (name = HttpHeaders.IF_NONE_MATCH,
+                                                                                           required = false) final String sIfNoneMatch,
+                                                                           @RequestHeader (name = HttpHeaders.ACCEPT_ENCODING,
+                                                                                           required = false) final String sAcceptEncoding)
   {
     if (StringHelper.isEmpty (xtoken))
     {
@@ -142,28 +297,29 @@ public class PeppolReportingController
 
     // Check parameters
     final YearMonth aYearMonth = AppReportingHelper.getValidYearMonthInAPI (nYear, nMonth);
-
-    LOGGER.info ("Trying to create Peppol Reporting EUSR for " + aYearMonth);
+    final boolean bGzip = _isGzipAccepted (sAcceptEncoding);
 
     try
     {
-      // Now get all items from data storage and store them in a list (we start
-      // with an initial size of 1K to avoid too many copy operations)
-      final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-      if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                                aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                           aReportingItems::add))
-                                .isSuccess ())
+      final PeppolReportCache aCache = PeppolReportCache.getInstance ();
+      if (aCache.isCacheable (aYearMonth))
       {
-        // Create report with the read transactions
-        final EndUserStatisticsReportType aReport = EndUserStatisticsReport.builder ()
-                                                                           .monthOf (aYearMonth)
-                                                                           .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                                                           .reportingItemList (aReportingItems)
-                                                                           .build ();
-        return new EndUserStatisticsReport110Marshaller ().getAsString (aReport);
+        // Reports of completed months are cached
+        final PeppolReportCache.Report aReport = aCache.getOrCreate (PeppolReportCache.EReportType.EUSR,
+                                                                     aYearMonth,
+                                                                     PeppolReportingController::_createEUSRXML);
+        if (aReport == null)
+          throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+        return _createCachedResponse (aReport, sIfNoneMatch, bGzip);
       }
-      throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+
+      // Stream the XML to the client
+      final EndUserStatisticsReportType aReport = AppReportingHelper.createEUSR (aYearMonth);
+      if (aReport == null)
+        throw new HttpInternalServerErrorException ("Failed to read Peppol Reporting backend data");
+      return _createStreamingResponse (ResponseEntity.ok (),
+                                       bGzip,
+                                       aOS -> _checkWritten (new EndUserStatisticsReport110Marshaller ().write (aReport, aOS), "EUSR"));
     }
     catch (final PeppolReportingBackendException ex)
     {
@@ -16,26 +16,39 @@
  */
 package com.helger.phase4.peppolstandalone.controller;
 
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
 import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.w3c.dom.Document;
 
 import com.helger.annotation.Nonempty;
 import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayInputStream;
+import com.helger.base.string.StringHelper;
 import com.helger.base.timing.StopWatch;
 import com.helger.base.wrapper.Wrapper;
 import com.helger.mime.CMimeType;
 import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
 import com.helger.peppol.sml.ISMLInfo;
 import com.helger.peppolid.IDocumentTypeIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
 import com.helger.peppolid.IProcessIdentifier;
-import com.helger.peppolid.factory.IIdentifierFactory;
 import com.helger.peppolid.factory.PeppolIdentifierFactory;
 import com.helger.peppolid.peppol.doctype.EPredefinedDocumentTypeIdentifier;
 import com.helger.peppolid.peppol.process.EPredefinedProcessIdentifier;
 import com.helger.phase4.client.IAS4ClientBuildMessageCallback;
 import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.messaging.mime.AS4MimeMessage;
+import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.message.AS4UserMessage;
 import com.helger.phase4.model.message.AbstractAS4Message;
 import com.helger.phase4.peppol.Phase4PeppolSender;
@@ -43,11 +56,22 @@ import com.helger.phase4.peppol.Phase4PeppolSender.PeppolUserMessageBuilder;
 import com.helger.phase4.peppol.Phase4PeppolSender.PeppolUserMessageSBDHBuilder;
 import com.helger.phase4.peppol.Phase4PeppolSendingReport;
 import com.helger.phase4.peppolstandalone.APConfig;
-import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicyManager;
+import com.helger.phase4.peppolstandalone.outbound.EOutboundPhase;
+import com.helger.phase4.peppolstandalone.outbound.EndpointGuard;
+import com.helger.phase4.peppolstandalone.outbound.OutboundHttpClientPool;
+import com.helger.phase4.peppolstandalone.outbound.OutboundPhaseTimer;
+import com.helger.phase4.peppolstandalone.outbound.PeppolIdentifierCache;
+import com.helger.phase4.peppolstandalone.outbound.PeppolSendingState;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpoint;
+import com.helger.phase4.peppolstandalone.outbound.SMPEndpointCache;
+import com.helger.phase4.peppolstandalone.outbound.XMLRootElementReader;
+import com.helger.phase4.peppolstandalone.security.CertificateCheckCache;
+import com.helger.phase4.peppolstandalone.storage.SpooledPayload;
 import com.helger.phase4.sender.EAS4UserMessageSendResult;
 import com.helger.phase4.util.Phase4Exception;
+import com.helger.security.certificate.ECertificateCheckResult;
 import com.helger.security.certificate.TrustedCAChecker;
-import com.helger.smpclient.peppol.SMPClientReadOnly;
 import com.helger.xml.serialize.read.DOMReader;
 
 /**
@@ -64,6 +88,32 @@ public final class PeppolSender
   private PeppolSender ()
   {}
 
+  /**
+   * Check the certificate of the receiving AP and remember the result in the sending report.
+   *
+   * @throws Phase4Exception
+   *         If the certificate is not valid
+   */
+  private static void _checkReceiverAPCertificate (@NonNull final TrustedCAChecker aAPCAChecker,
+                                                   @NonNull final SMPEndpoint aEndpoint,
+                                                   @NonNull final Phase4PeppolSendingReport aSendingReport) throws Phase4Exception
+  {
+    final X509Certificate aAPCertificate = aEndpoint.getReceiverAPCertificate ();
+    final OffsetDateTime aCheckDT = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
+    final ECertificateCheckResult eCertCheckResult = CertificateCheckCache.getInstance ()
+                                                                          .checkCertificate (aAPCAChecker,
+                                                                                             aAPCertificate,
+                                                                                             aCheckDT);
+    // Determined by SMP lookup
+    aSendingReport.setC3Cert (aAPCertificate);
+    aSendingReport.setC3CertCheckDT (aCheckDT);
+    aSendingReport.setC3CertCheckResult (eCertCheckResult);
+    if (eCertCheckResult.isInvalid ())
+      throw new Phase4Exception ("The configured receiver AP certificate is not valid (" +
+                                 eCertCheckResult +
+                                 ") and cannot be used for sending");
+  }
+
   /**
    * Send a Peppol message where the SBDH is created internally by phase4
    *
@@ -83,6 +133,8 @@ public final class PeppolSender
    *        The Peppol process ID
    * @param sCountryCodeC1
    *        The Country Code of the sender (C1)
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
    * @return The created sending report and never <code>null</code>.
    */
   @NonNull
@@ -93,9 +145,106 @@ public final class PeppolSender
                                                                          @NonNull @Nonempty final String sReceiverID,
                                                                          @NonNull @Nonempty final String sDocTypeID,
                                                                          @NonNull @Nonempty final String sProcessID,
-                                                                         @NonNull @Nonempty final String sCountryCodeC1)
+                                                                         @NonNull @Nonempty final String sCountryCodeC1,
+                                                                         @Nullable final PeppolSendingState aState)
+  {
+    return sendPeppolMessageCreatingSbdh (aSmlInfo,
+                                          aAPCAChecker,
+                                          SpooledPayload.wrap (aPayloadBytes),
+                                          sSenderID,
+                                          sReceiverID,
+                                          sDocTypeID,
+                                          sProcessID,
+                                          sCountryCodeC1,
+                                          aState);
+  }
+
+  /**
+   * Send a Peppol message where the SBDH is created internally by phase4. The payload is parsed
+   * directly from the stream, so that no additional copy of the bytes is needed.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aPayload
+   *        The main business document to be send. Is not closed.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryCodeC1
+   *        The Country Code of the sender (C1)
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @NonNull
+  public static Phase4PeppolSendingReport sendPeppolMessageCreatingSbdh (@NonNull final ISMLInfo aSmlInfo,
+                                                                         @NonNull final TrustedCAChecker aAPCAChecker,
+                                                                         @NonNull final SpooledPayload aPayload,
+                                                                         @NonNull @Nonempty final String sSenderID,
+                                                                         @NonNull @Nonempty final String sReceiverID,
+                                                                         @NonNull @Nonempty final String sDocTypeID,
+                                                                         @NonNull @Nonempty final String sProcessID,
+                                                                         @NonNull @Nonempty final String sCountryCodeC1,
+                                                                         @Nullable final PeppolSendingState aState)
+  {
+    return sendPeppolMessageCreatingSbdh (aSmlInfo,
+                                          aAPCAChecker,
+                                          aPayload,
+                                          sSenderID,
+                                          sReceiverID,
+                                          sDocTypeID,
+                                          sProcessID,
+                                          sCountryCodeC1,
+                                          new OutboundPhaseTimer (),
+                                          aState);
+  }
+
+  /**
+   * Send a Peppol message where the SBDH is created internally by phase4. The payload is parsed
+   * directly from the stream, so that no additional copy of the bytes is needed.
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aPayload
+   *        The main business document to be send. Is not closed.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sDocTypeID
+   *        The Peppol document type ID
+   * @param sProcessID
+   *        The Peppol process ID
+   * @param sCountryCodeC1
+   *        The Country Code of the sender (C1)
+   * @param aPhaseTimer
+   *        The phase timer to be used. May not be <code>null</code>.
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @NonNull
+  public static Phase4PeppolSendingReport sendPeppolMessageCreatingSbdh (@NonNull final ISMLInfo aSmlInfo,
+                                                                         @NonNull final TrustedCAChecker aAPCAChecker,
+                                                                         @NonNull final SpooledPayload aPayload,
+                                                                         @NonNull @Nonempty final String sSenderID,
+                                                                         @NonNull @Nonempty final String sReceiverID,
+                                                                         @NonNull @Nonempty final String sDocTypeID,
+                                                                         @NonNull @Nonempty final String sProcessID,
+                                                                         @NonNull @Nonempty final String sCountryCodeC1,
+                                                                         @NonNull final OutboundPhaseTimer aPhaseTimer,
+                                                                         @Nullable final PeppolSendingState aState)
   {
-    final IIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final PeppolIdentifierCache aIDCache = PeppolIdentifierCache.getInstance ();
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
 
     final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
@@ -107,64 +256,69 @@ public final class PeppolSender
     final StopWatch aSW = StopWatch.createdStarted ();
     try
     {
+      aPhaseTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
       // Payload must be XML - even for Text and Binary content
-      final Document aDoc = DOMReader.readXMLDOM (aPayloadBytes);
-      if (aDoc == null || aDoc.getDocumentElement () == null)
+      // Quickly check the root element only, before anything else is done
+      final QName aRootName;
+      try (final InputStream aIS = aPayload.openInputStream ())
+      {
+        aRootName = XMLRootElementReader.readRootElementName (aIS);
+      }
+      catch (final XMLStreamException ex)
+      {
+        throw new IllegalStateException ("Failed to read provided payload as XML", ex);
+      }
+      if (aRootName == null)
         throw new IllegalStateException ("Failed to read provided payload as XML");
-      if (aDoc.getDocumentElement ().getNamespaceURI () == null)
+      if (StringHelper.isEmpty (aRootName.getNamespaceURI ()))
         throw new IllegalStateException ("Only XML payloads with a namespace are supported");
 
-      // Start configuring here
-      IParticipantIdentifier aSenderID = aIF.parseParticipantIdentifier (sSenderID);
-      if (aSenderID == null)
-      {
-        // Fallback to default scheme
-        aSenderID = aIF.createParticipantIdentifierWithDefaultScheme (sSenderID);
-      }
+      // Start configuring here - parsing includes the fallback to the default schemes
+      aPhaseTimer.begin (EOutboundPhase.IDENTIFIER_PARSE);
+      final IParticipantIdentifier aSenderID = aIDCache.getParticipantID (sSenderID);
       if (aSenderID == null)
         throw new IllegalStateException ("Failed to parse the sending participant ID '" + sSenderID + "'");
       aSendingReport.setSenderID (aSenderID);
 
-      IParticipantIdentifier aReceiverID = aIF.parseParticipantIdentifier (sReceiverID);
-      if (aReceiverID == null)
-      {
-        // Fallback to default scheme
-        aReceiverID = aIF.createParticipantIdentifierWithDefaultScheme (sReceiverID);
-      }
+      final IParticipantIdentifier aReceiverID = aIDCache.getParticipantID (sReceiverID);
       if (aReceiverID == null)
         throw new IllegalStateException ("Failed to parse the receiving participant ID '" + sReceiverID + "'");
       aSendingReport.setReceiverID (aReceiverID);
 
-      IDocumentTypeIdentifier aDocTypeID = aIF.parseDocumentTypeIdentifier (sDocTypeID);
-      if (aDocTypeID == null)
-      {
-        // Fallback to default scheme
-        aDocTypeID = aIF.createDocumentTypeIdentifierWithDefaultScheme (sDocTypeID);
-      }
+      final IDocumentTypeIdentifier aDocTypeID = aIDCache.getDocumentTypeID (sDocTypeID);
       if (aDocTypeID == null)
         throw new IllegalStateException ("Failed to parse the document type ID '" + sDocTypeID + "'");
       aSendingReport.setDocTypeID (aDocTypeID);
+      aPhaseTimer.setDocTypeID (aDocTypeID);
 
-      IProcessIdentifier aProcessID = aIF.parseProcessIdentifier (sProcessID);
-      if (aProcessID == null)
-      {
-        // Fallback to default scheme
-        aProcessID = aIF.createProcessIdentifierWithDefaultScheme (sProcessID);
-      }
+      final IProcessIdentifier aProcessID = aIDCache.getProcessID (sProcessID);
       if (aProcessID == null)
         throw new IllegalStateException ("Failed to parse the process ID '" + sProcessID + "'");
       aSendingReport.setProcessID (aProcessID);
 
-      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
-                                                                  aReceiverID,
-                                                                  aSmlInfo);
-      APConfig.applyHttpProxySettings (aSMPClient.httpClientSettings ());
-
-      final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
-      APConfig.applyHttpProxySettings (aHCS);
+      // Resolve the receiving AP via the shared SMP lookup cache
+      aPhaseTimer.begin (EOutboundPhase.SMP_LOOKUP);
+      final SMPEndpoint aEndpoint = SMPEndpointCache.getInstance ().getEndpoint (aSmlInfo,
+                                                                                 aReceiverID,
+                                                                                 aDocTypeID,
+                                                                                 aProcessID);
+
+      // Check the C3 certificate, using the shared result cache
+      aPhaseTimer.begin (EOutboundPhase.C3_CERT_CHECK);
+      _checkReceiverAPCertificate (aAPCAChecker, aEndpoint, aSendingReport);
+
+      // Build the DOM only now that it is really needed
+      aPhaseTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
+      final Document aDoc;
+      try (final InputStream aIS = aPayload.openInputStream ())
+      {
+        aDoc = DOMReader.readXMLDOM (aIS);
+      }
+      if (aDoc == null || aDoc.getDocumentElement () == null)
+        throw new IllegalStateException ("Failed to read provided payload as XML");
 
       final PeppolUserMessageBuilder aBuilder = Phase4PeppolSender.builder ()
-                                                                  .httpClientFactory (aHCS)
+                                                                  .httpClientFactory (OutboundHttpClientPool.getHttpClientFactory ())
                                                                   .documentTypeID (aDocTypeID)
                                                                   .processID (aProcessID)
                                                                   .senderParticipantID (aSenderID)
@@ -173,7 +327,9 @@ public final class PeppolSender
                                                                   .countryC1 (sCountryCodeC1)
                                                                   .payload (aDoc.getDocumentElement ())
                                                                   .peppolAP_CAChecker (aAPCAChecker)
-                                                                  .smpClient (aSMPClient)
+                                                                  // Checked before via the shared cache
+                                                                  .checkReceiverAPCertificate (false)
+                                                                  .endpointDetailProvider (aEndpoint)
                                                                   .sbdDocumentConsumer (aSBD -> {
                                                                     // Remember SBDH Instance
                                                                     // Identifier
@@ -183,14 +339,6 @@ public final class PeppolSender
                                                                   })
                                                                   .endpointURLConsumer (aSendingReport::setC3EndpointURL)
                                                                   .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
-                                                                  .certificateConsumer ( (aAPCertificate,
-                                                                                          aCheckDT,
-                                                                                          eCertCheckResult) -> {
-                                                                    // Determined by SMP lookup
-                                                                    aSendingReport.setC3Cert (aAPCertificate);
-                                                                    aSendingReport.setC3CertCheckDT (aCheckDT);
-                                                                    aSendingReport.setC3CertCheckResult (eCertCheckResult);
-                                                                  })
                                                                   .sendingDateTimeConsumer (aSendingReport::setAS4SendingDT)
                                                                   .buildMessageCallback (new IAS4ClientBuildMessageCallback ()
                                                                   {
@@ -205,15 +353,44 @@ public final class PeppolSender
                                                                                                                    .getCollaborationInfo ()
                                                                                                                    .getConversationId ());
                                                                     }
+
+                                                                    public void onEncryptedMimeMessage (@NonNull final AS4MimeMessage aMimeMsg)
+                                                                    {
+                                                                      // Signed and encrypted - ready to be sent
+                                                                      aPhaseTimer.begin (EOutboundPhase.HTTP_TRANSMISSION);
+                                                                    }
+                                                                  })
+                                                                  .rawResponseConsumer (aResponse -> {
+                                                                    // The response was received
+                                                                    aPhaseTimer.begin (EOutboundPhase.RECEIPT_VERIFICATION);
+                                                                    aSendingReport.setRawHttpResponse (aResponse);
                                                                   })
-                                                                  .rawResponseConsumer (aSendingReport::setRawHttpResponse)
                                                                   .signalMsgConsumer ( (aSignalMsg,
                                                                                         aMessageMetadata,
-                                                                                        aState) -> {
+                                                                                        aIncomingState) -> {
                                                                     aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
                                                                   });
+      // Waiting for a free send slot is not part of any phase
+      aPhaseTimer.end ();
       final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
-      eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+      // Limit the concurrent sends per C3 and fail fast if C3 is known to be down
+      aSendingReport.setC3EndpointURL (aEndpoint.getReceiverAPEndpointURL ());
+      // Makes the message details available to the dump policy
+      try (final DumpPolicyManager.OutgoingScope aDumpScope = DumpPolicyManager.getInstance ().beginOutgoing ())
+      {
+        aDumpScope.getInfo ()
+                  .setSenderID (aSenderID.getURIEncoded ())
+                  .setReceiverID (aReceiverID.getURIEncoded ())
+                  .setDocTypeID (aDocTypeID.getURIEncoded ());
+        eResult = EndpointGuard.getInstance ()
+                               .send (aEndpoint.getReceiverAPEndpointURL (),
+                                      () -> {
+                                        aPhaseTimer.begin (EOutboundPhase.MESSAGE_BUILD);
+                                        return aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+                                      });
+        aPhaseTimer.finish (eResult.isSuccess () && !aCaughtEx.isSet ());
+        aDumpScope.setSuccess (eResult.isSuccess () && !aCaughtEx.isSet ());
+      }
       LOGGER.info ("Peppol client send result: " + eResult);
 
       if (eResult.isSuccess ())
@@ -228,20 +405,27 @@ public final class PeppolSender
       }
 
       aSendingReport.setAS4SendingResult (eResult);
+      if (aState != null)
+        aState.setSendResult (eResult);
 
       if (aCaughtEx.isSet ())
       {
         final Phase4Exception ex = aCaughtEx.get ();
         LOGGER.error ("Error sending Peppol message via AS4", ex);
         aSendingReport.setAS4SendingException (ex);
+        if (aState != null)
+          aState.setException (ex);
         bExceptionCaught = true;
       }
     }
     catch (final Exception ex)
     {
       // Mostly errors on HTTP level
+      aPhaseTimer.finish (false);
       LOGGER.error ("Error sending Peppol message via AS4", ex);
       aSendingReport.setAS4SendingException (ex);
+      if (aState != null)
+        aState.setException (ex);
       bExceptionCaught = true;
     }
     finally
@@ -273,6 +457,8 @@ public final class PeppolSender
    *        The Peppol receiver Participant ID
    * @param sCountryCodeC1
    *        The Country Code of the sender (C1)
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
    * @return The created sending report and never <code>null</code>.
    */
   @NonNull
@@ -281,9 +467,47 @@ public final class PeppolSender
                                                                                 @NonNull final byte [] aPDFBytes,
                                                                                 @NonNull @Nonempty final String sSenderID,
                                                                                 @NonNull @Nonempty final String sReceiverID,
-                                                                                @NonNull @Nonempty final String sCountryCodeC1)
+                                                                                @NonNull @Nonempty final String sCountryCodeC1,
+                                                                                @Nullable final PeppolSendingState aState)
+  {
+    return sendPeppolFacturXMessageCreatingSbdh (aSmlInfo,
+                                                 aAPCAChecker,
+                                                 SpooledPayload.wrap (aPDFBytes),
+                                                 sSenderID,
+                                                 sReceiverID,
+                                                 sCountryCodeC1,
+                                                 aState);
+  }
+
+  /**
+   * Send a Peppol Factur-X message with PDF payload where the SBDH is created internally by phase4
+   *
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aPDF
+   *        The main PDF document to be send. Is not closed.
+   * @param sSenderID
+   *        The Peppol sender Participant ID
+   * @param sReceiverID
+   *        The Peppol receiver Participant ID
+   * @param sCountryCodeC1
+   *        The Country Code of the sender (C1)
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @NonNull
+  public static Phase4PeppolSendingReport sendPeppolFacturXMessageCreatingSbdh (@NonNull final ISMLInfo aSmlInfo,
+                                                                                @NonNull final TrustedCAChecker aAPCAChecker,
+                                                                                @NonNull final SpooledPayload aPDF,
+                                                                                @NonNull @Nonempty final String sSenderID,
+                                                                                @NonNull @Nonempty final String sReceiverID,
+                                                                                @NonNull @Nonempty final String sCountryCodeC1,
+                                                                                @Nullable final PeppolSendingState aState)
   {
-    final IIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    final PeppolIdentifierCache aIDCache = PeppolIdentifierCache.getInstance ();
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
 
     final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
@@ -293,25 +517,17 @@ public final class PeppolSender
     EAS4UserMessageSendResult eResult = null;
     boolean bExceptionCaught = false;
     final StopWatch aSW = StopWatch.createdStarted ();
+    final OutboundPhaseTimer aPhaseTimer = new OutboundPhaseTimer ();
     try
     {
-      // Start configuring here
-      IParticipantIdentifier aSenderID = aIF.parseParticipantIdentifier (sSenderID);
-      if (aSenderID == null)
-      {
-        // Fallback to default scheme
-        aSenderID = aIF.createParticipantIdentifierWithDefaultScheme (sSenderID);
-      }
+      // Start configuring here - parsing includes the fallback to the default schemes
+      aPhaseTimer.begin (EOutboundPhase.IDENTIFIER_PARSE);
+      final IParticipantIdentifier aSenderID = aIDCache.getParticipantID (sSenderID);
       if (aSenderID == null)
         throw new IllegalStateException ("Failed to parse the sending participant ID '" + sSenderID + "'");
       aSendingReport.setSenderID (aSenderID);
 
-      IParticipantIdentifier aReceiverID = aIF.parseParticipantIdentifier (sReceiverID);
-      if (aReceiverID == null)
-      {
-        // Fallback to default scheme
-        aReceiverID = aIF.createParticipantIdentifierWithDefaultScheme (sReceiverID);
-      }
+      final IParticipantIdentifier aReceiverID = aIDCache.getParticipantID (sReceiverID);
       if (aReceiverID == null)
         throw new IllegalStateException ("Failed to parse the receiving participant ID '" + sReceiverID + "'");
       aSendingReport.setReceiverID (aReceiverID);
@@ -319,21 +535,25 @@ public final class PeppolSender
       // Hard coded Factur-X
       final IDocumentTypeIdentifier aDocTypeID = EPredefinedDocumentTypeIdentifier.urn_peppol_doctype_pdf_xml__urn_cen_eu_en16931_2017_conformant_urn_peppol_france_billing_Factur_X_1_0__D22B;
       aSendingReport.setDocTypeID (aDocTypeID);
+      aPhaseTimer.setDocTypeID (aDocTypeID);
 
       // Assume regulated process
       final IProcessIdentifier aProcessID = EPredefinedProcessIdentifier.urn_peppol_france_billing_regulated;
       aSendingReport.setProcessID (aProcessID);
 
-      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
-                                                                  aReceiverID,
-                                                                  aSmlInfo);
-      APConfig.applyHttpProxySettings (aSMPClient.httpClientSettings ());
+      // Resolve the receiving AP via the shared SMP lookup cache
+      aPhaseTimer.begin (EOutboundPhase.SMP_LOOKUP);
+      final SMPEndpoint aEndpoint = SMPEndpointCache.getInstance ().getEndpoint (aSmlInfo,
+                                                                                 aReceiverID,
+                                                                                 aDocTypeID,
+                                                                                 aProcessID);
 
-      final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
-      APConfig.applyHttpProxySettings (aHCS);
+      // Check the C3 certificate, using the shared result cache
+      aPhaseTimer.begin (EOutboundPhase.C3_CERT_CHECK);
+      _checkReceiverAPCertificate (aAPCAChecker, aEndpoint, aSendingReport);
 
       final PeppolUserMessageBuilder aBuilder = Phase4PeppolSender.builder ()
-                                                                  .httpClientFactory (aHCS)
+                                                                  .httpClientFactory (OutboundHttpClientPool.getHttpClientFactory ())
                                                                   .documentTypeID (aDocTypeID)
                                                                   .processID (aProcessID)
                                                                   .senderParticipantID (aSenderID)
@@ -343,11 +563,14 @@ public final class PeppolSender
                                                                   .sbdhStandard ("urn:peppol:doctype:pdf+xml")
                                                                   .sbdhTypeVersion ("0")
                                                                   .sbdhType ("factur-x")
-                                                                  .payloadBinaryContent (aPDFBytes,
+                                                                  // The PDF is embedded into the SBDH and must be in memory
+                                                                  .payloadBinaryContent (aPDF.getAllBytes (APConfig.getPayloadMaxInMemoryBytes ()),
                                                                                          CMimeType.APPLICATION_PDF,
                                                                                          null)
                                                                   .peppolAP_CAChecker (aAPCAChecker)
-                                                                  .smpClient (aSMPClient)
+                                                                  // Checked before via the shared cache
+                                                                  .checkReceiverAPCertificate (false)
+                                                                  .endpointDetailProvider (aEndpoint)
                                                                   .sbdDocumentConsumer (sbd -> {
                                                                     // Remember SBDH Instance
                                                                     // Identifier
@@ -357,14 +580,6 @@ public final class PeppolSender
                                                                   })
                                                                   .endpointURLConsumer (aSendingReport::setC3EndpointURL)
                                                                   .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
-                                                                  .certificateConsumer ( (aAPCertificate,
-                                                                                          aCheckDT,
-                                                                                          eCertCheckResult) -> {
-                                                                    // Determined by SMP lookup
-                                                                    aSendingReport.setC3Cert (aAPCertificate);
-                                                                    aSendingReport.setC3CertCheckDT (aCheckDT);
-                                                                    aSendingReport.setC3CertCheckResult (eCertCheckResult);
-                                                                  })
                                                                   .sendingDateTimeConsumer (aSendingReport::setAS4SendingDT)
                                                                   .buildMessageCallback (new IAS4ClientBuildMessageCallback ()
                                                                   {
@@ -379,15 +594,44 @@ public final class PeppolSender
                                                                                                                    .getCollaborationInfo ()
                                                                                                                    .getConversationId ());
                                                                     }
+
+                                                                    public void onEncryptedMimeMessage (@NonNull final AS4MimeMessage aMimeMsg)
+                                                                    {
+                                                                      // Signed and encrypted - ready to be sent
+                                                                      aPhaseTimer.begin (EOutboundPhase.HTTP_TRANSMISSION);
+                                                                    }
+                                                                  })
+                                                                  .rawResponseConsumer (aResponse -> {
+                                                                    // The response was received
+                                                                    aPhaseTimer.begin (EOutboundPhase.RECEIPT_VERIFICATION);
+                                                                    aSendingReport.setRawHttpResponse (aResponse);
                                                                   })
-                                                                  .rawResponseConsumer (aSendingReport::setRawHttpResponse)
                                                                   .signalMsgConsumer ( (aSignalMsg,
                                                                                         aMessageMetadata,
-                                                                                        aState) -> {
+                                                                                        aIncomingState) -> {
                                                                     aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
                                                                   });
+      // Waiting for a free send slot is not part of any phase
+      aPhaseTimer.end ();
       final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
-      eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+      // Limit the concurrent sends per C3 and fail fast if C3 is known to be down
+      aSendingReport.setC3EndpointURL (aEndpoint.getReceiverAPEndpointURL ());
+      // Makes the message details available to the dump policy
+      try (final DumpPolicyManager.OutgoingScope aDumpScope = DumpPolicyManager.getInstance ().beginOutgoing ())
+      {
+        aDumpScope.getInfo ()
+                  .setSenderID (aSenderID.getURIEncoded ())
+                  .setReceiverID (aReceiverID.getURIEncoded ())
+                  .setDocTypeID (aDocTypeID.getURIEncoded ());
+        eResult = EndpointGuard.getInstance ()
+                               .send (aEndpoint.getReceiverAPEndpointURL (),
+                                      () -> {
+                                        aPhaseTimer.begin (EOutboundPhase.MESSAGE_BUILD);
+                                        return aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+                                      });
+        aPhaseTimer.finish (eResult.isSuccess () && !aCaughtEx.isSet ());
+        aDumpScope.setSuccess (eResult.isSuccess () && !aCaughtEx.isSet ());
+      }
       LOGGER.info ("Peppol client send result: " + eResult);
 
       if (eResult.isSuccess ())
@@ -402,20 +646,27 @@ public final class PeppolSender
       }
 
       aSendingReport.setAS4SendingResult (eResult);
+      if (aState != null)
+        aState.setSendResult (eResult);
 
       if (aCaughtEx.isSet ())
       {
         final Phase4Exception ex = aCaughtEx.get ();
         LOGGER.error ("Error sending Peppol message via AS4", ex);
         aSendingReport.setAS4SendingException (ex);
+        if (aState != null)
+          aState.setException (ex);
         bExceptionCaught = true;
       }
     }
     catch (final Exception ex)
     {
       // Mostly errors on HTTP level
+      aPhaseTimer.finish (false);
       LOGGER.error ("Error sending Peppol message via AS4", ex);
       aSendingReport.setAS4SendingException (ex);
+      if (aState != null)
+        aState.setException (ex);
       bExceptionCaught = true;
     }
     finally
@@ -432,6 +683,60 @@ public final class PeppolSender
     return aSendingReport;
   }
 
+  /**
+   * Send a Peppol message where the complete SBDH is passed in from the outside as bytes. The SBDH
+   * is parsed first, and if parsing fails, the returned report contains the parsing error.
+   *
+   * @param aSBDHBytes
+   *        The bytes of the Standard Business Document to be send.
+   * @param aSmlInfo
+   *        The SML to be used for receiver lookup
+   * @param aAPCAChecker
+   *        The Peppol CA checker to be used.
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
+   * @return The created sending report and never <code>null</code>.
+   */
+  @NonNull
+  public static Phase4PeppolSendingReport sendPeppolMessagePredefinedSbdh (@NonNull final byte [] aSBDHBytes,
+                                                                           @NonNull final ISMLInfo aSmlInfo,
+                                                                           @NonNull final TrustedCAChecker aAPCAChecker,
+                                                                           @Nullable final PeppolSendingState aState)
+  {
+    final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSmlInfo);
+
+    // Reading the SBDH includes parsing the identifiers
+    final OutboundPhaseTimer aPhaseTimer = new OutboundPhaseTimer ();
+    aPhaseTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
+    final PeppolSBDHData aData;
+    try
+    {
+      aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aSBDHBytes));
+    }
+    catch (final PeppolSBDHDataReadException ex)
+    {
+      aPhaseTimer.finish (false);
+      aSendingReport.setSBDHParseException (ex);
+      if (aState != null)
+        aState.setException (ex);
+      aSendingReport.setSendingSuccess (false);
+      aSendingReport.setOverallSuccess (false);
+      return aSendingReport;
+    }
+
+    aSendingReport.setSenderID (aData.getSenderAsIdentifier ());
+    aSendingReport.setReceiverID (aData.getReceiverAsIdentifier ());
+    aSendingReport.setDocTypeID (aData.getDocumentTypeAsIdentifier ());
+    aSendingReport.setProcessID (aData.getProcessAsIdentifier ());
+    aSendingReport.setCountryC1 (aData.getCountryC1 ());
+    aSendingReport.setSBDHInstanceIdentifier (aData.getInstanceIdentifier ());
+    aPhaseTimer.setDocTypeID (aData.getDocumentTypeAsIdentifier ());
+    aPhaseTimer.end ();
+
+    sendPeppolMessagePredefinedSbdh (aData, aSmlInfo, aAPCAChecker, aSendingReport, aPhaseTimer, aState);
+    return aSendingReport;
+  }
+
   /**
    * Send a Peppol message where the SBDH is passed in from the outside
    *
@@ -443,11 +748,18 @@ public final class PeppolSender
    *        The Peppol CA checker to be used.
    * @param aSendingReport
    *        The sending report to be filled.
+   * @param aPhaseTimer
+   *        The phase timer that may already contain the parsing of the SBDH. May not be
+   *        <code>null</code>.
+   * @param aState
+   *        Optional sending state to be filled. May be <code>null</code>.
    */
   static void sendPeppolMessagePredefinedSbdh (@NonNull final PeppolSBDHData aData,
                                                @NonNull final ISMLInfo aSmlInfo,
                                                @NonNull final TrustedCAChecker aAPCAChecker,
-                                               @NonNull final Phase4PeppolSendingReport aSendingReport)
+                                               @NonNull final Phase4PeppolSendingReport aSendingReport,
+                                               @NonNull final OutboundPhaseTimer aPhaseTimer,
+                                               @Nullable final PeppolSendingState aState)
   {
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
     aSendingReport.setSenderPartyID (sMyPeppolSeatID);
@@ -459,31 +771,31 @@ public final class PeppolSender
     {
       // Start configuring here
       final IParticipantIdentifier aReceiverID = aData.getReceiverAsIdentifier ();
+      final IDocumentTypeIdentifier aDocTypeID = aData.getDocumentTypeAsIdentifier ();
+      final IProcessIdentifier aProcessID = aData.getProcessAsIdentifier ();
+      aPhaseTimer.setDocTypeID (aDocTypeID);
 
-      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
-                                                                  aReceiverID,
-                                                                  aSmlInfo);
-      APConfig.applyHttpProxySettings (aSMPClient.httpClientSettings ());
+      // Resolve the receiving AP via the shared SMP lookup cache
+      aPhaseTimer.begin (EOutboundPhase.SMP_LOOKUP);
+      final SMPEndpoint aEndpoint = SMPEndpointCache.getInstance ().getEndpoint (aSmlInfo,
+                                                                                 aReceiverID,
+                                                                                 aDocTypeID,
+                                                                                 aProcessID);
 
-      final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
-      APConfig.applyHttpProxySettings (aHCS);
+      // Check the C3 certificate, using the shared result cache
+      aPhaseTimer.begin (EOutboundPhase.C3_CERT_CHECK);
+      _checkReceiverAPCertificate (aAPCAChecker, aEndpoint, aSendingReport);
 
       final PeppolUserMessageSBDHBuilder aBuilder = Phase4PeppolSender.sbdhBuilder ()
-                                                                      .httpClientFactory (aHCS)
+                                                                      .httpClientFactory (OutboundHttpClientPool.getHttpClientFactory ())
                                                                       .payloadAndMetadata (aData)
                                                                       .senderPartyID (sMyPeppolSeatID)
                                                                       .peppolAP_CAChecker (aAPCAChecker)
-                                                                      .smpClient (aSMPClient)
+                                                                      // Checked before via the shared cache
+                                                                      .checkReceiverAPCertificate (false)
+                                                                      .endpointDetailProvider (aEndpoint)
                                                                       .endpointURLConsumer (aSendingReport::setC3EndpointURL)
                                                                       .technicalContactConsumer (aSendingReport::setC3TechnicalContact)
-                                                                      .certificateConsumer ( (aAPCertificate,
-                                                                                              aCheckDT,
-                                                                                              eCertCheckResult) -> {
-                                                                        // Determined by SMP lookup
-                                                                        aSendingReport.setC3Cert (aAPCertificate);
-                                                                        aSendingReport.setC3CertCheckDT (aCheckDT);
-                                                                        aSendingReport.setC3CertCheckResult (eCertCheckResult);
-                                                                      })
                                                                       .sendingDateTimeConsumer (aSendingReport::setAS4SendingDT)
                                                                       .buildMessageCallback (new IAS4ClientBuildMessageCallback ()
                                                                       {
@@ -498,15 +810,45 @@ public final class PeppolSender
                                                                                                                        .getCollaborationInfo ()
                                                                                                                        .getConversationId ());
                                                                         }
+
+                                                                        public void onEncryptedMimeMessage (@NonNull final AS4MimeMessage aMimeMsg)
+                                                                        {
+                                                                          // Signed and encrypted - ready to be sent
+                                                                          aPhaseTimer.begin (EOutboundPhase.HTTP_TRANSMISSION);
+                                                                        }
+                                                                      })
+                                                                      .rawResponseConsumer (aResponse -> {
+                                                                        // The response was received
+                                                                        aPhaseTimer.begin (EOutboundPhase.RECEIPT_VERIFICATION);
+                                                                        aSendingReport.setRawHttpResponse (aResponse);
                                                                       })
-                                                                      .rawResponseConsumer (aSendingReport::setRawHttpResponse)
                                                                       .signalMsgConsumer ( (aSignalMsg,
                                                                                             aMessageMetadata,
-                                                                                            aState) -> {
+                                                                                            aIncomingState) -> {
                                                                         aSendingReport.setAS4ReceivedSignalMsg (aSignalMsg);
                                                                       });
+      // Waiting for a free send slot is not part of any phase
+      aPhaseTimer.end ();
       final Wrapper <Phase4Exception> aCaughtEx = new Wrapper <> ();
-      eResult = aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+      // Limit the concurrent sends per C3 and fail fast if C3 is known to be down
+      aSendingReport.setC3EndpointURL (aEndpoint.getReceiverAPEndpointURL ());
+      // Makes the message details available to the dump policy
+      try (final DumpPolicyManager.OutgoingScope aDumpScope = DumpPolicyManager.getInstance ().beginOutgoing ())
+      {
+        aDumpScope.getInfo ()
+                  .setSenderID (aData.getSenderAsIdentifier ().getURIEncoded ())
+                  .setReceiverID (aReceiverID.getURIEncoded ())
+                  .setDocTypeID (aDocTypeID.getURIEncoded ())
+                  .setSBDHInstanceID (aData.getInstanceIdentifier ());
+        eResult = EndpointGuard.getInstance ()
+                               .send (aEndpoint.getReceiverAPEndpointURL (),
+                                      () -> {
+                                        aPhaseTimer.begin (EOutboundPhase.MESSAGE_BUILD);
+                                        return aBuilder.sendMessageAndCheckForReceipt (aCaughtEx::set);
+                                      });
+        aPhaseTimer.finish (eResult.isSuccess () && !aCaughtEx.isSet ());
+        aDumpScope.setSuccess (eResult.isSuccess () && !aCaughtEx.isSet ());
+      }
       LOGGER.info ("Peppol client send result: " + eResult);
 
       if (eResult.isSuccess ())
@@ -521,20 +863,27 @@ public final class PeppolSender
       }
 
       aSendingReport.setAS4SendingResult (eResult);
+      if (aState != null)
+        aState.setSendResult (eResult);
 
       if (aCaughtEx.isSet ())
       {
         final Phase4Exception ex = aCaughtEx.get ();
         LOGGER.error ("Error sending Peppol message via AS4", ex);
         aSendingReport.setAS4SendingException (ex);
+        if (aState != null)
+          aState.setException (ex);
         bExceptionCaught = true;
       }
     }
     catch (final Exception ex)
     {
       // Mostly errors on HTTP level
+      aPhaseTimer.finish (false);
       LOGGER.error ("Error sending Peppol message via AS4", ex);
       aSendingReport.setAS4SendingException (ex);
+      if (aState != null)
+        aState.setException (ex);
       bExceptionCaught = true;
     }
     finally
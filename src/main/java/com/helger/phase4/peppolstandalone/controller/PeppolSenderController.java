@@ -16,27 +16,41 @@
  */
 package com.helger.phase4.peppolstandalone.controller;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Supplier;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import com.helger.base.io.nonblocking.NonBlockingByteArrayInputStream;
 import com.helger.base.string.StringHelper;
 import com.helger.peppol.sbdh.PeppolSBDHData;
 import com.helger.peppol.sbdh.PeppolSBDHDataReadException;
 import com.helger.peppol.sbdh.PeppolSBDHDataReader;
-import com.helger.peppol.security.PeppolTrustedCA;
 import com.helger.peppol.servicedomain.EPeppolNetwork;
 import com.helger.peppol.sml.ISMLInfo;
 import com.helger.peppolid.factory.PeppolIdentifierFactory;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppol.Phase4PeppolSendingReport;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.outbound.AsyncSendJobManager;
+import com.helger.phase4.peppolstandalone.outbound.EOutboundPhase;
+import com.helger.phase4.peppolstandalone.outbound.OutboundPhaseTimer;
+import com.helger.phase4.peppolstandalone.outbound.OutboundQueue;
+import com.helger.phase4.peppolstandalone.outbound.OutboundQueue.ESendType;
+import com.helger.phase4.peppolstandalone.storage.SpooledPayload;
+import com.helger.phase4.peppolstandalone.storage.SpooledPayload.PayloadTooLargeException;
 import com.helger.security.certificate.TrustedCAChecker;
 
 /**
@@ -48,6 +62,10 @@ import com.helger.security.certificate.TrustedCAChecker;
 public class PeppolSenderController
 {
   static final String HEADER_X_TOKEN = "X-Token";
+  static final String PARAM_ASYNC = "async";
+  static final String PARAM_QUEUED = "queued";
+  static final String HEADER_X_TIMINGS = "X-Timings";
+  static final String PARAM_TIMINGS = "timings";
   private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolSenderController.class);
 
   @GetMapping (path = "/phase4ping", produces = MediaType.TEXT_PLAIN_VALUE)
@@ -58,13 +76,26 @@ public class PeppolSenderController
 
   @PostMapping (path = "/sendas4/{senderId}/{receiverId}/{docTypeId}/{processId}/{countryC1}",
                 produces = MediaType.APPLICATION_JSON_VALUE)
-  public String sendPeppolMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
-                                   @RequestBody final byte [] aPayloadBytes,
-                                   @PathVariable final String senderId,
-                                   @PathVariable final String receiverId,
-                                   @PathVariable final String docTypeId,
-                                   @PathVariable final String processId,
-                                   @PathVariable final String countryC1)
+  public ResponseEntity <String> sendPeppolMessage (@RequestHeader (name = HEADER_X_TOKEN,
+                                                                    required = true) final String xtoken,
+                                                    final InputStream aPayloadIS,
+                                                    @PathVariable final String senderId,
+                                                    @PathVariable final String receiverId,
+                                                    @PathVariable final String docTypeId,
+                                                    @PathVariable final String processId,
+                                                    @PathVariable final String countryC1,
+                                                    @RequestParam (name = PARAM_ASYNC,
+                                                                   required = false,
+                                                                   defaultValue = "false") final boolean bAsync,
+                                                    @RequestParam (name = PARAM_QUEUED,
+                                                                   required = false,
+                                                                   defaultValue = "false") final boolean bQueued,
+                                                    @RequestHeader (name = HEADER_X_TIMINGS,
+                                                                    required = false,
+                                                                    defaultValue = "false") final boolean bTimingsHeader,
+                                                    @RequestParam (name = PARAM_TIMINGS,
+                                                                   required = false,
+                                                                   defaultValue = "false") final boolean bTimingsParam)
   {
     if (!APConfig.isSendingEnabled ())
     {
@@ -86,8 +117,7 @@ public class PeppolSenderController
     // Make Network decisions
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
     final ISMLInfo aSML = eStage.getSMLInfo ();
-    final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA
-                                                                                                                   .peppolTestAP ();
+    final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
     LOGGER.info ("Trying to send Peppol " +
                  eStage.name () +
                  " message from '" +
@@ -101,26 +131,45 @@ public class PeppolSenderController
                  "' for '" +
                  countryC1 +
                  "'");
-    final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolMessageCreatingSbdh (aSML,
-                                                                                                 aAPCA,
-                                                                                                 aPayloadBytes,
-                                                                                                 senderId,
-                                                                                                 receiverId,
-                                                                                                 docTypeId,
-                                                                                                 processId,
-                                                                                                 countryC1);
-
-    // Return as JSON
-    return aSendingReport.getAsJsonString ();
+    final SpooledPayload aPayload = _readPayload (aPayloadIS);
+    if (bQueued)
+      return _enqueue (ESendType.CREATING_SBDH,
+                       aPayload,
+                       senderId,
+                       receiverId,
+                       docTypeId,
+                       processId,
+                       countryC1);
+    final OutboundPhaseTimer aPhaseTimer = new OutboundPhaseTimer ();
+    return _send (bAsync,
+                  aPayload,
+                  () -> PeppolSender.sendPeppolMessageCreatingSbdh (aSML,
+                                                                    aAPCA,
+                                                                    aPayload,
+                                                                    senderId,
+                                                                    receiverId,
+                                                                    docTypeId,
+                                                                    processId,
+                                                                    countryC1,
+                                                                    aPhaseTimer,
+                                                                    null),
+                  bTimingsHeader || bTimingsParam ? aPhaseTimer : null);
   }
 
   @PostMapping (path = "/sendas4-facturx/{senderId}/{receiverId}/{countryC1}",
                 produces = MediaType.APPLICATION_JSON_VALUE)
-  public String sendPeppolFacturX (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
-                                   @RequestBody final byte [] aPayloadBytes,
-                                   @PathVariable final String senderId,
-                                   @PathVariable final String receiverId,
-                                   @PathVariable final String countryC1)
+  public ResponseEntity <String> sendPeppolFacturX (@RequestHeader (name = HEADER_X_TOKEN,
+                                                                    required = true) final String xtoken,
+                                                    final InputStream aPayloadIS,
+                                                    @PathVariable final String senderId,
+                                                    @PathVariable final String receiverId,
+                                                    @PathVariable final String countryC1,
+                                                    @RequestParam (name = PARAM_ASYNC,
+                                                                   required = false,
+                                                                   defaultValue = "false") final boolean bAsync,
+                                                    @RequestParam (name = PARAM_QUEUED,
+                                                                   required = false,
+                                                                   defaultValue = "false") final boolean bQueued)
   {
     if (!APConfig.isSendingEnabled ())
     {
@@ -141,8 +190,7 @@ public class PeppolSenderController
 
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
     final ISMLInfo aSMLInfo = eStage.getSMLInfo ();
-    final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA
-                                                                                                                   .peppolTestAP ();
+    final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
     LOGGER.info ("Trying to send Peppol " +
                  eStage.name () +
                  " message from '" +
@@ -152,20 +200,37 @@ public class PeppolSenderController
                  "' using Factur-X for '" +
                  countryC1 +
                  "'");
-    final Phase4PeppolSendingReport aSendingReport = PeppolSender.sendPeppolFacturXMessageCreatingSbdh (aSMLInfo,
-                                                                                                        aAPCA,
-                                                                                                        aPayloadBytes,
-                                                                                                        senderId,
-                                                                                                        receiverId,
-                                                                                                        countryC1);
-
-    // Return as JSON
-    return aSendingReport.getAsJsonString ();
+    final SpooledPayload aPayload = _readPayload (aPayloadIS);
+    if (bQueued)
+      return _enqueue (ESendType.FACTURX, aPayload, senderId, receiverId, countryC1);
+    return _send (bAsync,
+                  aPayload,
+                  () -> PeppolSender.sendPeppolFacturXMessageCreatingSbdh (aSMLInfo,
+                                                                           aAPCA,
+                                                                           aPayload,
+                                                                           senderId,
+                                                                           receiverId,
+                                                                           countryC1,
+                                                                           null),
+                  null);
   }
 
   @PostMapping (path = "/sendsbdh", produces = MediaType.APPLICATION_JSON_VALUE)
-  public String sendPeppolSbdhMessage (@RequestHeader (name = HEADER_X_TOKEN, required = true) final String xtoken,
-                                       @RequestBody final byte [] aPayloadBytes)
+  public ResponseEntity <String> sendPeppolSbdhMessage (@RequestHeader (name = HEADER_X_TOKEN,
+                                                                        required = true) final String xtoken,
+                                                        final InputStream aPayloadIS,
+                                                        @RequestParam (name = PARAM_ASYNC,
+                                                                       required = false,
+                                                                       defaultValue = "false") final boolean bAsync,
+                                                        @RequestParam (name = PARAM_QUEUED,
+                                                                       required = false,
+                                                                       defaultValue = "false") final boolean bQueued,
+                                                        @RequestHeader (name = HEADER_X_TIMINGS,
+                                                                        required = false,
+                                                                        defaultValue = "false") final boolean bTimingsHeader,
+                                                        @RequestParam (name = PARAM_TIMINGS,
+                                                                       required = false,
+                                                                       defaultValue = "false") final boolean bTimingsParam)
   {
     if (!APConfig.isSendingEnabled ())
     {
@@ -187,23 +252,35 @@ public class PeppolSenderController
     // Make Network decisions
     final EPeppolNetwork eStage = APConfig.getPeppolStage ();
     final ISMLInfo aSMLInfo = eStage.getSMLInfo ();
-    final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP () : PeppolTrustedCA
-                                                                                                                   .peppolTestAP ();
+    final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
     final Phase4PeppolSendingReport aSendingReport = new Phase4PeppolSendingReport (aSMLInfo);
 
+    final SpooledPayload aPayload = _readPayload (aPayloadIS);
+    // Reading the SBDH includes parsing the identifiers
+    final OutboundPhaseTimer aPhaseTimer = new OutboundPhaseTimer ();
+    aPhaseTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
     final PeppolSBDHData aData;
-    try
+    try (final InputStream aIS = aPayload.openInputStream ())
     {
-      aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (new NonBlockingByteArrayInputStream (aPayloadBytes));
+      aData = new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).extractData (aIS);
     }
     catch (final PeppolSBDHDataReadException ex)
     {
       // TODO This error handling might be improved to return a status error
       // instead
+      aPhaseTimer.finish (false);
+      aPayload.close ();
       aSendingReport.setSBDHParseException (ex);
       aSendingReport.setSendingSuccess (false);
       aSendingReport.setOverallSuccess (false);
-      return aSendingReport.getAsJsonString ();
+      return ResponseEntity.ok (_getAsJsonString (aSendingReport, bTimingsHeader || bTimingsParam ? aPhaseTimer : null));
+    }
+    catch (final IOException ex)
+    {
+      aPhaseTimer.finish (false);
+      aPayload.close ();
+      LOGGER.error ("Failed to read the spooled payload", ex);
+      throw new HttpInternalServerErrorException ("Failed to read the payload");
     }
 
     aSendingReport.setSenderID (aData.getSenderAsIdentifier ());
@@ -212,6 +289,8 @@ public class PeppolSenderController
     aSendingReport.setProcessID (aData.getProcessAsIdentifier ());
     aSendingReport.setCountryC1 (aData.getCountryC1 ());
     aSendingReport.setSBDHInstanceIdentifier (aData.getInstanceIdentifier ());
+    aPhaseTimer.setDocTypeID (aData.getDocumentTypeAsIdentifier ());
+    aPhaseTimer.end ();
 
     final String sSenderID = aData.getSenderAsIdentifier ().getURIEncoded ();
     final String sReceiverID = aData.getReceiverAsIdentifier ().getURIEncoded ();
@@ -232,9 +311,234 @@ public class PeppolSenderController
                  sCountryCodeC1 +
                  "'");
 
-    PeppolSender.sendPeppolMessagePredefinedSbdh (aData, aSMLInfo, aAPCA, aSendingReport);
+    if (bQueued)
+      return _enqueue (ESendType.PREDEFINED_SBDH, aPayload);
+
+    // The SBDH was completely parsed, so the payload is no longer needed
+    aPayload.close ();
+    return _send (bAsync, aPayload, () -> {
+      PeppolSender.sendPeppolMessagePredefinedSbdh (aData, aSMLInfo, aAPCA, aSendingReport, aPhaseTimer, null);
+      return aSendingReport;
+    }, bTimingsHeader || bTimingsParam ? aPhaseTimer : null);
+  }
+
+  @GetMapping (path = "/send-status/{jobId}", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity <String> getSendStatus (@RequestHeader (name = HEADER_X_TOKEN,
+                                                                required = true) final String xtoken,
+                                                @PathVariable final String jobId)
+  {
+    if (StringHelper.isEmpty (xtoken))
+    {
+      LOGGER.error ("The specific token header is missing");
+      throw new HttpForbiddenException ("AS4 Sender: token is missing");
+    }
+    if (!xtoken.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      throw new HttpForbiddenException ("AS4 Sender: token is invalid");
+    }
+
+    final AsyncSendJobManager.Job aJob = AsyncSendJobManager.getInstance ().getJob (jobId);
+    if (aJob != null)
+    {
+      if (!aJob.isFinished ())
+        return ResponseEntity.status (HttpStatus.ACCEPTED).body (aJob.getStatusJson ());
+
+      // Return the sending report
+      return ResponseEntity.ok (aJob.getResultJson ());
+    }
+
+    final OutboundQueue aQueue = OutboundQueue.getInstance ();
+    final OutboundQueue.Entry aEntry = aQueue == null ? null : aQueue.getEntry (jobId);
+    if (aEntry != null)
+    {
+      if (!aEntry.isFinished ())
+        return ResponseEntity.status (HttpStatus.ACCEPTED).body (aEntry.getStatusJson ());
+
+      // Return the sending report of the last attempt
+      return ResponseEntity.ok (aEntry.getResultJson ());
+    }
+
+    throw new HttpNotFoundException ();
+  }
+
+  @NonNull
+  private static ResponseEntity <String> _createTooManyRequests ()
+  {
+    return ResponseEntity.status (HttpStatus.TOO_MANY_REQUESTS)
+                         .header (HttpHeaders.RETRY_AFTER, Long.toString (APConfig.getAsyncSendRetryAfterSeconds ()))
+                         .build ();
+  }
+
+  @NonNull
+  private static ResponseEntity <String> _createAccepted (@NonNull final String sJobID, @NonNull final String sStatusJson)
+  {
+    final String sStatusPath = "/send-status/" + sJobID;
+    return ResponseEntity.status (HttpStatus.ACCEPTED).header (HttpHeaders.LOCATION, sStatusPath).body (sStatusJson);
+  }
+
+  /**
+   * Read the request body. Small payloads are kept in memory, larger ones are spilled to a
+   * temporary file. As all sending paths still build a DOM or a byte array from the payload, it is
+   * rejected if it exceeds the maximum in-memory size.
+   *
+   * @param aIS
+   *        The request body. May not be <code>null</code>.
+   * @return The payload that must be closed after usage. Never <code>null</code>.
+   */
+  @NonNull
+  private static SpooledPayload _readPayload (@NonNull final InputStream aIS)
+  {
+    try
+    {
+      final SpooledPayload ret = SpooledPayload.read (aIS,
+                                                      APConfig.getPayloadSpillThresholdBytes (),
+                                                      APConfig.getPayloadMaxBytes (),
+                                                      APConfig.getPayloadTempDirectory ());
+      final long nMaxInMemoryBytes = APConfig.getPayloadMaxInMemoryBytes ();
+      if (ret.getSize () > nMaxInMemoryBytes)
+      {
+        ret.close ();
+        throw new PayloadTooLargeException ("The payload of " +
+                                            ret.getSize () +
+                                            " bytes exceeds the maximum in-memory size of " +
+                                            nMaxInMemoryBytes +
+                                            " bytes");
+      }
+      return ret;
+    }
+    catch (final PayloadTooLargeException ex)
+    {
+      LOGGER.error (ex.getMessage ());
+      throw new HttpContentTooLargeException (ex.getMessage ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read the request payload", ex);
+      throw new HttpInternalServerErrorException ("Failed to read the request payload");
+    }
+  }
+
+  /**
+   * Get the JSON of the sending report, optionally including the durations of the single sending
+   * phases.
+   *
+   * @param aSendingReport
+   *        The sending report. May not be <code>null</code>.
+   * @param aPhaseTimer
+   *        The phase timer whose durations should be included. May be <code>null</code>.
+   * @return The JSON string. Never <code>null</code>.
+   */
+  @NonNull
+  private static String _getAsJsonString (@NonNull final Phase4PeppolSendingReport aSendingReport,
+                                          @Nullable final OutboundPhaseTimer aPhaseTimer)
+  {
+    if (aPhaseTimer == null)
+      return aSendingReport.getAsJsonString ();
+    return aSendingReport.getAsJsonObject ().add ("timings", aPhaseTimer.getAsJson ()).getAsJsonString ();
+  }
+
+  /**
+   * Perform the sending either synchronously or asynchronously.
+   *
+   * @param bAsync
+   *        <code>true</code> to run it asynchronously and return a job ID, <code>false</code> to
+   *        wait for the sending report.
+   * @param aPayload
+   *        The payload to be closed after sending. May not be <code>null</code>.
+   * @param aSender
+   *        The sending code. May not be <code>null</code>.
+   * @param aTimings
+   *        The phase timer used by the sending code, if the timings should be part of the response.
+   *        May be <code>null</code>.
+   * @return The HTTP response. Never <code>null</code>.
+   */
+  @NonNull
+  private static ResponseEntity <String> _send (final boolean bAsync,
+                                                @NonNull final SpooledPayload aPayload,
+                                                @NonNull final Supplier <Phase4PeppolSendingReport> aSender,
+                                                @Nullable final OutboundPhaseTimer aTimings)
+  {
+    if (!bAsync)
+    {
+      // Return result JSON
+      try
+      {
+        return ResponseEntity.ok (_getAsJsonString (aSender.get (), aTimings));
+      }
+      finally
+      {
+        aPayload.close ();
+      }
+    }
+
+    final AsyncSendJobManager.Job aJob = AsyncSendJobManager.getInstance ().submit ( () -> {
+      try
+      {
+        return aSender.get ();
+      }
+      finally
+      {
+        aPayload.close ();
+      }
+    }, aReport -> _getAsJsonString (aReport, aTimings));
+    if (aJob == null)
+    {
+      // Queue is full - let the client retry later
+      aPayload.close ();
+      return _createTooManyRequests ();
+    }
+
+    LOGGER.info ("Created asynchronous sending job '" + aJob.getJobID () + "'");
+    return _createAccepted (aJob.getJobID (), aJob.getStatusJson ());
+  }
+
+  /**
+   * Store the message in the durable outbound queue for sending in the background.
+   *
+   * @param eSendType
+   *        The way of sending. May not be <code>null</code>.
+   * @param aPayload
+   *        The payload to send. Is closed by this method. May not be <code>null</code>.
+   * @param aParams
+   *        The parameters matching the send type. May not be <code>null</code>.
+   * @return The HTTP response. Never <code>null</code>.
+   */
+  @NonNull
+  private static ResponseEntity <String> _enqueue (@NonNull final ESendType eSendType,
+                                                   @NonNull final SpooledPayload aPayload,
+                                                   @NonNull final String... aParams)
+  {
+    final OutboundQueue aQueue = OutboundQueue.getInstance ();
+    if (aQueue == null)
+    {
+      aPayload.close ();
+      LOGGER.error ("The durable outbound queue is disabled");
+      throw new HttpNotFoundException ();
+    }
+
+    final OutboundQueue.Entry aEntry;
+    try
+    {
+      // The journal stores records as a whole
+      aEntry = aQueue.submit (eSendType, aPayload.getAllBytes (APConfig.getPayloadMaxInMemoryBytes ()), aParams);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to store the message in the outbound queue", ex);
+      throw new HttpInternalServerErrorException ("Failed to store the message in the outbound queue");
+    }
+    finally
+    {
+      aPayload.close ();
+    }
+    if (aEntry == null)
+    {
+      // Too many pending messages - let the client retry later
+      return _createTooManyRequests ();
+    }
 
-    // Return result JSON
-    return aSendingReport.getAsJsonString ();
+    LOGGER.info ("Stored message in outbound queue as '" + aEntry.getJobID () + "'");
+    return _createAccepted (aEntry.getJobID (), aEntry.getStatusJson ());
   }
 }
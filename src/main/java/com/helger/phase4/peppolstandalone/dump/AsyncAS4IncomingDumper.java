@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.io.OutputStream;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.http.header.HttpHeaderMap;
+import com.helger.phase4.dump.IAS4IncomingDumper;
+import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
+
+/**
+ * An {@link IAS4IncomingDumper} that writes via the {@link AsyncDumpWriter}, so that no file I/O
+ * happens on the request thread. Which messages are dumped is decided by the
+ * {@link DumpPolicyManager}.
+ *
+ * @author Philip Helger
+ */
+public class AsyncAS4IncomingDumper implements IAS4IncomingDumper
+{
+  private final AsyncDumpWriter m_aWriter;
+
+  public AsyncAS4IncomingDumper (@NonNull final AsyncDumpWriter aWriter)
+  {
+    ValueEnforcer.notNull (aWriter, "Writer");
+    m_aWriter = aWriter;
+  }
+
+  @Nullable
+  public OutputStream onNewRequest (@NonNull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                    @NonNull final HttpHeaderMap aHttpHeaderMap)
+  {
+    // The dump policy decides before anything is captured
+    final DumpCaptureOutputStream ret = DumpPolicyManager.getInstance ()
+                                                         .openIncoming (m_aWriter, aMessageMetadata.getIncomingUniqueID ());
+    if (ret != null)
+    {
+      // Same layout as the file based dumpers: HTTP headers, empty line, payload
+      aHttpHeaderMap.forEachSingleHeader ( (sName, sValue) -> ret.writeLine (sName + ": " + sValue), true);
+      ret.writeLine ("");
+    }
+    return ret;
+  }
+
+  public void onEndRequest (@NonNull final IAS4IncomingMessageMetadata aMessageMetadata,
+                            @Nullable final Exception aCaughtException)
+  {
+    // Decide about deferred messages
+    DumpPolicyManager.getInstance ().endIncoming (aMessageMetadata.getIncomingUniqueID (), aCaughtException);
+  }
+}
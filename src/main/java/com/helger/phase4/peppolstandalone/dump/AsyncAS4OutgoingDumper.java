@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.io.OutputStream;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.Nonnegative;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.http.header.HttpHeaderMap;
+import com.helger.phase4.dump.IAS4OutgoingDumper;
+import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
+import com.helger.phase4.incoming.IAS4IncomingMessageState;
+import com.helger.phase4.messaging.EAS4MessageMode;
+
+/**
+ * An {@link IAS4OutgoingDumper} that writes via the {@link AsyncDumpWriter}, so that no file I/O
+ * happens on the request thread. Which messages are dumped is decided by the
+ * {@link DumpPolicyManager}.
+ *
+ * @author Philip Helger
+ */
+public class AsyncAS4OutgoingDumper implements IAS4OutgoingDumper
+{
+  private final AsyncDumpWriter m_aWriter;
+
+  public AsyncAS4OutgoingDumper (@NonNull final AsyncDumpWriter aWriter)
+  {
+    ValueEnforcer.notNull (aWriter, "Writer");
+    m_aWriter = aWriter;
+  }
+
+  @Nullable
+  public OutputStream onBeginRequest (@NonNull final EAS4MessageMode eMsgMode,
+                                      @Nullable final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
+                                      @Nullable final IAS4IncomingMessageState aIncomingState,
+                                      @NonNull @Nonempty final String sMessageID,
+                                      @Nullable final HttpHeaderMap aCustomHeaders,
+                                      @Nonnegative final int nTry)
+  {
+    // Responses to incoming messages are part of the incoming exchange
+    final String sIncomingID = aIncomingMessageMetadata == null ? null
+                                                                : aIncomingMessageMetadata.getIncomingUniqueID ();
+    final DumpCaptureOutputStream ret = DumpPolicyManager.getInstance ()
+                                                         .openOutgoing (m_aWriter, sIncomingID, sMessageID, nTry);
+    if (ret != null)
+    {
+      // Same layout as the file based dumpers: HTTP headers, empty line, payload
+      if (aCustomHeaders != null)
+        aCustomHeaders.forEachSingleHeader ( (sName, sValue) -> ret.writeLine (sName + ": " + sValue), true);
+      ret.writeLine ("");
+    }
+    return ret;
+  }
+
+  public void onEndRequest (@NonNull final EAS4MessageMode eMsgMode,
+                            @Nullable final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
+                            @Nullable final IAS4IncomingMessageState aIncomingState,
+                            @NonNull @Nonempty final String sMessageID,
+                            @Nullable final Exception aCaughtException)
+  {
+    // Decide about deferred messages
+    final String sIncomingID = aIncomingMessageMetadata == null ? null
+                                                                : aIncomingMessageMetadata.getIncomingUniqueID ();
+    DumpPolicyManager.getInstance ().endOutgoing (sIncomingID, sMessageID, aCaughtException);
+  }
+}
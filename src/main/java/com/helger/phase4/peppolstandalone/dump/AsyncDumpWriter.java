@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+
+/**
+ * Asynchronous writer for dumped AS4 messages. The messages are captured in memory on the request
+ * thread and handed over to a single background thread via a bounded ring buffer. The background
+ * thread writes them in batches into compressed hourly segments (see {@link DumpSegmentStore}).
+ * <br>
+ * If the ring buffer is full, the configured {@link EOverflowPolicy} decides what happens. If the
+ * background thread stopped unexpectedly, messages are no longer dumped.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AsyncDumpWriter
+{
+  public static final String PREFIX_INCOMING = "incoming";
+  public static final String PREFIX_OUTGOING = "outgoing";
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (AsyncDumpWriter.class);
+  private static final long RETENTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis (10);
+  // Maximum time a request waits for space in the ring buffer with the BLOCK policy
+  private static final long MAX_BLOCK_NANOS = TimeUnit.SECONDS.toNanos (10);
+
+  private static final ReentrantLock LOCK = new ReentrantLock ();
+  @GuardedBy ("LOCK")
+  private static AsyncDumpWriter s_aInstance;
+
+  /**
+   * What to do with a message if the ring buffer is full.
+   */
+  public enum EOverflowPolicy
+  {
+    /**
+     * Wait until there is space again, but at most 10 seconds - requests may be slowed down
+     */
+    BLOCK ("block"),
+    /** Don't dump the message */
+    DROP ("drop"),
+    /** Only dump every n-th message if the ring buffer is more than half full */
+    SAMPLE ("sample");
+
+    private final String m_sID;
+
+    EOverflowPolicy (@NonNull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    @Nullable
+    public static EOverflowPolicy getFromIDOrNull (@Nullable final String sID)
+    {
+      for (final EOverflowPolicy e : values ())
+        if (e.m_sID.equalsIgnoreCase (sID))
+          return e;
+      return null;
+    }
+  }
+
+  private static final class DumpRecord
+  {
+    private final String m_sPrefix;
+    private final long m_nMillis;
+    private final byte [] m_aData;
+    private final int m_nLen;
+
+    DumpRecord (@NonNull final String sPrefix, final long nMillis, final byte @NonNull [] aData, final int nLen)
+    {
+      m_sPrefix = sPrefix;
+      m_nMillis = nMillis;
+      m_aData = aData;
+      m_nLen = nLen;
+    }
+  }
+
+  private final DumpSegmentStore m_aStore;
+  private final EOverflowPolicy m_eOverflowPolicy;
+  private final int m_nSampleRate;
+  private final long m_nMaxBufferBytes;
+  private final int m_nMaxMessageBytes;
+  private final AtomicLong m_aSampleCounter = new AtomicLong (0);
+  private final AtomicLong m_aDroppedCount = new AtomicLong (0);
+  private final AtomicLong m_aWrittenCount = new AtomicLong (0);
+
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  private final Condition m_aNotEmpty = m_aLock.newCondition ();
+  private final Condition m_aNotFull = m_aLock.newCondition ();
+  @GuardedBy ("m_aLock")
+  private final DumpRecord [] m_aRing;
+  @GuardedBy ("m_aLock")
+  private int m_nHead;
+  @GuardedBy ("m_aLock")
+  private int m_nCount;
+  @GuardedBy ("m_aLock")
+  private long m_nBufferBytes;
+  @GuardedBy ("m_aLock")
+  private boolean m_bShutdown;
+  @GuardedBy ("m_aLock")
+  private boolean m_bWriterStopped;
+
+  private final Thread m_aWriterThread;
+
+  AsyncDumpWriter (@NonNull final DumpSegmentStore aStore,
+                   final int nBufferEntries,
+                   final long nMaxBufferBytes,
+                   final int nMaxMessageBytes,
+                   @NonNull final EOverflowPolicy eOverflowPolicy,
+                   final int nSampleRate)
+  {
+    ValueEnforcer.notNull (aStore, "Store");
+    ValueEnforcer.isGT0 (nBufferEntries, "BufferEntries");
+    ValueEnforcer.isGT0 (nMaxBufferBytes, "MaxBufferBytes");
+    ValueEnforcer.isGT0 (nMaxMessageBytes, "MaxMessageBytes");
+    ValueEnforcer.notNull (eOverflowPolicy, "OverflowPolicy");
+    ValueEnforcer.isGT0 (nSampleRate, "SampleRate");
+
+    m_aStore = aStore;
+    m_aRing = new DumpRecord [nBufferEntries];
+    m_nMaxBufferBytes = nMaxBufferBytes;
+    m_nMaxMessageBytes = nMaxMessageBytes;
+    m_eOverflowPolicy = eOverflowPolicy;
+    m_nSampleRate = nSampleRate;
+
+    m_aWriterThread = APThreadFactory.create ("phase4-dump-writer-").newThread (this::_writerLoop);
+    m_aWriterThread.start ();
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _isFull (final int nLen)
+  {
+    // A single message larger than the buffer is accepted if the buffer is empty
+    return m_nCount == m_aRing.length || (m_nCount > 0 && m_nBufferBytes + nLen > m_nMaxBufferBytes);
+  }
+
+  @GuardedBy ("m_aLock")
+  private double _getFillRatio ()
+  {
+    return Math.max ((double) m_nCount / m_aRing.length, (double) m_nBufferBytes / m_nMaxBufferBytes);
+  }
+
+  /**
+   * Decide whether a new message should be captured at all. This is called before any byte is
+   * copied, so that dropped messages don't cost anything.
+   *
+   * @return <code>true</code> if the message should be captured.
+   */
+  boolean isAcceptingNewMessage ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_bShutdown)
+        return false;
+      // Fail open if the writer thread is gone
+      if (!m_bWriterStopped)
+        switch (m_eOverflowPolicy)
+        {
+          case BLOCK:
+            return true;
+          case SAMPLE:
+            if (_isFull (0))
+              break;
+            if (_getFillRatio () < 0.5)
+              return true;
+            if (m_aSampleCounter.incrementAndGet () % m_nSampleRate == 0)
+              return true;
+            break;
+          default:
+            if (!_isFull (0))
+              return true;
+            break;
+        }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    m_aDroppedCount.incrementAndGet ();
+    return false;
+  }
+
+  /**
+   * Create a new stream that captures a single message. The message is written when the stream is
+   * closed.
+   *
+   * @param sPrefix
+   *        The segment prefix. Usually {@link #PREFIX_INCOMING} or {@link #PREFIX_OUTGOING}.
+   * @param sID
+   *        The ID of the message for the separator line. May not be <code>null</code>.
+   * @return The stream to write to, or <code>null</code> if the message should not be dumped.
+   */
+  @Nullable
+  DumpCaptureOutputStream createMessageStream (@NonNull @Nonempty final String sPrefix, @NonNull final String sID)
+  {
+    if (!isAcceptingNewMessage ())
+      return null;
+    return new DumpCaptureOutputStream (this, sPrefix, sID, m_nMaxMessageBytes);
+  }
+
+  void submit (@NonNull final String sPrefix, final long nMillis, final byte @NonNull [] aData, final int nLen)
+  {
+    m_aLock.lock ();
+    try
+    {
+      long nRemainingNanos = MAX_BLOCK_NANOS;
+      while (!m_bShutdown && !m_bWriterStopped && _isFull (nLen))
+      {
+        if (m_eOverflowPolicy != EOverflowPolicy.BLOCK || nRemainingNanos <= 0)
+        {
+          m_aDroppedCount.incrementAndGet ();
+          return;
+        }
+        nRemainingNanos = m_aNotFull.awaitNanos (nRemainingNanos);
+      }
+      if (m_bShutdown || m_bWriterStopped)
+      {
+        m_aDroppedCount.incrementAndGet ();
+        return;
+      }
+
+      m_aRing[(m_nHead + m_nCount) % m_aRing.length] = new DumpRecord (sPrefix, nMillis, aData, nLen);
+      m_nCount++;
+      m_nBufferBytes += nLen;
+      m_aNotEmpty.signal ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      m_aDroppedCount.incrementAndGet ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  private void _writerLoop ()
+  {
+    boolean bFinished = false;
+    try
+    {
+      _writeUntilShutdown ();
+      bFinished = true;
+    }
+    finally
+    {
+      if (!bFinished)
+        LOGGER.error ("The dump writer stopped unexpectedly - messages are no longer dumped");
+
+      m_aLock.lock ();
+      try
+      {
+        m_bWriterStopped = true;
+        // Pending messages can't be written anymore
+        m_aDroppedCount.addAndGet (m_nCount);
+        while (m_nCount > 0)
+        {
+          m_aRing[m_nHead] = null;
+          m_nHead = (m_nHead + 1) % m_aRing.length;
+          m_nCount--;
+        }
+        m_nBufferBytes = 0;
+        m_aNotFull.signalAll ();
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+
+      try
+      {
+        m_aStore.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to close dump segments", ex);
+      }
+    }
+  }
+
+  private void _writeUntilShutdown ()
+  {
+    final List <DumpRecord> aBatch = new ArrayList <> ();
+    long nNextRetentionMillis = 0;
+    while (true)
+    {
+      m_aLock.lock ();
+      try
+      {
+        while (m_nCount == 0 && !m_bShutdown)
+        {
+          // Wake up from time to time to apply the retention
+          if (m_aNotEmpty.awaitNanos (TimeUnit.MINUTES.toNanos (1)) <= 0)
+            break;
+        }
+
+        // Take everything that is available
+        while (m_nCount > 0)
+        {
+          aBatch.add (m_aRing[m_nHead]);
+          m_aRing[m_nHead] = null;
+          m_nHead = (m_nHead + 1) % m_aRing.length;
+          m_nCount--;
+        }
+        m_nBufferBytes = 0;
+        m_aNotFull.signalAll ();
+        if (aBatch.isEmpty () && m_bShutdown)
+          break;
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+
+      if (!aBatch.isEmpty ())
+      {
+        try
+        {
+          for (final DumpRecord aRecord : aBatch)
+            m_aStore.write (aRecord.m_sPrefix, aRecord.m_nMillis, aRecord.m_aData, aRecord.m_nLen);
+          m_aStore.flush ();
+          m_aWrittenCount.addAndGet (aBatch.size ());
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          m_aDroppedCount.addAndGet (aBatch.size ());
+          LOGGER.error ("Failed to write " + aBatch.size () + " dumped messages", ex);
+        }
+        aBatch.clear ();
+      }
+
+      final long nNow = System.currentTimeMillis ();
+      if (nNow >= nNextRetentionMillis)
+      {
+        try
+        {
+          m_aStore.applyRetention (nNow);
+        }
+        catch (final RuntimeException ex)
+        {
+          LOGGER.error ("Failed to apply the retention of the dumped messages", ex);
+        }
+        nNextRetentionMillis = nNow + RETENTION_INTERVAL_MILLIS;
+      }
+    }
+  }
+
+  /**
+   * @return The number of messages that were written since the start.
+   */
+  public long getWrittenCount ()
+  {
+    return m_aWrittenCount.get ();
+  }
+
+  /**
+   * @return The number of messages that were not dumped because of the overflow policy or an I/O
+   *         error since the start.
+   */
+  public long getDroppedCount ()
+  {
+    return m_aDroppedCount.get ();
+  }
+
+  /**
+   * @return The number of messages currently waiting to be written.
+   */
+  public int getPendingCount ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_nCount;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Write all pending messages and stop the background thread.
+   */
+  void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_bShutdown = true;
+      m_aNotEmpty.signalAll ();
+      m_aNotFull.signalAll ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    try
+    {
+      m_aWriterThread.join (TimeUnit.SECONDS.toMillis (30));
+      if (m_aWriterThread.isAlive ())
+        LOGGER.warn ("The dump writer did not finish in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  /**
+   * Start the asynchronous dump writer. Must be called once on startup.
+   *
+   * @return The dump writer. Never <code>null</code>.
+   * @throws IOException
+   *         If the dump directory could not be created
+   */
+  @NonNull
+  public static AsyncDumpWriter init () throws IOException
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance == null)
+      {
+        final File aBaseDir = APConfig.getAsyncDumpDirectory ();
+        s_aInstance = new AsyncDumpWriter (new DumpSegmentStore (aBaseDir,
+                                                                 TimeUnit.HOURS.toMillis (APConfig.getAsyncDumpRetentionHours ()),
+                                                                 APConfig.getAsyncDumpRetentionMaxBytes ()),
+                                           APConfig.getAsyncDumpBufferEntries (),
+                                           APConfig.getAsyncDumpBufferBytes (),
+                                           APConfig.getAsyncDumpMaxMessageBytes (),
+                                           APConfig.getAsyncDumpOverflowPolicy (),
+                                           APConfig.getAsyncDumpSampleRate ());
+        LOGGER.info ("Started asynchronous AS4 message dumper in '" +
+                     aBaseDir.getAbsolutePath () +
+                     "' with overflow policy '" +
+                     s_aInstance.m_eOverflowPolicy.getID () +
+                     "'");
+      }
+      return s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * @return The dump writer or <code>null</code> if it is not enabled.
+   */
+  @Nullable
+  public static AsyncDumpWriter getInstance ()
+  {
+    LOCK.lock ();
+    try
+    {
+      return s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Write all pending messages and stop the writer. Must only be called on application shutdown.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+      {
+        final AsyncDumpWriter aWriter = s_aInstance;
+        aWriter.close ();
+        s_aInstance = null;
+        LOGGER.info ("Stopped asynchronous AS4 message dumper after writing " +
+                     aWriter.getWrittenCount () +
+                     " and dropping " +
+                     aWriter.getDroppedCount () +
+                     " messages");
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+
+/**
+ * Captures a single dumped message in memory on the request thread, so that no file I/O happens
+ * there. When the stream is closed and the decision to dump it was made (see
+ * {@link #setDumpDecision(boolean)}), the message is handed over to the {@link AsyncDumpWriter}.
+ * The decision may be made before or after the stream is closed. Everything beyond the maximum
+ * size is discarded and a note is appended instead.<br>
+ * Writing is not thread-safe, but the decision may be made from another thread.
+ *
+ * @author Philip Helger
+ */
+final class DumpCaptureOutputStream extends OutputStream
+{
+  private static final int INITIAL_CAPACITY = 8 * 1024;
+
+  private final AsyncDumpWriter m_aWriter;
+  private final String m_sPrefix;
+  private final long m_nMillis;
+  private final int m_nMaxBytes;
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  private byte [] m_aBuf = new byte [INITIAL_CAPACITY];
+  private int m_nCount;
+  private long m_nDiscardedBytes;
+  // Only modified while holding m_aLock
+  private volatile boolean m_bClosed;
+  // null means "not yet decided"
+  @GuardedBy ("m_aLock")
+  private Boolean m_aDump;
+  // Avoid capturing more bytes once it is clear that they are not needed
+  private volatile boolean m_bSkipped;
+
+  DumpCaptureOutputStream (@NonNull final AsyncDumpWriter aWriter,
+                           @NonNull @Nonempty final String sPrefix,
+                           @NonNull final String sID,
+                           final int nMaxBytes)
+  {
+    m_aWriter = aWriter;
+    m_sPrefix = sPrefix;
+    m_nMillis = System.currentTimeMillis ();
+    m_nMaxBytes = nMaxBytes;
+    // Separates the messages in the concatenated output of zcat
+    writeLine ("--- phase4 " + sPrefix + " dump " + sID + " " + Instant.ofEpochMilli (m_nMillis) + " ---");
+  }
+
+  private void _ensureCapacity (final int nNeeded)
+  {
+    if (nNeeded > m_aBuf.length)
+    {
+      final int nNewCapacity = Math.min (Math.max (nNeeded, m_aBuf.length * 2), Math.max (nNeeded, m_nMaxBytes));
+      m_aBuf = Arrays.copyOf (m_aBuf, nNewCapacity);
+    }
+  }
+
+  private void _append (final byte @NonNull [] aBuf, final int nOfs, final int nLen)
+  {
+    _ensureCapacity (m_nCount + nLen);
+    System.arraycopy (aBuf, nOfs, m_aBuf, m_nCount, nLen);
+    m_nCount += nLen;
+  }
+
+  /**
+   * Write a single line of text followed by CRLF, e.g. an HTTP header.
+   *
+   * @param sLine
+   *        The line to write. May not be <code>null</code>.
+   */
+  void writeLine (@NonNull final String sLine)
+  {
+    final byte [] aBytes = (sLine + "\r\n").getBytes (StandardCharsets.UTF_8);
+    write (aBytes, 0, aBytes.length);
+  }
+
+  @Override
+  public void write (final int b)
+  {
+    if (m_bSkipped || m_bClosed)
+      return;
+    if (m_nCount < m_nMaxBytes)
+    {
+      _ensureCapacity (m_nCount + 1);
+      m_aBuf[m_nCount++] = (byte) b;
+    }
+    else
+      m_nDiscardedBytes++;
+  }
+
+  @Override
+  public void write (final byte @NonNull [] aBuf, final int nOfs, final int nLen)
+  {
+    Objects.checkFromIndexSize (nOfs, nLen, aBuf.length);
+    if (m_bSkipped || m_bClosed)
+      return;
+    final int nTaken = Math.max (0, Math.min (nLen, m_nMaxBytes - m_nCount));
+    if (nTaken > 0)
+      _append (aBuf, nOfs, nTaken);
+    m_nDiscardedBytes += nLen - nTaken;
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _finish ()
+  {
+    if (m_aDump.booleanValue ())
+      m_aWriter.submit (m_sPrefix, m_nMillis, m_aBuf, m_nCount);
+    m_aBuf = null;
+  }
+
+  /**
+   * Set whether the message should be written. Only the first call has an effect.
+   *
+   * @param bDump
+   *        <code>true</code> to write the message, <code>false</code> to discard it.
+   */
+  void setDumpDecision (final boolean bDump)
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_aDump == null)
+      {
+        m_aDump = Boolean.valueOf (bDump);
+        if (!bDump)
+          m_bSkipped = true;
+        if (m_bClosed)
+          _finish ();
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @Override
+  public void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        if (m_nDiscardedBytes > 0 && !m_bSkipped)
+        {
+          final byte [] aNote = ("\r\n--- truncated: " + m_nDiscardedBytes + " more bytes ---\r\n").getBytes (StandardCharsets.UTF_8);
+          _append (aNote, 0, aNote.length);
+        }
+        if (m_aDump != null)
+          _finish ();
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.concurrent.ThreadSafe;
+
+/**
+ * The information about a single AS4 exchange that the {@link DumpPolicy} rules are evaluated
+ * against. It is filled step by step while the exchange is processed, so all fields may be
+ * <code>null</code>. All identifiers are stored in their URI encoded form.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class DumpMessageInfo
+{
+  private volatile String m_sAS4MessageID;
+  private volatile String m_sSBDHInstanceID;
+  private volatile String m_sSenderID;
+  private volatile String m_sReceiverID;
+  private volatile String m_sDocTypeID;
+  private volatile String m_sSendingAPID;
+  private volatile String m_sReceivingAPID;
+  private volatile boolean m_bFailed;
+
+  @Nullable
+  public String getAS4MessageID ()
+  {
+    return m_sAS4MessageID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setAS4MessageID (@Nullable final String s)
+  {
+    m_sAS4MessageID = s;
+    return this;
+  }
+
+  @Nullable
+  public String getSBDHInstanceID ()
+  {
+    return m_sSBDHInstanceID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setSBDHInstanceID (@Nullable final String s)
+  {
+    m_sSBDHInstanceID = s;
+    return this;
+  }
+
+  @Nullable
+  public String getSenderID ()
+  {
+    return m_sSenderID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setSenderID (@Nullable final String s)
+  {
+    m_sSenderID = s;
+    return this;
+  }
+
+  @Nullable
+  public String getReceiverID ()
+  {
+    return m_sReceiverID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setReceiverID (@Nullable final String s)
+  {
+    m_sReceiverID = s;
+    return this;
+  }
+
+  @Nullable
+  public String getDocTypeID ()
+  {
+    return m_sDocTypeID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setDocTypeID (@Nullable final String s)
+  {
+    m_sDocTypeID = s;
+    return this;
+  }
+
+  /**
+   * @return The Peppol Seat ID of the sending AP (C2). May be <code>null</code>.
+   */
+  @Nullable
+  public String getSendingAPID ()
+  {
+    return m_sSendingAPID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setSendingAPID (@Nullable final String s)
+  {
+    m_sSendingAPID = s;
+    return this;
+  }
+
+  /**
+   * @return The Peppol Seat ID of the receiving AP (C3). May be <code>null</code>.
+   */
+  @Nullable
+  public String getReceivingAPID ()
+  {
+    return m_sReceivingAPID;
+  }
+
+  @NonNull
+  public DumpMessageInfo setReceivingAPID (@Nullable final String s)
+  {
+    m_sReceivingAPID = s;
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if the exchange failed, e.g. because an AS4 error was returned or an
+   *         exception occurred.
+   */
+  public boolean isFailed ()
+  {
+    return m_bFailed;
+  }
+
+  @NonNull
+  public DumpMessageInfo setFailed (final boolean b)
+  {
+    m_bFailed = b;
+    return this;
+  }
+
+  /**
+   * @return All participant and AP identifiers that are set. Never <code>null</code>.
+   */
+  @NonNull
+  List <String> getAllPartyIDs ()
+  {
+    final List <String> ret = new ArrayList <> (4);
+    for (final String s : new String [] { m_sSenderID, m_sReceiverID, m_sSendingAPID, m_sReceivingAPID })
+      if (s != null)
+        ret.add (s);
+    return ret;
+  }
+
+  /**
+   * @return All message identifiers that are set. Never <code>null</code>.
+   */
+  @NonNull
+  List <String> getAllMessageIDs ()
+  {
+    if (m_sAS4MessageID == null && m_sSBDHInstanceID == null)
+      return Collections.emptyList ();
+    final List <String> ret = new ArrayList <> (2);
+    if (m_sAS4MessageID != null)
+      ret.add (m_sAS4MessageID);
+    if (m_sSBDHInstanceID != null)
+      ret.add (m_sSBDHInstanceID);
+    return ret;
+  }
+}
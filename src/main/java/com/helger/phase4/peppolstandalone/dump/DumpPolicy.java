@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * The rules that decide which AS4 exchanges are dumped. The rules are evaluated before a message
+ * is captured. Only if the decision depends on information that is not yet available (e.g. the
+ * outcome of the exchange or the SBDH content of an incoming message), the message is captured in
+ * memory and the decision is made at the end of the exchange.<br>
+ * An exchange is dumped if any of the following applies:
+ * <ul>
+ * <li>everything is dumped (permanently or temporarily)</li>
+ * <li>it is part of the random sample</li>
+ * <li>a sender, receiver, sending AP or receiving AP ID matches</li>
+ * <li>the document type ID matches</li>
+ * <li>the AS4 message ID or SBDH instance identifier was explicitly requested</li>
+ * <li>it failed and failures should be dumped</li>
+ * </ul>
+ * Instances are immutable - use the <code>with...</code> methods to create modified copies.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class DumpPolicy
+{
+  /**
+   * The decision at the begin of an exchange.
+   */
+  public enum EDecision
+  {
+    /** Capture and write the message */
+    DUMP,
+    /** Don't capture the message at all */
+    SKIP,
+    /** Capture the message, but decide at the end of the exchange */
+    DEFER
+  }
+
+  private final boolean m_bDumpAll;
+  private final boolean m_bDumpFailures;
+  private final int m_nSamplePercent;
+  private final Set <String> m_aPartyIDs;
+  private final Set <String> m_aDocTypeIDs;
+  // Message ID to "valid until" millis
+  private final Map <String, Long> m_aMessageIDs;
+  private final long m_nDumpAllUntilMillis;
+
+  private DumpPolicy (final boolean bDumpAll,
+                      final boolean bDumpFailures,
+                      final int nSamplePercent,
+                      @NonNull final Set <String> aPartyIDs,
+                      @NonNull final Set <String> aDocTypeIDs,
+                      @NonNull final Map <String, Long> aMessageIDs,
+                      final long nDumpAllUntilMillis)
+  {
+    ValueEnforcer.isBetweenInclusive (nSamplePercent, "SamplePercent", 0, 100);
+    m_bDumpAll = bDumpAll;
+    m_bDumpFailures = bDumpFailures;
+    m_nSamplePercent = nSamplePercent;
+    m_aPartyIDs = aPartyIDs;
+    m_aDocTypeIDs = aDocTypeIDs;
+    m_aMessageIDs = aMessageIDs;
+    m_nDumpAllUntilMillis = nDumpAllUntilMillis;
+  }
+
+  /**
+   * Constructor
+   *
+   * @param bDumpAll
+   *        <code>true</code> to dump all exchanges.
+   * @param bDumpFailures
+   *        <code>true</code> to dump all failed exchanges.
+   * @param nSamplePercent
+   *        The percentage of exchanges to dump randomly. Must be between 0 and 100.
+   * @param aPartyIDs
+   *        The URI encoded participant IDs (C1, C4) or Peppol Seat IDs (C2, C3) to dump. May not
+   *        be <code>null</code>.
+   * @param aDocTypeIDs
+   *        The URI encoded document type IDs to dump. May not be <code>null</code>.
+   */
+  public DumpPolicy (final boolean bDumpAll,
+                     final boolean bDumpFailures,
+                     final int nSamplePercent,
+                     @NonNull final Collection <String> aPartyIDs,
+                     @NonNull final Collection <String> aDocTypeIDs)
+  {
+    this (bDumpAll,
+          bDumpFailures,
+          nSamplePercent,
+          _normalize (aPartyIDs),
+          _normalize (aDocTypeIDs),
+          Collections.emptyMap (),
+          0);
+  }
+
+  @NonNull
+  private static Set <String> _normalize (@NonNull final Collection <String> aIDs)
+  {
+    ValueEnforcer.notNull (aIDs, "IDs");
+    final Set <String> ret = new TreeSet <> ();
+    for (final String s : aIDs)
+      if (s != null && !s.isBlank ())
+        ret.add (s.trim ().toLowerCase (Locale.ROOT));
+    return Collections.unmodifiableSet (ret);
+  }
+
+  public boolean isDumpAll ()
+  {
+    return m_bDumpAll;
+  }
+
+  public boolean isDumpFailures ()
+  {
+    return m_bDumpFailures;
+  }
+
+  public int getSamplePercent ()
+  {
+    return m_nSamplePercent;
+  }
+
+  @NonNull
+  public DumpPolicy withDumpAll (final boolean bDumpAll)
+  {
+    return new DumpPolicy (bDumpAll,
+                           m_bDumpFailures,
+                           m_nSamplePercent,
+                           m_aPartyIDs,
+                           m_aDocTypeIDs,
+                           m_aMessageIDs,
+                           m_nDumpAllUntilMillis);
+  }
+
+  @NonNull
+  public DumpPolicy withDumpFailures (final boolean bDumpFailures)
+  {
+    return new DumpPolicy (m_bDumpAll,
+                           bDumpFailures,
+                           m_nSamplePercent,
+                           m_aPartyIDs,
+                           m_aDocTypeIDs,
+                           m_aMessageIDs,
+                           m_nDumpAllUntilMillis);
+  }
+
+  @NonNull
+  public DumpPolicy withSamplePercent (final int nSamplePercent)
+  {
+    return new DumpPolicy (m_bDumpAll,
+                           m_bDumpFailures,
+                           nSamplePercent,
+                           m_aPartyIDs,
+                           m_aDocTypeIDs,
+                           m_aMessageIDs,
+                           m_nDumpAllUntilMillis);
+  }
+
+  @NonNull
+  public DumpPolicy withPartyIDs (@NonNull final Collection <String> aPartyIDs)
+  {
+    return new DumpPolicy (m_bDumpAll,
+                           m_bDumpFailures,
+                           m_nSamplePercent,
+                           _normalize (aPartyIDs),
+                           m_aDocTypeIDs,
+                           m_aMessageIDs,
+                           m_nDumpAllUntilMillis);
+  }
+
+  @NonNull
+  public DumpPolicy withDocTypeIDs (@NonNull final Collection <String> aDocTypeIDs)
+  {
+    return new DumpPolicy (m_bDumpAll,
+                           m_bDumpFailures,
+                           m_nSamplePercent,
+                           m_aPartyIDs,
+                           _normalize (aDocTypeIDs),
+                           m_aMessageIDs,
+                           m_nDumpAllUntilMillis);
+  }
+
+  /**
+   * Dump the exchange with the provided AS4 message ID or SBDH instance identifier until the
+   * provided point in time.
+   *
+   * @param sMessageID
+   *        The AS4 message ID or SBDH instance identifier. May neither be <code>null</code> nor
+   *        empty.
+   * @param nUntilMillis
+   *        The end of the validity.
+   * @param nNowMillis
+   *        The current time. Expired message IDs are removed.
+   * @return A new policy. Never <code>null</code>.
+   */
+  @NonNull
+  public DumpPolicy withMessageID (@NonNull @Nonempty final String sMessageID,
+                                   final long nUntilMillis,
+                                   final long nNowMillis)
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+    final Map <String, Long> aMessageIDs = new HashMap <> ();
+    m_aMessageIDs.forEach ( (k, v) -> {
+      if (v.longValue () > nNowMillis)
+        aMessageIDs.put (k, v);
+    });
+    aMessageIDs.put (sMessageID.trim ().toLowerCase (Locale.ROOT), Long.valueOf (nUntilMillis));
+    return new DumpPolicy (m_bDumpAll,
+                           m_bDumpFailures,
+                           m_nSamplePercent,
+                           m_aPartyIDs,
+                           m_aDocTypeIDs,
+                           Collections.unmodifiableMap (aMessageIDs),
+                           m_nDumpAllUntilMillis);
+  }
+
+  /**
+   * Dump all exchanges until the provided point in time, independent of the other rules.
+   *
+   * @param nUntilMillis
+   *        The end of the validity.
+   * @return A new policy. Never <code>null</code>.
+   */
+  @NonNull
+  public DumpPolicy withDumpAllUntil (final long nUntilMillis)
+  {
+    return new DumpPolicy (m_bDumpAll,
+                           m_bDumpFailures,
+                           m_nSamplePercent,
+                           m_aPartyIDs,
+                           m_aDocTypeIDs,
+                           m_aMessageIDs,
+                           nUntilMillis);
+  }
+
+  private boolean _hasActiveMessageIDs (final long nNowMillis)
+  {
+    for (final Long aUntil : m_aMessageIDs.values ())
+      if (aUntil.longValue () > nNowMillis)
+        return true;
+    return false;
+  }
+
+  private static boolean _containsID (@NonNull final Set <String> aSet, @Nullable final String sID)
+  {
+    if (sID == null || aSet.isEmpty ())
+      return false;
+    final String sLC = sID.toLowerCase (Locale.ROOT);
+    if (aSet.contains (sLC))
+      return true;
+    // Also match the value without the identifier scheme
+    final int nSep = sLC.indexOf ("::");
+    return nSep >= 0 && aSet.contains (sLC.substring (nSep + 2));
+  }
+
+  /**
+   * Check if the provided exchange is explicitly selected via party, document type or message ID.
+   *
+   * @param aInfo
+   *        The exchange information. May not be <code>null</code>.
+   * @param nNowMillis
+   *        The current time.
+   * @return <code>true</code> if it matches.
+   */
+  public boolean isSelected (@NonNull final DumpMessageInfo aInfo, final long nNowMillis)
+  {
+    for (final String sPartyID : aInfo.getAllPartyIDs ())
+      if (_containsID (m_aPartyIDs, sPartyID))
+        return true;
+    if (_containsID (m_aDocTypeIDs, aInfo.getDocTypeID ()))
+      return true;
+    for (final String sMessageID : aInfo.getAllMessageIDs ())
+    {
+      final Long aUntil = m_aMessageIDs.get (sMessageID.toLowerCase (Locale.ROOT));
+      if (aUntil != null && aUntil.longValue () > nNowMillis)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Decide at the begin of an exchange, before anything is captured.
+   *
+   * @param aInfo
+   *        The information known so far. May be <code>null</code>.
+   * @param nNowMillis
+   *        The current time.
+   * @param nRandomPercent
+   *        A random value between 0 (inclusive) and 100 (exclusive) for sampling.
+   * @return The decision. Never <code>null</code>.
+   */
+  @NonNull
+  public EDecision getDecisionOnBegin (@Nullable final DumpMessageInfo aInfo,
+                                       final long nNowMillis,
+                                       final int nRandomPercent)
+  {
+    if (m_bDumpAll || nNowMillis < m_nDumpAllUntilMillis)
+      return EDecision.DUMP;
+    if (nRandomPercent < m_nSamplePercent)
+      return EDecision.DUMP;
+    if (aInfo != null && isSelected (aInfo, nNowMillis))
+      return EDecision.DUMP;
+    // Can the remaining rules still match?
+    if (m_bDumpFailures ||
+        !m_aPartyIDs.isEmpty () ||
+        !m_aDocTypeIDs.isEmpty () ||
+        _hasActiveMessageIDs (nNowMillis))
+      return EDecision.DEFER;
+    return EDecision.SKIP;
+  }
+
+  /**
+   * Decide at the end of an exchange that was deferred.
+   *
+   * @param aInfo
+   *        The information about the exchange. May be <code>null</code>.
+   * @param bFailed
+   *        <code>true</code> if the exchange failed.
+   * @param nNowMillis
+   *        The current time.
+   * @return <code>true</code> to write the captured messages.
+   */
+  public boolean isDumpOnEnd (@Nullable final DumpMessageInfo aInfo, final boolean bFailed, final long nNowMillis)
+  {
+    if (bFailed && m_bDumpFailures)
+      return true;
+    return aInfo != null && isSelected (aInfo, nNowMillis);
+  }
+
+  /**
+   * @param nNowMillis
+   *        The current time. Expired entries are not contained.
+   * @return The rules as a map for the actuator endpoint. Never <code>null</code>.
+   */
+  @NonNull
+  public Map <String, Object> getAsMap (final long nNowMillis)
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> ();
+    ret.put ("all", Boolean.valueOf (m_bDumpAll));
+    if (nNowMillis < m_nDumpAllUntilMillis)
+      ret.put ("allUntil", Instant.ofEpochMilli (m_nDumpAllUntilMillis).toString ());
+    ret.put ("failures", Boolean.valueOf (m_bDumpFailures));
+    ret.put ("samplePercent", Integer.valueOf (m_nSamplePercent));
+    ret.put ("ids", m_aPartyIDs);
+    ret.put ("docTypes", m_aDocTypeIDs);
+    final Map <String, String> aMessageIDs = new LinkedHashMap <> ();
+    m_aMessageIDs.forEach ( (k, v) -> {
+      if (v.longValue () > nNowMillis)
+        aMessageIDs.put (k, Instant.ofEpochMilli (v.longValue ()).toString ());
+    });
+    ret.put ("messageIDs", aMessageIDs);
+    return ret;
+  }
+
+  /**
+   * @return A new policy from the configuration. Never <code>null</code>.
+   */
+  @NonNull
+  public static DumpPolicy createFromConfig ()
+  {
+    return new DumpPolicy (APConfig.isDumpPolicyAll (),
+                           APConfig.isDumpPolicyFailures (),
+                           Math.max (0, Math.min (100, APConfig.getDumpPolicySamplePercent ())),
+                           APConfig.getDumpPolicyIDs (),
+                           APConfig.getDumpPolicyDocTypeIDs ());
+  }
+}
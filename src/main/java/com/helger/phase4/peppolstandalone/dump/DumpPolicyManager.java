@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Applies the current {@link DumpPolicy} to the AS4 exchanges. The policy can be replaced at
+ * runtime, e.g. via the <code>dumppolicy</code> actuator endpoint.<br>
+ * Incoming exchanges are identified by the incoming unique ID of phase4. The information about
+ * them is added via {@link #getIncomingInfo(String)} while processing. The captures of outgoing
+ * messages sent by this AP are collected in an {@link OutgoingScope} that must be opened on the
+ * sending thread.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class DumpPolicyManager
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (DumpPolicyManager.class);
+  private static final DumpPolicyManager INSTANCE = new DumpPolicyManager ();
+  // Decisions of incoming exchanges that are kept for late responses
+  private static final int MAX_RECENT_DECISIONS = 1024;
+
+  /**
+   * The messages captured in a single exchange, for which the decision is still open.
+   */
+  private static final class Exchange
+  {
+    private final DumpMessageInfo m_aInfo = new DumpMessageInfo ();
+    private final ReentrantLock m_aLock = new ReentrantLock ();
+    @GuardedBy ("m_aLock")
+    private final List <DumpCaptureOutputStream> m_aDeferred = new ArrayList <> (2);
+    @GuardedBy ("m_aLock")
+    private Boolean m_aDecision;
+
+    void addDeferred (@NonNull final DumpCaptureOutputStream aOS)
+    {
+      m_aLock.lock ();
+      try
+      {
+        if (m_aDecision != null)
+          aOS.setDumpDecision (m_aDecision.booleanValue ());
+        else
+          m_aDeferred.add (aOS);
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+
+    boolean decide (final boolean bDump)
+    {
+      m_aLock.lock ();
+      try
+      {
+        if (m_aDecision == null)
+        {
+          m_aDecision = Boolean.valueOf (bDump);
+          for (final DumpCaptureOutputStream aOS : m_aDeferred)
+            aOS.setDumpDecision (bDump);
+          m_aDeferred.clear ();
+        }
+        return m_aDecision.booleanValue ();
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+  }
+
+  /**
+   * The scope of sending a single outgoing message. All messages dumped on the same thread while
+   * the scope is open are part of the exchange. Must be closed on the same thread.
+   *
+   * @author Philip Helger
+   */
+  public static final class OutgoingScope implements AutoCloseable
+  {
+    private final DumpPolicyManager m_aMgr;
+    private final Exchange m_aExchange;
+    private final OutgoingScope m_aPrevious;
+    private boolean m_bSuccess;
+
+    OutgoingScope (@NonNull final DumpPolicyManager aMgr, @Nullable final OutgoingScope aPrevious)
+    {
+      m_aMgr = aMgr;
+      m_aExchange = new Exchange ();
+      m_aPrevious = aPrevious;
+    }
+
+    /**
+     * @return The information about the exchange to be filled before sending. Never
+     *         <code>null</code>.
+     */
+    @NonNull
+    public DumpMessageInfo getInfo ()
+    {
+      return m_aExchange.m_aInfo;
+    }
+
+    /**
+     * Set the result of the exchange. If it is not set, the exchange is considered failed.
+     *
+     * @param bSuccess
+     *        <code>true</code> if sending was successful.
+     */
+    public void setSuccess (final boolean bSuccess)
+    {
+      m_bSuccess = bSuccess;
+    }
+
+    public void close ()
+    {
+      m_aMgr._endExchange (m_aExchange, !m_bSuccess);
+      if (m_aPrevious != null)
+        CURRENT_OUTGOING.set (m_aPrevious);
+      else
+        CURRENT_OUTGOING.remove ();
+    }
+  }
+
+  private static final ThreadLocal <OutgoingScope> CURRENT_OUTGOING = new ThreadLocal <> ();
+
+  private final AtomicReference <DumpPolicy> m_aPolicy = new AtomicReference <> (new DumpPolicy (true,
+                                                                                                 true,
+                                                                                                 0,
+                                                                                                 List.of (),
+                                                                                                 List.of ()));
+  private final Map <String, Exchange> m_aIncoming = new ConcurrentHashMap <> ();
+  private final Map <String, Exchange> m_aOutgoingWithoutScope = new ConcurrentHashMap <> ();
+  private final ReentrantLock m_aRecentLock = new ReentrantLock ();
+  @GuardedBy ("m_aRecentLock")
+  private final Map <String, Boolean> m_aRecentDecisions = new LinkedHashMap <> ()
+  {
+    @Override
+    protected boolean removeEldestEntry (final Map.Entry <String, Boolean> aEldest)
+    {
+      return size () > MAX_RECENT_DECISIONS;
+    }
+  };
+
+  private DumpPolicyManager ()
+  {}
+
+  @NonNull
+  public static DumpPolicyManager getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * @return The current policy. Never <code>null</code>.
+   */
+  @NonNull
+  public DumpPolicy getPolicy ()
+  {
+    return m_aPolicy.get ();
+  }
+
+  /**
+   * Replace the current policy. Applies to all exchanges starting afterwards.
+   *
+   * @param aPolicy
+   *        The new policy. May not be <code>null</code>.
+   */
+  public void setPolicy (@NonNull final DumpPolicy aPolicy)
+  {
+    ValueEnforcer.notNull (aPolicy, "Policy");
+    m_aPolicy.set (aPolicy);
+    LOGGER.info ("Using dump policy " + aPolicy.getAsMap (System.currentTimeMillis ()));
+  }
+
+  /**
+   * Atomically modify the current policy.
+   *
+   * @param aModifier
+   *        The modifier that creates the new policy from the current one. May not be
+   *        <code>null</code>.
+   * @return The new policy. Never <code>null</code>.
+   */
+  @NonNull
+  public DumpPolicy updatePolicy (@NonNull final UnaryOperator <DumpPolicy> aModifier)
+  {
+    ValueEnforcer.notNull (aModifier, "Modifier");
+    final DumpPolicy ret = m_aPolicy.updateAndGet (aModifier);
+    LOGGER.info ("Using dump policy " + ret.getAsMap (System.currentTimeMillis ()));
+    return ret;
+  }
+
+  /**
+   * Start the scope for sending an outgoing message on the current thread.
+   *
+   * @return The scope that must be closed after sending. Never <code>null</code>.
+   */
+  @NonNull
+  public OutgoingScope beginOutgoing ()
+  {
+    final OutgoingScope ret = new OutgoingScope (this, CURRENT_OUTGOING.get ());
+    CURRENT_OUTGOING.set (ret);
+    return ret;
+  }
+
+  /**
+   * Get the information about an incoming exchange, to add details while processing it.
+   *
+   * @param sIncomingID
+   *        The incoming unique ID of phase4. May be <code>null</code>.
+   * @return <code>null</code> if the exchange is unknown, e.g. because dumping is disabled or it
+   *         is already finished.
+   */
+  @Nullable
+  public DumpMessageInfo getIncomingInfo (@Nullable final String sIncomingID)
+  {
+    if (sIncomingID == null)
+      return null;
+    final Exchange aExchange = m_aIncoming.get (sIncomingID);
+    return aExchange == null ? null : aExchange.m_aInfo;
+  }
+
+  private boolean _endExchange (@NonNull final Exchange aExchange, final boolean bFailed)
+  {
+    final DumpMessageInfo aInfo = aExchange.m_aInfo;
+    return aExchange.decide (getPolicy ().isDumpOnEnd (aInfo,
+                                                       bFailed || aInfo.isFailed (),
+                                                       System.currentTimeMillis ()));
+  }
+
+  private void _rememberDecision (@NonNull final String sIncomingID, final boolean bDump)
+  {
+    m_aRecentLock.lock ();
+    try
+    {
+      m_aRecentDecisions.put (sIncomingID, Boolean.valueOf (bDump));
+    }
+    finally
+    {
+      m_aRecentLock.unlock ();
+    }
+  }
+
+  @Nullable
+  private static DumpCaptureOutputStream _open (@NonNull final AsyncDumpWriter aWriter,
+                                                final DumpPolicy.@NonNull EDecision eDecision,
+                                                @NonNull @Nonempty final String sPrefix,
+                                                @NonNull final String sID)
+  {
+    if (eDecision == DumpPolicy.EDecision.SKIP)
+      return null;
+    final DumpCaptureOutputStream ret = aWriter.createMessageStream (sPrefix, sID);
+    if (ret != null && eDecision == DumpPolicy.EDecision.DUMP)
+      ret.setDumpDecision (true);
+    return ret;
+  }
+
+  @Nullable
+  DumpCaptureOutputStream openIncoming (@NonNull final AsyncDumpWriter aWriter, @NonNull final String sIncomingID)
+  {
+    final DumpPolicy.EDecision eDecision = getPolicy ().getDecisionOnBegin (null,
+                                                                            System.currentTimeMillis (),
+                                                                            ThreadLocalRandom.current ().nextInt (100));
+    final DumpCaptureOutputStream ret = _open (aWriter, eDecision, AsyncDumpWriter.PREFIX_INCOMING, sIncomingID);
+    if (ret != null && eDecision == DumpPolicy.EDecision.DEFER)
+    {
+      final Exchange aExchange = new Exchange ();
+      aExchange.addDeferred (ret);
+      m_aIncoming.put (sIncomingID, aExchange);
+    }
+    else
+    {
+      // The response is handled the same way
+      _rememberDecision (sIncomingID, ret != null);
+    }
+    return ret;
+  }
+
+  void endIncoming (@NonNull final String sIncomingID, @Nullable final Exception aCaughtException)
+  {
+    final Exchange aExchange = m_aIncoming.remove (sIncomingID);
+    if (aExchange != null)
+      _rememberDecision (sIncomingID, _endExchange (aExchange, aCaughtException != null));
+  }
+
+  @Nullable
+  DumpCaptureOutputStream openOutgoing (@NonNull final AsyncDumpWriter aWriter,
+                                        @Nullable final String sIncomingID,
+                                        @NonNull @Nonempty final String sMessageID,
+                                        final int nTry)
+  {
+    final String sDumpID = nTry > 0 ? sMessageID + "-" + nTry : sMessageID;
+    if (sIncomingID != null)
+    {
+      // A response to an incoming message - part of the incoming exchange
+      final Exchange aExchange = m_aIncoming.get (sIncomingID);
+      if (aExchange != null)
+      {
+        final DumpCaptureOutputStream ret = aWriter.createMessageStream (AsyncDumpWriter.PREFIX_OUTGOING, sDumpID);
+        if (ret != null)
+          aExchange.addDeferred (ret);
+        return ret;
+      }
+
+      final Boolean aRecentDecision;
+      m_aRecentLock.lock ();
+      try
+      {
+        aRecentDecision = m_aRecentDecisions.get (sIncomingID);
+      }
+      finally
+      {
+        m_aRecentLock.unlock ();
+      }
+      if (aRecentDecision != null)
+        return _open (aWriter,
+                      aRecentDecision.booleanValue () ? DumpPolicy.EDecision.DUMP : DumpPolicy.EDecision.SKIP,
+                      AsyncDumpWriter.PREFIX_OUTGOING,
+                      sDumpID);
+    }
+
+    final OutgoingScope aScope = CURRENT_OUTGOING.get ();
+    final DumpMessageInfo aInfo = aScope == null ? null : aScope.getInfo ();
+    if (aInfo != null && aInfo.getAS4MessageID () == null)
+      aInfo.setAS4MessageID (sMessageID);
+    final DumpPolicy.EDecision eDecision = getPolicy ().getDecisionOnBegin (aInfo,
+                                                                            System.currentTimeMillis (),
+                                                                            ThreadLocalRandom.current ().nextInt (100));
+    final DumpCaptureOutputStream ret = _open (aWriter, eDecision, AsyncDumpWriter.PREFIX_OUTGOING, sDumpID);
+    if (ret != null && eDecision == DumpPolicy.EDecision.DEFER)
+    {
+      if (aScope != null)
+        aScope.m_aExchange.addDeferred (ret);
+      else
+      {
+        // No scope - decide on the end of the request, retries are part of the same exchange
+        m_aOutgoingWithoutScope.computeIfAbsent (sMessageID, k -> new Exchange ()).addDeferred (ret);
+      }
+    }
+    return ret;
+  }
+
+  void endOutgoing (@Nullable final String sIncomingID,
+                    @NonNull final String sMessageID,
+                    @Nullable final Exception aCaughtException)
+  {
+    final Exchange aExchange = m_aOutgoingWithoutScope.remove (sMessageID);
+    if (aExchange != null)
+      _endExchange (aExchange, aCaughtException != null);
+    else
+      if (aCaughtException != null)
+      {
+        // Part of a larger exchange that is decided later
+        final OutgoingScope aScope = CURRENT_OUTGOING.get ();
+        final DumpMessageInfo aInfo = aScope != null ? aScope.getInfo () : getIncomingInfo (sIncomingID);
+        if (aInfo != null)
+          aInfo.setFailed (true);
+      }
+  }
+}
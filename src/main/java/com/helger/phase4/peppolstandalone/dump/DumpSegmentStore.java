@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.NotThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayOutputStream;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Writes dumped messages into one gzip compressed segment file per prefix and hour (UTC), e.g.
+ * <code>incoming-20260117-13.dump.gz</code>. Each message is a separate gzip member, so a segment
+ * can be read with <code>zcat</code> and stays readable up to the last complete message if the
+ * application stopped while writing.<br>
+ * Segments older than the retention period are deleted, and the oldest segments are deleted if
+ * the total size exceeds the configured maximum.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class DumpSegmentStore implements AutoCloseable
+{
+  public static final String FILE_EXTENSION = ".dump.gz";
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (DumpSegmentStore.class);
+  private static final DateTimeFormatter HOUR_FORMAT = DateTimeFormatter.ofPattern ("yyyyMMdd-HH")
+                                                                         .withZone (ZoneOffset.UTC);
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private static final class Segment
+  {
+    private final String m_sHour;
+    private final File m_aFile;
+    private final OutputStream m_aOS;
+
+    Segment (@NonNull final String sHour, @NonNull final File aFile) throws IOException
+    {
+      m_sHour = sHour;
+      m_aFile = aFile;
+      m_aOS = new BufferedOutputStream (new FileOutputStream (aFile, true), WRITE_BUFFER_SIZE);
+    }
+  }
+
+  private final File m_aBaseDir;
+  private final long m_nRetentionMillis;
+  private final long m_nMaxTotalBytes;
+  // Open segment per prefix
+  private final Map <String, Segment> m_aSegments = new HashMap <> ();
+  // Reused buffer for the compressed message
+  private final NonBlockingByteArrayOutputStream m_aCompressed = new NonBlockingByteArrayOutputStream ();
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The directory for the segment files. Is created if it does not exist. May not be
+   *        <code>null</code>.
+   * @param nRetentionMillis
+   *        The maximum age of a segment in milliseconds. Values &le; 0 mean forever.
+   * @param nMaxTotalBytes
+   *        The maximum total size of all segments. Values &le; 0 mean unlimited.
+   * @throws IOException
+   *         If the directory could not be created
+   */
+  public DumpSegmentStore (@NonNull final File aBaseDir,
+                           final long nRetentionMillis,
+                           final long nMaxTotalBytes) throws IOException
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    Files.createDirectories (aBaseDir.toPath ());
+    m_aBaseDir = aBaseDir;
+    m_nRetentionMillis = nRetentionMillis;
+    m_nMaxTotalBytes = nMaxTotalBytes;
+  }
+
+  /**
+   * Append a single message to the matching segment. The data is not flushed.
+   *
+   * @param sPrefix
+   *        The segment prefix, e.g. <code>incoming</code>. May neither be <code>null</code> nor
+   *        empty.
+   * @param nMillis
+   *        The timestamp of the message that determines the segment.
+   * @param aData
+   *        The data to write. May not be <code>null</code>.
+   * @param nLen
+   *        The number of bytes of aData to write.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void write (@NonNull @Nonempty final String sPrefix,
+                     final long nMillis,
+                     final byte @NonNull [] aData,
+                     final int nLen) throws IOException
+  {
+    final String sHour = HOUR_FORMAT.format (Instant.ofEpochMilli (nMillis));
+    Segment aSegment = m_aSegments.get (sPrefix);
+    if (aSegment == null || !aSegment.m_sHour.equals (sHour))
+    {
+      if (aSegment != null)
+        aSegment.m_aOS.close ();
+      aSegment = new Segment (sHour, new File (m_aBaseDir, sPrefix + "-" + sHour + FILE_EXTENSION));
+      m_aSegments.put (sPrefix, aSegment);
+    }
+
+    // Compress into memory first, so that a failure never leaves half a gzip member
+    m_aCompressed.reset ();
+    try (final GZIPOutputStream aGZOS = new GZIPOutputStream (m_aCompressed, WRITE_BUFFER_SIZE))
+    {
+      aGZOS.write (aData, 0, nLen);
+    }
+    m_aCompressed.writeTo (aSegment.m_aOS);
+  }
+
+  /**
+   * Flush all open segments.
+   *
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void flush () throws IOException
+  {
+    for (final Segment aSegment : m_aSegments.values ())
+      aSegment.m_aOS.flush ();
+  }
+
+  private boolean _isOpen (@NonNull final File aFile)
+  {
+    for (final Segment aSegment : m_aSegments.values ())
+      if (aSegment.m_aFile.equals (aFile))
+        return true;
+    return false;
+  }
+
+  /**
+   * Delete all segments that are older than the retention period and afterwards the oldest
+   * segments until the total size is within the configured maximum. Open segments are never
+   * deleted.
+   *
+   * @param nNowMillis
+   *        The current time in milliseconds.
+   * @return The number of deleted segments.
+   */
+  public int applyRetention (final long nNowMillis)
+  {
+    final File [] aFiles = m_aBaseDir.listFiles ( (d, n) -> n.endsWith (FILE_EXTENSION));
+    if (aFiles == null)
+      return 0;
+
+    final List <File> aCandidates = new ArrayList <> (Arrays.asList (aFiles));
+    aCandidates.removeIf (this::_isOpen);
+    aCandidates.sort (Comparator.comparingLong (File::lastModified));
+
+    long nTotalBytes = 0;
+    for (final File aFile : aFiles)
+      nTotalBytes += aFile.length ();
+
+    int nDeleted = 0;
+    for (final File aFile : aCandidates)
+    {
+      final boolean bTooOld = m_nRetentionMillis > 0 && aFile.lastModified () < nNowMillis - m_nRetentionMillis;
+      final boolean bTooLarge = m_nMaxTotalBytes > 0 && nTotalBytes > m_nMaxTotalBytes;
+      if (!bTooOld && !bTooLarge)
+      {
+        // All remaining files are newer
+        break;
+      }
+
+      final long nLength = aFile.length ();
+      if (aFile.delete ())
+      {
+        nTotalBytes -= nLength;
+        nDeleted++;
+      }
+      else
+        LOGGER.warn ("Failed to delete dump segment '" + aFile.getAbsolutePath () + "'");
+    }
+    if (nDeleted > 0)
+      LOGGER.info ("Deleted " + nDeleted + " outdated dump segments");
+    return nDeleted;
+  }
+
+  public void close () throws IOException
+  {
+    IOException aFirstEx = null;
+    for (final Segment aSegment : m_aSegments.values ())
+      try
+      {
+        aSegment.m_aOS.close ();
+      }
+      catch (final IOException ex)
+      {
+        if (aFirstEx == null)
+          aFirstEx = ex;
+      }
+    m_aSegments.clear ();
+    if (aFirstEx != null)
+      throw aFirstEx;
+  }
+}
@@ -0,0 +1,743 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * An index of already received messages to detect duplicates in constant time and memory. Every
+ * key is reduced to a 128 bit fingerprint (the start of its SHA-256 hash). The fingerprints are
+ * stored in memory mapped open addressing hash tables with one or more files per day (UTC). A
+ * Bloom filter over all tables rejects unknown keys - the common case - without looking at the
+ * single days. Only keys that were most likely seen before are looked up in the tables, each of
+ * which has its own Bloom filter in front. Tables older than the retention window are deleted.<br>
+ * Received messages first claim their keys in memory ({@link #tryClaim(String...)}), which only
+ * protects against concurrent duplicates. The keys are committed to the tables only after the
+ * message was stored or processed, so that a crash in between never suppresses a resend. Writes are
+ * not forced to disk per key - the last entries before a crash of the operating system may be
+ * lost, which leads to a resend being processed again, but never to a lost message.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class DuplicateIndex implements AutoCloseable
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (DuplicateIndex.class);
+
+  private static final int SLOT_BYTES = 16;
+  private static final int BLOOM_HASHES = 6;
+  // Bits per key in the Bloom filter over all tables (about 1% false positives)
+  private static final int GLOBAL_BLOOM_BITS_PER_KEY = 10;
+  private static final long GLOBAL_BLOOM_MAX_BITS = 1L << 30;
+  private static final Pattern FILENAME = Pattern.compile ("dup-(\\d+)-(\\d+)\\.idx");
+
+  private static final ReentrantLock LOCK = new ReentrantLock ();
+  @GuardedBy ("LOCK")
+  private static DuplicateIndex s_aInstance;
+
+  /**
+   * A single memory mapped hash table with linear probing and its Bloom filter. Not thread-safe.
+   */
+  static final class Table
+  {
+    private final File m_aFile;
+    private final FileChannel m_aChannel;
+    private final MappedByteBuffer m_aBuffer;
+    private final int m_nSlotMask;
+    private final int m_nMaxUsed;
+    private final long [] m_aBloom;
+    private final long m_nBloomBits;
+    private int m_nUsed;
+
+    private Table (@NonNull final File aFile, final int nSlots) throws IOException
+    {
+      m_aFile = aFile;
+      m_aChannel = FileChannel.open (aFile.toPath (),
+                                     StandardOpenOption.CREATE,
+                                     StandardOpenOption.READ,
+                                     StandardOpenOption.WRITE);
+      final long nExistingSize = m_aChannel.size ();
+      final int nRealSlots = nExistingSize > 0 ? (int) (nExistingSize / SLOT_BYTES) : nSlots;
+      if (Integer.bitCount (nRealSlots) != 1)
+      {
+        m_aChannel.close ();
+        throw new IOException ("Duplicate index file " + aFile.getAbsolutePath () + " has an invalid size");
+      }
+      m_aBuffer = m_aChannel.map (FileChannel.MapMode.READ_WRITE, 0, (long) nRealSlots * SLOT_BYTES);
+      m_nSlotMask = nRealSlots - 1;
+      // Max load factor 0.75
+      m_nMaxUsed = nRealSlots / 4 * 3;
+      // 8 bits per slot
+      m_aBloom = new long [Math.max (1, nRealSlots / 8)];
+      m_nBloomBits = m_aBloom.length * 64L;
+
+      // Rebuild the Bloom filter from an existing file
+      for (int i = 0; i < nRealSlots; ++i)
+      {
+        final long h1 = m_aBuffer.getLong (i * SLOT_BYTES);
+        final long h2 = m_aBuffer.getLong (i * SLOT_BYTES + 8);
+        if (h1 != 0 || h2 != 0)
+        {
+          _addToBloom (h1, h2);
+          m_nUsed++;
+        }
+      }
+    }
+
+    private void _addToBloom (final long h1, final long h2)
+    {
+      DuplicateIndex._addToBloom (m_aBloom, m_nBloomBits, h1, h2);
+    }
+
+    private boolean _isEmpty (final int nSlot)
+    {
+      return m_aBuffer.getLong (nSlot * SLOT_BYTES) == 0 && m_aBuffer.getLong (nSlot * SLOT_BYTES + 8) == 0;
+    }
+
+    /**
+     * @return The slot of the fingerprint or -1 if it is not contained.
+     */
+    private int _find (final long h1, final long h2)
+    {
+      if (!_mightContain (m_aBloom, m_nBloomBits, h1, h2))
+        return -1;
+      int nSlot = (int) h1 & m_nSlotMask;
+      while (true)
+      {
+        final long s1 = m_aBuffer.getLong (nSlot * SLOT_BYTES);
+        final long s2 = m_aBuffer.getLong (nSlot * SLOT_BYTES + 8);
+        if (s1 == 0 && s2 == 0)
+          return -1;
+        if (s1 == h1 && s2 == h2)
+          return nSlot;
+        nSlot = (nSlot + 1) & m_nSlotMask;
+      }
+    }
+
+    boolean contains (final long h1, final long h2)
+    {
+      return _find (h1, h2) >= 0;
+    }
+
+    boolean isFull ()
+    {
+      return m_nUsed >= m_nMaxUsed;
+    }
+
+    /**
+     * Add a fingerprint that is not yet contained. The table must not be full.
+     */
+    void add (final long h1, final long h2)
+    {
+      int nSlot = (int) h1 & m_nSlotMask;
+      while (m_aBuffer.getLong (nSlot * SLOT_BYTES) != 0 || m_aBuffer.getLong (nSlot * SLOT_BYTES + 8) != 0)
+        nSlot = (nSlot + 1) & m_nSlotMask;
+      m_aBuffer.putLong (nSlot * SLOT_BYTES, h1);
+      m_aBuffer.putLong (nSlot * SLOT_BYTES + 8, h2);
+      _addToBloom (h1, h2);
+      m_nUsed++;
+    }
+
+    /**
+     * Remove a fingerprint. The following entries of the probe sequence are shifted back, so that
+     * no lookup stops at the new empty slot. The Bloom filter is not changed.
+     *
+     * @return <code>true</code> if it was contained.
+     */
+    boolean remove (final long h1, final long h2)
+    {
+      final int nSlot = _find (h1, h2);
+      if (nSlot < 0)
+        return false;
+
+      int nHole = nSlot;
+      int nNext = (nHole + 1) & m_nSlotMask;
+      while (!_isEmpty (nNext))
+      {
+        final long s1 = m_aBuffer.getLong (nNext * SLOT_BYTES);
+        final int nHome = (int) s1 & m_nSlotMask;
+        // The entry may move to the hole, if the hole is on its way from its home slot
+        if (((nNext - nHome) & m_nSlotMask) >= ((nNext - nHole) & m_nSlotMask))
+        {
+          m_aBuffer.putLong (nHole * SLOT_BYTES, s1);
+          m_aBuffer.putLong (nHole * SLOT_BYTES + 8, m_aBuffer.getLong (nNext * SLOT_BYTES + 8));
+          nHole = nNext;
+        }
+        nNext = (nNext + 1) & m_nSlotMask;
+      }
+      m_aBuffer.putLong (nHole * SLOT_BYTES, 0);
+      m_aBuffer.putLong (nHole * SLOT_BYTES + 8, 0);
+      m_nUsed--;
+      return true;
+    }
+
+    /**
+     * Add all fingerprints of this table to the provided Bloom filter.
+     */
+    void addAllToBloom (final long @NonNull [] aBloom, final long nBloomBits)
+    {
+      for (int i = 0; i <= m_nSlotMask; ++i)
+      {
+        final long h1 = m_aBuffer.getLong (i * SLOT_BYTES);
+        final long h2 = m_aBuffer.getLong (i * SLOT_BYTES + 8);
+        if (h1 != 0 || h2 != 0)
+          DuplicateIndex._addToBloom (aBloom, nBloomBits, h1, h2);
+      }
+    }
+
+    int getUsed ()
+    {
+      return m_nUsed;
+    }
+
+    void close ()
+    {
+      try
+      {
+        m_aBuffer.force ();
+        m_aChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to close duplicate index file " + m_aFile.getAbsolutePath (), ex);
+      }
+    }
+
+    void delete ()
+    {
+      try
+      {
+        m_aChannel.close ();
+        Files.deleteIfExists (m_aFile.toPath ());
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to delete duplicate index file " + m_aFile.getAbsolutePath (), ex);
+      }
+    }
+  }
+
+  private final File m_aDir;
+  private final int m_nSlotsPerTable;
+  private final int m_nRetentionDays;
+  private final LongSupplier m_aTodaySupplier;
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  // Epoch day to tables of that day in creation order
+  @GuardedBy ("m_aLock")
+  private final TreeMap <Long, List <Table>> m_aTables = new TreeMap <> ();
+  // Bloom filter over all tables. Removed and expired keys stay in it until the next rebuild.
+  @GuardedBy ("m_aLock")
+  private final long [] m_aBloom;
+  private final long m_nBloomBits;
+  private final long m_nBloomCapacity;
+  // Keys in the Bloom filter and the number at which it is rebuilt
+  @GuardedBy ("m_aLock")
+  private long m_nBloomKeys;
+  @GuardedBy ("m_aLock")
+  private long m_nBloomRebuildKeys;
+  // Keys of messages that are currently handled, but not yet committed
+  @GuardedBy ("m_aLock")
+  private final Set <String> m_aClaimed = new HashSet <> ();
+
+  DuplicateIndex (@NonNull final File aDir,
+                  final int nExpectedPerDay,
+                  final int nRetentionDays,
+                  @NonNull final LongSupplier aTodaySupplier) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.isGT0 (nExpectedPerDay, "ExpectedPerDay");
+    ValueEnforcer.isGT0 (nRetentionDays, "RetentionDays");
+    ValueEnforcer.notNull (aTodaySupplier, "TodaySupplier");
+
+    Files.createDirectories (aDir.toPath ());
+    m_aDir = aDir;
+    // Power of 2 with a load factor of at most 0.75 for the expected number of keys
+    m_nSlotsPerTable = Math.max (64, Integer.highestOneBit ((int) Math.min (1L << 25, nExpectedPerDay * 4L / 3)) << 1);
+    m_nRetentionDays = nRetentionDays;
+    m_aTodaySupplier = aTodaySupplier;
+    // Enough for all days of the retention window with full tables
+    m_nBloomCapacity = (long) (m_nSlotsPerTable / 4 * 3) * (nRetentionDays + 1);
+    m_nBloomBits = Math.min (GLOBAL_BLOOM_MAX_BITS,
+                             Math.max (64, (m_nBloomCapacity * GLOBAL_BLOOM_BITS_PER_KEY + 63) / 64 * 64));
+    m_aBloom = new long [(int) (m_nBloomBits / 64)];
+
+    final File [] aFiles = aDir.listFiles ();
+    if (aFiles != null)
+    {
+      // Sort by day and part number
+      final TreeMap <Long, TreeMap <Integer, File>> aSorted = new TreeMap <> ();
+      for (final File aFile : aFiles)
+      {
+        final Matcher aMatcher = FILENAME.matcher (aFile.getName ());
+        if (aMatcher.matches ())
+          aSorted.computeIfAbsent (Long.valueOf (aMatcher.group (1)), k -> new TreeMap <> ())
+                 .put (Integer.valueOf (aMatcher.group (2)), aFile);
+      }
+      for (final Map.Entry <Long, TreeMap <Integer, File>> aEntry : aSorted.entrySet ())
+      {
+        final List <Table> aList = new ArrayList <> ();
+        for (final File aFile : aEntry.getValue ().values ())
+          aList.add (new Table (aFile, m_nSlotsPerTable));
+        m_aTables.put (aEntry.getKey (), aList);
+      }
+    }
+    m_aLock.lock ();
+    try
+    {
+      _deleteExpired (aTodaySupplier.getAsLong ());
+      _rebuildBloom ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  private static void _addToBloom (final long @NonNull [] aBloom, final long nBloomBits, final long h1, final long h2)
+  {
+    for (int i = 0; i < BLOOM_HASHES; ++i)
+    {
+      final long nBit = Long.remainderUnsigned (h2 + i * h1, nBloomBits);
+      aBloom[(int) (nBit >>> 6)] |= 1L << nBit;
+    }
+  }
+
+  private static boolean _mightContain (final long @NonNull [] aBloom,
+                                        final long nBloomBits,
+                                        final long h1,
+                                        final long h2)
+  {
+    for (int i = 0; i < BLOOM_HASHES; ++i)
+    {
+      final long nBit = Long.remainderUnsigned (h2 + i * h1, nBloomBits);
+      if ((aBloom[(int) (nBit >>> 6)] & (1L << nBit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Rebuild the Bloom filter over all tables from the remaining keys.
+   */
+  @GuardedBy ("m_aLock")
+  private void _rebuildBloom ()
+  {
+    Arrays.fill (m_aBloom, 0);
+    long nKeys = 0;
+    for (final List <Table> aList : m_aTables.values ())
+      for (final Table aTable : aList)
+      {
+        aTable.addAllToBloom (m_aBloom, m_nBloomBits);
+        nKeys += aTable.getUsed ();
+      }
+    m_nBloomKeys = nKeys;
+    // If there are more keys than expected, rebuild less often
+    m_nBloomRebuildKeys = Math.max (m_nBloomCapacity, nKeys * 2);
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _deleteExpired (final long nToday)
+  {
+    final long nFirstToKeep = nToday - m_nRetentionDays;
+    while (!m_aTables.isEmpty () && m_aTables.firstKey ().longValue () < nFirstToKeep)
+      for (final Table aTable : m_aTables.pollFirstEntry ().getValue ())
+        aTable.delete ();
+  }
+
+  private static long @NonNull [] _fingerprint (@NonNull final String sKey)
+  {
+    final MessageDigest aMD;
+    try
+    {
+      aMD = MessageDigest.getInstance ("SHA-256");
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException (ex);
+    }
+    final byte [] aHash = aMD.digest (sKey.getBytes (StandardCharsets.UTF_8));
+    long h1 = 0;
+    long h2 = 0;
+    for (int i = 0; i < 8; ++i)
+    {
+      h1 = (h1 << 8) | (aHash[i] & 0xff);
+      h2 = (h2 << 8) | (aHash[i + 8] & 0xff);
+    }
+    // All zero marks an empty slot
+    if (h1 == 0 && h2 == 0)
+      h2 = 1;
+    return new long [] { h1, h2 };
+  }
+
+  @GuardedBy ("m_aLock")
+  private boolean _contains (final long @NonNull [] aFP)
+  {
+    // Constant time for all keys that were never seen
+    if (!_mightContain (m_aBloom, m_nBloomBits, aFP[0], aFP[1]))
+      return false;
+    for (final List <Table> aList : m_aTables.values ())
+      for (final Table aTable : aList)
+        if (aTable.contains (aFP[0], aFP[1]))
+          return true;
+    return false;
+  }
+
+  /**
+   * Check if any of the provided keys was already recorded within the retention window.
+   *
+   * @param aKeys
+   *        The keys to check. <code>null</code> elements are ignored.
+   * @return <code>true</code> if at least one key is known.
+   */
+  public boolean containsAny (@Nullable final String @NonNull... aKeys)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    m_aLock.lock ();
+    try
+    {
+      _deleteExpired (m_aTodaySupplier.getAsLong ());
+      for (final String sKey : aKeys)
+        if (sKey != null && _contains (_fingerprint (sKey)))
+          return true;
+      return false;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Record the provided keys for today. Keys that are already known are ignored.
+   *
+   * @param aKeys
+   *        The keys to record. <code>null</code> elements are ignored.
+   * @throws IOException
+   *         If a new index file could not be created
+   */
+  public void record (@Nullable final String @NonNull... aKeys) throws IOException
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    m_aLock.lock ();
+    try
+    {
+      final long nToday = m_aTodaySupplier.getAsLong ();
+      _deleteExpired (nToday);
+      for (final String sKey : aKeys)
+        if (sKey != null)
+        {
+          final long [] aFP = _fingerprint (sKey);
+          if (!_contains (aFP))
+            _add (nToday, aFP);
+        }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Atomically check and claim the provided keys. If any key is already recorded or claimed by
+   * another message, nothing is claimed. The claim is only kept in memory - use
+   * {@link #commitClaim(String...)} after the message was successfully stored or processed, or
+   * {@link #releaseClaim(String...)} if it could not be handled.
+   *
+   * @param aKeys
+   *        The keys to claim. <code>null</code> elements are ignored.
+   * @return <code>true</code> if all keys were claimed, <code>false</code> if at least one key is
+   *         already known.
+   */
+  public boolean tryClaim (@Nullable final String @NonNull... aKeys)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    final List <String> aNonNullKeys = new ArrayList <> (aKeys.length);
+    final List <long []> aFPs = new ArrayList <> (aKeys.length);
+    for (final String sKey : aKeys)
+      if (sKey != null)
+      {
+        aNonNullKeys.add (sKey);
+        aFPs.add (_fingerprint (sKey));
+      }
+
+    m_aLock.lock ();
+    try
+    {
+      _deleteExpired (m_aTodaySupplier.getAsLong ());
+      for (int i = 0; i < aFPs.size (); ++i)
+        if (m_aClaimed.contains (aNonNullKeys.get (i)) || _contains (aFPs.get (i)))
+          return false;
+      m_aClaimed.addAll (aNonNullKeys);
+      return true;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Record the provided keys, that were claimed with {@link #tryClaim(String...)}, for today. From
+   * now on they are reported as duplicates, also after a restart. The claim is released in any
+   * case.
+   *
+   * @param aKeys
+   *        The keys to record. <code>null</code> elements are ignored.
+   * @throws IOException
+   *         If a new index file could not be created. Nothing is recorded in this case.
+   */
+  public void commitClaim (@Nullable final String @NonNull... aKeys) throws IOException
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    m_aLock.lock ();
+    try
+    {
+      final long nToday = m_aTodaySupplier.getAsLong ();
+      _deleteExpired (nToday);
+      final List <long []> aAdded = new ArrayList <> (aKeys.length);
+      try
+      {
+        for (final String sKey : aKeys)
+          if (sKey != null)
+          {
+            final long [] aFP = _fingerprint (sKey);
+            if (!_contains (aFP))
+            {
+              _add (nToday, aFP);
+              aAdded.add (aFP);
+            }
+          }
+      }
+      catch (final IOException ex)
+      {
+        // All or nothing
+        for (final long [] aFP : aAdded)
+          _remove (aFP);
+        throw ex;
+      }
+    }
+    finally
+    {
+      for (final String sKey : aKeys)
+        if (sKey != null)
+          m_aClaimed.remove (sKey);
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Release the provided keys, that were claimed with {@link #tryClaim(String...)}, without
+   * recording them, so that a retry of the same message is accepted.
+   *
+   * @param aKeys
+   *        The keys to release. <code>null</code> elements are ignored.
+   */
+  public void releaseClaim (@Nullable final String @NonNull... aKeys)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    m_aLock.lock ();
+    try
+    {
+      for (final String sKey : aKeys)
+        if (sKey != null)
+          m_aClaimed.remove (sKey);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Remove the provided recorded keys.
+   *
+   * @param aKeys
+   *        The keys to remove. <code>null</code> elements are ignored.
+   */
+  void remove (@Nullable final String @NonNull... aKeys)
+  {
+    ValueEnforcer.notNull (aKeys, "Keys");
+    m_aLock.lock ();
+    try
+    {
+      for (final String sKey : aKeys)
+        if (sKey != null)
+          _remove (_fingerprint (sKey));
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _add (final long nToday, final long @NonNull [] aFP) throws IOException
+  {
+    final List <Table> aList = m_aTables.computeIfAbsent (Long.valueOf (nToday), k -> new ArrayList <> ());
+    Table aTable = aList.isEmpty () ? null : aList.get (aList.size () - 1);
+    if (aTable == null || aTable.isFull ())
+    {
+      if (aTable != null)
+        LOGGER.info ("Duplicate index for day " + nToday + " is full - creating another table");
+      aTable = new Table (new File (m_aDir, "dup-" + nToday + "-" + aList.size () + ".idx"), m_nSlotsPerTable);
+      aList.add (aTable);
+    }
+    aTable.add (aFP[0], aFP[1]);
+
+    // Expired keys are still part of the Bloom filter - rebuild it before it gets too full
+    if (++m_nBloomKeys > m_nBloomRebuildKeys)
+      _rebuildBloom ();
+    else
+      _addToBloom (m_aBloom, m_nBloomBits, aFP[0], aFP[1]);
+  }
+
+  @GuardedBy ("m_aLock")
+  private void _remove (final long @NonNull [] aFP)
+  {
+    for (final List <Table> aList : m_aTables.values ())
+      for (final Table aTable : aList)
+        if (aTable.remove (aFP[0], aFP[1]))
+          return;
+  }
+
+  /**
+   * @return The number of keys in the index.
+   */
+  public long getSize ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      long ret = 0;
+      for (final List <Table> aList : m_aTables.values ())
+        for (final Table aTable : aList)
+          ret += aTable.getUsed ();
+      return ret;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      for (final List <Table> aList : m_aTables.values ())
+        for (final Table aTable : aList)
+          aTable.close ();
+      m_aTables.clear ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Open the duplicate index. Must be called once on startup.
+   *
+   * @throws IOException
+   *         If the index files could not be opened
+   */
+  public static void init () throws IOException
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance == null)
+        s_aInstance = new DuplicateIndex (APConfig.getDuplicateIndexDirectory (),
+                                          APConfig.getDuplicateIndexExpectedPerDay (),
+                                          APConfig.getDuplicateIndexRetentionDays (),
+                                          () -> LocalDate.now (ZoneOffset.UTC).toEpochDay ());
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * @return The duplicate index or <code>null</code> if it is not enabled.
+   */
+  @Nullable
+  public static DuplicateIndex getInstance ()
+  {
+    LOCK.lock ();
+    try
+    {
+      return s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Close the duplicate index. Must only be called on application shutdown.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+      {
+        s_aInstance.close ();
+        s_aInstance = null;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
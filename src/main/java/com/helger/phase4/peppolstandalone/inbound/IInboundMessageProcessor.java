@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import org.jspecify.annotations.NonNull;
+
+/**
+ * The business processing of a received Peppol message.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IInboundMessageProcessor
+{
+  /**
+   * Process a single received message.
+   *
+   * @param aMessage
+   *        The message to process. Never <code>null</code>.
+   * @throws Exception
+   *         In case of an error. When called from the inbound spool, the processing is retried
+   *         later.
+   */
+  void process (@NonNull InboundMessage aMessage) throws Exception;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+
+/**
+ * A received Peppol message with all the data needed for the business processing. It is created
+ * either directly from the incoming AS4 message or from the inbound spool.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class InboundMessage
+{
+  private final String m_sIncomingID;
+  private final OffsetDateTime m_aReceivedDT;
+  private final String m_sAS4MessageID;
+  private final X509Certificate m_aSigningCertificate;
+  private final byte [] m_aSBDBytes;
+  private final PeppolSBDHData m_aPeppolSBD;
+
+  public InboundMessage (@NonNull @Nonempty final String sIncomingID,
+                         @NonNull final OffsetDateTime aReceivedDT,
+                         @Nullable final String sAS4MessageID,
+                         @Nullable final X509Certificate aSigningCertificate,
+                         final byte @NonNull [] aSBDBytes,
+                         @NonNull final PeppolSBDHData aPeppolSBD)
+  {
+    ValueEnforcer.notEmpty (sIncomingID, "IncomingID");
+    ValueEnforcer.notNull (aReceivedDT, "ReceivedDT");
+    ValueEnforcer.notNull (aSBDBytes, "SBDBytes");
+    ValueEnforcer.notNull (aPeppolSBD, "PeppolSBD");
+    m_sIncomingID = sIncomingID;
+    m_aReceivedDT = aReceivedDT;
+    m_sAS4MessageID = sAS4MessageID;
+    m_aSigningCertificate = aSigningCertificate;
+    m_aSBDBytes = aSBDBytes;
+    m_aPeppolSBD = aPeppolSBD;
+  }
+
+  /**
+   * @return The unique ID assigned to the incoming AS4 message by phase4.
+   */
+  @NonNull
+  @Nonempty
+  public String getIncomingID ()
+  {
+    return m_sIncomingID;
+  }
+
+  @NonNull
+  public OffsetDateTime getReceivedDT ()
+  {
+    return m_aReceivedDT;
+  }
+
+  /**
+   * @return The ID of the AS4 user message as sent by C2. May be <code>null</code>.
+   */
+  @Nullable
+  public String getAS4MessageID ()
+  {
+    return m_sAS4MessageID;
+  }
+
+  /**
+   * @return The certificate C2 used to sign the message. May be <code>null</code>.
+   */
+  @Nullable
+  public X509Certificate getSigningCertificate ()
+  {
+    return m_aSigningCertificate;
+  }
+
+  /**
+   * @return The complete Standard Business Document as received. Not copied for performance
+   *         reasons - don't modify.
+   */
+  public byte @NonNull [] getSBDBytes ()
+  {
+    return m_aSBDBytes;
+  }
+
+  @NonNull
+  public PeppolSBDHData getPeppolSBD ()
+  {
+    return m_aPeppolSBD;
+  }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.NotThreadSafe;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.phase4.peppolstandalone.MetricTagLimiter;
+import com.helger.security.certificate.CertificateHelper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Collects the metrics of a single inbound AS4 request. It is bound to the handling thread between
+ * {@link #begin()} and {@link #end()}, so that the different parts of the processing can contribute
+ * to it via {@link #getCurrent()}. At the end a counter and one timer with a histogram per
+ * {@link EStage} are published, each tagged by the CN of the C2 signing certificate, the document
+ * type and the {@link EOutcome}. The number of different C2 and document type tags is limited by a
+ * {@link MetricTagLimiter} each.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class InboundMetrics
+{
+  public static final String METRIC_NAME_MESSAGES = "phase4.inbound.messages";
+  public static final String METRIC_NAME_STAGE = "phase4.inbound.stage";
+
+  private static final MetricTagLimiter C2_TAGS = MetricTagLimiter.createDefault ();
+  private static final MetricTagLimiter DOCTYPE_TAGS = MetricTagLimiter.createForDocTypes ();
+  // Avoid building and looking up the meters for each message
+  private static final Map <String, Counter> COUNTERS = new ConcurrentHashMap <> ();
+  private static final Map <String, Timer> TIMERS = new ConcurrentHashMap <> ();
+
+  private static final ThreadLocal <InboundMetrics> CURRENT = new ThreadLocal <> ();
+
+  /**
+   * The stages of handling an inbound message.
+   */
+  public enum EStage
+  {
+    /**
+     * Everything phase4 does before the handler is invoked: decryption, signature verification,
+     * the Peppol receiver check and SBDH parsing
+     */
+    AS4_PROCESSING ("as4-processing"),
+    /** The checks of the sending AP in the handler (C2 certificate revocation, duplicates) */
+    SENDER_CHECK ("sender-check"),
+    /** Storing or processing the message in the handler */
+    HANDLER ("handler"),
+    /** The complete request handling including creating the response */
+    TOTAL ("total");
+
+    private final String m_sID;
+
+    EStage (@NonNull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  /**
+   * The overall outcome of an inbound message.
+   */
+  public enum EOutcome
+  {
+    /** Positive receipt */
+    SUCCESS ("success"),
+    /** An AS4 error message was created */
+    AS4_ERROR ("as4-error"),
+    /** The handler threw an exception */
+    HANDLER_EXCEPTION ("handler-exception");
+
+    private final String m_sID;
+
+    EOutcome (@NonNull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  private final long m_nStartNanos;
+  private final Map <EStage, Long> m_aStages = new EnumMap <> (EStage.class);
+  private long m_nLastNanos;
+  private String m_sC2Tag = MetricTagLimiter.UNKNOWN;
+  private String m_sDocTypeTag = MetricTagLimiter.UNKNOWN;
+  private EOutcome m_eOutcome = EOutcome.SUCCESS;
+
+  InboundMetrics (final long nStartNanos)
+  {
+    m_nStartNanos = nStartNanos;
+    m_nLastNanos = nStartNanos;
+  }
+
+  /**
+   * Set the C2 signing certificate to be used as a metric tag.
+   *
+   * @param aCert
+   *        The certificate. May be <code>null</code>.
+   */
+  public void setC2Certificate (@Nullable final X509Certificate aCert)
+  {
+    m_sC2Tag = C2_TAGS.getTagValue (aCert == null ? null : CertificateHelper.getSubjectCN (aCert));
+  }
+
+  /**
+   * Set the document type to be used as a metric tag.
+   *
+   * @param aDocTypeID
+   *        The document type ID. May be <code>null</code>.
+   */
+  public void setDocTypeID (@Nullable final IDocumentTypeIdentifier aDocTypeID)
+  {
+    m_sDocTypeTag = DOCTYPE_TAGS.getTagValue (aDocTypeID == null ? null : aDocTypeID.getURIEncoded ());
+  }
+
+  /**
+   * Remember that an AS4 error message was created. A handler exception has precedence.
+   */
+  public void setAS4Error ()
+  {
+    if (m_eOutcome == EOutcome.SUCCESS)
+      m_eOutcome = EOutcome.AS4_ERROR;
+  }
+
+  /**
+   * Remember that the handler threw an exception.
+   */
+  public void setHandlerException ()
+  {
+    m_eOutcome = EOutcome.HANDLER_EXCEPTION;
+  }
+
+  @NonNull
+  EOutcome getOutcome ()
+  {
+    return m_eOutcome;
+  }
+
+  /**
+   * End the provided stage. Its duration is the time since the previous stage ended.
+   *
+   * @param eStage
+   *        The stage that ended. May not be <code>null</code>.
+   */
+  public void endStage (@NonNull final EStage eStage)
+  {
+    final long nNow = System.nanoTime ();
+    m_aStages.put (eStage, Long.valueOf (nNow - m_nLastNanos));
+    m_nLastNanos = nNow;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May be <code>null</code>.
+   * @return The duration in nanoseconds or -1 if the stage was not ended.
+   */
+  long getDurationNanos (@Nullable final EStage eStage)
+  {
+    final Long aDuration = m_aStages.get (eStage);
+    return aDuration == null ? -1 : aDuration.longValue ();
+  }
+
+  @NonNull
+  private static String _getKey (@NonNull final String sFixed,
+                                 @NonNull final String sC2Tag,
+                                 @NonNull final String sDocTypeTag)
+  {
+    // The tag values may contain the separator, so their length is part of the key
+    return sFixed + ' ' + sC2Tag.length () + ' ' + sC2Tag + ' ' + sDocTypeTag;
+  }
+
+  void publish (final long nEndNanos)
+  {
+    m_aStages.put (EStage.TOTAL, Long.valueOf (nEndNanos - m_nStartNanos));
+
+    final String sOutcome = m_eOutcome.getID ();
+    COUNTERS.computeIfAbsent (_getKey (sOutcome, m_sC2Tag, m_sDocTypeTag),
+                              k -> Counter.builder (METRIC_NAME_MESSAGES)
+                                          .description ("Number of inbound AS4 messages")
+                                          .tag ("c2", m_sC2Tag)
+                                          .tag ("doctype", m_sDocTypeTag)
+                                          .tag ("outcome", sOutcome)
+                                          .register (Metrics.globalRegistry))
+            .increment ();
+    for (final Map.Entry <EStage, Long> aEntry : m_aStages.entrySet ())
+    {
+      final String sStage = aEntry.getKey ().getID ();
+      TIMERS.computeIfAbsent (_getKey (sStage + ' ' + sOutcome, m_sC2Tag, m_sDocTypeTag),
+                              k -> Timer.builder (METRIC_NAME_STAGE)
+                                        .description ("Duration of the stages of handling an inbound AS4 message")
+                                        .tag ("stage", sStage)
+                                        .tag ("c2", m_sC2Tag)
+                                        .tag ("doctype", m_sDocTypeTag)
+                                        .tag ("outcome", sOutcome)
+                                        .publishPercentileHistogram ()
+                                        .register (Metrics.globalRegistry))
+            .record (Duration.ofNanos (aEntry.getValue ().longValue ()));
+    }
+  }
+
+  /**
+   * Start collecting the metrics for the inbound request handled by the current thread.
+   */
+  public static void begin ()
+  {
+    CURRENT.set (new InboundMetrics (System.nanoTime ()));
+  }
+
+  /**
+   * @return The metrics of the inbound request handled by the current thread or <code>null</code>
+   *         if there is none.
+   */
+  @Nullable
+  public static InboundMetrics getCurrent ()
+  {
+    return CURRENT.get ();
+  }
+
+  /**
+   * Publish the metrics of the inbound request handled by the current thread and unbind them.
+   */
+  public static void end ()
+  {
+    final InboundMetrics aMetrics = CURRENT.get ();
+    if (aMetrics != null)
+    {
+      CURRENT.remove ();
+      aMetrics.publish (System.nanoTime ());
+    }
+  }
+}
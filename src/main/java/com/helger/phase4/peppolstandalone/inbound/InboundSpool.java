@@ -0,0 +1,849 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayInputStream;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayOutputStream;
+import com.helger.json.JsonObject;
+import com.helger.peppol.sbdh.PeppolSBDHData;
+import com.helger.peppol.sbdh.PeppolSBDHDataReader;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+import com.helger.phase4.peppolstandalone.storage.AppendOnlyJournal;
+import com.helger.phase4.peppolstandalone.storage.AppendOnlyJournal.Position;
+
+/**
+ * A durable spool between the AS4 receipt and the business processing of inbound messages. Each
+ * received message is first written to an on-disk journal, so that the AS4 receipt can be returned
+ * without waiting for the business processing. A bounded number of workers hand the messages to
+ * the {@link IInboundMessageProcessor}. Failed processing is retried with exponential backoff and
+ * jitter, messages that exceed the maximum number of attempts are moved to a dead letter
+ * directory.<br>
+ * After a restart, the journal is replayed and all unfinished messages are processed again. This
+ * means that a message may be processed more than once, if the application stopped during the
+ * processing.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class InboundSpool
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (InboundSpool.class);
+
+  private static final byte RECORD_ENQUEUE = 1;
+  private static final byte RECORD_ATTEMPT = 2;
+  private static final byte RECORD_DONE = 3;
+  // Max records per fsync
+  private static final int JOURNAL_MAX_BATCH_SIZE = 512;
+
+  private static final ReentrantLock LOCK = new ReentrantLock ();
+  @GuardedBy ("LOCK")
+  private static InboundSpool s_aInstance;
+
+  /**
+   * A single spooled message. The SBD is not kept in memory but read from the journal for each
+   * attempt.
+   */
+  private static final class Entry
+  {
+    private final String m_sID;
+    private final long m_nReceivedMillis;
+    private final String m_sIncomingID;
+    private final String m_sAS4MessageID;
+    private final Position m_aPosition;
+    private volatile int m_nAttempts;
+    private volatile long m_nNextAttemptMillis;
+    private volatile String m_sLastError;
+
+    Entry (@NonNull @Nonempty final String sID,
+           final long nReceivedMillis,
+           @NonNull @Nonempty final String sIncomingID,
+           @Nullable final String sAS4MessageID,
+           @NonNull final Position aPosition)
+    {
+      m_sID = sID;
+      m_nReceivedMillis = nReceivedMillis;
+      m_sIncomingID = sIncomingID;
+      m_sAS4MessageID = sAS4MessageID;
+      m_aPosition = aPosition;
+    }
+  }
+
+  private static final class ScheduledEntry implements Delayed
+  {
+    private final Entry m_aEntry;
+    private final long m_nDueMillis;
+
+    ScheduledEntry (@NonNull final Entry aEntry, final long nDueMillis)
+    {
+      m_aEntry = aEntry;
+      m_nDueMillis = nDueMillis;
+    }
+
+    public long getDelay (@NonNull final TimeUnit eUnit)
+    {
+      return eUnit.convert (m_nDueMillis - System.currentTimeMillis (), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo (@NonNull final Delayed aOther)
+    {
+      return Long.compare (m_nDueMillis, ((ScheduledEntry) aOther).m_nDueMillis);
+    }
+  }
+
+  private final IInboundMessageProcessor m_aProcessor;
+  private final PeppolSBDHDataReader m_aSBDHReader;
+  private final AppendOnlyJournal m_aJournal;
+  private final File m_aDeadLetterDir;
+  private final int m_nMaxAttempts;
+  private final long m_nInitialBackoffMillis;
+  private final long m_nMaxBackoffMillis;
+  private final int m_nMaxPending;
+  private final DelayQueue <ScheduledEntry> m_aDelayQueue = new DelayQueue <> ();
+  private final AtomicInteger m_aPendingCount = new AtomicInteger (0);
+  private final ExecutorService m_aWorkers;
+  // Limits the number of messages processed in parallel
+  private final Semaphore m_aWorkerPermits;
+  private final Thread m_aDispatcher;
+  private volatile boolean m_bShutdown = false;
+
+  // Number of unfinished entries per journal segment
+  private final ReentrantLock m_aSegmentLock = new ReentrantLock ();
+  @GuardedBy ("m_aSegmentLock")
+  private final TreeMap <Long, Integer> m_aOpenPerSegment = new TreeMap <> ();
+
+  /**
+   * Open the spool and replay the journal. The processing starts only with {@link #start()}.
+   */
+  InboundSpool (@NonNull final IInboundMessageProcessor aProcessor,
+                @NonNull final PeppolSBDHDataReader aSBDHReader,
+                @NonNull final File aBaseDir,
+                final long nSegmentBytes,
+                final int nWorkers,
+                final int nMaxAttempts,
+                final long nInitialBackoffSeconds,
+                final long nMaxBackoffSeconds,
+                final int nMaxPending) throws IOException
+  {
+    ValueEnforcer.notNull (aProcessor, "Processor");
+    ValueEnforcer.notNull (aSBDHReader, "SBDHReader");
+    ValueEnforcer.isGT0 (nWorkers, "Workers");
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.isGT0 (nInitialBackoffSeconds, "InitialBackoffSeconds");
+    ValueEnforcer.isGT0 (nMaxPending, "MaxPending");
+
+    m_aProcessor = aProcessor;
+    m_aSBDHReader = aSBDHReader;
+    m_aDeadLetterDir = new File (aBaseDir, "dead-letter");
+    Files.createDirectories (m_aDeadLetterDir.toPath ());
+    m_nMaxAttempts = nMaxAttempts;
+    m_nInitialBackoffMillis = TimeUnit.SECONDS.toMillis (nInitialBackoffSeconds);
+    m_nMaxBackoffMillis = TimeUnit.SECONDS.toMillis (Math.max (nInitialBackoffSeconds, nMaxBackoffSeconds));
+    m_nMaxPending = nMaxPending;
+
+    // Rebuild the state from the journal - finished entries are removed while replaying
+    final Map <String, Entry> aReplayed = new HashMap <> ();
+    m_aJournal = AppendOnlyJournal.open (new File (aBaseDir, "journal"),
+                                         "inbound",
+                                         nSegmentBytes,
+                                         JOURNAL_MAX_BATCH_SIZE,
+                                         (aPos, nType, aBody) -> _replayRecord (aReplayed, aPos, nType, aBody));
+    final long nNow = System.currentTimeMillis ();
+    for (final Entry aEntry : aReplayed.values ())
+    {
+      _retainSegment (aEntry.m_aPosition.getSegmentID ());
+      m_aPendingCount.incrementAndGet ();
+      m_aDelayQueue.add (new ScheduledEntry (aEntry, Math.max (nNow, aEntry.m_nNextAttemptMillis)));
+    }
+    _deleteUnusedSegments ();
+
+    m_aWorkers = APThreadFactory.createExecutor ("phase4-inbound-spool-", nWorkers);
+    m_aWorkerPermits = new Semaphore (nWorkers);
+    m_aDispatcher = APThreadFactory.create ("phase4-inbound-spool-dispatcher-").newThread (this::_dispatcherLoop);
+
+    LOGGER.info ("Opened durable inbound spool in " +
+                 aBaseDir.getAbsolutePath () +
+                 " with " +
+                 nWorkers +
+                 " workers - resumed " +
+                 aReplayed.size () +
+                 " unprocessed messages");
+  }
+
+  // Binary encoding of the journal records
+
+  private static void _writeString (@NonNull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    _writeBytes (aDOS, s == null ? null : s.getBytes (StandardCharsets.UTF_8));
+  }
+
+  private static void _writeBytes (@NonNull final DataOutputStream aDOS,
+                                   final byte @Nullable [] aBytes) throws IOException
+  {
+    if (aBytes == null)
+      aDOS.writeInt (-1);
+    else
+    {
+      aDOS.writeInt (aBytes.length);
+      aDOS.write (aBytes);
+    }
+  }
+
+  @Nullable
+  private static String _readString (@NonNull final DataInputStream aDIS) throws IOException
+  {
+    final byte [] aBytes = _readBytes (aDIS);
+    return aBytes == null ? null : new String (aBytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte @Nullable [] _readBytes (@NonNull final DataInputStream aDIS) throws IOException
+  {
+    final int nLen = aDIS.readInt ();
+    if (nLen < 0)
+      return null;
+    final byte [] ret = new byte [nLen];
+    aDIS.readFully (ret);
+    return ret;
+  }
+
+  private static byte @NonNull [] _encodeEnqueue (@NonNull final String sID,
+                                                  final long nReceivedMillis,
+                                                  @NonNull final String sIncomingID,
+                                                  @Nullable final String sAS4MessageID,
+                                                  final byte @Nullable [] aSigningCert,
+                                                  final byte @NonNull [] aSBDBytes) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, sID);
+      aDOS.writeLong (nReceivedMillis);
+      _writeString (aDOS, sIncomingID);
+      _writeString (aDOS, sAS4MessageID);
+      // Certificate and SBD must be last, so that they can be skipped on replay
+      _writeBytes (aDOS, aSigningCert);
+      _writeBytes (aDOS, aSBDBytes);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static byte @NonNull [] _encodeAttempt (@NonNull final Entry aEntry) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, aEntry.m_sID);
+      aDOS.writeInt (aEntry.m_nAttempts);
+      aDOS.writeLong (aEntry.m_nNextAttemptMillis);
+      _writeString (aDOS, aEntry.m_sLastError);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static byte @NonNull [] _encodeDone (@NonNull final Entry aEntry) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, aEntry.m_sID);
+      aDOS.writeInt (aEntry.m_nAttempts);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static void _replayRecord (@NonNull final Map <String, Entry> aEntries,
+                                     @NonNull final Position aPos,
+                                     final byte nType,
+                                     final byte @NonNull [] aBody)
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aBody)))
+    {
+      final String sID = _readString (aDIS);
+      switch (nType)
+      {
+        case RECORD_ENQUEUE:
+        {
+          final long nReceivedMillis = aDIS.readLong ();
+          final String sIncomingID = _readString (aDIS);
+          final String sAS4MessageID = _readString (aDIS);
+          if (sID != null && sIncomingID != null)
+            aEntries.put (sID, new Entry (sID, nReceivedMillis, sIncomingID, sAS4MessageID, aPos));
+          else
+            LOGGER.error ("Ignoring invalid inbound spool record at " + aPos);
+          break;
+        }
+        case RECORD_ATTEMPT:
+        {
+          final Entry aEntry = aEntries.get (sID);
+          if (aEntry != null)
+          {
+            aEntry.m_nAttempts = aDIS.readInt ();
+            aEntry.m_nNextAttemptMillis = aDIS.readLong ();
+            aEntry.m_sLastError = _readString (aDIS);
+          }
+          break;
+        }
+        case RECORD_DONE:
+          aEntries.remove (sID);
+          break;
+        default:
+          LOGGER.warn ("Ignoring unknown inbound spool record type " + nType + " at " + aPos);
+      }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read inbound spool record at " + aPos, ex);
+    }
+  }
+
+  // Segment housekeeping
+
+  private void _retainSegment (final long nSegmentID)
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      m_aOpenPerSegment.merge (Long.valueOf (nSegmentID), Integer.valueOf (1), Integer::sum);
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  private void _releaseSegment (final long nSegmentID)
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      m_aOpenPerSegment.computeIfPresent (Long.valueOf (nSegmentID),
+                                          (k, v) -> v.intValue () <= 1 ? null : Integer.valueOf (v.intValue () - 1));
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  private void _deleteUnusedSegments ()
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      // Everything before the oldest segment with unfinished entries can go
+      final long nFirstToKeep = m_aOpenPerSegment.isEmpty () ? m_aJournal.getCurrentSegmentID ()
+                                                             : m_aOpenPerSegment.firstKey ().longValue ();
+      m_aJournal.deleteSegmentsBefore (nFirstToKeep);
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  /**
+   * Durably store a received message for processing. This method returns as soon as the message is
+   * safely stored on disk.
+   *
+   * @param sIncomingID
+   *        The unique ID phase4 assigned to the incoming message. May neither be <code>null</code>
+   *        nor empty.
+   * @param aReceivedDT
+   *        The date and time the message was received. May not be <code>null</code>.
+   * @param sAS4MessageID
+   *        The AS4 message ID as sent by C2. May be <code>null</code>.
+   * @param aSigningCert
+   *        The signing certificate of C2. May be <code>null</code>.
+   * @param aSBDBytes
+   *        The received Standard Business Document. May not be <code>null</code>.
+   * @return <code>true</code> if the message was stored, <code>false</code> if too many messages
+   *         are pending.
+   * @throws IOException
+   *         If the message could not be stored
+   */
+  public boolean submit (@NonNull @Nonempty final String sIncomingID,
+                         @NonNull final OffsetDateTime aReceivedDT,
+                         @Nullable final String sAS4MessageID,
+                         @Nullable final X509Certificate aSigningCert,
+                         final byte @NonNull [] aSBDBytes) throws IOException
+  {
+    ValueEnforcer.notEmpty (sIncomingID, "IncomingID");
+    ValueEnforcer.notNull (aReceivedDT, "ReceivedDT");
+    ValueEnforcer.notNull (aSBDBytes, "SBDBytes");
+    if (m_bShutdown)
+      throw new IOException ("The inbound spool is shut down");
+
+    if (m_aPendingCount.incrementAndGet () > m_nMaxPending)
+    {
+      m_aPendingCount.decrementAndGet ();
+      LOGGER.warn ("Inbound spool is full - rejecting message '" + sIncomingID + "'");
+      return false;
+    }
+
+    final byte [] aCertBytes;
+    try
+    {
+      aCertBytes = aSigningCert == null ? null : aSigningCert.getEncoded ();
+    }
+    catch (final CertificateEncodingException ex)
+    {
+      m_aPendingCount.decrementAndGet ();
+      throw new IOException ("Failed to encode the signing certificate", ex);
+    }
+
+    final String sID = UUID.randomUUID ().toString ();
+    final long nReceivedMillis = aReceivedDT.toInstant ().toEpochMilli ();
+    final byte [] aRecord = _encodeEnqueue (sID, nReceivedMillis, sIncomingID, sAS4MessageID, aCertBytes, aSBDBytes);
+
+    // The record ends up in the current or a later segment - make sure neither is deleted in the
+    // meantime
+    final long nPlaceholderSegmentID = m_aJournal.getCurrentSegmentID ();
+    _retainSegment (nPlaceholderSegmentID);
+    final Position aPos;
+    try
+    {
+      aPos = m_aJournal.append (RECORD_ENQUEUE, aRecord).get ();
+      _retainSegment (aPos.getSegmentID ());
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      m_aPendingCount.decrementAndGet ();
+      throw new IOException ("Interrupted while storing message in inbound spool", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      m_aPendingCount.decrementAndGet ();
+      throw new IOException ("Failed to store message in inbound spool", ex.getCause ());
+    }
+    finally
+    {
+      _releaseSegment (nPlaceholderSegmentID);
+    }
+
+    m_aDelayQueue.add (new ScheduledEntry (new Entry (sID, nReceivedMillis, sIncomingID, sAS4MessageID, aPos),
+                                           System.currentTimeMillis ()));
+    return true;
+  }
+
+  /**
+   * @return The number of messages that are not yet processed.
+   */
+  public int getPendingCount ()
+  {
+    return m_aPendingCount.get ();
+  }
+
+  /**
+   * @return The number of messages waiting for their next attempt.
+   */
+  int getScheduledCount ()
+  {
+    return m_aDelayQueue.size ();
+  }
+
+  /**
+   * Get the delay before the next attempt. It grows exponentially with the number of attempts and
+   * half of it is random.
+   */
+  long getBackoffMillis (final int nAttempt)
+  {
+    final long nExp = m_nInitialBackoffMillis << Math.min (nAttempt - 1, 30);
+    final long nCapped = nExp <= 0 ? m_nMaxBackoffMillis : Math.min (nExp, m_nMaxBackoffMillis);
+    return nCapped / 2 + ThreadLocalRandom.current ().nextLong (nCapped / 2 + 1);
+  }
+
+  /**
+   * Create the SBDH reader for restoring spooled messages. The SBDH values were already checked with
+   * the receiver configuration when the message was received, so they are not checked again - a
+   * message that was acknowledged must always be restorable.
+   *
+   * @return A new SBDH reader. Never <code>null</code>.
+   */
+  @NonNull
+  static PeppolSBDHDataReader createSBDHReader ()
+  {
+    // Same identifier factory as the receiver configuration ("sbdhIdentifierFactoryPeppol")
+    return new PeppolSBDHDataReader (PeppolIdentifierFactory.INSTANCE).setPerformValueChecks (false);
+  }
+
+  @NonNull
+  private InboundMessage _readMessage (@NonNull final Entry aEntry,
+                                       final byte @NonNull [] aEnqueueBody) throws Exception
+  {
+    final byte [] aCertBytes;
+    final byte [] aSBDBytes;
+    try (final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aEnqueueBody)))
+    {
+      _readString (aDIS);
+      aDIS.readLong ();
+      _readString (aDIS);
+      _readString (aDIS);
+      aCertBytes = _readBytes (aDIS);
+      aSBDBytes = _readBytes (aDIS);
+    }
+    if (aSBDBytes == null)
+      throw new IOException ("The spooled message contains no SBD");
+
+    X509Certificate aSigningCert = null;
+    if (aCertBytes != null)
+      aSigningCert = (X509Certificate) CertificateFactory.getInstance ("X.509")
+                                                         .generateCertificate (new NonBlockingByteArrayInputStream (aCertBytes));
+
+    final PeppolSBDHData aPeppolSBD = m_aSBDHReader.extractData (new NonBlockingByteArrayInputStream (aSBDBytes));
+    return new InboundMessage (aEntry.m_sIncomingID,
+                               OffsetDateTime.ofInstant (Instant.ofEpochMilli (aEntry.m_nReceivedMillis), ZoneOffset.UTC),
+                               aEntry.m_sAS4MessageID,
+                               aSigningCert,
+                               aSBDBytes,
+                               aPeppolSBD);
+  }
+
+  private void _writeDeadLetter (@NonNull final Entry aEntry, final byte @Nullable [] aSBDBytes)
+  {
+    try
+    {
+      final JsonObject aMeta = new JsonObject ().add ("id", aEntry.m_sID)
+                                                .add ("incomingID", aEntry.m_sIncomingID)
+                                                .add ("receivedDT",
+                                                      Instant.ofEpochMilli (aEntry.m_nReceivedMillis).toString ())
+                                                .add ("attempts", aEntry.m_nAttempts);
+      if (aEntry.m_sAS4MessageID != null)
+        aMeta.add ("as4MessageID", aEntry.m_sAS4MessageID);
+      if (aEntry.m_sLastError != null)
+        aMeta.add ("lastError", aEntry.m_sLastError);
+
+      if (aSBDBytes != null)
+        Files.write (new File (m_aDeadLetterDir, aEntry.m_sID + ".sbd.xml").toPath (), aSBDBytes);
+      Files.write (new File (m_aDeadLetterDir, aEntry.m_sID + ".json").toPath (),
+                   aMeta.getAsJsonString ().getBytes (StandardCharsets.UTF_8));
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to write dead letter files for inbound message '" + aEntry.m_sID + "'", ex);
+    }
+  }
+
+  private void _finish (@NonNull final Entry aEntry)
+  {
+    try
+    {
+      m_aJournal.append (RECORD_DONE, _encodeDone (aEntry)).get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final IOException | ExecutionException ex)
+    {
+      LOGGER.error ("Failed to store the final state of inbound message '" + aEntry.m_sID + "'", ex);
+    }
+
+    m_aPendingCount.decrementAndGet ();
+    _releaseSegment (aEntry.m_aPosition.getSegmentID ());
+    _deleteUnusedSegments ();
+  }
+
+  private void _attempt (@NonNull final Entry aEntry)
+  {
+    final int nAttempt = aEntry.m_nAttempts + 1;
+
+    final byte [] aEnqueueBody;
+    final InboundMessage aMessage;
+    try
+    {
+      aEnqueueBody = m_aJournal.read (aEntry.m_aPosition);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read inbound message '" + aEntry.m_sID + "' from the journal", ex);
+      aEntry.m_sLastError = "Failed to read message from journal: " + ex.getMessage ();
+      _writeDeadLetter (aEntry, null);
+      _finish (aEntry);
+      return;
+    }
+    try
+    {
+      aMessage = _readMessage (aEntry, aEnqueueBody);
+    }
+    catch (final Exception ex)
+    {
+      // Retrying would not help
+      LOGGER.error ("Failed to restore inbound message '" + aEntry.m_sID + "' from the journal", ex);
+      aEntry.m_sLastError = "Failed to restore message: " + ex.getMessage ();
+      _writeDeadLetter (aEntry, null);
+      _finish (aEntry);
+      return;
+    }
+
+    try
+    {
+      m_aProcessor.process (aMessage);
+      aEntry.m_nAttempts = nAttempt;
+      _finish (aEntry);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Successfully processed inbound message '" + aEntry.m_sIncomingID + "' in attempt " + nAttempt);
+      return;
+    }
+    catch (final Exception ex)
+    {
+      aEntry.m_nAttempts = nAttempt;
+      aEntry.m_sLastError = ex.getMessage () != null ? ex.getMessage () : ex.getClass ().getName ();
+      if (m_bShutdown)
+      {
+        // Don't give up because of the shutdown - the message is resumed after the restart
+        LOGGER.info ("Inbound message '" + aEntry.m_sIncomingID + "' will be processed after restart");
+        return;
+      }
+      if (nAttempt >= m_nMaxAttempts)
+      {
+        _writeDeadLetter (aEntry, aMessage.getSBDBytes ());
+        _finish (aEntry);
+        LOGGER.error ("Giving up on inbound message '" +
+                      aEntry.m_sIncomingID +
+                      "' after " +
+                      nAttempt +
+                      " attempts - moved to dead letters as '" +
+                      aEntry.m_sID +
+                      "'",
+                      ex);
+        return;
+      }
+
+      final long nDelayMillis = getBackoffMillis (nAttempt);
+      aEntry.m_nNextAttemptMillis = System.currentTimeMillis () + nDelayMillis;
+      try
+      {
+        // Wait for durability, so that the attempt counts after a restart
+        m_aJournal.append (RECORD_ATTEMPT, _encodeAttempt (aEntry)).get ();
+      }
+      catch (final InterruptedException ex2)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      catch (final IOException | ExecutionException ex2)
+      {
+        // In the worst case the attempt is repeated after a restart
+        LOGGER.warn ("Failed to store attempt of inbound message '" + aEntry.m_sID + "'", ex2);
+      }
+      m_aDelayQueue.add (new ScheduledEntry (aEntry, aEntry.m_nNextAttemptMillis));
+      LOGGER.warn ("Processing attempt " +
+                   nAttempt +
+                   " of inbound message '" +
+                   aEntry.m_sIncomingID +
+                   "' failed (" +
+                   aEntry.m_sLastError +
+                   ") - retrying in " +
+                   nDelayMillis / 1000 +
+                   " seconds");
+    }
+  }
+
+  void start ()
+  {
+    m_aDispatcher.start ();
+  }
+
+  /**
+   * Stop taking new entries, wait for the running ones and close the journal.
+   */
+  void close ()
+  {
+    m_bShutdown = true;
+    try
+    {
+      m_aDispatcher.join ();
+      m_aWorkers.shutdown ();
+      if (!m_aWorkers.awaitTermination (30, TimeUnit.SECONDS))
+        LOGGER.warn ("Not all inbound spool workers finished in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      m_aWorkers.shutdown ();
+    }
+    m_aJournal.close ();
+    LOGGER.info ("Stopped durable inbound spool with " + getPendingCount () + " pending messages");
+  }
+
+  private void _dispatcherLoop ()
+  {
+    while (!m_bShutdown)
+    {
+      try
+      {
+        // Only take the next due entry if it can be processed right away
+        if (!m_aWorkerPermits.tryAcquire (1, TimeUnit.SECONDS))
+          continue;
+        final ScheduledEntry aScheduled = m_aDelayQueue.poll (1, TimeUnit.SECONDS);
+        if (aScheduled == null)
+        {
+          m_aWorkerPermits.release ();
+          continue;
+        }
+        if (m_bShutdown)
+        {
+          // Became due while shutting down - the entry is resumed on the next start
+          m_aDelayQueue.add (aScheduled);
+          m_aWorkerPermits.release ();
+          break;
+        }
+        try
+        {
+          m_aWorkers.execute ( () -> {
+            try
+            {
+              _attempt (aScheduled.m_aEntry);
+            }
+            catch (final RuntimeException ex)
+            {
+              LOGGER.error ("Unexpected error in inbound spool worker", ex);
+            }
+            finally
+            {
+              m_aWorkerPermits.release ();
+            }
+          });
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // Shutting down - the entry is resumed on the next start
+          m_aWorkerPermits.release ();
+          break;
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+    }
+  }
+
+  /**
+   * Start the inbound spool and resume all unprocessed messages. Must be called once on startup,
+   * after the AS4 stack was initialized.
+   *
+   * @param aProcessor
+   *        The business processing of the messages. May not be <code>null</code>.
+   * @throws IOException
+   *         If the journal could not be opened
+   */
+  public static void init (@NonNull final IInboundMessageProcessor aProcessor) throws IOException
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance == null)
+      {
+        final InboundSpool aSpool = new InboundSpool (aProcessor,
+                                                      createSBDHReader (),
+                                                      APConfig.getInboundSpoolDirectory (),
+                                                      APConfig.getInboundSpoolSegmentBytes (),
+                                                      APConfig.getInboundSpoolWorkers (),
+                                                      APConfig.getInboundSpoolMaxAttempts (),
+                                                      APConfig.getInboundSpoolInitialBackoffSeconds (),
+                                                      APConfig.getInboundSpoolMaxBackoffSeconds (),
+                                                      APConfig.getInboundSpoolMaxPending ());
+        aSpool.start ();
+        s_aInstance = aSpool;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * @return The inbound spool or <code>null</code> if it is not enabled.
+   */
+  @Nullable
+  public static InboundSpool getInstance ()
+  {
+    LOCK.lock ();
+    try
+    {
+      return s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Stop the workers and close the journal. Unprocessed messages are resumed on the next start.
+   * Must only be called on application shutdown.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+      {
+        s_aInstance.close ();
+        s_aInstance = null;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
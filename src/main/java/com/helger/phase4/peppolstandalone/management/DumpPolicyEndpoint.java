@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.management;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.springframework.boot.actuate.endpoint.Access;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.OptionalParameter;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.stereotype.Component;
+
+import com.helger.base.string.StringHelper;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.dump.AsyncDumpWriter;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicy;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicyManager;
+
+/**
+ * Actuator endpoint <code>/actuator/dumppolicy</code> to show and change the rules which AS4
+ * exchanges are dumped, without a restart. Changing is only possible, if the endpoint access is
+ * explicitly configured as <code>unrestricted</code>, and requires the same token as the sending
+ * APIs.
+ *
+ * @author Philip Helger
+ */
+@Component
+@WebEndpoint (id = "dumppolicy", defaultAccess = Access.READ_ONLY)
+public class DumpPolicyEndpoint
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (DumpPolicyEndpoint.class);
+  private static final int DEFAULT_MESSAGE_ID_MINUTES = 60;
+
+  @Nullable
+  private static List <String> _split (@Nullable final String sValues)
+  {
+    if (sValues == null)
+      return null;
+    final List <String> ret = new ArrayList <> ();
+    for (final String sValue : sValues.split (","))
+      if (!sValue.isBlank ())
+        ret.add (sValue.trim ());
+    return ret;
+  }
+
+  @ReadOperation
+  public Map <String, Object> policy ()
+  {
+    final Map <String, Object> ret = new LinkedHashMap <> (DumpPolicyManager.getInstance ()
+                                                                            .getPolicy ()
+                                                                            .getAsMap (System.currentTimeMillis ()));
+    final AsyncDumpWriter aWriter = AsyncDumpWriter.getInstance ();
+    ret.put ("asyncDumperActive", Boolean.valueOf (aWriter != null));
+    if (aWriter != null)
+    {
+      ret.put ("written", Long.valueOf (aWriter.getWrittenCount ()));
+      ret.put ("dropped", Long.valueOf (aWriter.getDroppedCount ()));
+      ret.put ("pending", Integer.valueOf (aWriter.getPendingCount ()));
+    }
+    return ret;
+  }
+
+  @WriteOperation
+  public WebEndpointResponse <Map <String, Object>> update (final String token,
+                                                            @OptionalParameter final Boolean reset,
+                                                            @OptionalParameter final Boolean all,
+                                                            @OptionalParameter final Boolean failures,
+                                                            @OptionalParameter final Integer samplePercent,
+                                                            @OptionalParameter final String ids,
+                                                            @OptionalParameter final String docTypes,
+                                                            @OptionalParameter final String messageID,
+                                                            @OptionalParameter final Integer minutes,
+                                                            @OptionalParameter final Integer allMinutes)
+  {
+    if (StringHelper.isEmpty (token) || !token.equals (APConfig.getPhase4ApiRequiredToken ()))
+    {
+      LOGGER.error ("The specified token value does not match the configured required token");
+      return new WebEndpointResponse <> (WebEndpointResponse.STATUS_FORBIDDEN);
+    }
+
+    if (samplePercent != null && (samplePercent.intValue () < 0 || samplePercent.intValue () > 100))
+      throw new InvalidEndpointRequestException ("The sample percentage must be between 0 and 100",
+                                                 "Invalid samplePercent");
+    if (minutes != null && minutes.intValue () <= 0)
+      throw new InvalidEndpointRequestException ("The minutes must be positive", "Invalid minutes");
+    if (allMinutes != null && allMinutes.intValue () <= 0)
+      throw new InvalidEndpointRequestException ("The minutes must be positive", "Invalid allMinutes");
+
+    final long nNow = System.currentTimeMillis ();
+    final List <String> aIDs = _split (ids);
+    final List <String> aDocTypeIDs = _split (docTypes);
+    DumpPolicyManager.getInstance ().updatePolicy (aPolicy -> {
+      DumpPolicy ret = reset != null && reset.booleanValue () ? DumpPolicy.createFromConfig () : aPolicy;
+      if (all != null)
+        ret = ret.withDumpAll (all.booleanValue ());
+      if (failures != null)
+        ret = ret.withDumpFailures (failures.booleanValue ());
+      if (samplePercent != null)
+        ret = ret.withSamplePercent (samplePercent.intValue ());
+      if (aIDs != null)
+        ret = ret.withPartyIDs (aIDs);
+      if (aDocTypeIDs != null)
+        ret = ret.withDocTypeIDs (aDocTypeIDs);
+      if (StringHelper.isNotEmpty (messageID))
+      {
+        final int nMinutes = minutes != null ? minutes.intValue () : DEFAULT_MESSAGE_ID_MINUTES;
+        ret = ret.withMessageID (messageID, nNow + TimeUnit.MINUTES.toMillis (nMinutes), nNow);
+      }
+      if (allMinutes != null)
+        ret = ret.withDumpAllUntil (nNow + TimeUnit.MINUTES.toMillis (allMinutes.intValue ()));
+      return ret;
+    });
+    return new WebEndpointResponse <> (policy ());
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.json.JsonObject;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+
+/**
+ * Manages asynchronous sending jobs. Each job is executed on a bounded executor and the resulting
+ * sending report is kept for a configurable time, so that it can be queried via the job ID.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AsyncSendJobManager
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (AsyncSendJobManager.class);
+  private static final AsyncSendJobManager INSTANCE = new AsyncSendJobManager (APConfig.getAsyncSendThreads (),
+                                                                               APConfig.getAsyncSendQueueSize (),
+                                                                               APConfig.getAsyncSendResultRetentionSeconds ());
+
+  /**
+   * A single asynchronous sending job.
+   */
+  public static final class Job
+  {
+    private final String m_sJobID;
+    private volatile String m_sResultJson;
+    private volatile long m_nFinishedNanos;
+
+    Job (@NonNull @Nonempty final String sJobID)
+    {
+      m_sJobID = sJobID;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getJobID ()
+    {
+      return m_sJobID;
+    }
+
+    public boolean isFinished ()
+    {
+      return m_sResultJson != null;
+    }
+
+    /**
+     * @return The sending report as JSON string or <code>null</code> if the job is not yet
+     *         finished.
+     */
+    @Nullable
+    public String getResultJson ()
+    {
+      return m_sResultJson;
+    }
+
+    @NonNull
+    public String getStatusJson ()
+    {
+      return new JsonObject ().add ("jobID", m_sJobID)
+                              .add ("status", isFinished () ? "finished" : "pending")
+                              .getAsJsonString ();
+    }
+  }
+
+  private final ExecutorService m_aExecutor;
+  // Limits the number of accepted but unfinished jobs (running and waiting)
+  private final Semaphore m_aJobSlots;
+  // Limits the number of jobs running in parallel
+  private final Semaphore m_aRunPermits;
+  private final long m_nRetentionNanos;
+  private final ConcurrentHashMap <String, Job> m_aJobs = new ConcurrentHashMap <> ();
+  // Finished jobs in the order of completion
+  private final Queue <Job> m_aFinishedJobs = new ConcurrentLinkedQueue <> ();
+
+  private AsyncSendJobManager (final int nThreads, final int nQueueSize, final long nRetentionSeconds)
+  {
+    ValueEnforcer.isGT0 (nThreads, "Threads");
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+
+    m_aExecutor = APThreadFactory.createExecutor ("phase4-async-send-", nThreads);
+    m_aJobSlots = new Semaphore (nThreads + nQueueSize);
+    m_aRunPermits = new Semaphore (nThreads);
+    m_nRetentionNanos = TimeUnit.SECONDS.toNanos (nRetentionSeconds);
+  }
+
+  @NonNull
+  public static AsyncSendJobManager getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  private void _purgeExpiredJobs ()
+  {
+    final long nNow = System.nanoTime ();
+    Job aJob;
+    while ((aJob = m_aFinishedJobs.peek ()) != null && nNow - aJob.m_nFinishedNanos >= m_nRetentionNanos)
+    {
+      if (m_aFinishedJobs.remove (aJob))
+        m_aJobs.remove (aJob.getJobID ());
+    }
+  }
+
+  /**
+   * Submit a new sending job.
+   *
+   * @param aSender
+   *        The code that performs the sending and returns the sending report. May not be
+   *        <code>null</code>.
+   * @param aJsonConverter
+   *        Converts the sending report to the result JSON. May not be <code>null</code>.
+   * @return The created job or <code>null</code> if the queue is full and the job was rejected.
+   */
+  @Nullable
+  public Job submit (@NonNull final Supplier <Phase4PeppolSendingReport> aSender,
+                     @NonNull final Function <? super Phase4PeppolSendingReport, String> aJsonConverter)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aJsonConverter, "JsonConverter");
+
+    _purgeExpiredJobs ();
+
+    if (!m_aJobSlots.tryAcquire ())
+    {
+      LOGGER.warn ("Asynchronous sending queue is full - rejecting job");
+      return null;
+    }
+
+    final Job aJob = new Job (UUID.randomUUID ().toString ());
+    m_aJobs.put (aJob.getJobID (), aJob);
+    try
+    {
+      m_aExecutor.execute ( () -> {
+        String sResultJson;
+        try
+        {
+          m_aRunPermits.acquire ();
+          try
+          {
+            sResultJson = aJsonConverter.apply (aSender.get ());
+          }
+          finally
+          {
+            m_aRunPermits.release ();
+          }
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          sResultJson = new JsonObject ().add ("jobID", aJob.getJobID ())
+                                         .add ("status", "failed")
+                                         .add ("errorMessage", "Interrupted while waiting to be executed")
+                                         .getAsJsonString ();
+        }
+        catch (final RuntimeException ex)
+        {
+          LOGGER.error ("Error in asynchronous sending job '" + aJob.getJobID () + "'", ex);
+          sResultJson = new JsonObject ().add ("jobID", aJob.getJobID ())
+                                         .add ("status", "failed")
+                                         .add ("errorMessage", ex.getMessage ())
+                                         .getAsJsonString ();
+        }
+        finally
+        {
+          m_aJobSlots.release ();
+        }
+        aJob.m_nFinishedNanos = System.nanoTime ();
+        aJob.m_sResultJson = sResultJson;
+        m_aFinishedJobs.add (aJob);
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Only happens after shutdown
+      m_aJobSlots.release ();
+      m_aJobs.remove (aJob.getJobID ());
+      LOGGER.warn ("Asynchronous sending is shut down - rejecting job");
+      return null;
+    }
+    return aJob;
+  }
+
+  /**
+   * @param sJobID
+   *        The job ID to search. May be <code>null</code>.
+   * @return The job with the provided ID or <code>null</code> if no such job exists, or if the
+   *         result retention time is exceeded.
+   */
+  @Nullable
+  public Job getJob (@Nullable final String sJobID)
+  {
+    if (sJobID == null)
+      return null;
+    _purgeExpiredJobs ();
+    return m_aJobs.get (sJobID);
+  }
+
+  /**
+   * Stop accepting new jobs and wait a short time for the running ones. Must only be called on
+   * application shutdown.
+   */
+  public void shutdown ()
+  {
+    m_aExecutor.shutdown ();
+    try
+    {
+      if (!m_aExecutor.awaitTermination (30, TimeUnit.SECONDS))
+        LOGGER.warn ("Not all asynchronous sending jobs finished in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+  }
+}
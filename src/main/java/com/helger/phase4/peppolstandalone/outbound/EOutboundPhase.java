@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import org.jspecify.annotations.NonNull;
+
+import com.helger.annotation.Nonempty;
+
+/**
+ * The phases of sending a single Peppol message, in their natural order.
+ *
+ * @author Philip Helger
+ */
+public enum EOutboundPhase
+{
+  /** Checking the provided payload or reading the provided SBDH */
+  PAYLOAD_PARSE ("payload-parse"),
+  /** Parsing the participant, document type and process identifiers */
+  IDENTIFIER_PARSE ("identifier-parse"),
+  /** Resolving the receiving AP via SMP */
+  SMP_LOOKUP ("smp-lookup"),
+  /** Checking the certificate of the receiving AP (C3) */
+  C3_CERT_CHECK ("c3-cert-check"),
+  /** Creating, signing and encrypting the AS4 message */
+  MESSAGE_BUILD ("message-build"),
+  /** Sending the HTTP request and receiving the HTTP response */
+  HTTP_TRANSMISSION ("http-transmission"),
+  /** Parsing the response and verifying the AS4 receipt */
+  RECEIPT_VERIFICATION ("receipt-verification");
+
+  private final String m_sID;
+
+  EOutboundPhase (@NonNull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @NonNull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.hc.client5.http.HttpResponseException;
+import org.apache.hc.core5.http.ConnectionClosedException;
+import org.apache.hc.core5.http.NoHttpResponseException;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+
+/**
+ * Protects the outbound sending per receiving AP (identified by the C3 endpoint URL):
+ * <ul>
+ * <li>A bulkhead limits the number of concurrent sends to a single C3, so that one slow C3 cannot
+ * occupy all sending threads.</li>
+ * <li>A circuit breaker opens after a number of consecutive transport failures. While it is open,
+ * sends to that C3 fail immediately with an {@link OutboundEndpointUnavailableException}. After a
+ * configurable time, a single probe send is let through to check if the C3 is back.</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class EndpointGuard
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (EndpointGuard.class);
+  private static final EndpointGuard INSTANCE = new EndpointGuard (APConfig.isEndpointGuardEnabled (),
+                                                                   APConfig.getEndpointGuardMaxConcurrent (),
+                                                                   APConfig.getEndpointGuardAcquireTimeoutSeconds (),
+                                                                   APConfig.getEndpointGuardFailureThreshold (),
+                                                                   APConfig.getEndpointGuardOpenSeconds ());
+  // Retry delay if a probe is currently running or all slots are in use
+  private static final long BUSY_RETRY_MILLIS = 1_000;
+
+  /**
+   * The state of a circuit breaker.
+   */
+  public enum ECircuitState
+  {
+    CLOSED ("closed"),
+    OPEN ("open"),
+    HALF_OPEN ("half-open");
+
+    private final String m_sID;
+
+    ECircuitState (@NonNull @Nonempty final String sID)
+    {
+      m_sID = sID;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+  }
+
+  /**
+   * The actual sending code.
+   */
+  @FunctionalInterface
+  public interface ISender
+  {
+    @NonNull
+    EAS4UserMessageSendResult send () throws Exception;
+  }
+
+  /**
+   * The result of passing the circuit breaker. Only the holder of a probe pass may resolve the
+   * half-open state.
+   */
+  static final class Pass
+  {
+    static final long NO_PROBE = 0;
+    static final Pass NORMAL = new Pass (0, NO_PROBE);
+
+    private final long m_nRetryAfterMillis;
+    private final long m_nProbeID;
+
+    private Pass (final long nRetryAfterMillis, final long nProbeID)
+    {
+      m_nRetryAfterMillis = nRetryAfterMillis;
+      m_nProbeID = nProbeID;
+    }
+
+    @NonNull
+    static Pass rejected (final long nRetryAfterMillis)
+    {
+      return new Pass (nRetryAfterMillis, NO_PROBE);
+    }
+
+    boolean isPassed ()
+    {
+      return m_nRetryAfterMillis == 0;
+    }
+
+    /**
+     * @return The number of milliseconds after which a retry makes sense, if it was rejected.
+     */
+    long getRetryAfterMillis ()
+    {
+      return m_nRetryAfterMillis;
+    }
+
+    boolean isProbe ()
+    {
+      return m_nProbeID != NO_PROBE;
+    }
+  }
+
+  /**
+   * The bulkhead and circuit breaker state of a single C3 endpoint.
+   */
+  static final class EndpointState
+  {
+    private final Semaphore m_aPermits;
+    private final AtomicInteger m_aInFlight = new AtomicInteger (0);
+    private final AtomicLong m_aSuccessCount = new AtomicLong (0);
+    private final AtomicLong m_aFailureCount = new AtomicLong (0);
+    private final AtomicLong m_aRejectedCount = new AtomicLong (0);
+    private final ReentrantLock m_aLock = new ReentrantLock ();
+    @GuardedBy ("m_aLock")
+    private ECircuitState m_eState = ECircuitState.CLOSED;
+    @GuardedBy ("m_aLock")
+    private int m_nConsecutiveFailures = 0;
+    @GuardedBy ("m_aLock")
+    private long m_nOpenUntilMillis = 0;
+    // The ID of the running probe or NO_PROBE
+    @GuardedBy ("m_aLock")
+    private long m_nRunningProbeID = Pass.NO_PROBE;
+    @GuardedBy ("m_aLock")
+    private long m_nLastProbeID = Pass.NO_PROBE;
+
+    EndpointState (final int nMaxConcurrent)
+    {
+      m_aPermits = new Semaphore (nMaxConcurrent, true);
+    }
+
+    @GuardedBy ("m_aLock")
+    @NonNull
+    private Pass _startProbe ()
+    {
+      m_eState = ECircuitState.HALF_OPEN;
+      m_nRunningProbeID = ++m_nLastProbeID;
+      return new Pass (0, m_nRunningProbeID);
+    }
+
+    @GuardedBy ("m_aLock")
+    private boolean _isRunningProbe (@NonNull final Pass aPass)
+    {
+      return aPass.isProbe () && aPass.m_nProbeID == m_nRunningProbeID;
+    }
+
+    /**
+     * @return The pass. Never <code>null</code>. If it was not passed, it contains the number of
+     *         milliseconds after which a retry makes sense.
+     */
+    @NonNull
+    Pass tryPass (final long nNowMillis)
+    {
+      m_aLock.lock ();
+      try
+      {
+        switch (m_eState)
+        {
+          case CLOSED:
+            return Pass.NORMAL;
+          case OPEN:
+            if (nNowMillis < m_nOpenUntilMillis)
+              return Pass.rejected (m_nOpenUntilMillis - nNowMillis);
+            // Let a single probe through
+            return _startProbe ();
+          case HALF_OPEN:
+          default:
+            if (m_nRunningProbeID != Pass.NO_PROBE)
+              return Pass.rejected (BUSY_RETRY_MILLIS);
+            // The previous probe was cancelled
+            return _startProbe ();
+        }
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+
+    /**
+     * The call was passed, but not executed. If it was the running probe, the next call may probe.
+     */
+    void cancelPass (@NonNull final Pass aPass)
+    {
+      m_aLock.lock ();
+      try
+      {
+        if (_isRunningProbe (aPass))
+          m_nRunningProbeID = Pass.NO_PROBE;
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+
+    void onResult (@NonNull final String sURL,
+                   @NonNull final Pass aPass,
+                   final boolean bFailure,
+                   final int nFailureThreshold,
+                   final long nOpenMillis)
+    {
+      (bFailure ? m_aFailureCount : m_aSuccessCount).incrementAndGet ();
+      m_aLock.lock ();
+      try
+      {
+        if (m_eState != ECircuitState.CLOSED)
+        {
+          // Late results of calls admitted before the circuit opened are ignored
+          if (!_isRunningProbe (aPass))
+            return;
+          m_nRunningProbeID = Pass.NO_PROBE;
+        }
+
+        if (bFailure)
+        {
+          m_nConsecutiveFailures++;
+          if (m_eState == ECircuitState.HALF_OPEN || m_nConsecutiveFailures >= nFailureThreshold)
+          {
+            m_eState = ECircuitState.OPEN;
+            m_nOpenUntilMillis = System.currentTimeMillis () + nOpenMillis;
+            LOGGER.warn ("Opened circuit breaker for '" +
+                         sURL +
+                         "' after " +
+                         m_nConsecutiveFailures +
+                         " consecutive failures");
+          }
+        }
+        else
+        {
+          m_nConsecutiveFailures = 0;
+          if (m_eState != ECircuitState.CLOSED)
+          {
+            m_eState = ECircuitState.CLOSED;
+            LOGGER.info ("Closed circuit breaker for '" + sURL + "'");
+          }
+        }
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+
+    @NonNull
+    ECircuitState getState ()
+    {
+      m_aLock.lock ();
+      try
+      {
+        return m_eState;
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+    }
+
+    @NonNull
+    Map <String, Object> getAsMap ()
+    {
+      final Map <String, Object> ret = new LinkedHashMap <> ();
+      m_aLock.lock ();
+      try
+      {
+        ret.put ("circuitState", m_eState.getID ());
+        ret.put ("consecutiveFailures", Integer.valueOf (m_nConsecutiveFailures));
+        if (m_eState == ECircuitState.OPEN)
+          ret.put ("openUntil", Instant.ofEpochMilli (m_nOpenUntilMillis).toString ());
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+      ret.put ("inFlight", Integer.valueOf (m_aInFlight.get ()));
+      ret.put ("availableSlots", Integer.valueOf (m_aPermits.availablePermits ()));
+      ret.put ("successCount", Long.valueOf (m_aSuccessCount.get ()));
+      ret.put ("failureCount", Long.valueOf (m_aFailureCount.get ()));
+      ret.put ("rejectedCount", Long.valueOf (m_aRejectedCount.get ()));
+      return ret;
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final int m_nMaxConcurrent;
+  private final long m_nAcquireTimeoutMillis;
+  private final int m_nFailureThreshold;
+  private final long m_nOpenMillis;
+  private final ConcurrentHashMap <String, EndpointState> m_aStates = new ConcurrentHashMap <> ();
+
+  EndpointGuard (final boolean bEnabled,
+                 final int nMaxConcurrent,
+                 final long nAcquireTimeoutSeconds,
+                 final int nFailureThreshold,
+                 final long nOpenSeconds)
+  {
+    ValueEnforcer.isGT0 (nMaxConcurrent, "MaxConcurrent");
+    ValueEnforcer.isGT0 (nFailureThreshold, "FailureThreshold");
+    m_bEnabled = bEnabled;
+    m_nMaxConcurrent = nMaxConcurrent;
+    m_nAcquireTimeoutMillis = TimeUnit.SECONDS.toMillis (nAcquireTimeoutSeconds);
+    m_nFailureThreshold = nFailureThreshold;
+    m_nOpenMillis = TimeUnit.SECONDS.toMillis (nOpenSeconds);
+  }
+
+  @NonNull
+  public static EndpointGuard getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  public boolean isEnabled ()
+  {
+    return m_bEnabled;
+  }
+
+  /**
+   * Perform a send to the provided C3 endpoint, respecting the bulkhead and the circuit breaker.
+   * Only transport level problems (where a retry is feasible, or HTTP and network exceptions) count
+   * as failure of the endpoint - e.g. an AS4 error message proves that the endpoint is up and
+   * running. Other exceptions of the sender are passed on without affecting the circuit breaker.
+   *
+   * @param sEndpointURL
+   *        The C3 endpoint URL. May neither be <code>null</code> nor empty.
+   * @param aSender
+   *        The sending code. May not be <code>null</code>.
+   * @return The result of the sender.
+   * @throws OutboundEndpointUnavailableException
+   *         If the send was rejected without being tried
+   * @throws Exception
+   *         Anything thrown by the sender
+   */
+  @NonNull
+  public EAS4UserMessageSendResult send (@NonNull @Nonempty final String sEndpointURL,
+                                         @NonNull final ISender aSender) throws Exception
+  {
+    if (!m_bEnabled)
+      return aSender.send ();
+
+    final EndpointState aState = m_aStates.computeIfAbsent (sEndpointURL, k -> new EndpointState (m_nMaxConcurrent));
+
+    // Circuit breaker
+    final Pass aPass = aState.tryPass (System.currentTimeMillis ());
+    if (!aPass.isPassed ())
+    {
+      aState.m_aRejectedCount.incrementAndGet ();
+      throw new OutboundEndpointUnavailableException ("The receiving AP '" +
+                                                      sEndpointURL +
+                                                      "' is currently considered unavailable",
+                                                      aPass.getRetryAfterMillis ());
+    }
+
+    // Bulkhead
+    boolean bAcquired = false;
+    try
+    {
+      bAcquired = aState.m_aPermits.tryAcquire (m_nAcquireTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    if (!bAcquired)
+    {
+      aState.cancelPass (aPass);
+      aState.m_aRejectedCount.incrementAndGet ();
+      throw new OutboundEndpointUnavailableException ("Too many concurrent sends to the receiving AP '" +
+                                                      sEndpointURL +
+                                                      "'",
+                                                      BUSY_RETRY_MILLIS);
+    }
+
+    aState.m_aInFlight.incrementAndGet ();
+    // Stays false for local problems (e.g. building or signing the message), that say nothing
+    // about the endpoint
+    boolean bEndpointResult = false;
+    boolean bFailure = false;
+    try
+    {
+      final EAS4UserMessageSendResult eResult = aSender.send ();
+      bEndpointResult = true;
+      bFailure = eResult == null || eResult.isRetryFeasible ();
+      return eResult;
+    }
+    catch (final Exception ex)
+    {
+      if (isTransportFailure (ex))
+      {
+        bEndpointResult = true;
+        bFailure = true;
+      }
+      throw ex;
+    }
+    finally
+    {
+      aState.m_aInFlight.decrementAndGet ();
+      aState.m_aPermits.release ();
+      if (bEndpointResult)
+        aState.onResult (sEndpointURL, aPass, bFailure, m_nFailureThreshold, m_nOpenMillis);
+      else
+        aState.cancelPass (aPass);
+    }
+  }
+
+  /**
+   * Check if an exception thrown while sending is caused by the network or the remote endpoint.
+   *
+   * @param t
+   *        The exception to check. May be <code>null</code>.
+   * @return <code>true</code> if the exception or one of its causes is an HTTP or network I/O
+   *         problem, <code>false</code> otherwise.
+   */
+  static boolean isTransportFailure (@Nullable final Throwable t)
+  {
+    Throwable aCur = t;
+    // Limit the depth in case of cyclic causes
+    for (int i = 0; aCur != null && i < 16; ++i)
+    {
+      if (aCur instanceof SocketException ||
+          aCur instanceof InterruptedIOException ||
+          aCur instanceof UnknownHostException ||
+          aCur instanceof SSLException ||
+          aCur instanceof NoHttpResponseException ||
+          aCur instanceof ConnectionClosedException ||
+          aCur instanceof HttpResponseException)
+        return true;
+      aCur = aCur.getCause ();
+    }
+    return false;
+  }
+
+  /**
+   * @param sEndpointURL
+   *        The C3 endpoint URL. May be <code>null</code>.
+   * @return The current circuit state or <code>null</code> if the endpoint is unknown.
+   */
+  @Nullable
+  public ECircuitState getCircuitState (@Nullable final String sEndpointURL)
+  {
+    final EndpointState aState = sEndpointURL == null ? null : m_aStates.get (sEndpointURL);
+    return aState == null ? null : aState.getState ();
+  }
+
+  /**
+   * @return The state of all known endpoints, sorted by URL. Never <code>null</code>.
+   */
+  @NonNull
+  public Map <String, Map <String, Object>> getAllEndpointStates ()
+  {
+    final Map <String, Map <String, Object>> ret = new TreeMap <> ();
+    m_aStates.forEach ( (k, v) -> ret.put (k, v.getAsMap ()));
+    return ret;
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import org.jspecify.annotations.NonNull;
+
+import com.helger.annotation.Nonnegative;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Exception that is thrown if a message was not sent, because the receiving AP is currently
+ * considered unavailable or is already handling too many of our messages. The message was not
+ * transmitted at all and can be retried later.
+ *
+ * @author Philip Helger
+ */
+public class OutboundEndpointUnavailableException extends Phase4Exception
+{
+  private final long m_nRetryAfterMillis;
+
+  public OutboundEndpointUnavailableException (@NonNull final String sMsg, @Nonnegative final long nRetryAfterMillis)
+  {
+    super (sMsg);
+    m_nRetryAfterMillis = nRetryAfterMillis;
+  }
+
+  /**
+   * @return The number of milliseconds after which a retry makes sense. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getRetryAfterMillis ()
+  {
+    return m_nRetryAfterMillis;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.IdleConnectionEvictor;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.client5.http.ssl.HttpsSupport;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.reactor.ssl.SSLBufferMode;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.HttpClientSettings;
+import com.helger.httpclient.TLSConfigurationMode;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
+
+/**
+ * A long-lived, bounded HTTP connection pool that is shared by all outbound AS4 sends. Connections
+ * to the same C3 endpoint are kept alive and reused, and because all connections share a single
+ * {@link SSLContext}, TLS sessions are resumed instead of performing full handshakes. Idle
+ * connections are evicted in the background.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundHttpClientPool
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundHttpClientPool.class);
+
+  private static final ReentrantLock LOCK = new ReentrantLock ();
+  // Volatile, so that the hot send path can read it without the lock
+  @GuardedBy ("LOCK")
+  private static volatile OutboundHttpClientPool s_aInstance;
+
+  /**
+   * A special HTTP client factory that makes all created clients use the shared connection pool.
+   * Closing such a client does not close the pool.
+   */
+  private static final class PooledHttpClientFactory extends HttpClientFactory
+  {
+    private final PoolingHttpClientConnectionManager m_aConnMgr;
+
+    PooledHttpClientFactory (@NonNull final HttpClientSettings aSettings,
+                             @NonNull final PoolingHttpClientConnectionManager aConnMgr)
+    {
+      super (aSettings);
+      m_aConnMgr = aConnMgr;
+    }
+
+    @Override
+    @NonNull
+    public HttpClientBuilder createHttpClientBuilder ()
+    {
+      final HttpClientBuilder ret = super.createHttpClientBuilder ();
+      ret.setConnectionManager (m_aConnMgr).setConnectionManagerShared (true);
+      return ret;
+    }
+  }
+
+  private final PoolingHttpClientConnectionManager m_aConnMgr;
+  private final IdleConnectionEvictor m_aEvictor;
+  private final HttpClientFactory m_aHttpClientFactory;
+
+  private OutboundHttpClientPool (@NonNull final HttpClientSettings aHCS)
+  {
+    // A single SSL context is the precondition for TLS session resumption
+    final SSLContext aSSLContext = aHCS.getSSLContext () != null ? aHCS.getSSLContext () : SSLContexts
+                                                                                                   .createSystemDefault ();
+    final HostnameVerifier aHostnameVerifier = aHCS.getHostnameVerifier () != null ? aHCS.getHostnameVerifier ()
+                                                                                   : HttpsSupport.getDefaultHostnameVerifier ();
+
+    final int nMaxTotal = APConfig.getHttpPoolMaxTotal ();
+    final int nMaxPerRoute = APConfig.getHttpPoolMaxPerRoute ();
+    final long nIdleSeconds = APConfig.getHttpPoolIdleEvictionSeconds ();
+    final long nTTLSeconds = APConfig.getHttpPoolConnectionTTLSeconds ();
+
+    // Use the same TLS versions and cipher suites as phase4 would for a per-send client
+    final TLSConfigurationMode aTLSMode = aHCS.getTLSConfigurationMode ();
+    final DefaultClientTlsStrategy aTlsStrategy = aTLSMode != null ? new DefaultClientTlsStrategy (aSSLContext,
+                                                                                                   aTLSMode.getAllTLSVersionIDsAsArray (),
+                                                                                                   aTLSMode.getAllCipherSuitesAsArray (),
+                                                                                                   SSLBufferMode.STATIC,
+                                                                                                   aHostnameVerifier)
+                                                                   : new DefaultClientTlsStrategy (aSSLContext,
+                                                                                                   aHostnameVerifier);
+
+    m_aConnMgr = PoolingHttpClientConnectionManagerBuilder.create ()
+                                                          .setTlsSocketStrategy (aTlsStrategy)
+                                                          .setMaxConnTotal (nMaxTotal)
+                                                          .setMaxConnPerRoute (nMaxPerRoute)
+                                                          .setConnPoolPolicy (PoolReusePolicy.LIFO)
+                                                          .setDefaultConnectionConfig (ConnectionConfig.custom ()
+                                                                                                       .setConnectTimeout (aHCS.getConnectTimeout ())
+                                                                                                       .setSocketTimeout (aHCS.getResponseTimeout ())
+                                                                                                       .setTimeToLive (TimeValue.ofSeconds (nTTLSeconds))
+                                                                                                       .setValidateAfterInactivity (TimeValue.ofSeconds (2))
+                                                                                                       .build ())
+                                                          .build ();
+
+    // Check every few seconds for connections that were idle for too long
+    m_aEvictor = new IdleConnectionEvictor (m_aConnMgr,
+                                            TimeValue.ofSeconds (Math.max (1, Math.min (nIdleSeconds, 30))),
+                                            TimeValue.ofSeconds (nIdleSeconds));
+    m_aEvictor.start ();
+
+    m_aHttpClientFactory = new PooledHttpClientFactory (aHCS, m_aConnMgr);
+
+    LOGGER.info ("Created shared outbound HTTP connection pool with max " +
+                 nMaxTotal +
+                 " connections in total and max " +
+                 nMaxPerRoute +
+                 " connections per C3 endpoint");
+  }
+
+  @NonNull
+  private static HttpClientSettings _createHttpClientSettings ()
+  {
+    final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
+    APConfig.applyHttpProxySettings (aHCS);
+    return aHCS;
+  }
+
+  /**
+   * Get the HTTP client factory to be used for an outbound AS4 send. If the pool is enabled, the
+   * shared factory is returned, otherwise a new one is created.
+   *
+   * @return The HTTP client factory to use. Never <code>null</code>.
+   */
+  @NonNull
+  public static HttpClientFactory getHttpClientFactory ()
+  {
+    if (!APConfig.isHttpPoolEnabled ())
+      return new HttpClientFactory (_createHttpClientSettings ());
+
+    OutboundHttpClientPool aInstance = s_aInstance;
+    if (aInstance == null)
+    {
+      LOCK.lock ();
+      try
+      {
+        // Double check
+        aInstance = s_aInstance;
+        if (aInstance == null)
+        {
+          aInstance = new OutboundHttpClientPool (_createHttpClientSettings ());
+          s_aInstance = aInstance;
+        }
+      }
+      finally
+      {
+        LOCK.unlock ();
+      }
+    }
+    return aInstance.m_aHttpClientFactory;
+  }
+
+  /**
+   * Close the shared pool, if it was created. Must only be called on application shutdown.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      final OutboundHttpClientPool aInstance = s_aInstance;
+      if (aInstance != null)
+      {
+        s_aInstance = null;
+        aInstance.m_aEvictor.shutdown ();
+        aInstance.m_aConnMgr.close (CloseMode.GRACEFUL);
+        LOGGER.info ("Closed shared outbound HTTP connection pool");
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.concurrent.NotThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.json.IJsonObject;
+import com.helger.json.JsonObject;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.phase4.peppolstandalone.MetricTagLimiter;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Measures the duration of the different {@link EOutboundPhase}s of sending a single message. At
+ * most one phase is active at a time - starting a phase ends the previous one. Durations are taken
+ * from the monotonic {@link System#nanoTime()} clock and are published as Micrometer timers with a
+ * histogram, tagged by phase, document type and result. The number of different document type tags
+ * is limited by a {@link MetricTagLimiter}.<br>
+ * Time spent between two phases (e.g. waiting for a free send slot) is not attributed to any phase.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class OutboundPhaseTimer
+{
+  public static final String METRIC_NAME = "phase4.outbound.phase";
+
+  private static final MetricTagLimiter DOCTYPE_TAGS = MetricTagLimiter.createForDocTypes ();
+  // Avoid building and looking up the meter for each phase of each message
+  private static final Map <String, Timer> TIMERS = new ConcurrentHashMap <> ();
+
+  private final Map <EOutboundPhase, Long> m_aDurations = new EnumMap <> (EOutboundPhase.class);
+  private String m_sDocTypeTag = MetricTagLimiter.UNKNOWN;
+  private EOutboundPhase m_eCurrent;
+  private long m_nCurrentStart;
+  private boolean m_bFinished = false;
+
+  public OutboundPhaseTimer ()
+  {}
+
+  /**
+   * Set the document type to be used as a metric tag. Should be called as soon as it is known.
+   *
+   * @param aDocTypeID
+   *        The document type ID. May be <code>null</code>.
+   */
+  public void setDocTypeID (@Nullable final IDocumentTypeIdentifier aDocTypeID)
+  {
+    m_sDocTypeTag = DOCTYPE_TAGS.getTagValue (aDocTypeID == null ? null : aDocTypeID.getURIEncoded ());
+  }
+
+  @NonNull
+  private static Timer _getTimer (@NonNull final EOutboundPhase ePhase,
+                                  @NonNull final String sDocTypeTag,
+                                  @NonNull final String sResult)
+  {
+    // Only the last part may contain a space
+    return TIMERS.computeIfAbsent (ePhase.getID () + ' ' + sResult + ' ' + sDocTypeTag,
+                                   k -> Timer.builder (METRIC_NAME)
+                                             .description ("Duration of the phases of sending a Peppol message")
+                                             .tag ("phase", ePhase.getID ())
+                                             .tag ("doctype", sDocTypeTag)
+                                             .tag ("result", sResult)
+                                             .publishPercentileHistogram ()
+                                             .register (Metrics.globalRegistry));
+  }
+
+  private void _record (@NonNull final EOutboundPhase ePhase, final long nDurationNanos, @NonNull final String sResult)
+  {
+    // Repeatedly started phases are summed up
+    m_aDurations.merge (ePhase, Long.valueOf (nDurationNanos), (a, b) -> Long.valueOf (a.longValue () + b.longValue ()));
+    _getTimer (ePhase, m_sDocTypeTag, sResult).record (Duration.ofNanos (nDurationNanos));
+  }
+
+  private void _endCurrent (@NonNull final String sResult)
+  {
+    if (m_eCurrent != null)
+    {
+      _record (m_eCurrent, System.nanoTime () - m_nCurrentStart, sResult);
+      m_eCurrent = null;
+    }
+  }
+
+  /**
+   * Start a new phase. A currently active phase is ended successfully. Does nothing after
+   * {@link #finish(boolean)} was called.
+   *
+   * @param ePhase
+   *        The phase to start. May not be <code>null</code>.
+   */
+  public void begin (@NonNull final EOutboundPhase ePhase)
+  {
+    ValueEnforcer.notNull (ePhase, "Phase");
+    if (m_bFinished)
+      return;
+    _endCurrent ("success");
+    m_eCurrent = ePhase;
+    m_nCurrentStart = System.nanoTime ();
+  }
+
+  /**
+   * End the currently active phase successfully, without starting a new one.
+   */
+  public void end ()
+  {
+    if (!m_bFinished)
+      _endCurrent ("success");
+  }
+
+  /**
+   * End the currently active phase with the provided result. Afterwards all calls to
+   * {@link #begin(EOutboundPhase)} and {@link #end()} are ignored.
+   *
+   * @param bSuccess
+   *        <code>false</code> if the active phase failed.
+   */
+  public void finish (final boolean bSuccess)
+  {
+    if (!m_bFinished)
+    {
+      _endCurrent (bSuccess ? "success" : "failure");
+      m_bFinished = true;
+    }
+  }
+
+  /**
+   * @return The currently active phase or <code>null</code> if none is active.
+   */
+  @Nullable
+  public EOutboundPhase getCurrentPhase ()
+  {
+    return m_eCurrent;
+  }
+
+  /**
+   * @param ePhase
+   *        The phase to query. May be <code>null</code>.
+   * @return The total duration in nanoseconds of the ended phase or -1 if it was not ended.
+   */
+  public long getDurationNanos (@Nullable final EOutboundPhase ePhase)
+  {
+    final Long aDuration = m_aDurations.get (ePhase);
+    return aDuration == null ? -1 : aDuration.longValue ();
+  }
+
+  /**
+   * Get the durations of all ended phases as JSON, e.g. for the sending report. The keys are the
+   * camel case phase IDs with the suffix "Millis" (e.g. <code>smpLookupMillis</code>), the values
+   * are milliseconds with microsecond precision. Phases that were never ended are not contained.
+   *
+   * @return A new JSON object. Never <code>null</code>.
+   */
+  @NonNull
+  public IJsonObject getAsJson ()
+  {
+    final IJsonObject ret = new JsonObject ();
+    for (final Map.Entry <EOutboundPhase, Long> aEntry : m_aDurations.entrySet ())
+    {
+      final long nMicros = TimeUnit.NANOSECONDS.toMicros (aEntry.getValue ().longValue ());
+      ret.add (_getJsonKey (aEntry.getKey ()), nMicros / 1000d);
+    }
+    return ret;
+  }
+
+  @NonNull
+  private static String _getJsonKey (@NonNull final EOutboundPhase ePhase)
+  {
+    // E.g. "smp-lookup" -> "smpLookupMillis"
+    final StringBuilder aSB = new StringBuilder ();
+    boolean bUpper = false;
+    for (final char c : ePhase.getID ().toCharArray ())
+      if (c == '-')
+        bUpper = true;
+      else
+      {
+        aSB.append (bUpper ? Character.toUpperCase (c) : c);
+        bUpper = false;
+      }
+    return aSB.append ("Millis").toString ();
+  }
+}
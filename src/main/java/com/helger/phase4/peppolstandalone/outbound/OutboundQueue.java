@@ -0,0 +1,1002 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayInputStream;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayOutputStream;
+import com.helger.json.JsonArray;
+import com.helger.json.JsonObject;
+import com.helger.peppol.servicedomain.EPeppolNetwork;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSendingReport;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+import com.helger.phase4.peppolstandalone.controller.PeppolSender;
+import com.helger.phase4.peppolstandalone.storage.AppendOnlyJournal;
+import com.helger.phase4.peppolstandalone.storage.AppendOnlyJournal.Position;
+import com.helger.security.certificate.TrustedCAChecker;
+
+/**
+ * A durable store-and-forward queue for outbound messages. Each accepted message is first written
+ * to an on-disk journal and only then acknowledged to the caller. The sending happens in the
+ * background. Transient failures (e.g. the receiving AP is temporarily not reachable) are retried
+ * with exponential backoff and jitter, permanent failures and messages that exceed the maximum
+ * number of attempts are moved to a dead letter directory.<br>
+ * After a restart, the journal is replayed and all unfinished messages are sent again. This means
+ * that a message may be sent more than once, if the application stopped during a sending attempt.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class OutboundQueue
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (OutboundQueue.class);
+
+  private static final byte RECORD_ENQUEUE = 1;
+  private static final byte RECORD_ATTEMPT = 2;
+  private static final byte RECORD_DONE = 3;
+  // Max records per fsync
+  private static final int JOURNAL_MAX_BATCH_SIZE = 512;
+
+  private static final ReentrantLock LOCK = new ReentrantLock ();
+  @GuardedBy ("LOCK")
+  private static OutboundQueue s_aInstance;
+
+  /**
+   * The supported ways of sending. Each one maps to a method in {@link PeppolSender}.
+   */
+  public enum ESendType
+  {
+    /** Payload + sender, receiver, doctype, process, country C1 */
+    CREATING_SBDH (1),
+    /** PDF + sender, receiver, country C1 */
+    FACTURX (2),
+    /** Complete SBDH without further parameters */
+    PREDEFINED_SBDH (3);
+
+    private final int m_nID;
+
+    ESendType (final int nID)
+    {
+      m_nID = nID;
+    }
+
+    public int getID ()
+    {
+      return m_nID;
+    }
+
+    @Nullable
+    public static ESendType getFromIDOrNull (final int nID)
+    {
+      for (final ESendType e : values ())
+        if (e.m_nID == nID)
+          return e;
+      return null;
+    }
+  }
+
+  /**
+   * The status of a queued message.
+   */
+  public enum EStatus
+  {
+    QUEUED ("queued", 1),
+    RETRYING ("retrying", 2),
+    SENT ("sent", 3),
+    DEAD_LETTER ("dead-letter", 4);
+
+    private final String m_sID;
+    private final int m_nCode;
+
+    EStatus (@NonNull @Nonempty final String sID, final int nCode)
+    {
+      m_sID = sID;
+      m_nCode = nCode;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    public boolean isFinished ()
+    {
+      return this == SENT || this == DEAD_LETTER;
+    }
+
+    @Nullable
+    static EStatus getFromCodeOrNull (final int nCode)
+    {
+      for (final EStatus e : values ())
+        if (e.m_nCode == nCode)
+          return e;
+      return null;
+    }
+  }
+
+  /**
+   * A single queued message. The payload is not kept in memory but read from the journal for each
+   * attempt.
+   */
+  public static final class Entry
+  {
+    private final String m_sID;
+    private final long m_nCreatedMillis;
+    private final ESendType m_eSendType;
+    private final String [] m_aParams;
+    private final Position m_aPosition;
+    private volatile EStatus m_eStatus = EStatus.QUEUED;
+    private volatile int m_nAttempts;
+    private volatile long m_nNextAttemptMillis;
+    private volatile String m_sLastError;
+    private volatile String m_sResultJson;
+    private volatile long m_nFinishedNanos;
+
+    Entry (@NonNull @Nonempty final String sID,
+           final long nCreatedMillis,
+           @NonNull final ESendType eSendType,
+           @NonNull final String [] aParams,
+           @NonNull final Position aPosition)
+    {
+      m_sID = sID;
+      m_nCreatedMillis = nCreatedMillis;
+      m_eSendType = eSendType;
+      m_aParams = aParams;
+      m_aPosition = aPosition;
+    }
+
+    @NonNull
+    @Nonempty
+    public String getJobID ()
+    {
+      return m_sID;
+    }
+
+    @NonNull
+    public EStatus getStatus ()
+    {
+      return m_eStatus;
+    }
+
+    public boolean isFinished ()
+    {
+      return m_eStatus.isFinished ();
+    }
+
+    /**
+     * @return The sending report of the last attempt as JSON string or <code>null</code> if the
+     *         message is not yet finished.
+     */
+    @Nullable
+    public String getResultJson ()
+    {
+      return m_sResultJson;
+    }
+
+    @NonNull
+    public JsonObject getStatusJsonObject ()
+    {
+      final JsonObject ret = new JsonObject ().add ("jobID", m_sID)
+                                              .add ("status", m_eStatus.getID ())
+                                              .add ("createdDT", Instant.ofEpochMilli (m_nCreatedMillis).toString ())
+                                              .add ("attempts", m_nAttempts);
+      if (!isFinished () && m_nNextAttemptMillis > 0)
+        ret.add ("nextAttemptDT", Instant.ofEpochMilli (m_nNextAttemptMillis).toString ());
+      if (m_sLastError != null)
+        ret.add ("lastError", m_sLastError);
+      return ret;
+    }
+
+    @NonNull
+    public String getStatusJson ()
+    {
+      return getStatusJsonObject ().getAsJsonString ();
+    }
+  }
+
+  private static final class ScheduledEntry implements Delayed
+  {
+    private final Entry m_aEntry;
+    private final long m_nDueMillis;
+
+    ScheduledEntry (@NonNull final Entry aEntry, final long nDueMillis)
+    {
+      m_aEntry = aEntry;
+      m_nDueMillis = nDueMillis;
+    }
+
+    public long getDelay (@NonNull final TimeUnit eUnit)
+    {
+      return eUnit.convert (m_nDueMillis - System.currentTimeMillis (), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo (@NonNull final Delayed aOther)
+    {
+      return Long.compare (m_nDueMillis, ((ScheduledEntry) aOther).m_nDueMillis);
+    }
+  }
+
+  private final AppendOnlyJournal m_aJournal;
+  private final File m_aDeadLetterDir;
+  private final int m_nMaxAttempts;
+  private final long m_nInitialBackoffMillis;
+  private final long m_nMaxBackoffMillis;
+  private final int m_nMaxPending;
+  private final long m_nRetentionNanos;
+  private final ConcurrentHashMap <String, Entry> m_aEntries = new ConcurrentHashMap <> ();
+  // Finished entries in the order of completion
+  private final Queue <Entry> m_aFinishedEntries = new ConcurrentLinkedQueue <> ();
+  private final DelayQueue <ScheduledEntry> m_aDelayQueue = new DelayQueue <> ();
+  private final AtomicInteger m_aPendingCount = new AtomicInteger (0);
+  private final ExecutorService m_aWorkers;
+  // Limits the number of messages processed in parallel
+  private final Semaphore m_aWorkerPermits;
+  private final Thread m_aDispatcher;
+  private volatile boolean m_bShutdown = false;
+
+  // Number of unfinished entries per journal segment
+  private final ReentrantLock m_aSegmentLock = new ReentrantLock ();
+  @GuardedBy ("m_aSegmentLock")
+  private final TreeMap <Long, Integer> m_aOpenPerSegment = new TreeMap <> ();
+
+  /**
+   * Open the queue and replay the journal. The sending starts only with {@link #_start()}.
+   */
+  OutboundQueue (@NonNull final File aBaseDir,
+                 final long nSegmentBytes,
+                 final int nWorkers,
+                 final int nMaxAttempts,
+                 final long nInitialBackoffSeconds,
+                 final long nMaxBackoffSeconds,
+                 final int nMaxPending,
+                 final long nRetentionSeconds) throws IOException
+  {
+    ValueEnforcer.isGT0 (nWorkers, "Workers");
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.isGT0 (nInitialBackoffSeconds, "InitialBackoffSeconds");
+    ValueEnforcer.isGT0 (nMaxPending, "MaxPending");
+
+    m_aDeadLetterDir = new File (aBaseDir, "dead-letter");
+    Files.createDirectories (m_aDeadLetterDir.toPath ());
+    m_nMaxAttempts = nMaxAttempts;
+    m_nInitialBackoffMillis = TimeUnit.SECONDS.toMillis (nInitialBackoffSeconds);
+    m_nMaxBackoffMillis = TimeUnit.SECONDS.toMillis (Math.max (nInitialBackoffSeconds, nMaxBackoffSeconds));
+    m_nMaxPending = nMaxPending;
+    m_nRetentionNanos = TimeUnit.SECONDS.toNanos (nRetentionSeconds);
+
+    // Rebuild the state from the journal
+    final Map <String, Entry> aReplayed = new HashMap <> ();
+    m_aJournal = AppendOnlyJournal.open (new File (aBaseDir, "journal"),
+                                         "outbound",
+                                         nSegmentBytes,
+                                         JOURNAL_MAX_BATCH_SIZE,
+                                         (aPos, nType, aBody) -> _replayRecord (aReplayed, aPos, nType, aBody));
+    final long nNow = System.currentTimeMillis ();
+    int nResumed = 0;
+    for (final Entry aEntry : aReplayed.values ())
+    {
+      m_aEntries.put (aEntry.m_sID, aEntry);
+      if (aEntry.isFinished ())
+      {
+        aEntry.m_nFinishedNanos = System.nanoTime ();
+        m_aFinishedEntries.add (aEntry);
+      }
+      else
+      {
+        _retainSegment (aEntry.m_aPosition.getSegmentID ());
+        m_aPendingCount.incrementAndGet ();
+        m_aDelayQueue.add (new ScheduledEntry (aEntry, Math.max (nNow, aEntry.m_nNextAttemptMillis)));
+        nResumed++;
+      }
+    }
+    _deleteUnusedSegments ();
+
+    m_aWorkers = APThreadFactory.createExecutor ("phase4-outbound-queue-", nWorkers);
+    m_aWorkerPermits = new Semaphore (nWorkers);
+    m_aDispatcher = APThreadFactory.create ("phase4-outbound-queue-dispatcher-").newThread (this::_dispatcherLoop);
+
+    LOGGER.info ("Opened durable outbound queue in " +
+                 aBaseDir.getAbsolutePath () +
+                 " with " +
+                 nWorkers +
+                 " workers - resumed " +
+                 nResumed +
+                 " unfinished messages");
+  }
+
+  // Binary encoding of the journal records
+
+  private static void _writeString (@NonNull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    if (s == null)
+      aDOS.writeInt (-1);
+    else
+    {
+      final byte [] aBytes = s.getBytes (StandardCharsets.UTF_8);
+      aDOS.writeInt (aBytes.length);
+      aDOS.write (aBytes);
+    }
+  }
+
+  @Nullable
+  private static String _readString (@NonNull final DataInputStream aDIS) throws IOException
+  {
+    final int nLen = aDIS.readInt ();
+    if (nLen < 0)
+      return null;
+    final byte [] aBytes = new byte [nLen];
+    aDIS.readFully (aBytes);
+    return new String (aBytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte @NonNull [] _encodeEnqueue (@NonNull final String sID,
+                                                  final long nCreatedMillis,
+                                                  @NonNull final ESendType eSendType,
+                                                  @NonNull final String [] aParams,
+                                                  final byte @NonNull [] aPayload) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, sID);
+      aDOS.writeLong (nCreatedMillis);
+      aDOS.writeByte (eSendType.getID ());
+      aDOS.writeInt (aParams.length);
+      for (final String sParam : aParams)
+        _writeString (aDOS, sParam);
+      // Payload must be last, so that it can be skipped on replay
+      aDOS.writeInt (aPayload.length);
+      aDOS.write (aPayload);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static byte @NonNull [] _encodeAttempt (@NonNull final Entry aEntry) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, aEntry.m_sID);
+      aDOS.writeInt (aEntry.m_nAttempts);
+      aDOS.writeLong (aEntry.m_nNextAttemptMillis);
+      _writeString (aDOS, aEntry.m_sLastError);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static byte @NonNull [] _encodeDone (@NonNull final Entry aEntry) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      _writeString (aDOS, aEntry.m_sID);
+      aDOS.writeByte (aEntry.m_eStatus.m_nCode);
+      aDOS.writeInt (aEntry.m_nAttempts);
+      _writeString (aDOS, aEntry.m_sLastError);
+      _writeString (aDOS, aEntry.m_sResultJson);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  private static void _replayRecord (@NonNull final Map <String, Entry> aEntries,
+                                     @NonNull final Position aPos,
+                                     final byte nType,
+                                     final byte @NonNull [] aBody)
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aBody)))
+    {
+      final String sID = _readString (aDIS);
+      switch (nType)
+      {
+        case RECORD_ENQUEUE:
+        {
+          final long nCreatedMillis = aDIS.readLong ();
+          final ESendType eSendType = ESendType.getFromIDOrNull (aDIS.readByte ());
+          final String [] aParams = new String [aDIS.readInt ()];
+          for (int i = 0; i < aParams.length; ++i)
+            aParams[i] = _readString (aDIS);
+          if (sID != null && eSendType != null)
+            aEntries.put (sID, new Entry (sID, nCreatedMillis, eSendType, aParams, aPos));
+          else
+            LOGGER.error ("Ignoring invalid outbound queue record at " + aPos);
+          break;
+        }
+        case RECORD_ATTEMPT:
+        {
+          final Entry aEntry = aEntries.get (sID);
+          if (aEntry != null)
+          {
+            aEntry.m_eStatus = EStatus.RETRYING;
+            aEntry.m_nAttempts = aDIS.readInt ();
+            aEntry.m_nNextAttemptMillis = aDIS.readLong ();
+            aEntry.m_sLastError = _readString (aDIS);
+          }
+          break;
+        }
+        case RECORD_DONE:
+        {
+          // The enqueue record may already be deleted
+          final Entry aEntry = aEntries.get (sID);
+          if (aEntry != null)
+          {
+            final EStatus eStatus = EStatus.getFromCodeOrNull (aDIS.readByte ());
+            aEntry.m_eStatus = eStatus != null ? eStatus : EStatus.DEAD_LETTER;
+            aEntry.m_nAttempts = aDIS.readInt ();
+            aEntry.m_sLastError = _readString (aDIS);
+            aEntry.m_sResultJson = _readString (aDIS);
+          }
+          break;
+        }
+        default:
+          LOGGER.warn ("Ignoring unknown outbound queue record type " + nType + " at " + aPos);
+      }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read outbound queue record at " + aPos, ex);
+    }
+  }
+
+  private static byte @NonNull [] _readPayload (final byte @NonNull [] aEnqueueBody) throws IOException
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aEnqueueBody)))
+    {
+      _readString (aDIS);
+      aDIS.readLong ();
+      aDIS.readByte ();
+      final int nParams = aDIS.readInt ();
+      for (int i = 0; i < nParams; ++i)
+        _readString (aDIS);
+      final byte [] ret = new byte [aDIS.readInt ()];
+      aDIS.readFully (ret);
+      return ret;
+    }
+  }
+
+  // Segment housekeeping
+
+  private void _retainSegment (final long nSegmentID)
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      m_aOpenPerSegment.merge (Long.valueOf (nSegmentID), Integer.valueOf (1), Integer::sum);
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  private void _releaseSegment (final long nSegmentID)
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      m_aOpenPerSegment.computeIfPresent (Long.valueOf (nSegmentID),
+                                          (k, v) -> v.intValue () <= 1 ? null : Integer.valueOf (v.intValue () - 1));
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  private void _deleteUnusedSegments ()
+  {
+    m_aSegmentLock.lock ();
+    try
+    {
+      // Everything before the oldest segment with unfinished entries can go
+      final long nFirstToKeep = m_aOpenPerSegment.isEmpty () ? m_aJournal.getCurrentSegmentID ()
+                                                             : m_aOpenPerSegment.firstKey ().longValue ();
+      m_aJournal.deleteSegmentsBefore (nFirstToKeep);
+    }
+    finally
+    {
+      m_aSegmentLock.unlock ();
+    }
+  }
+
+  private void _purgeExpiredEntries ()
+  {
+    final long nNow = System.nanoTime ();
+    Entry aEntry;
+    while ((aEntry = m_aFinishedEntries.peek ()) != null && nNow - aEntry.m_nFinishedNanos >= m_nRetentionNanos)
+    {
+      if (m_aFinishedEntries.remove (aEntry))
+        m_aEntries.remove (aEntry.m_sID);
+    }
+  }
+
+  /**
+   * Durably store a new message for sending. This method returns as soon as the message is safely
+   * stored on disk.
+   *
+   * @param eSendType
+   *        The way the message should be sent. May not be <code>null</code>.
+   * @param aPayload
+   *        The payload to send. May not be <code>null</code>.
+   * @param aParams
+   *        The additional parameters as required by the send type. May not be <code>null</code>.
+   * @return The created entry or <code>null</code> if too many messages are pending.
+   * @throws IOException
+   *         If the message could not be stored
+   */
+  @Nullable
+  public Entry submit (@NonNull final ESendType eSendType,
+                       final byte @NonNull [] aPayload,
+                       @NonNull final String... aParams) throws IOException
+  {
+    ValueEnforcer.notNull (eSendType, "SendType");
+    ValueEnforcer.notNull (aPayload, "Payload");
+    ValueEnforcer.notNull (aParams, "Params");
+    if (m_bShutdown)
+      throw new IOException ("The outbound queue is shut down");
+
+    _purgeExpiredEntries ();
+
+    if (m_aPendingCount.incrementAndGet () > m_nMaxPending)
+    {
+      m_aPendingCount.decrementAndGet ();
+      LOGGER.warn ("Outbound queue is full - rejecting message");
+      return null;
+    }
+
+    final String sID = UUID.randomUUID ().toString ();
+    final long nNow = System.currentTimeMillis ();
+    final byte [] aRecord = _encodeEnqueue (sID, nNow, eSendType, aParams, aPayload);
+
+    // The record ends up in the current or a later segment - make sure neither is deleted in the
+    // meantime
+    final long nPlaceholderSegmentID = m_aJournal.getCurrentSegmentID ();
+    _retainSegment (nPlaceholderSegmentID);
+    final Position aPos;
+    try
+    {
+      aPos = m_aJournal.append (RECORD_ENQUEUE, aRecord).get ();
+      _retainSegment (aPos.getSegmentID ());
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      m_aPendingCount.decrementAndGet ();
+      throw new IOException ("Interrupted while storing message in outbound queue", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      m_aPendingCount.decrementAndGet ();
+      throw new IOException ("Failed to store message in outbound queue", ex.getCause ());
+    }
+    finally
+    {
+      _releaseSegment (nPlaceholderSegmentID);
+    }
+
+    final Entry aEntry = new Entry (sID, nNow, eSendType, aParams, aPos);
+    m_aEntries.put (sID, aEntry);
+    m_aDelayQueue.add (new ScheduledEntry (aEntry, nNow));
+    return aEntry;
+  }
+
+  /**
+   * @param sJobID
+   *        The ID to search. May be <code>null</code>.
+   * @return The entry with the provided ID or <code>null</code> if no such entry exists, or if the
+   *         result retention time is exceeded.
+   */
+  @Nullable
+  public Entry getEntry (@Nullable final String sJobID)
+  {
+    if (sJobID == null)
+      return null;
+    _purgeExpiredEntries ();
+    return m_aEntries.get (sJobID);
+  }
+
+  /**
+   * @return The number of messages that are not yet finished.
+   */
+  public int getPendingCount ()
+  {
+    return m_aPendingCount.get ();
+  }
+
+  /**
+   * Get the delay before the next attempt. It grows exponentially with the number of attempts and
+   * half of it is random, so that many messages failing at the same time are not retried at the
+   * same time.
+   */
+  long getBackoffMillis (final int nAttempt)
+  {
+    final long nExp = m_nInitialBackoffMillis << Math.min (nAttempt - 1, 30);
+    final long nCapped = nExp <= 0 ? m_nMaxBackoffMillis : Math.min (nExp, m_nMaxBackoffMillis);
+    return nCapped / 2 + ThreadLocalRandom.current ().nextLong (nCapped / 2 + 1);
+  }
+
+  @NonNull
+  private static Phase4PeppolSendingReport _send (@NonNull final Entry aEntry,
+                                                  final byte @NonNull [] aPayload,
+                                                  @NonNull final PeppolSendingState aState)
+  {
+    final EPeppolNetwork eStage = APConfig.getPeppolStage ();
+    final ISMLInfo aSMLInfo = eStage.getSMLInfo ();
+    final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
+    final String [] p = aEntry.m_aParams;
+    switch (aEntry.m_eSendType)
+    {
+      case CREATING_SBDH:
+        return PeppolSender.sendPeppolMessageCreatingSbdh (aSMLInfo,
+                                                           aAPCA,
+                                                           aPayload,
+                                                           p[0],
+                                                           p[1],
+                                                           p[2],
+                                                           p[3],
+                                                           p[4],
+                                                           aState);
+      case FACTURX:
+        return PeppolSender.sendPeppolFacturXMessageCreatingSbdh (aSMLInfo, aAPCA, aPayload, p[0], p[1], p[2], aState);
+      case PREDEFINED_SBDH:
+        return PeppolSender.sendPeppolMessagePredefinedSbdh (aPayload, aSMLInfo, aAPCA, aState);
+      default:
+        throw new IllegalStateException ("Unsupported send type " + aEntry.m_eSendType);
+    }
+  }
+
+  private void _writeDeadLetter (@NonNull final Entry aEntry, final byte @Nullable [] aPayload)
+  {
+    try
+    {
+      final JsonArray aParams = new JsonArray ();
+      for (final String sParam : aEntry.m_aParams)
+        aParams.add (sParam);
+      final JsonObject aMeta = aEntry.getStatusJsonObject ()
+                                     .add ("sendType", aEntry.m_eSendType.name ())
+                                     .add ("params", aParams);
+
+      if (aPayload != null)
+        Files.write (new File (m_aDeadLetterDir, aEntry.m_sID + ".payload").toPath (), aPayload);
+      if (aEntry.m_sResultJson != null)
+        Files.write (new File (m_aDeadLetterDir, aEntry.m_sID + ".report.json").toPath (),
+                     aEntry.m_sResultJson.getBytes (StandardCharsets.UTF_8));
+      Files.write (new File (m_aDeadLetterDir, aEntry.m_sID + ".json").toPath (),
+                   aMeta.getAsJsonString ().getBytes (StandardCharsets.UTF_8));
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to write dead letter files for outbound message '" + aEntry.m_sID + "'", ex);
+    }
+  }
+
+  private void _finish (@NonNull final Entry aEntry,
+                        @NonNull final EStatus eStatus,
+                        @NonNull final String sResultJson,
+                        final byte @Nullable [] aPayload)
+  {
+    aEntry.m_sResultJson = sResultJson;
+    aEntry.m_eStatus = eStatus;
+    if (eStatus == EStatus.DEAD_LETTER)
+      _writeDeadLetter (aEntry, aPayload);
+
+    try
+    {
+      m_aJournal.append (RECORD_DONE, _encodeDone (aEntry)).get ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final IOException | ExecutionException ex)
+    {
+      LOGGER.error ("Failed to store the final state of outbound message '" + aEntry.m_sID + "'", ex);
+    }
+
+    aEntry.m_nFinishedNanos = System.nanoTime ();
+    m_aFinishedEntries.add (aEntry);
+    m_aPendingCount.decrementAndGet ();
+    _releaseSegment (aEntry.m_aPosition.getSegmentID ());
+    _deleteUnusedSegments ();
+  }
+
+  private void _attempt (@NonNull final Entry aEntry)
+  {
+    final int nAttempt = aEntry.m_nAttempts + 1;
+
+    final byte [] aPayload;
+    try
+    {
+      aPayload = _readPayload (m_aJournal.read (aEntry.m_aPosition));
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to read outbound message '" + aEntry.m_sID + "' from the journal", ex);
+      aEntry.m_sLastError = "Failed to read message from journal: " + ex.getMessage ();
+      _finish (aEntry,
+               EStatus.DEAD_LETTER,
+               new JsonObject ().add ("errorMessage", aEntry.m_sLastError).getAsJsonString (),
+               null);
+      return;
+    }
+
+    final PeppolSendingState aState = new PeppolSendingState ();
+    String sResultJson;
+    try
+    {
+      sResultJson = _send (aEntry, aPayload, aState).getAsJsonString ();
+    }
+    catch (final RuntimeException ex)
+    {
+      LOGGER.error ("Error sending outbound message '" + aEntry.m_sID + "'", ex);
+      aState.setException (ex);
+      sResultJson = new JsonObject ().add ("errorMessage", ex.getMessage ()).getAsJsonString ();
+    }
+
+    if (aState.getException () instanceof OutboundEndpointUnavailableException && !m_bShutdown)
+    {
+      // Not even tried, because the receiving AP is known to be unavailable - defer it without
+      // counting it as an attempt
+      final OutboundEndpointUnavailableException ex = (OutboundEndpointUnavailableException) aState.getException ();
+      aEntry.m_eStatus = EStatus.RETRYING;
+      aEntry.m_sLastError = ex.getMessage ();
+      aEntry.m_nNextAttemptMillis = System.currentTimeMillis () +
+                                    ex.getRetryAfterMillis () +
+                                    ThreadLocalRandom.current ().nextLong (1000);
+      m_aDelayQueue.add (new ScheduledEntry (aEntry, aEntry.m_nNextAttemptMillis));
+      return;
+    }
+    aEntry.m_nAttempts = nAttempt;
+
+    if (aState.isSuccess ())
+    {
+      aEntry.m_sLastError = null;
+      _finish (aEntry, EStatus.SENT, sResultJson, aPayload);
+      LOGGER.info ("Successfully sent outbound message '" + aEntry.m_sID + "' in attempt " + nAttempt);
+      return;
+    }
+
+    aEntry.m_sLastError = aState.getException () != null ? aState.getException ().getMessage ()
+                                                         : "AS4 sending result " + aState.getSendResult ();
+    if (aState.isTransientFailure () && nAttempt < m_nMaxAttempts && !m_bShutdown)
+    {
+      final long nDelayMillis = getBackoffMillis (nAttempt);
+      aEntry.m_eStatus = EStatus.RETRYING;
+      aEntry.m_nNextAttemptMillis = System.currentTimeMillis () + nDelayMillis;
+      aEntry.m_sResultJson = null;
+      try
+      {
+        // No need to wait for durability - in the worst case the attempt is repeated earlier
+        m_aJournal.append (RECORD_ATTEMPT, _encodeAttempt (aEntry));
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to store attempt of outbound message '" + aEntry.m_sID + "'", ex);
+      }
+      m_aDelayQueue.add (new ScheduledEntry (aEntry, aEntry.m_nNextAttemptMillis));
+      LOGGER.warn ("Attempt " +
+                   nAttempt +
+                   " of outbound message '" +
+                   aEntry.m_sID +
+                   "' failed (" +
+                   aEntry.m_sLastError +
+                   ") - retrying in " +
+                   nDelayMillis / 1000 +
+                   " seconds");
+    }
+    else
+      if (m_bShutdown && aState.isTransientFailure ())
+      {
+        // Don't give up because of the shutdown - the message is resumed after the restart
+        LOGGER.info ("Outbound message '" + aEntry.m_sID + "' will be retried after restart");
+      }
+      else
+      {
+        _finish (aEntry, EStatus.DEAD_LETTER, sResultJson, aPayload);
+        LOGGER.error ("Giving up on outbound message '" +
+                      aEntry.m_sID +
+                      "' after " +
+                      nAttempt +
+                      " attempts (" +
+                      aEntry.m_sLastError +
+                      ") - moved to dead letters");
+      }
+  }
+
+  private void _start ()
+  {
+    m_aDispatcher.start ();
+  }
+
+  /**
+   * Stop taking new entries, wait for the running ones and close the journal.
+   */
+  void close ()
+  {
+    m_bShutdown = true;
+    try
+    {
+      m_aDispatcher.join ();
+      m_aWorkers.shutdown ();
+      if (!m_aWorkers.awaitTermination (30, TimeUnit.SECONDS))
+        LOGGER.warn ("Not all outbound queue workers finished in time");
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      m_aWorkers.shutdown ();
+    }
+    m_aJournal.close ();
+    LOGGER.info ("Stopped durable outbound queue with " + getPendingCount () + " pending messages");
+  }
+
+  private void _dispatcherLoop ()
+  {
+    while (!m_bShutdown)
+    {
+      try
+      {
+        // Only take the next due entry if it can be processed right away
+        if (!m_aWorkerPermits.tryAcquire (1, TimeUnit.SECONDS))
+          continue;
+        final ScheduledEntry aScheduled = m_aDelayQueue.poll (1, TimeUnit.SECONDS);
+        if (aScheduled == null)
+        {
+          m_aWorkerPermits.release ();
+          continue;
+        }
+        try
+        {
+          m_aWorkers.execute ( () -> {
+            try
+            {
+              _attempt (aScheduled.m_aEntry);
+            }
+            catch (final RuntimeException ex)
+            {
+              LOGGER.error ("Unexpected error in outbound queue worker", ex);
+            }
+            finally
+            {
+              m_aWorkerPermits.release ();
+            }
+          });
+        }
+        catch (final RejectedExecutionException ex)
+        {
+          // Shutting down - the entry is resumed on the next start
+          m_aWorkerPermits.release ();
+          break;
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+    }
+  }
+
+  /**
+   * Start the outbound queue and resume all unfinished messages. Must be called once on startup,
+   * after the AS4 stack was initialized.
+   *
+   * @throws IOException
+   *         If the journal could not be opened
+   */
+  public static void init () throws IOException
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance == null)
+      {
+        final OutboundQueue aQueue = new OutboundQueue (APConfig.getOutboundQueueDirectory (),
+                                                        APConfig.getOutboundQueueSegmentBytes (),
+                                                        APConfig.getOutboundQueueWorkers (),
+                                                        APConfig.getOutboundQueueMaxAttempts (),
+                                                        APConfig.getOutboundQueueInitialBackoffSeconds (),
+                                                        APConfig.getOutboundQueueMaxBackoffSeconds (),
+                                                        APConfig.getOutboundQueueMaxPending (),
+                                                        APConfig.getAsyncSendResultRetentionSeconds ());
+        aQueue._start ();
+        s_aInstance = aQueue;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * @return The outbound queue or <code>null</code> if it is not enabled.
+   */
+  @Nullable
+  public static OutboundQueue getInstance ()
+  {
+    LOCK.lock ();
+    try
+    {
+      return s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Stop the workers and close the journal. Unfinished messages are resumed on the next start.
+   * Must only be called on application shutdown.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+      {
+        s_aInstance.close ();
+        s_aInstance = null;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
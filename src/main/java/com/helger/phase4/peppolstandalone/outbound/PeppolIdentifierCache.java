@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.IIdentifierFactory;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * A bounded cache for parsed Peppol identifiers, keyed by the string provided by the client. The
+ * parsing includes the fallback to the default identifier scheme. Only successfully parsed
+ * identifiers are cached. The hits and misses are available as the metric
+ * <code>phase4.identifier.cache</code>.<br>
+ * The returned identifiers are shared and must not be modified.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class PeppolIdentifierCache
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolIdentifierCache.class);
+  private static final String METRIC_NAME = "phase4.identifier.cache";
+  private static final PeppolIdentifierCache INSTANCE = new PeppolIdentifierCache (APConfig.isIdentifierCacheEnabled (),
+                                                                                   APConfig.getIdentifierCacheMaxSize ());
+
+  /**
+   * The cache for a single identifier type.
+   */
+  private static final class TypedCache <T>
+  {
+    private final int m_nMaxSize;
+    private final Function <String, T> m_aParser;
+    private final ConcurrentHashMap <String, T> m_aMap = new ConcurrentHashMap <> ();
+    private final Counter m_aHits;
+    private final Counter m_aMisses;
+
+    TypedCache (@NonNull final String sType, final int nMaxSize, @NonNull final Function <String, T> aParser)
+    {
+      m_nMaxSize = nMaxSize;
+      m_aParser = aParser;
+      m_aHits = Counter.builder (METRIC_NAME)
+                       .tag ("type", sType)
+                       .tag ("result", "hit")
+                       .register (Metrics.globalRegistry);
+      m_aMisses = Counter.builder (METRIC_NAME)
+                         .tag ("type", sType)
+                         .tag ("result", "miss")
+                         .register (Metrics.globalRegistry);
+    }
+
+    @Nullable
+    T get (@Nullable final String sValue, final boolean bEnabled)
+    {
+      if (sValue == null)
+        return null;
+
+      if (bEnabled)
+      {
+        final T aCached = m_aMap.get (sValue);
+        if (aCached != null)
+        {
+          m_aHits.increment ();
+          return aCached;
+        }
+      }
+      m_aMisses.increment ();
+
+      final T ret = m_aParser.apply (sValue);
+      if (ret != null && bEnabled)
+      {
+        if (m_aMap.size () >= m_nMaxSize)
+        {
+          // Remove an arbitrary entry to stay within the limit
+          final Iterator <String> it = m_aMap.keySet ().iterator ();
+          if (it.hasNext ())
+          {
+            it.next ();
+            it.remove ();
+          }
+        }
+        m_aMap.put (sValue, ret);
+      }
+      return ret;
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final TypedCache <IParticipantIdentifier> m_aParticipantIDs;
+  private final TypedCache <IDocumentTypeIdentifier> m_aDocTypeIDs;
+  private final TypedCache <IProcessIdentifier> m_aProcessIDs;
+
+  private PeppolIdentifierCache (final boolean bEnabled, final int nMaxSize)
+  {
+    m_bEnabled = bEnabled && nMaxSize > 0;
+    final IIdentifierFactory aIF = PeppolIdentifierFactory.INSTANCE;
+    m_aParticipantIDs = new TypedCache <> ("participant", nMaxSize, s -> {
+      final IParticipantIdentifier ret = aIF.parseParticipantIdentifier (s);
+      // Fallback to default scheme
+      return ret != null ? ret : aIF.createParticipantIdentifierWithDefaultScheme (s);
+    });
+    m_aDocTypeIDs = new TypedCache <> ("doctype", nMaxSize, s -> {
+      final IDocumentTypeIdentifier ret = aIF.parseDocumentTypeIdentifier (s);
+      // Fallback to default scheme
+      return ret != null ? ret : aIF.createDocumentTypeIdentifierWithDefaultScheme (s);
+    });
+    m_aProcessIDs = new TypedCache <> ("process", nMaxSize, s -> {
+      final IProcessIdentifier ret = aIF.parseProcessIdentifier (s);
+      // Fallback to default scheme
+      return ret != null ? ret : aIF.createProcessIdentifierWithDefaultScheme (s);
+    });
+    if (m_bEnabled)
+      LOGGER.info ("Peppol identifier cache is enabled with a maximum of " + nMaxSize + " entries per type");
+    else
+      LOGGER.info ("Peppol identifier cache is disabled");
+  }
+
+  @NonNull
+  public static PeppolIdentifierCache getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * @param sValue
+   *        The participant identifier with or without scheme. May be <code>null</code>.
+   * @return <code>null</code> if the value is not a valid participant identifier.
+   */
+  @Nullable
+  public IParticipantIdentifier getParticipantID (@Nullable final String sValue)
+  {
+    return m_aParticipantIDs.get (sValue, m_bEnabled);
+  }
+
+  /**
+   * @param sValue
+   *        The document type identifier with or without scheme. May be <code>null</code>.
+   * @return <code>null</code> if the value is not a valid document type identifier.
+   */
+  @Nullable
+  public IDocumentTypeIdentifier getDocumentTypeID (@Nullable final String sValue)
+  {
+    return m_aDocTypeIDs.get (sValue, m_bEnabled);
+  }
+
+  /**
+   * @param sValue
+   *        The process identifier with or without scheme. May be <code>null</code>.
+   * @return <code>null</code> if the value is not a valid process identifier.
+   */
+  @Nullable
+  public IProcessIdentifier getProcessID (@Nullable final String sValue)
+  {
+    return m_aProcessIDs.get (sValue, m_bEnabled);
+  }
+}
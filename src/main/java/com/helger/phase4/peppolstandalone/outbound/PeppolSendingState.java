@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.concurrent.NotThreadSafe;
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Contains the technical details of a single sending attempt, that are needed to decide how to
+ * continue (e.g. if a retry makes sense). It is filled by the sending code in addition to the
+ * sending report.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class PeppolSendingState
+{
+  private EAS4UserMessageSendResult m_eSendResult;
+  private Exception m_aException;
+
+  /**
+   * @return The result of the AS4 sending. May be <code>null</code> if sending was not even
+   *         started.
+   */
+  @Nullable
+  public EAS4UserMessageSendResult getSendResult ()
+  {
+    return m_eSendResult;
+  }
+
+  public void setSendResult (@Nullable final EAS4UserMessageSendResult eSendResult)
+  {
+    m_eSendResult = eSendResult;
+  }
+
+  /**
+   * @return The first exception that occurred. May be <code>null</code>.
+   */
+  @Nullable
+  public Exception getException ()
+  {
+    return m_aException;
+  }
+
+  public void setException (@Nullable final Exception aException)
+  {
+    if (m_aException == null)
+      m_aException = aException;
+  }
+
+  public boolean isSuccess ()
+  {
+    return m_eSendResult != null && m_eSendResult.isSuccess () && m_aException == null;
+  }
+
+  /**
+   * @return <code>true</code> if the sending failed for a reason, that may be gone when trying again
+   *         later (e.g. the receiving AP is temporarily not reachable). Errors in the data and
+   *         receivers not registered in the SMP are never considered transient.
+   */
+  public boolean isTransientFailure ()
+  {
+    if (isSuccess ())
+      return false;
+
+    if (m_eSendResult != null)
+    {
+      // AS4 sending was started - e.g. transport errors can be retried
+      return m_eSendResult.isRetryFeasible ();
+    }
+
+    // Failed before AS4 sending
+    if (m_aException instanceof OutboundEndpointUnavailableException)
+    {
+      // Not sent because of bulkhead or circuit breaker
+      return true;
+    }
+    if (m_aException instanceof Phase4Exception)
+    {
+      // SMP lookup problems - "not found" is not transient
+      return !SMPEndpointCache.isNotFoundException ((Phase4Exception) m_aException);
+    }
+    // Anything else (e.g. invalid identifiers or payloads) is considered permanent
+    return false;
+  }
+}
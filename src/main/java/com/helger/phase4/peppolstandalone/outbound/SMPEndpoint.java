@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.security.cert.X509Certificate;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
+
+/**
+ * The resolved details of a single receiving AP (C3) as determined by an SMP lookup. Because it
+ * implements {@link IAS4EndpointDetailProvider} it can directly be passed to the sending builder,
+ * so that no additional SMP lookup is performed.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SMPEndpoint implements IAS4EndpointDetailProvider
+{
+  private final String m_sEndpointURL;
+  private final X509Certificate m_aCertificate;
+  private final String m_sTechnicalContact;
+
+  public SMPEndpoint (@NonNull @Nonempty final String sEndpointURL,
+                      @NonNull final X509Certificate aCertificate,
+                      @Nullable final String sTechnicalContact)
+  {
+    ValueEnforcer.notEmpty (sEndpointURL, "EndpointURL");
+    ValueEnforcer.notNull (aCertificate, "Certificate");
+    m_sEndpointURL = sEndpointURL;
+    m_aCertificate = aCertificate;
+    m_sTechnicalContact = sTechnicalContact;
+  }
+
+  public void init (@NonNull final IDocumentTypeIdentifier aDocTypeID,
+                    @NonNull final IProcessIdentifier aProcID,
+                    @NonNull final IParticipantIdentifier aReceiverID)
+  {
+    // Everything was resolved before
+  }
+
+  /**
+   * @return The C3 AS4 endpoint URL. Neither <code>null</code> nor empty.
+   */
+  @NonNull
+  @Nonempty
+  public String getReceiverAPEndpointURL ()
+  {
+    return m_sEndpointURL;
+  }
+
+  /**
+   * @return The C3 AP certificate. Never <code>null</code>.
+   */
+  @NonNull
+  public X509Certificate getReceiverAPCertificate ()
+  {
+    return m_aCertificate;
+  }
+
+  /**
+   * @return The technical contact of C3 as stated in the SMP. May be <code>null</code>.
+   */
+  @Nullable
+  public String getReceiverTechnicalContact ()
+  {
+    return m_sTechnicalContact;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return "SMPEndpoint[" + m_sEndpointURL + "; " + m_aCertificate.getSubjectX500Principal ().getName () + "]";
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderPeppol;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.Phase4PeppolSender;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.smpclient.exception.SMPClientNotFoundException;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+
+/**
+ * A shared cache for Peppol SMP endpoint lookups, keyed by receiver, document type, process and
+ * SML. It holds the resolved endpoint URL, the C3 certificate and the technical contact for a
+ * configurable time. "Not found" results are cached as well (for a shorter duration). Concurrent
+ * lookups for the same key are collapsed into a single BDXL and SMP query.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class SMPEndpointCache
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SMPEndpointCache.class);
+  private static final SMPEndpointCache INSTANCE = new SMPEndpointCache (APConfig.isSMPCacheEnabled (),
+                                                                         APConfig.getSMPCacheTTLSeconds (),
+                                                                         APConfig.getSMPCacheNegativeTTLSeconds (),
+                                                                         APConfig.getSMPCacheMaxSize ());
+
+  @Immutable
+  private static final class Key
+  {
+    private final String m_sSMLID;
+    private final String m_sReceiverID;
+    private final String m_sDocTypeID;
+    private final String m_sProcessID;
+
+    Key (@NonNull final ISMLInfo aSmlInfo,
+         @NonNull final IParticipantIdentifier aReceiverID,
+         @NonNull final IDocumentTypeIdentifier aDocTypeID,
+         @NonNull final IProcessIdentifier aProcessID)
+    {
+      m_sSMLID = aSmlInfo.getID ();
+      m_sReceiverID = aReceiverID.getURIEncoded ();
+      m_sDocTypeID = aDocTypeID.getURIEncoded ();
+      m_sProcessID = aProcessID.getURIEncoded ();
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final Key rhs = (Key) o;
+      return m_sSMLID.equals (rhs.m_sSMLID) &&
+             m_sReceiverID.equals (rhs.m_sReceiverID) &&
+             m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+             m_sProcessID.equals (rhs.m_sProcessID);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return Objects.hash (m_sSMLID, m_sReceiverID, m_sDocTypeID, m_sProcessID);
+    }
+
+    @Override
+    public String toString ()
+    {
+      return m_sReceiverID + " / " + m_sDocTypeID + " / " + m_sProcessID + " @ " + m_sSMLID;
+    }
+  }
+
+  /**
+   * Cache entry - either a resolved endpoint or a remembered lookup failure.
+   */
+  @Immutable
+  private static final class Entry
+  {
+    private final SMPEndpoint m_aEndpoint;
+    private final Phase4Exception m_aException;
+    private final long m_nCreatedNanos;
+    private final long m_nExpiresAtNanos;
+
+    Entry (@Nullable final SMPEndpoint aEndpoint,
+           @Nullable final Phase4Exception aException,
+           final long nCreatedNanos,
+           final long nExpiresAtNanos)
+    {
+      m_aEndpoint = aEndpoint;
+      m_aException = aException;
+      m_nCreatedNanos = nCreatedNanos;
+      m_nExpiresAtNanos = nExpiresAtNanos;
+    }
+
+    boolean isExpired (final long nNowNanos)
+    {
+      return nNowNanos - m_nExpiresAtNanos >= 0;
+    }
+
+    @NonNull
+    SMPEndpoint getOrThrow () throws Phase4Exception
+    {
+      if (m_aException != null)
+      {
+        // Each caller gets its own exception instance
+        if (m_aException instanceof SMPEndpointNotFoundException)
+          throw new SMPEndpointNotFoundException (m_aException.getMessage (), m_aException);
+        throw new Phase4Exception (m_aException.getMessage (), m_aException);
+      }
+      return m_aEndpoint;
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final long m_nTTLNanos;
+  private final long m_nNegativeTTLNanos;
+  private final int m_nMaxSize;
+  private final ConcurrentHashMap <Key, CompletableFuture <Entry>> m_aMap = new ConcurrentHashMap <> ();
+
+  private SMPEndpointCache (final boolean bEnabled,
+                            final long nTTLSeconds,
+                            final long nNegativeTTLSeconds,
+                            final int nMaxSize)
+  {
+    m_bEnabled = bEnabled && nTTLSeconds > 0 && nMaxSize > 0;
+    m_nTTLNanos = TimeUnit.SECONDS.toNanos (Math.max (nTTLSeconds, 0));
+    m_nNegativeTTLNanos = TimeUnit.SECONDS.toNanos (Math.max (nNegativeTTLSeconds, 0));
+    m_nMaxSize = nMaxSize;
+    if (m_bEnabled)
+      LOGGER.info ("SMP endpoint cache is enabled with a TTL of " +
+                   nTTLSeconds +
+                   " seconds, a negative TTL of " +
+                   nNegativeTTLSeconds +
+                   " seconds and a maximum of " +
+                   nMaxSize +
+                   " entries");
+    else
+      LOGGER.info ("SMP endpoint cache is disabled");
+  }
+
+  @NonNull
+  public static SMPEndpointCache getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  /**
+   * Check if the provided exception means, that the lookup itself worked, but that the receiver
+   * is not registered for the requested combination. Only these cases are cached negatively -
+   * technical errors (like timeouts or DNS problems) are not cached.
+   */
+  static boolean isNotFoundException (@NonNull final Phase4Exception ex)
+  {
+    Throwable t = ex;
+    while (t != null)
+    {
+      if (t instanceof SMPEndpointNotFoundException || t instanceof SMPClientNotFoundException)
+        return true;
+      t = t.getCause ();
+    }
+    return false;
+  }
+
+  /**
+   * Perform the real BDXL and SMP lookup.
+   */
+  @NonNull
+  private static SMPEndpoint _lookup (@NonNull final ISMLInfo aSmlInfo,
+                                      @NonNull final IParticipantIdentifier aReceiverID,
+                                      @NonNull final IDocumentTypeIdentifier aDocTypeID,
+                                      @NonNull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    try
+    {
+      final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (Phase4PeppolSender.URL_PROVIDER,
+                                                                  aReceiverID,
+                                                                  aSmlInfo);
+      APConfig.applyHttpProxySettings (aSMPClient.httpClientSettings ());
+
+      final AS4EndpointDetailProviderPeppol aEDP = new AS4EndpointDetailProviderPeppol (aSMPClient);
+      try
+      {
+        aEDP.init (aDocTypeID, aProcessID, aReceiverID);
+      }
+      catch (final Phase4Exception ex)
+      {
+        // phase4 throws an exception without cause only if the SMP lookup worked, but no endpoint
+        // for the transport profile is present
+        if (ex.getCause () == null)
+          throw new SMPEndpointNotFoundException (ex.getMessage (), null);
+        throw ex;
+      }
+      return new SMPEndpoint (aEDP.getReceiverAPEndpointURL (),
+                              aEDP.getReceiverAPCertificate (),
+                              aEDP.getReceiverTechnicalContact ());
+    }
+    catch (final Phase4Exception ex)
+    {
+      throw ex;
+    }
+    catch (final Exception ex)
+    {
+      throw new Phase4Exception ("Failed to perform SMP lookup for '" + aReceiverID.getURIEncoded () + "'", ex);
+    }
+  }
+
+  private void _ensureMaxSize ()
+  {
+    if (m_aMap.size () <= m_nMaxSize)
+      return;
+
+    // First remove all expired entries
+    final long nNow = System.nanoTime ();
+    m_aMap.entrySet ().removeIf (e -> {
+      final CompletableFuture <Entry> aFuture = e.getValue ();
+      return aFuture.isDone () && aFuture.join ().isExpired (nNow);
+    });
+
+    // Still too many - remove the oldest finished entries, leaving some room to avoid doing this on
+    // every new entry
+    final int nTargetSize = m_nMaxSize - m_nMaxSize / 10;
+    final int nToRemove = m_aMap.size () - nTargetSize;
+    if (nToRemove <= 0)
+      return;
+    final List <Map.Entry <Key, CompletableFuture <Entry>>> aDone = new ArrayList <> ();
+    for (final Map.Entry <Key, CompletableFuture <Entry>> aEntry : m_aMap.entrySet ())
+      if (aEntry.getValue ().isDone ())
+        aDone.add (aEntry);
+    aDone.sort (Comparator.comparingLong (e -> e.getValue ().join ().m_nCreatedNanos));
+    for (int i = 0; i < nToRemove && i < aDone.size (); ++i)
+    {
+      final Map.Entry <Key, CompletableFuture <Entry>> aEntry = aDone.get (i);
+      m_aMap.remove (aEntry.getKey (), aEntry.getValue ());
+    }
+  }
+
+  /**
+   * Get the endpoint details for the provided combination, either from the cache or by performing
+   * the SMP lookup.
+   *
+   * @param aSmlInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @param aReceiverID
+   *        The receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The process ID. May not be <code>null</code>.
+   * @return The resolved endpoint. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         If the lookup failed or if the receiver is not registered.
+   */
+  @NonNull
+  public SMPEndpoint getEndpoint (@NonNull final ISMLInfo aSmlInfo,
+                                  @NonNull final IParticipantIdentifier aReceiverID,
+                                  @NonNull final IDocumentTypeIdentifier aDocTypeID,
+                                  @NonNull final IProcessIdentifier aProcessID) throws Phase4Exception
+  {
+    if (!m_bEnabled)
+      return _lookup (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+
+    final Key aKey = new Key (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+    while (true)
+    {
+      final CompletableFuture <Entry> aExisting = m_aMap.get (aKey);
+      if (aExisting != null)
+      {
+        if (aExisting.isDone () && aExisting.join ().isExpired (System.nanoTime ()))
+        {
+          // Outdated - try again
+          m_aMap.remove (aKey, aExisting);
+          continue;
+        }
+
+        // Cache hit or a lookup is already in progress
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Using cached SMP endpoint for " + aKey);
+        return aExisting.join ().getOrThrow ();
+      }
+
+      final CompletableFuture <Entry> aNew = new CompletableFuture <> ();
+      if (m_aMap.putIfAbsent (aKey, aNew) != null)
+      {
+        // Someone else was quicker
+        continue;
+      }
+
+      // We are responsible for the lookup
+      Entry aEntry;
+      try
+      {
+        final SMPEndpoint aEndpoint = _lookup (aSmlInfo, aReceiverID, aDocTypeID, aProcessID);
+        final long nNow = System.nanoTime ();
+        aEntry = new Entry (aEndpoint, null, nNow, nNow + m_nTTLNanos);
+      }
+      catch (final Phase4Exception ex)
+      {
+        final boolean bCacheNegative = isNotFoundException (ex);
+        final long nNow = System.nanoTime ();
+        aEntry = new Entry (null, ex, nNow, nNow + (bCacheNegative ? m_nNegativeTTLNanos : 0));
+      }
+      catch (final RuntimeException ex)
+      {
+        final long nNow = System.nanoTime ();
+        aEntry = new Entry (null, new Phase4Exception ("Failed to perform SMP lookup for " + aKey, ex), nNow, nNow);
+      }
+      aNew.complete (aEntry);
+
+      if (aEntry.isExpired (System.nanoTime ()))
+      {
+        // Not to be cached at all - waiting threads already got the result
+        m_aMap.remove (aKey, aNew);
+      }
+      else
+        _ensureMaxSize ();
+
+      return aEntry.getOrThrow ();
+    }
+  }
+
+  /**
+   * Remove all cached entries.
+   */
+  public void clear ()
+  {
+    m_aMap.clear ();
+  }
+
+  /**
+   * @return The number of currently cached entries (incl. running lookups).
+   */
+  public int size ()
+  {
+    return m_aMap.size ();
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Exception that is thrown if the SMP lookup worked, but the receiver is not registered for the
+ * requested combination of document type, process and transport profile. This is a permanent
+ * error and may be cached.
+ *
+ * @author Philip Helger
+ */
+public class SMPEndpointNotFoundException extends Phase4Exception
+{
+  public SMPEndpointNotFoundException (@NonNull final String sMsg, @Nullable final Throwable aCause)
+  {
+    super (sMsg, aCause);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import java.io.InputStream;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.base.enforce.ValueEnforcer;
+
+/**
+ * Reads only the prolog and the root element of an XML document with StAX. This is used to reject
+ * invalid payloads quickly, before the complete DOM is built.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class XMLRootElementReader
+{
+  // Configured once and afterwards only used to create readers. The JDK default factory creates a
+  // new, independent reader with a copy of the properties on each call, so sharing it is safe.
+  private static final XMLInputFactory FACTORY = _createFactory ();
+
+  private XMLRootElementReader ()
+  {}
+
+  @NonNull
+  private static XMLInputFactory _createFactory ()
+  {
+    // The default factory avoids the service lookup
+    final XMLInputFactory ret = XMLInputFactory.newDefaultFactory ();
+    // No DTDs and no external entities
+    ret.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    return ret;
+  }
+
+  /**
+   * Read the name of the root element.
+   *
+   * @param aIS
+   *        The input stream to read from. Is not closed. May not be <code>null</code>.
+   * @return The qualified name of the root element, or <code>null</code> if the document has no
+   *         root element.
+   * @throws XMLStreamException
+   *         If the prolog or the root element is not well-formed
+   */
+  @Nullable
+  public static QName readRootElementName (@NonNull final InputStream aIS) throws XMLStreamException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final XMLStreamReader aReader = FACTORY.createXMLStreamReader (aIS);
+    try
+    {
+      while (aReader.hasNext ())
+      {
+        if (aReader.next () == XMLStreamReader.START_ELEMENT)
+          return aReader.getName ();
+      }
+      return null;
+    }
+    finally
+    {
+      aReader.close ();
+    }
+  }
+}
@@ -20,6 +20,9 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.YearMonth;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.jspecify.annotations.NonNull;
 import org.jspecify.annotations.Nullable;
@@ -29,12 +32,9 @@ import com.helger.base.enforce.ValueEnforcer;
 import com.helger.base.string.StringHelper;
 import com.helger.base.timing.StopWatch;
 import com.helger.base.wrapper.Wrapper;
-import com.helger.collection.commons.CommonsArrayList;
-import com.helger.collection.commons.ICommonsList;
 import com.helger.datetime.helper.PDTFactory;
 import com.helger.peppol.reporting.api.CPeppolReporting;
 import com.helger.peppol.reporting.api.PeppolReportingHelper;
-import com.helger.peppol.reporting.api.PeppolReportingItem;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
 import com.helger.peppol.reporting.eusr.EndUserStatisticsReport;
@@ -47,13 +47,13 @@ import com.helger.peppol.reportingsupport.IPeppolReportStorage;
 import com.helger.peppol.reportingsupport.PeppolReportingSupport;
 import com.helger.peppol.reportingsupport.file.IPeppolReportStorageFilenameProvider;
 import com.helger.peppol.reportingsupport.file.PeppolReportStorageFileXML;
-import com.helger.peppol.security.PeppolTrustedCA;
 import com.helger.peppol.servicedomain.EPeppolNetwork;
 import com.helger.peppol.sml.ISMLInfo;
 import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.peppol.Phase4PeppolSendingReport;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
 import com.helger.phase4.peppolstandalone.controller.HttpForbiddenException;
 import com.helger.phase4.peppolstandalone.controller.PeppolSender;
 import com.helger.security.certificate.TrustedCAChecker;
@@ -84,27 +84,67 @@ public final class AppReportingHelper
     return YearMonth.of (nYear, nMonth);
   }
 
+  /**
+   * Read all reporting items of the provided period from the backend in a single pass.
+   *
+   * @param aYearMonth
+   *        The reporting period to use. May not be <code>null</code>.
+   * @return The aggregated items or <code>null</code> if the backend could not be used.
+   * @throws PeppolReportingBackendException
+   *         In case of a backend error
+   */
+  @Nullable
+  public static PeppolReportingItemAggregator aggregateReportingItems (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    // Stream all items from data storage into the aggregator
+    final PeppolReportingItemAggregator aAggregator = new PeppolReportingItemAggregator ();
+    if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
+                                              aBackend -> aBackend.forEachReportingItem (aYearMonth,
+                                                                                         aAggregator::accept))
+                              .isFailure ())
+      return null;
+
+    LOGGER.info ("Aggregated " +
+                 aAggregator.getItemCount () +
+                 " Peppol Reporting Items of " +
+                 aYearMonth +
+                 " into " +
+                 aAggregator.getDistinctCount () +
+                 " distinct entries");
+    return aAggregator;
+  }
+
+  @NonNull
+  public static TransactionStatisticsReportType createTSR (@NonNull final YearMonth aYearMonth,
+                                                           @NonNull final PeppolReportingItemAggregator aAggregator)
+  {
+    // Create report with the read transactions
+    return TransactionStatisticsReport.builder ()
+                                      .monthOf (aYearMonth)
+                                      .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
+                                      .reportingItemList (aAggregator.getAsItemList ())
+                                      .build ();
+  }
+
   @Nullable
   public static TransactionStatisticsReportType createTSR (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
   {
     LOGGER.info ("Trying to create Peppol Reporting TSR for " + aYearMonth);
 
-    // Now get all items from data storage and store them in a list (we start
-    // with an initial size of 1K to avoid too many copy operations)
-    final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-    if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                              aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                         aReportingItems::add))
-                              .isSuccess ())
-    {
-      // Create report with the read transactions
-      return TransactionStatisticsReport.builder ()
-                                        .monthOf (aYearMonth)
-                                        .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                        .reportingItemList (aReportingItems)
-                                        .build ();
-    }
-    return null;
+    final PeppolReportingItemAggregator aAggregator = aggregateReportingItems (aYearMonth);
+    return aAggregator == null ? null : createTSR (aYearMonth, aAggregator);
+  }
+
+  @NonNull
+  public static EndUserStatisticsReportType createEUSR (@NonNull final YearMonth aYearMonth,
+                                                        @NonNull final PeppolReportingItemAggregator aAggregator)
+  {
+    // Create report with the read transactions
+    return EndUserStatisticsReport.builder ()
+                                  .monthOf (aYearMonth)
+                                  .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
+                                  .reportingItemList (aAggregator.getAsItemList ())
+                                  .build ();
   }
 
   @Nullable
@@ -112,22 +152,82 @@ public final class AppReportingHelper
   {
     LOGGER.info ("Trying to create Peppol Reporting EUSR for " + aYearMonth);
 
-    // Now get all items from data storage and store them in a list (we start
-    // with an initial size of 1K to avoid too many copy operations)
-    final ICommonsList <PeppolReportingItem> aReportingItems = new CommonsArrayList <> (1024);
-    if (PeppolReportingBackend.withBackendDo (APConfig.getConfig (),
-                                              aBackend -> aBackend.forEachReportingItem (aYearMonth,
-                                                                                         aReportingItems::add))
-                              .isSuccess ())
+    final PeppolReportingItemAggregator aAggregator = aggregateReportingItems (aYearMonth);
+    return aAggregator == null ? null : createEUSR (aYearMonth, aAggregator);
+  }
+
+  @NonNull
+  private static PeppolReportingSupport _createReportingSupport ()
+  {
+    // TODO eventually change to a different storage form
+    final IPeppolReportStorage aReportingStorage = new PeppolReportStorageFileXML (new File (AS4Configuration.getDataPath (),
+                                                                                             "peppol-reports"),
+                                                                                   IPeppolReportStorageFilenameProvider.DEFAULT);
+    return new PeppolReportingSupport (aReportingStorage);
+  }
+
+  private static void _handleTSR (@NonNull final YearMonth aYearMonth,
+                                  @NonNull final PeppolReportingItemAggregator aAggregator,
+                                  @NonNull final IPeppolReportSenderCallback aPeppolSender)
+  {
+    try
+    {
+      // Create
+      final TransactionStatisticsReportType aTSR = createTSR (aYearMonth, aAggregator);
+
+      // Validate and store
+      final PeppolReportingSupport aPRS = _createReportingSupport ();
+      final Wrapper <String> aTSRString = new Wrapper <> ();
+      if (aPRS.validateAndStorePeppolTSR10 (aTSR, aTSRString::set).isSuccess ())
+      {
+        // Send to OpenPeppol
+        if (aPRS.sendPeppolReport (aYearMonth, EPeppolReportType.TSR_V10, aTSRString.get (), aPeppolSender)
+                .isSuccess ())
+        {
+          LOGGER.info ("Successfully sent TSR for " + aYearMonth + " to OpenPeppol");
+        }
+        else
+          LOGGER.error ("Failed to send TSR for " + aYearMonth + " to OpenPeppol");
+      }
+      else
+        LOGGER.error ("Failed to validate and store TSR for " + aYearMonth);
+    }
+    catch (final Exception ex)
     {
-      // Create report with the read transactions
-      return EndUserStatisticsReport.builder ()
-                                    .monthOf (aYearMonth)
-                                    .reportingServiceProviderID (APConfig.getMyPeppolSeatID ())
-                                    .reportingItemList (aReportingItems)
-                                    .build ();
+      LOGGER.error ("Failed to create TSR for " + aYearMonth, ex);
+    }
+  }
+
+  private static void _handleEUSR (@NonNull final YearMonth aYearMonth,
+                                   @NonNull final PeppolReportingItemAggregator aAggregator,
+                                   @NonNull final IPeppolReportSenderCallback aPeppolSender)
+  {
+    try
+    {
+      // Create
+      final EndUserStatisticsReportType aEUSR = createEUSR (aYearMonth, aAggregator);
+
+      // Validate and store
+      final PeppolReportingSupport aPRS = _createReportingSupport ();
+      final Wrapper <String> aEUSRString = new Wrapper <> ();
+      if (aPRS.validateAndStorePeppolEUSR11 (aEUSR, aEUSRString::set).isSuccess ())
+      {
+        // Send to OpenPeppol
+        if (aPRS.sendPeppolReport (aYearMonth, EPeppolReportType.EUSR_V11, aEUSRString.get (), aPeppolSender)
+                .isSuccess ())
+        {
+          LOGGER.info ("Successfully sent EUSR for " + aYearMonth + " to OpenPeppol");
+        }
+        else
+          LOGGER.error ("Failed to send EUSR for " + aYearMonth + " to OpenPeppol");
+      }
+      else
+        LOGGER.error ("Failed to validate and store EUSR for " + aYearMonth);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Failed to create EUSR for " + aYearMonth, ex);
     }
-    return null;
   }
 
   /**
@@ -148,8 +248,7 @@ public final class AppReportingHelper
       // Make Network decisions
       final EPeppolNetwork eStage = APConfig.getPeppolStage ();
       final ISMLInfo aSMLInfo = eStage.getSMLInfo ();
-      final TrustedCAChecker aAPCA = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP ()
-                                                            : PeppolTrustedCA.peppolTestAP ();
+      final TrustedCAChecker aAPCA = APConfig.getAPCAChecker ();
       // Sender: your company participant ID
       final String sSenderID = APConfig.getMyPeppolReportingSenderID ();
       if (StringHelper.isEmpty (sSenderID))
@@ -171,77 +270,44 @@ public final class AppReportingHelper
                                                                                                    sReceiverID,
                                                                                                    aDocTypeID.getURIEncoded (),
                                                                                                    aProcessID.getURIEncoded (),
-                                                                                                   sCountryC1);
+                                                                                                   sCountryC1,
+                                                                                                   null);
       return aSendingReport.getAsXMLString ();
     };
 
+    // Read the backend only once for both reports
+    PeppolReportingItemAggregator aAggregator = null;
+    try
     {
-      // TODO eventually change to a different storage form
-      final IPeppolReportStorage aReportingStorage = new PeppolReportStorageFileXML (new File (AS4Configuration.getDataPath (),
-                                                                                               "peppol-reports"),
-                                                                                     IPeppolReportStorageFilenameProvider.DEFAULT);
-      final PeppolReportingSupport aPRS = new PeppolReportingSupport (aReportingStorage);
-
-      // Handle TSR
-      try
-      {
-        // Create
-        final TransactionStatisticsReportType aTSR = createTSR (aYearMonth);
-        if (aTSR != null)
-        {
-          // Validate and store
-          final Wrapper <String> aTSRString = new Wrapper <> ();
-          if (aPRS.validateAndStorePeppolTSR10 (aTSR, aTSRString::set).isSuccess ())
-          {
-            // Send to OpenPeppol
-            if (aPRS.sendPeppolReport (aYearMonth, EPeppolReportType.TSR_V10, aTSRString.get (), aPeppolSender)
-                    .isSuccess ())
-            {
-              LOGGER.info ("Successfully sent TSR for " + aYearMonth + " to OpenPeppol");
-            }
-            else
-              LOGGER.error ("Failed to send TSR for " + aYearMonth + " to OpenPeppol");
-          }
-          else
-            LOGGER.error ("Failed to validate and store TSR for " + aYearMonth);
-        }
-        else
-          LOGGER.error ("Failed to create TSR for " + aYearMonth);
-      }
-      catch (final Exception ex)
-      {
-        LOGGER.error ("Failed to create TSR for " + aYearMonth, ex);
-      }
+      aAggregator = aggregateReportingItems (aYearMonth);
+      if (aAggregator == null)
+        LOGGER.error ("Failed to read Peppol Reporting Items for " + aYearMonth);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Failed to read Peppol Reporting Items for " + aYearMonth, ex);
+    }
 
-      // Handle EUSR
+    if (aAggregator != null)
+    {
+      // The two reports are independent - validate and send them in parallel
+      final PeppolReportingItemAggregator aFinalAggregator = aAggregator;
+      final ExecutorService aExecutor = Executors.newFixedThreadPool (2, APThreadFactory.create ("phase4-reporting-"));
       try
       {
-        // Create
-        final EndUserStatisticsReportType aEUSR = createEUSR (aYearMonth);
-        if (aEUSR != null)
-        {
-          // Validate and store
-          final Wrapper <String> aEUSRString = new Wrapper <> ();
-          if (aPRS.validateAndStorePeppolEUSR11 (aEUSR, aEUSRString::set).isSuccess ())
-          {
-            // Send to OpenPeppol
-            if (aPRS.sendPeppolReport (aYearMonth, EPeppolReportType.EUSR_V11, aEUSRString.get (), aPeppolSender)
-                    .isSuccess ())
-            {
-              LOGGER.info ("Successfully sent EUSR for " + aYearMonth + " to OpenPeppol");
-            }
-            else
-              LOGGER.error ("Failed to send EUSR for " + aYearMonth + " to OpenPeppol");
-          }
-          else
-            LOGGER.error ("Failed to validate and store EUSR for " + aYearMonth);
-        }
-        else
-          LOGGER.error ("Failed to create EUSR for " + aYearMonth);
+        final CompletableFuture <Void> aTSRFuture = CompletableFuture.runAsync ( () -> _handleTSR (aYearMonth,
+                                                                                                    aFinalAggregator,
+                                                                                                    aPeppolSender),
+                                                                                 aExecutor);
+        final CompletableFuture <Void> aEUSRFuture = CompletableFuture.runAsync ( () -> _handleEUSR (aYearMonth,
+                                                                                                      aFinalAggregator,
+                                                                                                      aPeppolSender),
+                                                                                  aExecutor);
+        CompletableFuture.allOf (aTSRFuture, aEUSRFuture).join ();
       }
-      catch (final Exception ex)
+      finally
       {
-        LOGGER.error ("Failed to create EUSR for " + aYearMonth, ex);
+        aExecutor.shutdown ();
       }
     }
 
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.time.YearMonth;
+
+import org.jspecify.annotations.NonNull;
+
+import com.helger.annotation.Nonnegative;
+import com.helger.peppol.reporting.api.backend.IPeppolReportingBackendSPI;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+
+/**
+ * Extended Peppol Reporting backend that provides a version of the stored reporting items of a
+ * month. This allows the {@link PeppolReportCache} to detect late reporting items independent of
+ * the code path that stored them.
+ *
+ * @author Philip Helger
+ */
+public interface IVersionedPeppolReportingBackendSPI extends IPeppolReportingBackendSPI
+{
+  /**
+   * Get the version of the reporting items of the provided month. The version must change, whenever
+   * a reporting item of that month is stored, and it must only be increased.
+   *
+   * @param aYearMonth
+   *        The month to use. May not be <code>null</code>.
+   * @return The version of the items. Must be &ge; 0.
+   * @throws PeppolReportingBackendException
+   *         In case of a backend error
+   */
+  @Nonnegative
+  long getReportingItemVersion (@NonNull YearMonth aYearMonth) throws PeppolReportingBackendException;
+}
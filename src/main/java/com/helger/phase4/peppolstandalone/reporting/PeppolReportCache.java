@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.peppol.reporting.api.backend.IPeppolReportingBackendSPI;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+
+/**
+ * Cache for the XML of created Peppol Reports of completed months. These don't change, unless
+ * reporting items arrive late for such a month. Therefore each report is cached together with the
+ * version of the reporting items it was created from, as provided by an
+ * {@link IVersionedPeppolReportingBackendSPI}. Reports of backends without a version are not cached.
+ * The reports are kept in memory and optionally on disk, so that they survive a restart. Each report
+ * has a strong ETag based on its content.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class PeppolReportCache
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportCache.class);
+  private static final PeppolReportCache INSTANCE = _createInstance ();
+
+  /**
+   * The cacheable report types.
+   */
+  public enum EReportType
+  {
+    TSR,
+    EUSR;
+
+    @NonNull
+    @Nonempty
+    String getFilePrefix ()
+    {
+      return name ().toLowerCase (Locale.ROOT);
+    }
+  }
+
+  /**
+   * Creates the XML of a single report.
+   */
+  @FunctionalInterface
+  public interface IReportCreator
+  {
+    /**
+     * @param aYearMonth
+     *        The reporting period. Never <code>null</code>.
+     * @return The report XML in UTF-8 or <code>null</code> if it could not be created.
+     * @throws PeppolReportingBackendException
+     *         In case of a backend error
+     */
+    byte @Nullable [] createReportXML (@NonNull YearMonth aYearMonth) throws PeppolReportingBackendException;
+  }
+
+  /**
+   * Provides the version of the reporting items of a month.
+   */
+  @FunctionalInterface
+  public interface IVersionProvider
+  {
+    /**
+     * @param aYearMonth
+     *        The reporting period. Never <code>null</code>.
+     * @return The version of the reporting items of the period or a negative value if it is unknown.
+     *         Reports are only cached if the version is known.
+     * @throws PeppolReportingBackendException
+     *         In case of a backend error
+     */
+    long getVersion (@NonNull YearMonth aYearMonth) throws PeppolReportingBackendException;
+  }
+
+  /**
+   * A created report together with its ETag.
+   */
+  @Immutable
+  public static final class Report
+  {
+    private final byte [] m_aXML;
+    private final long m_nVersion;
+    private final String m_sETagValue;
+
+    Report (final byte @NonNull [] aXML, final long nVersion)
+    {
+      m_aXML = aXML;
+      m_nVersion = nVersion;
+      m_sETagValue = _createETagValue (aXML);
+    }
+
+    /**
+     * @return The report XML in UTF-8. Not copied for performance reasons - don't modify.
+     */
+    public byte @NonNull [] getXMLBytes ()
+    {
+      return m_aXML;
+    }
+
+    /**
+     * @param sContentCoding
+     *        The content coding of the response (like <code>gzip</code>). May be
+     *        <code>null</code>.
+     * @return The strong ETag for the provided content coding including the quotes. Never
+     *         <code>null</code>.
+     */
+    @NonNull
+    @Nonempty
+    public String getETag (@Nullable final String sContentCoding)
+    {
+      return "\"" + m_sETagValue + (sContentCoding == null ? "" : "-" + sContentCoding) + "\"";
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final File m_aDiskDir;
+  private final IVersionProvider m_aVersionProvider;
+  private final ConcurrentHashMap <String, Report> m_aMap = new ConcurrentHashMap <> ();
+
+  /**
+   * @param bEnabled
+   *        <code>true</code> to enable caching
+   * @param aDiskDir
+   *        The directory to store the cached reports in. May be <code>null</code> to cache in
+   *        memory only.
+   * @param aVersionProvider
+   *        The provider for the version of the reporting items. May not be <code>null</code>.
+   */
+  PeppolReportCache (final boolean bEnabled,
+                     @Nullable final File aDiskDir,
+                     @NonNull final IVersionProvider aVersionProvider)
+  {
+    ValueEnforcer.notNull (aVersionProvider, "VersionProvider");
+    m_bEnabled = bEnabled;
+    m_aDiskDir = aDiskDir;
+    m_aVersionProvider = aVersionProvider;
+    if (m_aDiskDir != null)
+      try
+      {
+        Files.createDirectories (m_aDiskDir.toPath ());
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to create report cache directory " + m_aDiskDir.getAbsolutePath (), ex);
+      }
+  }
+
+  @NonNull
+  private static PeppolReportCache _createInstance ()
+  {
+    final boolean bEnabled = APConfig.isReportCacheEnabled ();
+    // Next to the "peppol-reports" storage
+    final File aDiskDir = bEnabled && APConfig.isReportCacheDiskEnabled () ? new File (AS4Configuration.getDataPath (),
+                                                                                         "peppol-reports-cache")
+                                                                           : null;
+    return new PeppolReportCache (bEnabled, aDiskDir, PeppolReportCache::_getBackendVersion);
+  }
+
+  @NonNull
+  public static PeppolReportCache getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  private static long _getBackendVersion (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    final IPeppolReportingBackendSPI aBackend = PeppolReportingBackend.getBackendService ();
+    if (aBackend instanceof IVersionedPeppolReportingBackendSPI && aBackend.isInitialized ())
+      return ((IVersionedPeppolReportingBackendSPI) aBackend).getReportingItemVersion (aYearMonth);
+    // Unknown version
+    return -1;
+  }
+
+  @NonNull
+  @Nonempty
+  private static String _createETagValue (final byte @NonNull [] aXML)
+  {
+    try
+    {
+      return HexFormat.of ().formatHex (MessageDigest.getInstance ("SHA-256").digest (aXML));
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  @NonNull
+  private static String _getKey (@NonNull final EReportType eType, @NonNull final YearMonth aYearMonth)
+  {
+    return eType.getFilePrefix () + "-" + aYearMonth;
+  }
+
+  @NonNull
+  private File _getFile (@NonNull final String sKey, final long nVersion)
+  {
+    return new File (m_aDiskDir, sKey + "-" + nVersion + ".xml");
+  }
+
+  private void _put (@NonNull final String sKey, @NonNull final Report aReport)
+  {
+    // Never replace a report of a newer version
+    m_aMap.merge (sKey, aReport, (aOld, aNew) -> aNew.m_nVersion >= aOld.m_nVersion ? aNew : aOld);
+  }
+
+  private void _writeToDisk (@NonNull final String sKey, @NonNull final Report aReport)
+  {
+    final File aTargetFile = _getFile (sKey, aReport.m_nVersion);
+    try
+    {
+      // Write completely before making it visible
+      final Path aTmpFile = Files.createTempFile (m_aDiskDir.toPath (), sKey + "-", ".tmp");
+      try
+      {
+        Files.write (aTmpFile, aReport.m_aXML);
+        Files.move (aTmpFile,
+                    aTargetFile.toPath (),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+        Files.deleteIfExists (aTmpFile);
+      }
+
+      // Delete the reports of older versions
+      final String sPrefix = sKey + "-";
+      final File [] aOldFiles = m_aDiskDir.listFiles ( (d, n) -> n.startsWith (sPrefix) &&
+                                                                 n.endsWith (".xml") &&
+                                                                 !n.equals (aTargetFile.getName ()));
+      if (aOldFiles != null)
+        for (final File aOldFile : aOldFiles)
+          Files.deleteIfExists (aOldFile.toPath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to write cached report " + aTargetFile.getAbsolutePath (), ex);
+    }
+  }
+
+  /**
+   * @param aYearMonth
+   *        The reporting period to check. May not be <code>null</code>.
+   * @return <code>true</code> if the period is completely in the past (UTC).
+   */
+  public static boolean isCompletedMonth (@NonNull final YearMonth aYearMonth)
+  {
+    return aYearMonth.isBefore (YearMonth.now (ZoneOffset.UTC));
+  }
+
+  /**
+   * @param aYearMonth
+   *        The reporting period to check. May not be <code>null</code>.
+   * @return <code>true</code> if reports of the provided period are cached.
+   */
+  public boolean isCacheable (@NonNull final YearMonth aYearMonth)
+  {
+    return m_bEnabled && isCompletedMonth (aYearMonth);
+  }
+
+  /**
+   * Get a cached report or create it. Only reports of completed months are cached - use
+   * {@link #isCacheable(YearMonth)} to avoid creating other reports in memory.
+   *
+   * @param eType
+   *        The report type. May not be <code>null</code>.
+   * @param aYearMonth
+   *        The reporting period. May not be <code>null</code>.
+   * @param aCreator
+   *        The creator to use, if the report is not cached. May not be <code>null</code>.
+   * @return <code>null</code> if the report could not be created.
+   * @throws PeppolReportingBackendException
+   *         In case of a backend error
+   */
+  @Nullable
+  public Report getOrCreate (@NonNull final EReportType eType,
+                             @NonNull final YearMonth aYearMonth,
+                             @NonNull final IReportCreator aCreator) throws PeppolReportingBackendException
+  {
+    ValueEnforcer.notNull (eType, "Type");
+    ValueEnforcer.notNull (aYearMonth, "YearMonth");
+    ValueEnforcer.notNull (aCreator, "Creator");
+
+    final String sKey = _getKey (eType, aYearMonth);
+    final long nVersion = isCacheable (aYearMonth) ? m_aVersionProvider.getVersion (aYearMonth) : -1;
+    if (nVersion >= 0)
+    {
+      final Report ret = m_aMap.get (sKey);
+      if (ret != null && ret.m_nVersion == nVersion)
+        return ret;
+
+      if (m_aDiskDir != null)
+      {
+        final File aFile = _getFile (sKey, nVersion);
+        if (aFile.isFile ())
+          try
+          {
+            final Report aDiskReport = new Report (Files.readAllBytes (aFile.toPath ()), nVersion);
+            _put (sKey, aDiskReport);
+            return aDiskReport;
+          }
+          catch (final IOException ex)
+          {
+            LOGGER.warn ("Failed to read cached report " + aFile.getAbsolutePath (), ex);
+          }
+      }
+    }
+
+    final byte [] aXML = aCreator.createReportXML (aYearMonth);
+    if (aXML == null)
+      return null;
+
+    final Report ret = new Report (aXML, nVersion);
+    // Don't cache it, if reporting items were stored in the meantime
+    if (nVersion >= 0 && nVersion == m_aVersionProvider.getVersion (aYearMonth))
+    {
+      _put (sKey, ret);
+      if (m_aDiskDir != null)
+        _writeToDisk (sKey, ret);
+      LOGGER.info ("Cached Peppol Report " + sKey + " of version " + nVersion);
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.style.IsSPIImplementation;
+import com.helger.base.state.ESuccess;
+import com.helger.collection.commons.CommonsArrayList;
+import com.helger.collection.commons.ICommonsList;
+import com.helger.config.fallback.IConfigWithFallback;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.peppol.reporting.api.backend.PeppolReportingBackendException;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * Peppol Reporting backend that stores all reporting items in local, append-only files with one
+ * file per month. See {@link ReportingItemFileStore} for the details.
+ *
+ * @author Philip Helger
+ */
+@IsSPIImplementation
+public class PeppolReportingBackendFileSPI implements IVersionedPeppolReportingBackendSPI
+{
+  public static final String CONFIG_PATH = "peppol.reporting.file.path";
+  public static final String CONFIG_RETENTION_MONTHS = "peppol.reporting.file.retention-months";
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PeppolReportingBackendFileSPI.class);
+
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  @GuardedBy ("m_aLock")
+  private ReportingItemFileStore m_aStore;
+
+  @NonNull
+  @Nonempty
+  public String getDisplayName ()
+  {
+    return "File";
+  }
+
+  @NonNull
+  public ESuccess initBackend (@NonNull final IConfigWithFallback aConfig)
+  {
+    final String sPath = aConfig.getAsString (CONFIG_PATH);
+    final File aDir = sPath != null ? new File (sPath).getAbsoluteFile ()
+                                    : new File (AS4Configuration.getDataPath (), "peppol-reporting").getAbsoluteFile ();
+    final int nRetentionMonths = aConfig.getAsInt (CONFIG_RETENTION_MONTHS, 0);
+
+    m_aLock.lock ();
+    try
+    {
+      if (m_aStore != null)
+        return ESuccess.SUCCESS;
+
+      final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir);
+      if (nRetentionMonths > 0)
+      {
+        // Dropping a month only means deleting a file
+        final int nDeleted = aStore.deletePartitionsBefore (YearMonth.now (ZoneOffset.UTC)
+                                                                     .minusMonths (nRetentionMonths));
+        if (nDeleted > 0)
+          LOGGER.info ("Deleted " + nDeleted + " Peppol Reporting files older than " + nRetentionMonths + " months");
+      }
+      m_aStore = aStore;
+      LOGGER.info ("Storing Peppol Reporting Items in " + aDir.getAbsolutePath ());
+      return ESuccess.SUCCESS;
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to init Peppol Reporting file backend in " + aDir.getAbsolutePath (), ex);
+      return ESuccess.FAILURE;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public boolean isInitialized ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aStore != null;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  @NonNull
+  private ReportingItemFileStore _getStore () throws PeppolReportingBackendException
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_aStore == null)
+        throw new PeppolReportingBackendException ("The Peppol Reporting file backend is not initialized");
+      return m_aStore;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void shutdownBackend ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      if (m_aStore != null)
+      {
+        m_aStore.close ();
+        m_aStore = null;
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  public void storeReportingItem (@NonNull final PeppolReportingItem aReportingItem) throws PeppolReportingBackendException
+  {
+    try
+    {
+      _getStore ().append (aReportingItem);
+    }
+    catch (final IOException ex)
+    {
+      throw new PeppolReportingBackendException ("Failed to store Peppol Reporting Item", ex);
+    }
+  }
+
+  /**
+   * The version is the size of the append-only file of the month, so it grows with every stored
+   * item.
+   */
+  public long getReportingItemVersion (@NonNull final YearMonth aYearMonth) throws PeppolReportingBackendException
+  {
+    return _getStore ().getPartitionSize (aYearMonth);
+  }
+
+  public void forEachReportingItem (@NonNull final LocalDate aStartDateIncl,
+                                    @NonNull final LocalDate aEndDateIncl,
+                                    @NonNull final Consumer <? super PeppolReportingItem> aConsumer) throws PeppolReportingBackendException
+  {
+    try
+    {
+      _getStore ().forEach (aStartDateIncl, aEndDateIncl, aConsumer);
+    }
+    catch (final IOException ex)
+    {
+      throw new PeppolReportingBackendException ("Failed to read Peppol Reporting Items", ex);
+    }
+  }
+
+  /**
+   * Note: this keeps all matching items in memory - use
+   * {@link #forEachReportingItem(LocalDate, LocalDate, Consumer)} where possible.
+   */
+  @NonNull
+  public Iterable <PeppolReportingItem> iterateReportingItems (@NonNull final LocalDate aStartDateIncl,
+                                                               @NonNull final LocalDate aEndDateIncl) throws PeppolReportingBackendException
+  {
+    final ICommonsList <PeppolReportingItem> ret = new CommonsArrayList <> ();
+    forEachReportingItem (aStartDateIncl, aEndDateIncl, ret::add);
+    return ret;
+  }
+}
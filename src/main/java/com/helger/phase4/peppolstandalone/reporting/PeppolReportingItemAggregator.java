@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.jspecify.annotations.NonNull;
+
+import com.helger.annotation.concurrent.NotThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.collection.commons.CommonsArrayList;
+import com.helger.collection.commons.ICommonsList;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Aggregates a stream of {@link PeppolReportingItem} objects for the creation of TSR and EUSR.
+ * Only the fields relevant for these reports are considered (everything but the exchange date and
+ * time). For each distinct combination, the first item and a counter is kept, so the memory grows
+ * with the number of distinct combinations (incl. the end user ID) and not with the number of
+ * messages.<br>
+ * The report builders consume lists of items, so the result is provided as a read-only list view,
+ * that contains each retained item as often as it was counted. Because the end user ID is part of
+ * the key, the distinct end user counts of the EUSR stay exact.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public final class PeppolReportingItemAggregator implements Consumer <PeppolReportingItem>
+{
+  /**
+   * The relevant dimensions of a single reporting item.
+   */
+  private static final class Key
+  {
+    private final Object m_aDirection;
+    private final String m_sC2ID;
+    private final String m_sC3ID;
+    private final String m_sDocTypeIDScheme;
+    private final String m_sDocTypeIDValue;
+    private final String m_sProcessIDScheme;
+    private final String m_sProcessIDValue;
+    private final String m_sTransportProtocol;
+    private final String m_sC1CountryCode;
+    private final String m_sC4CountryCode;
+    private final String m_sEndUserID;
+    private final int m_nHashCode;
+
+    Key (@NonNull final PeppolReportingItem aItem)
+    {
+      m_aDirection = aItem.getDirection ();
+      m_sC2ID = aItem.getC2ID ();
+      m_sC3ID = aItem.getC3ID ();
+      m_sDocTypeIDScheme = aItem.getDocTypeIDScheme ();
+      m_sDocTypeIDValue = aItem.getDocTypeIDValue ();
+      m_sProcessIDScheme = aItem.getProcessIDScheme ();
+      m_sProcessIDValue = aItem.getProcessIDValue ();
+      m_sTransportProtocol = aItem.getTransportProtocol ();
+      m_sC1CountryCode = aItem.getC1CountryCode ();
+      m_sC4CountryCode = aItem.getC4CountryCode ();
+      m_sEndUserID = aItem.getEndUserID ();
+      m_nHashCode = Objects.hash (m_aDirection,
+                                  m_sC2ID,
+                                  m_sC3ID,
+                                  m_sDocTypeIDScheme,
+                                  m_sDocTypeIDValue,
+                                  m_sProcessIDScheme,
+                                  m_sProcessIDValue,
+                                  m_sTransportProtocol,
+                                  m_sC1CountryCode,
+                                  m_sC4CountryCode,
+                                  m_sEndUserID);
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (!(o instanceof Key))
+        return false;
+      final Key rhs = (Key) o;
+      return m_nHashCode == rhs.m_nHashCode &&
+             Objects.equals (m_aDirection, rhs.m_aDirection) &&
+             Objects.equals (m_sC2ID, rhs.m_sC2ID) &&
+             Objects.equals (m_sC3ID, rhs.m_sC3ID) &&
+             Objects.equals (m_sDocTypeIDScheme, rhs.m_sDocTypeIDScheme) &&
+             Objects.equals (m_sDocTypeIDValue, rhs.m_sDocTypeIDValue) &&
+             Objects.equals (m_sProcessIDScheme, rhs.m_sProcessIDScheme) &&
+             Objects.equals (m_sProcessIDValue, rhs.m_sProcessIDValue) &&
+             Objects.equals (m_sTransportProtocol, rhs.m_sTransportProtocol) &&
+             Objects.equals (m_sC1CountryCode, rhs.m_sC1CountryCode) &&
+             Objects.equals (m_sC4CountryCode, rhs.m_sC4CountryCode) &&
+             Objects.equals (m_sEndUserID, rhs.m_sEndUserID);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return m_nHashCode;
+    }
+  }
+
+  /**
+   * The retained item of a key and its number of occurrences.
+   */
+  private static final class Counter
+  {
+    private final PeppolReportingItem m_aItem;
+    private int m_nCount;
+
+    Counter (@NonNull final PeppolReportingItem aItem)
+    {
+      m_aItem = aItem;
+    }
+  }
+
+  /**
+   * Read-only list that repeats each retained item by its count.
+   */
+  private static final class ExpandedList extends AbstractList <PeppolReportingItem>
+                                          implements ICommonsList <PeppolReportingItem>
+  {
+    private final PeppolReportingItem [] m_aItems;
+    // Exclusive end index of each item
+    private final int [] m_aEnds;
+    private final int m_nSize;
+
+    ExpandedList (@NonNull final List <Counter> aCounters)
+    {
+      m_aItems = new PeppolReportingItem [aCounters.size ()];
+      m_aEnds = new int [aCounters.size ()];
+      int nEnd = 0;
+      for (int i = 0; i < m_aItems.length; ++i)
+      {
+        final Counter aCounter = aCounters.get (i);
+        m_aItems[i] = aCounter.m_aItem;
+        nEnd = Math.addExact (nEnd, aCounter.m_nCount);
+        m_aEnds[i] = nEnd;
+      }
+      m_nSize = nEnd;
+    }
+
+    @Override
+    public PeppolReportingItem get (final int nIndex)
+    {
+      if (nIndex < 0 || nIndex >= m_nSize)
+        throw new IndexOutOfBoundsException ("Index " + nIndex + " is out of bounds for size " + m_nSize);
+      final int nPos = Arrays.binarySearch (m_aEnds, nIndex + 1);
+      return m_aItems[nPos >= 0 ? nPos : -nPos - 1];
+    }
+
+    @Override
+    public int size ()
+    {
+      return m_nSize;
+    }
+
+    @Override
+    public Iterator <PeppolReportingItem> iterator ()
+    {
+      return new Iterator <> ()
+      {
+        private int m_nItem = 0;
+        private int m_nIndex = 0;
+
+        public boolean hasNext ()
+        {
+          return m_nIndex < m_nSize;
+        }
+
+        public PeppolReportingItem next ()
+        {
+          if (m_nIndex >= m_nSize)
+            throw new NoSuchElementException ();
+          while (m_nIndex >= m_aEnds[m_nItem])
+            m_nItem++;
+          m_nIndex++;
+          return m_aItems[m_nItem];
+        }
+      };
+    }
+
+    @NonNull
+    public ICommonsList <PeppolReportingItem> getClone ()
+    {
+      return new CommonsArrayList <> (this);
+    }
+  }
+
+  private final Map <Key, Counter> m_aCounters = new HashMap <> ();
+  // Keep the order of the first occurrence for reproducible reports
+  private final List <Counter> m_aOrdered = new ArrayList <> ();
+  private long m_nItemCount = 0;
+
+  public PeppolReportingItemAggregator ()
+  {}
+
+  /**
+   * Add a single reporting item.
+   *
+   * @param aItem
+   *        The item to add. May not be <code>null</code>.
+   */
+  public void accept (@NonNull final PeppolReportingItem aItem)
+  {
+    ValueEnforcer.notNull (aItem, "Item");
+    final Counter aCounter = m_aCounters.computeIfAbsent (new Key (aItem), k -> {
+      final Counter ret = new Counter (aItem);
+      m_aOrdered.add (ret);
+      return ret;
+    });
+    aCounter.m_nCount++;
+    m_nItemCount++;
+  }
+
+  /**
+   * @return The total number of items added.
+   */
+  public long getItemCount ()
+  {
+    return m_nItemCount;
+  }
+
+  /**
+   * @return The number of distinct combinations that are retained.
+   */
+  public int getDistinctCount ()
+  {
+    return m_aOrdered.size ();
+  }
+
+  /**
+   * @return A read-only list containing all added items (in respect to the relevant fields) to be
+   *         used with the TSR and EUSR builders. Never <code>null</code>. Once all items were
+   *         added, this may be called from multiple threads.
+   */
+  @NonNull
+  public ICommonsList <PeppolReportingItem> getAsItemList ()
+  {
+    return new ExpandedList (m_aOrdered);
+  }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayOutputStream;
+import com.helger.peppol.reporting.api.EReportingDirection;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * An append-only store for {@link PeppolReportingItem} objects with one file per month (UTC). All
+ * strings are dictionary encoded per file, so that each item only takes a few bytes on disk. The
+ * files are read back with memory mapped sequential scans, so reading a month does not keep the
+ * items in memory. Each item is forced to disk before {@link #append(PeppolReportingItem)} returns.
+ * Every record consists of its type, the payload length, a CRC-32 and the payload. The first record
+ * that is incomplete or invalid (e.g. a partially written record or zeros left by the file system
+ * after a crash) is the end of the file - it is ignored and overwritten by the next write.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class ReportingItemFileStore implements AutoCloseable
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (ReportingItemFileStore.class);
+
+  private static final byte RECORD_DICT = 1;
+  private static final byte RECORD_ITEM = 2;
+  // Type, payload length and CRC-32 of type and payload
+  private static final int RECORD_HEADER_BYTES = 1 + 4 + 4;
+  private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+  private static final Pattern FILENAME = Pattern.compile ("reporting-(\\d{4})-(\\d{2})\\.bin");
+  // Size of a single memory mapped region while reading
+  private static final int MAP_WINDOW_BYTES = 256 * 1024 * 1024;
+
+  /**
+   * Receives the decoded records of a partition file.
+   */
+  private interface IRecordVisitor
+  {
+    void onDict (@NonNull String sValue);
+
+    void onItem (@NonNull PeppolReportingItem aItem);
+  }
+
+  /**
+   * A partition file that is open for writing. Not thread-safe.
+   */
+  private static final class Writer
+  {
+    private final FileChannel m_aChannel;
+    private final Map <String, Integer> m_aDict = new HashMap <> ();
+    private long m_nSize;
+    // A failed write could not be removed from the file yet
+    private boolean m_bNeedsTruncate = false;
+
+    Writer (@NonNull final File aFile) throws IOException
+    {
+      // Rebuild the dictionary and find the end of the last complete record
+      long nValidSize = 0;
+      if (aFile.exists ())
+        nValidSize = _scan (aFile, aFile.length (), new IRecordVisitor ()
+        {
+          public void onDict (@NonNull final String sValue)
+          {
+            m_aDict.put (sValue, Integer.valueOf (m_aDict.size ()));
+          }
+
+          public void onItem (@NonNull final PeppolReportingItem aItem)
+          {}
+        }, true);
+
+      m_aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (m_aChannel.size () > nValidSize)
+      {
+        LOGGER.warn ("Truncating " +
+                     (m_aChannel.size () - nValidSize) +
+                     " bytes of incomplete or invalid records at the end of " +
+                     aFile.getAbsolutePath ());
+        m_aChannel.truncate (nValidSize);
+      }
+      m_nSize = nValidSize;
+    }
+
+    private int _getDictIndex (@NonNull final NonBlockingByteArrayOutputStream aBAOS,
+                               @Nullable final String s) throws IOException
+    {
+      if (s == null)
+        return 0;
+      Integer aIndex = m_aDict.get (s);
+      if (aIndex == null)
+      {
+        aIndex = Integer.valueOf (m_aDict.size ());
+        m_aDict.put (s, aIndex);
+        _writeRecord (aBAOS, RECORD_DICT, s.getBytes (StandardCharsets.UTF_8));
+      }
+      return aIndex.intValue () + 1;
+    }
+
+    void append (@NonNull final PeppolReportingItem aItem) throws IOException
+    {
+      if (m_bNeedsTruncate)
+      {
+        m_aChannel.truncate (m_nSize);
+        m_bNeedsTruncate = false;
+      }
+
+      final int nDictSize = m_aDict.size ();
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (128);
+           final NonBlockingByteArrayOutputStream aItemBAOS = new NonBlockingByteArrayOutputStream (64))
+      {
+        try
+        {
+          // Dictionary records must precede the item
+          final int [] aIndices = new int [] { _getDictIndex (aBAOS, aItem.getC2ID ()),
+                                               _getDictIndex (aBAOS, aItem.getC3ID ()),
+                                               _getDictIndex (aBAOS, aItem.getDocTypeIDScheme ()),
+                                               _getDictIndex (aBAOS, aItem.getDocTypeIDValue ()),
+                                               _getDictIndex (aBAOS, aItem.getProcessIDScheme ()),
+                                               _getDictIndex (aBAOS, aItem.getProcessIDValue ()),
+                                               _getDictIndex (aBAOS, aItem.getTransportProtocol ()),
+                                               _getDictIndex (aBAOS, aItem.getC1CountryCode ()),
+                                               _getDictIndex (aBAOS, aItem.getC4CountryCode ()),
+                                               _getDictIndex (aBAOS, aItem.getEndUserID ()) };
+          _writeVarLong (aItemBAOS, aItem.getExchangeDTUTC ().toInstant ().toEpochMilli ());
+          aItemBAOS.write (aItem.getDirection ().ordinal ());
+          for (final int nIndex : aIndices)
+            _writeVarInt (aItemBAOS, nIndex);
+          _writeRecord (aBAOS, RECORD_ITEM, aItemBAOS.toByteArray ());
+
+          final ByteBuffer aBuffer = ByteBuffer.wrap (aBAOS.toByteArray ());
+          long nPos = m_nSize;
+          while (aBuffer.hasRemaining ())
+            nPos += m_aChannel.write (aBuffer, nPos);
+          m_aChannel.force (false);
+          // Readers only see durably written items
+          m_nSize = nPos;
+        }
+        catch (final IOException ex)
+        {
+          // Remove the dictionary and item records of this item from the file and the dictionary,
+          // so that both stay consistent
+          if (m_aDict.size () > nDictSize)
+            m_aDict.values ().removeIf (x -> x.intValue () >= nDictSize);
+          try
+          {
+            m_aChannel.truncate (m_nSize);
+          }
+          catch (final IOException ex2)
+          {
+            // Try again before the next write
+            m_bNeedsTruncate = true;
+            ex.addSuppressed (ex2);
+          }
+          throw ex;
+        }
+      }
+    }
+
+    long getSize ()
+    {
+      return m_nSize;
+    }
+
+    void close ()
+    {
+      try
+      {
+        m_aChannel.force (false);
+        m_aChannel.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to close reporting item file", ex);
+      }
+    }
+  }
+
+  private final File m_aDir;
+  private final ReentrantLock m_aLock = new ReentrantLock ();
+  @GuardedBy ("m_aLock")
+  private final Map <YearMonth, Writer> m_aWriters = new HashMap <> ();
+
+  public ReportingItemFileStore (@NonNull final File aDir) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    Files.createDirectories (aDir.toPath ());
+    m_aDir = aDir;
+  }
+
+  // Variable length encoding of non-negative numbers
+
+  private static void _writeVarLong (@NonNull final NonBlockingByteArrayOutputStream aBAOS, final long nValue)
+  {
+    long n = nValue;
+    while ((n & ~0x7fL) != 0)
+    {
+      aBAOS.write ((int) ((n & 0x7f) | 0x80));
+      n >>>= 7;
+    }
+    aBAOS.write ((int) n);
+  }
+
+  private static void _writeVarInt (@NonNull final NonBlockingByteArrayOutputStream aBAOS, final int nValue)
+  {
+    _writeVarLong (aBAOS, nValue & 0xffffffffL);
+  }
+
+  private static int _getCRC (final byte nType, @NonNull final ByteBuffer aPayload)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (nType);
+    aCRC.update (aPayload);
+    return (int) aCRC.getValue ();
+  }
+
+  private static void _writeRecord (@NonNull final NonBlockingByteArrayOutputStream aBAOS,
+                                    final byte nType,
+                                    final byte @NonNull [] aPayload) throws IOException
+  {
+    if (aPayload.length > MAX_PAYLOAD_BYTES)
+      throw new IOException ("Reporting item record payload of " +
+                             aPayload.length +
+                             " bytes exceeds the maximum of " +
+                             MAX_PAYLOAD_BYTES +
+                             " bytes");
+    final ByteBuffer aHeader = ByteBuffer.allocate (RECORD_HEADER_BYTES);
+    aHeader.put (nType);
+    aHeader.putInt (aPayload.length);
+    aHeader.putInt (_getCRC (nType, ByteBuffer.wrap (aPayload)));
+    aBAOS.write (aHeader.array (), 0, RECORD_HEADER_BYTES);
+    aBAOS.write (aPayload, 0, aPayload.length);
+  }
+
+  private static long _readVarLong (@NonNull final ByteBuffer aBuffer) throws IOException
+  {
+    long ret = 0;
+    for (int nShift = 0; nShift < 64; nShift += 7)
+    {
+      final byte b = aBuffer.get ();
+      ret |= (long) (b & 0x7f) << nShift;
+      if ((b & 0x80) == 0)
+        return ret;
+    }
+    throw new IOException ("Malformed variable length number");
+  }
+
+  private static int _readVarInt (@NonNull final ByteBuffer aBuffer) throws IOException
+  {
+    return (int) _readVarLong (aBuffer);
+  }
+
+  @Nullable
+  private static String _lookup (@NonNull final List <String> aDict, final int nIndex) throws IOException
+  {
+    if (nIndex == 0)
+      return null;
+    if (nIndex > aDict.size ())
+      throw new IOException ("Invalid dictionary index " + nIndex);
+    return aDict.get (nIndex - 1);
+  }
+
+  private static void _readRecord (@NonNull final File aFile,
+                                   final byte nType,
+                                   @NonNull final ByteBuffer aPayload,
+                                   @NonNull final List <String> aDict,
+                                   @NonNull final IRecordVisitor aVisitor,
+                                   final boolean bOnlyDict) throws IOException
+  {
+    if (nType == RECORD_DICT)
+    {
+      final String sValue = StandardCharsets.UTF_8.decode (aPayload).toString ();
+      aDict.add (sValue);
+      aVisitor.onDict (sValue);
+    }
+    else
+      if (!bOnlyDict)
+        try
+        {
+          final EReportingDirection [] aDirections = EReportingDirection.values ();
+          final long nMillis = _readVarLong (aPayload);
+          final int nDirection = aPayload.get ();
+          final int [] aIndices = new int [10];
+          for (int i = 0; i < aIndices.length; ++i)
+            aIndices[i] = _readVarInt (aPayload);
+          if (nDirection < 0 || nDirection >= aDirections.length)
+            throw new IOException ("Invalid direction " + nDirection + " in " + aFile.getAbsolutePath ());
+          aVisitor.onItem (PeppolReportingItem.builder ()
+                                              .exchangeDateTime (OffsetDateTime.ofInstant (Instant.ofEpochMilli (nMillis),
+                                                                                           ZoneOffset.UTC))
+                                              .direction (aDirections[nDirection])
+                                              .c2ID (_lookup (aDict, aIndices[0]))
+                                              .c3ID (_lookup (aDict, aIndices[1]))
+                                              .docTypeIDScheme (_lookup (aDict, aIndices[2]))
+                                              .docTypeIDValue (_lookup (aDict, aIndices[3]))
+                                              .processIDScheme (_lookup (aDict, aIndices[4]))
+                                              .processIDValue (_lookup (aDict, aIndices[5]))
+                                              .transportProtocol (_lookup (aDict, aIndices[6]))
+                                              .c1CountryCode (_lookup (aDict, aIndices[7]))
+                                              .c4CountryCode (_lookup (aDict, aIndices[8]))
+                                              .endUserID (_lookup (aDict, aIndices[9]))
+                                              .build ());
+        }
+        catch (final BufferUnderflowException ex)
+        {
+          throw new IOException ("Malformed item record in " + aFile.getAbsolutePath (), ex);
+        }
+  }
+
+  /**
+   * Read all complete records of a file. The first incomplete or invalid record ends the file.
+   *
+   * @return The end of the last complete record.
+   */
+  private static long _scan (@NonNull final File aFile,
+                             final long nSize,
+                             @NonNull final IRecordVisitor aVisitor,
+                             final boolean bOnlyDict) throws IOException
+  {
+    final List <String> aDict = new ArrayList <> ();
+    long nPos = 0;
+    try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+    {
+      while (nPos < nSize)
+      {
+        final int nWindow = (int) Math.min (MAP_WINDOW_BYTES, nSize - nPos);
+        final boolean bLastWindow = nPos + nWindow >= nSize;
+        final MappedByteBuffer aBuffer = aChannel.map (FileChannel.MapMode.READ_ONLY, nPos, nWindow);
+        int nLastComplete = 0;
+        boolean bInvalid = false;
+        while (nWindow - nLastComplete >= RECORD_HEADER_BYTES)
+        {
+          final byte nType = aBuffer.get (nLastComplete);
+          final int nLength = aBuffer.getInt (nLastComplete + 1);
+          if ((nType != RECORD_DICT && nType != RECORD_ITEM) || nLength < 0 || nLength > MAX_PAYLOAD_BYTES)
+          {
+            bInvalid = true;
+            break;
+          }
+          final int nPayloadStart = nLastComplete + RECORD_HEADER_BYTES;
+          if (nPayloadStart + nLength > nWindow)
+          {
+            // Record crosses the end of the window or the end of the file
+            break;
+          }
+          final ByteBuffer aPayload = aBuffer.slice (nPayloadStart, nLength);
+          if (_getCRC (nType, aPayload.duplicate ()) != aBuffer.getInt (nLastComplete + 5))
+          {
+            bInvalid = true;
+            break;
+          }
+          _readRecord (aFile, nType, aPayload, aDict, aVisitor, bOnlyDict);
+          nLastComplete = nPayloadStart + nLength;
+        }
+        nPos += nLastComplete;
+        // Continue with the next window only, if the window ends within a valid record
+        if (bInvalid || bLastWindow || nLastComplete == 0)
+          break;
+      }
+    }
+    return nPos;
+  }
+
+  @NonNull
+  private File _getFile (@NonNull final YearMonth aYearMonth)
+  {
+    return new File (m_aDir,
+                     String.format ("reporting-%04d-%02d.bin", aYearMonth.getYear (), aYearMonth.getMonthValue ()));
+  }
+
+  /**
+   * Append a single item to the file of its month.
+   *
+   * @param aItem
+   *        The item to store. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void append (@NonNull final PeppolReportingItem aItem) throws IOException
+  {
+    ValueEnforcer.notNull (aItem, "Item");
+    final YearMonth aYearMonth = YearMonth.from (aItem.getExchangeDTUTC ().withOffsetSameInstant (ZoneOffset.UTC));
+    m_aLock.lock ();
+    try
+    {
+      Writer aWriter = m_aWriters.get (aYearMonth);
+      if (aWriter == null)
+      {
+        aWriter = new Writer (_getFile (aYearMonth));
+        m_aWriters.put (aYearMonth, aWriter);
+      }
+      aWriter.append (aItem);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Read all items with an exchange date (UTC) in the provided range.
+   *
+   * @param aStartDateIncl
+   *        Start date, inclusive. May not be <code>null</code>.
+   * @param aEndDateIncl
+   *        End date, inclusive. May not be <code>null</code>.
+   * @param aConsumer
+   *        The consumer for each matching item. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  public void forEach (@NonNull final LocalDate aStartDateIncl,
+                       @NonNull final LocalDate aEndDateIncl,
+                       @NonNull final Consumer <? super PeppolReportingItem> aConsumer) throws IOException
+  {
+    ValueEnforcer.notNull (aStartDateIncl, "StartDateIncl");
+    ValueEnforcer.notNull (aEndDateIncl, "EndDateIncl");
+    ValueEnforcer.notNull (aConsumer, "Consumer");
+
+    final IRecordVisitor aVisitor = new IRecordVisitor ()
+    {
+      public void onDict (@NonNull final String sValue)
+      {}
+
+      public void onItem (@NonNull final PeppolReportingItem aItem)
+      {
+        final LocalDate aDate = aItem.getExchangeDTUTC ().withOffsetSameInstant (ZoneOffset.UTC).toLocalDate ();
+        if (!aDate.isBefore (aStartDateIncl) && !aDate.isAfter (aEndDateIncl))
+          aConsumer.accept (aItem);
+      }
+    };
+
+    final YearMonth aLastYM = YearMonth.from (aEndDateIncl);
+    for (YearMonth aYM = YearMonth.from (aStartDateIncl); !aYM.isAfter (aLastYM); aYM = aYM.plusMonths (1))
+    {
+      // Only read what is completely written
+      final long nSize = getPartitionSize (aYM);
+      if (nSize > 0)
+        _scan (_getFile (aYM), nSize, aVisitor, false);
+    }
+  }
+
+  /**
+   * Get the number of bytes of the items of the provided month. As the file is append-only, it grows
+   * with every stored item and can be used as the version of the items of that month.
+   *
+   * @param aYearMonth
+   *        The month to use. May not be <code>null</code>.
+   * @return The size in bytes or 0 if there are no items.
+   */
+  public long getPartitionSize (@NonNull final YearMonth aYearMonth)
+  {
+    ValueEnforcer.notNull (aYearMonth, "YearMonth");
+    m_aLock.lock ();
+    try
+    {
+      final Writer aWriter = m_aWriters.get (aYearMonth);
+      return aWriter != null ? aWriter.getSize () : _getFile (aYearMonth).length ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return All months for which a file exists, in ascending order. Never <code>null</code>.
+   */
+  @NonNull
+  public List <YearMonth> getAllPartitions ()
+  {
+    final TreeMap <YearMonth, File> aMap = new TreeMap <> ();
+    final File [] aFiles = m_aDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+      {
+        final Matcher aMatcher = FILENAME.matcher (aFile.getName ());
+        if (aMatcher.matches ())
+          aMap.put (YearMonth.of (Integer.parseInt (aMatcher.group (1)), Integer.parseInt (aMatcher.group (2))), aFile);
+      }
+    return new ArrayList <> (aMap.keySet ());
+  }
+
+  /**
+   * Delete the files of all months before the provided one.
+   *
+   * @param aFirstToKeep
+   *        The first month to keep. May not be <code>null</code>.
+   * @return The number of deleted files.
+   */
+  public int deletePartitionsBefore (@NonNull final YearMonth aFirstToKeep)
+  {
+    ValueEnforcer.notNull (aFirstToKeep, "FirstToKeep");
+    int ret = 0;
+    m_aLock.lock ();
+    try
+    {
+      for (final YearMonth aYM : getAllPartitions ())
+        if (aYM.isBefore (aFirstToKeep))
+        {
+          final Writer aWriter = m_aWriters.remove (aYM);
+          if (aWriter != null)
+            aWriter.close ();
+          try
+          {
+            Files.delete (_getFile (aYM).toPath ());
+            ret++;
+          }
+          catch (final IOException ex)
+          {
+            LOGGER.warn ("Failed to delete reporting item file of " + aYM, ex);
+          }
+        }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+    return ret;
+  }
+
+  public void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      for (final Writer aWriter : m_aWriters.values ())
+        aWriter.close ();
+      m_aWriters.clear ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.security;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.state.ETriState;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.security.certificate.ECertificateCheckResult;
+import com.helger.security.certificate.TrustedCAChecker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * A shared cache for the results of Peppol AP certificate checks, used both for the C3
+ * certificates on sending and for the C2 signing certificates on receiving. The key is the SHA-256
+ * fingerprint of the certificate together with the time bucket of the check date time, so that a
+ * cached result is never used for a check date time it was not created for. Only the decisive
+ * results "valid" and "revoked" are cached. A "valid" result expires at the latest with the
+ * <code>nextUpdate</code> of the certificate's CRLs known to the {@link PersistentCRLDownloader}.
+ * The OCSP responses are not accessible from the outside, so for those the configured TTL is the
+ * only bound. The cache is persisted on shutdown and loaded on startup. The hits and misses are
+ * available as the metric <code>phase4.certificate.cache</code>.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class CertificateCheckCache
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (CertificateCheckCache.class);
+  private static final String METRIC_NAME = "phase4.certificate.cache";
+  private static final CertificateCheckCache INSTANCE = new CertificateCheckCache (APConfig.isCertificateCacheEnabled (),
+                                                                                   APConfig.getCertificateCacheTTLSeconds (),
+                                                                                   APConfig.getCertificateCacheMaxSize ());
+
+  @Immutable
+  private static final class Entry
+  {
+    private final ECertificateCheckResult m_eResult;
+    private final long m_nExpiresAtMillis;
+
+    Entry (@NonNull final ECertificateCheckResult eResult, final long nExpiresAtMillis)
+    {
+      m_eResult = eResult;
+      m_nExpiresAtMillis = nExpiresAtMillis;
+    }
+  }
+
+  private final boolean m_bEnabled;
+  private final long m_nTTLMillis;
+  private final int m_nMaxSize;
+  // Key is "fingerprint/bucket"
+  private final ConcurrentHashMap <String, Entry> m_aMap = new ConcurrentHashMap <> ();
+  private final Counter m_aHits;
+  private final Counter m_aMisses;
+  private volatile boolean m_bIncomingCheckEnabled = false;
+
+  CertificateCheckCache (final boolean bEnabled, final long nTTLSeconds, final int nMaxSize)
+  {
+    m_bEnabled = bEnabled && nTTLSeconds > 0 && nMaxSize > 0;
+    m_nTTLMillis = TimeUnit.SECONDS.toMillis (Math.max (nTTLSeconds, 0));
+    m_nMaxSize = nMaxSize;
+    m_aHits = Counter.builder (METRIC_NAME).tag ("result", "hit").register (Metrics.globalRegistry);
+    m_aMisses = Counter.builder (METRIC_NAME).tag ("result", "miss").register (Metrics.globalRegistry);
+    if (m_bEnabled)
+      LOGGER.info ("Certificate check cache is enabled with a TTL of " +
+                   nTTLSeconds +
+                   " seconds and a maximum of " +
+                   nMaxSize +
+                   " entries");
+    else
+      LOGGER.info ("Certificate check cache is disabled");
+  }
+
+  @NonNull
+  public static CertificateCheckCache getInstance ()
+  {
+    return INSTANCE;
+  }
+
+  public boolean isEnabled ()
+  {
+    return m_bEnabled;
+  }
+
+  /**
+   * @return <code>true</code> if the signing certificates of incoming messages are checked via this
+   *         cache instead of phase4 itself.
+   */
+  public boolean isIncomingCheckEnabled ()
+  {
+    return m_bIncomingCheckEnabled;
+  }
+
+  /**
+   * Let this cache perform the revocation checks of incoming signing certificates, if phase4 is
+   * configured to perform them.
+   */
+  public void takeOverIncomingRevocationCheck ()
+  {
+    if (m_bEnabled && Phase4PeppolDefaultReceiverConfiguration.isCheckSigningCertificateRevocation ())
+    {
+      Phase4PeppolDefaultReceiverConfiguration.setCheckSigningCertificateRevocation (false);
+      m_bIncomingCheckEnabled = true;
+      LOGGER.info ("The revocation checks of incoming signing certificates use the certificate check cache");
+    }
+  }
+
+  @NonNull
+  private static File _getFile ()
+  {
+    // Test and production certificates are checked against different CAs
+    return new File (AS4Configuration.getDataPath (),
+                     "certificate-check-cache-" + APConfig.getPeppolStage ().getID () + ".txt").getAbsoluteFile ();
+  }
+
+  @Nullable
+  private static String _getFingerprint (@NonNull final X509Certificate aCert)
+  {
+    try
+    {
+      return HexFormat.of ().formatHex (MessageDigest.getInstance ("SHA-256").digest (aCert.getEncoded ()));
+    }
+    catch (final NoSuchAlgorithmException | CertificateEncodingException ex)
+    {
+      LOGGER.warn ("Failed to determine certificate fingerprint", ex);
+      return null;
+    }
+  }
+
+  private static boolean _isCacheable (@NonNull final ECertificateCheckResult eResult)
+  {
+    return eResult == ECertificateCheckResult.VALID || eResult == ECertificateCheckResult.REVOKED;
+  }
+
+  /**
+   * Check the provided certificate with the provided checker, using a cached result if possible.
+   *
+   * @param aChecker
+   *        The Peppol AP CA checker to use. May not be <code>null</code>.
+   * @param aCert
+   *        The certificate to check. May be <code>null</code>.
+   * @param aCheckDT
+   *        The check date time. May not be <code>null</code>.
+   * @return The check result. Never <code>null</code>.
+   */
+  @NonNull
+  public ECertificateCheckResult checkCertificate (@NonNull final TrustedCAChecker aChecker,
+                                                   @Nullable final X509Certificate aCert,
+                                                   @NonNull final OffsetDateTime aCheckDT)
+  {
+    // The internal cache of the checker is not used - this one takes over
+    return checkCertificate (aCert, aCheckDT, () -> aChecker.checkCertificate (aCert, aCheckDT, ETriState.FALSE, null));
+  }
+
+  @NonNull
+  ECertificateCheckResult checkCertificate (@Nullable final X509Certificate aCert,
+                                            @NonNull final OffsetDateTime aCheckDT,
+                                            @NonNull final Supplier <ECertificateCheckResult> aChecker)
+  {
+    final String sFingerprint = aCert == null || !m_bEnabled ? null : _getFingerprint (aCert);
+    if (sFingerprint == null)
+      return aChecker.get ();
+
+    final long nBucket = aCheckDT.toInstant ().toEpochMilli () / m_nTTLMillis;
+    final String sKey = sFingerprint + "/" + nBucket;
+    final long nNow = System.currentTimeMillis ();
+    final Entry aEntry = m_aMap.get (sKey);
+    if (aEntry != null && aEntry.m_nExpiresAtMillis > nNow)
+    {
+      m_aHits.increment ();
+      return aEntry.m_eResult;
+    }
+    m_aMisses.increment ();
+
+    final ECertificateCheckResult ret = aChecker.get ();
+    if (_isCacheable (ret))
+    {
+      // A result must not outlive the certificate itself
+      long nExpiresAt = Math.min (nNow + m_nTTLMillis, aCert.getNotAfter ().getTime ());
+      if (ret == ECertificateCheckResult.VALID)
+      {
+        // The certificate may be revoked with the next CRL
+        final long nNextUpdate = PersistentCRLDownloader.getEarliestNextUpdateMillis (aCert);
+        if (nNextUpdate > 0)
+          nExpiresAt = Math.min (nExpiresAt, nNextUpdate);
+      }
+      if (nExpiresAt > nNow)
+      {
+        _ensureMaxSize (nNow);
+        m_aMap.put (sKey, new Entry (ret, nExpiresAt));
+      }
+    }
+    return ret;
+  }
+
+  private void _ensureMaxSize (final long nNow)
+  {
+    if (m_aMap.size () < m_nMaxSize)
+      return;
+
+    // First remove all expired entries
+    m_aMap.values ().removeIf (x -> x.m_nExpiresAtMillis <= nNow);
+
+    // Still too many - remove the entries that expire first, leaving some room to avoid doing this
+    // on every new entry
+    final int nTargetSize = m_nMaxSize - m_nMaxSize / 10 - 1;
+    final int nToRemove = m_aMap.size () - nTargetSize;
+    if (nToRemove <= 0)
+      return;
+    final List <Map.Entry <String, Entry>> aEntries = new ArrayList <> (m_aMap.entrySet ());
+    aEntries.sort (Comparator.comparingLong (e -> e.getValue ().m_nExpiresAtMillis));
+    for (int i = 0; i < nToRemove && i < aEntries.size (); ++i)
+    {
+      final Map.Entry <String, Entry> aEntry = aEntries.get (i);
+      m_aMap.remove (aEntry.getKey (), aEntry.getValue ());
+    }
+  }
+
+  /**
+   * @return The number of cached results, including expired ones.
+   */
+  int size ()
+  {
+    return m_aMap.size ();
+  }
+
+  /**
+   * Load the persisted entries, so that a restart does not start with an empty cache.
+   */
+  public void load ()
+  {
+    if (m_bEnabled)
+      load (_getFile ());
+  }
+
+  void load (@NonNull final File aFile)
+  {
+    if (!aFile.isFile ())
+      return;
+
+    final long nNow = System.currentTimeMillis ();
+    int nCount = 0;
+    try (final BufferedReader aReader = Files.newBufferedReader (aFile.toPath (), StandardCharsets.UTF_8))
+    {
+      String sLine;
+      while ((sLine = aReader.readLine ()) != null)
+      {
+        // Format: key;result;expiresAtMillis
+        final String [] aParts = sLine.split (";");
+        if (aParts.length != 3)
+          continue;
+        try
+        {
+          final ECertificateCheckResult eResult = ECertificateCheckResult.valueOf (aParts[1]);
+          final long nExpiresAt = Long.parseLong (aParts[2]);
+          if (nExpiresAt > nNow && _isCacheable (eResult) && m_aMap.size () < m_nMaxSize)
+          {
+            m_aMap.put (aParts[0], new Entry (eResult, nExpiresAt));
+            nCount++;
+          }
+        }
+        catch (final IllegalArgumentException ex)
+        {
+          // Ignore invalid line
+        }
+      }
+      LOGGER.info ("Loaded " + nCount + " certificate check results from '" + aFile.getAbsolutePath () + "'");
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to load certificate check results from '" + aFile.getAbsolutePath () + "'", ex);
+    }
+  }
+
+  /**
+   * Persist all entries that are not yet expired.
+   */
+  public void save ()
+  {
+    if (m_bEnabled)
+      save (_getFile ());
+  }
+
+  void save (@NonNull final File aFile)
+  {
+    final File aTmpFile = new File (aFile.getParentFile (), aFile.getName () + ".tmp");
+    final long nNow = System.currentTimeMillis ();
+    try
+    {
+      Files.createDirectories (aFile.getParentFile ().toPath ());
+      try (final BufferedWriter aWriter = Files.newBufferedWriter (aTmpFile.toPath (), StandardCharsets.UTF_8))
+      {
+        for (final Map.Entry <String, Entry> aEntry : m_aMap.entrySet ())
+          if (aEntry.getValue ().m_nExpiresAtMillis > nNow)
+          {
+            aWriter.write (aEntry.getKey () +
+                           ";" +
+                           aEntry.getValue ().m_eResult.name () +
+                           ";" +
+                           aEntry.getValue ().m_nExpiresAtMillis);
+            aWriter.newLine ();
+          }
+      }
+      Files.move (aTmpFile.toPath (),
+                  aFile.toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to save certificate check results to '" + aFile.getAbsolutePath () + "'", ex);
+    }
+  }
+}
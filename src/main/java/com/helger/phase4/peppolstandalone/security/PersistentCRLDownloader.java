@@ -0,0 +1,672 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonnegative;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.httpclient.HttpClientSettings;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APThreadFactory;
+import com.helger.phase4.profile.peppol.PeppolCRLDownloader;
+import com.helger.security.crl.CRLCache;
+import com.helger.security.revocation.CertificateRevocationCheckerDefaults;
+
+/**
+ * A CRL downloader that serves CRLs from memory and keeps them up to date in the background. All
+ * CRLs are persisted in a directory, so that a restart starts with the known CRLs. Each CRL is
+ * refreshed shortly before its <code>nextUpdate</code>. CRL URLs that were not known before are
+ * downloaded once on a separate download executor. The requesting thread only waits a short,
+ * configurable time for it, so that a slow CRL server does not block the request. If the download
+ * is not finished by then, it fails for this caller (so the revocation check follows its soft-fail
+ * rules) and the CRL is used as soon as the download finishes. Only a limited number of CRL URLs
+ * is kept up to date: URLs that were not used for a configurable time are dropped and if the limit
+ * is reached, the least recently used URL is dropped.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class PersistentCRLDownloader extends PeppolCRLDownloader
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (PersistentCRLDownloader.class);
+  // Retry failed downloads after this time
+  private static final long RETRY_SECONDS = 60;
+  // Maximum number of concurrent initial downloads
+  private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+  // The CRLCache re-reads the CRLs from here in this interval, to pick up refreshed CRLs
+  private static final Duration CRL_CACHE_DURATION = Duration.ofMinutes (5);
+  private static final Lock LOCK = new ReentrantLock ();
+  private static PersistentCRLDownloader s_aInstance;
+
+  @Immutable
+  private static final class StoredCRL
+  {
+    private final byte [] m_aBytes;
+    private final long m_nNextUpdateMillis;
+
+    StoredCRL (final byte @NonNull [] aBytes, final long nNextUpdateMillis)
+    {
+      m_aBytes = aBytes;
+      m_nNextUpdateMillis = nNextUpdateMillis;
+    }
+  }
+
+  private final File m_aDir;
+  private final long m_nRefreshMarginMillis;
+  private final long m_nMaxRefreshIntervalMillis;
+  private final long m_nRequestWaitMillis;
+  private final int m_nMaxURLs;
+  private final long m_nUnusedExpiryMillis;
+  private final ConcurrentHashMap <String, StoredCRL> m_aCRLs = new ConcurrentHashMap <> ();
+  // URLs that are kept up to date, with the last usage in milliseconds. The AtomicLong instance
+  // identifies the registration, so that refreshes of a dropped registration stop.
+  private final ConcurrentHashMap <String, AtomicLong> m_aRegistered = new ConcurrentHashMap <> ();
+  private final Lock m_aRegisterLock = new ReentrantLock ();
+  // Running initial downloads
+  private final ConcurrentHashMap <String, CompletableFuture <StoredCRL>> m_aPending = new ConcurrentHashMap <> ();
+  private final ScheduledExecutorService m_aRefreshExecutor;
+  private final ExecutorService m_aDownloadExecutor;
+  private final Semaphore m_aDownloadPermits = new Semaphore (MAX_CONCURRENT_DOWNLOADS);
+
+  protected PersistentCRLDownloader (@NonNull final HttpClientSettings aHCS,
+                                     @NonNull final File aDir,
+                                     final long nRefreshMarginSeconds,
+                                     final long nMaxRefreshIntervalSeconds,
+                                     @Nonnegative final long nRequestWaitMillis,
+                                     @Nonnegative final int nMaxURLs,
+                                     @Nonnegative final long nUnusedExpiryMillis)
+  {
+    super (aHCS);
+    ValueEnforcer.isGE0 (nRequestWaitMillis, "RequestWaitMillis");
+    ValueEnforcer.isGT0 (nMaxURLs, "MaxURLs");
+    ValueEnforcer.isGE0 (nUnusedExpiryMillis, "UnusedExpiryMillis");
+    m_aDir = aDir;
+    m_nRefreshMarginMillis = TimeUnit.SECONDS.toMillis (Math.max (nRefreshMarginSeconds, 0));
+    m_nMaxRefreshIntervalMillis = TimeUnit.SECONDS.toMillis (Math.max (nMaxRefreshIntervalSeconds, RETRY_SECONDS));
+    m_nRequestWaitMillis = nRequestWaitMillis;
+    m_nMaxURLs = nMaxURLs;
+    m_nUnusedExpiryMillis = nUnusedExpiryMillis;
+    final ScheduledThreadPoolExecutor aExecutor = new ScheduledThreadPoolExecutor (1,
+                                                                                   APThreadFactory.create ("phase4-crl-refresh-"));
+    aExecutor.setRemoveOnCancelPolicy (true);
+    m_aRefreshExecutor = aExecutor;
+    // Initial downloads must not queue behind the refreshes
+    m_aDownloadExecutor = APThreadFactory.createExecutor ("phase4-crl-download-", MAX_CONCURRENT_DOWNLOADS);
+  }
+
+  @NonNull
+  private static String _getHash (@NonNull final String sURL)
+  {
+    try
+    {
+      return HexFormat.of ().formatHex (MessageDigest.getInstance ("SHA-256").digest (sURL.getBytes (StandardCharsets.UTF_8)));
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+  @NonNull
+  private static X509CRL _parse (final byte @NonNull [] aBytes) throws CertificateException
+  {
+    try
+    {
+      return (X509CRL) CertificateFactory.getInstance ("X.509").generateCRL (new ByteArrayInputStream (aBytes));
+    }
+    catch (final CRLException ex)
+    {
+      throw new CertificateException ("Failed to parse CRL", ex);
+    }
+  }
+
+  @NonNull
+  private StoredCRL _createStoredCRL (final byte @NonNull [] aBytes) throws CertificateException
+  {
+    final X509CRL aCRL = _parse (aBytes);
+    // Without nextUpdate, refresh in the maximum interval
+    final long nNextUpdate = aCRL.getNextUpdate () != null ? aCRL.getNextUpdate ().getTime () : System.currentTimeMillis () +
+                                                                                                 m_nMaxRefreshIntervalMillis;
+    return new StoredCRL (aBytes, nNextUpdate);
+  }
+
+  private void _persist (@NonNull final String sURL, final byte @NonNull [] aBytes)
+  {
+    final String sHash = _getHash (sURL);
+    try
+    {
+      Files.createDirectories (m_aDir.toPath ());
+      final File aTmpFile = new File (m_aDir, sHash + ".crl.tmp");
+      Files.write (aTmpFile.toPath (), aBytes);
+      Files.move (aTmpFile.toPath (),
+                  new File (m_aDir, sHash + ".crl").toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      Files.writeString (new File (m_aDir, sHash + ".url").toPath (), sURL, StandardCharsets.UTF_8);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to persist CRL from '" + sURL + "'", ex);
+    }
+  }
+
+  private void _deletePersisted (@NonNull final String sURL)
+  {
+    final String sHash = _getHash (sURL);
+    try
+    {
+      // Delete the URL file first, so that a partial deletion is not loaded again
+      Files.deleteIfExists (new File (m_aDir, sHash + ".url").toPath ());
+      Files.deleteIfExists (new File (m_aDir, sHash + ".crl").toPath ());
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to delete persisted CRL from '" + sURL + "'", ex);
+    }
+  }
+
+  /**
+   * Load all persisted CRLs, including expired ones - they are refreshed immediately.
+   */
+  private void _loadAll ()
+  {
+    final File [] aFiles = m_aDir.listFiles ( (d, n) -> n.endsWith (".url"));
+    if (aFiles == null)
+      return;
+
+    for (final File aURLFile : aFiles)
+    {
+      final String sHash = aURLFile.getName ().substring (0, aURLFile.getName ().length () - 4);
+      try
+      {
+        final String sURL = Files.readString (aURLFile.toPath (), StandardCharsets.UTF_8).trim ();
+        final byte [] aBytes = Files.readAllBytes (new File (m_aDir, sHash + ".crl").toPath ());
+        m_aCRLs.put (sURL, _createStoredCRL (aBytes));
+      }
+      catch (final IOException | CertificateException ex)
+      {
+        LOGGER.warn ("Failed to load persisted CRL '" + sHash + "'", ex);
+      }
+    }
+    LOGGER.info ("Loaded " + m_aCRLs.size () + " persisted CRLs from '" + m_aDir.getAbsolutePath () + "'");
+  }
+
+  /**
+   * Download the CRL content from the network. Overridable for testing.
+   *
+   * @param aURL
+   *        The CRL URL. May not be <code>null</code>.
+   * @return The downloaded bytes or <code>null</code>.
+   * @throws IOException
+   *         On download error
+   */
+  protected byte @Nullable [] downloadFromNetwork (@NonNull final URL aURL) throws IOException
+  {
+    return super.downloadContent (aURL);
+  }
+
+  /**
+   * Download the CRL from the network and store it.
+   */
+  @NonNull
+  private StoredCRL _download (@NonNull final String sURL) throws Exception
+  {
+    final byte [] aBytes = downloadFromNetwork (new URL (sURL));
+    if (aBytes == null)
+      throw new IOException ("Failed to download CRL from '" + sURL + "'");
+    final StoredCRL ret = _createStoredCRL (aBytes);
+    m_aCRLs.put (sURL, ret);
+    _persist (sURL, aBytes);
+    LOGGER.info ("Downloaded CRL from '" + sURL + "' (" + aBytes.length + " bytes)");
+    return ret;
+  }
+
+  private void _scheduleRefresh (@NonNull final String sURL,
+                                 @NonNull final AtomicLong aRegistration,
+                                 final long nDelayMillis)
+  {
+    try
+    {
+      m_aRefreshExecutor.schedule ( () -> _refresh (sURL, aRegistration),
+                                    Math.max (nDelayMillis, 0),
+                                    TimeUnit.MILLISECONDS);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Shut down
+    }
+  }
+
+  private long _getRefreshDelayMillis (@NonNull final StoredCRL aCRL)
+  {
+    final long nNow = System.currentTimeMillis ();
+    final long nDelay = aCRL.m_nNextUpdateMillis - m_nRefreshMarginMillis - nNow;
+    return Math.min (nDelay, m_nMaxRefreshIntervalMillis);
+  }
+
+  /**
+   * Stop keeping the CRL up to date and forget it.
+   */
+  private void _unregister (@NonNull final String sURL,
+                            @NonNull final AtomicLong aRegistration,
+                            @NonNull final String sReason)
+  {
+    if (m_aRegistered.remove (sURL, aRegistration))
+    {
+      m_aCRLs.remove (sURL);
+      _deletePersisted (sURL);
+      LOGGER.info ("Dropped CRL '" + sURL + "' because " + sReason);
+    }
+  }
+
+  private void _refresh (@NonNull final String sURL, @NonNull final AtomicLong aRegistration)
+  {
+    // Dropped or registered again in the meantime
+    if (m_aRegistered.get (sURL) != aRegistration)
+      return;
+
+    if (System.currentTimeMillis () - aRegistration.get () >= m_nUnusedExpiryMillis)
+    {
+      _unregister (sURL, aRegistration, "it was not used for " + m_nUnusedExpiryMillis + " ms");
+      return;
+    }
+
+    try
+    {
+      final StoredCRL aCRL = _download (sURL);
+      if (m_aRegistered.get (sURL) != aRegistration)
+      {
+        // Dropped while downloading
+        if (!m_aRegistered.containsKey (sURL))
+        {
+          m_aCRLs.remove (sURL);
+          _deletePersisted (sURL);
+        }
+        return;
+      }
+      _scheduleRefresh (sURL,
+                        aRegistration,
+                        Math.max (_getRefreshDelayMillis (aCRL), TimeUnit.SECONDS.toMillis (RETRY_SECONDS)));
+    }
+    catch (final Exception ex)
+    {
+      // Keep the old CRL and try again later
+      LOGGER.warn ("Failed to refresh CRL from '" + sURL + "': " + ex.getMessage ());
+      _scheduleRefresh (sURL, aRegistration, TimeUnit.SECONDS.toMillis (RETRY_SECONDS));
+    }
+  }
+
+  /**
+   * Make sure the CRL of the provided URL is kept up to date in the background. This also marks the
+   * CRL as used. If the maximum number of CRL URLs is reached, the least recently used one is
+   * dropped.
+   *
+   * @param sURL
+   *        The CRL URL. May not be <code>null</code>.
+   */
+  public void register (@NonNull final String sURL)
+  {
+    final long nNow = System.currentTimeMillis ();
+    final AtomicLong aExisting = m_aRegistered.get (sURL);
+    if (aExisting != null)
+    {
+      aExisting.set (nNow);
+      return;
+    }
+
+    final AtomicLong aRegistration = new AtomicLong (nNow);
+    m_aRegisterLock.lock ();
+    try
+    {
+      if (m_aRegistered.putIfAbsent (sURL, aRegistration) != null)
+        return;
+
+      while (m_aRegistered.size () > m_nMaxURLs)
+      {
+        // Find the least recently used other URL
+        Map.Entry <String, AtomicLong> aOldest = null;
+        for (final Map.Entry <String, AtomicLong> aEntry : m_aRegistered.entrySet ())
+          if (aEntry.getValue () != aRegistration &&
+              (aOldest == null || aEntry.getValue ().get () < aOldest.getValue ().get ()))
+            aOldest = aEntry;
+        if (aOldest == null)
+          break;
+        _unregister (aOldest.getKey (),
+                     aOldest.getValue (),
+                     "the maximum of " + m_nMaxURLs + " CRL URLs is reached");
+      }
+    }
+    finally
+    {
+      m_aRegisterLock.unlock ();
+    }
+
+    final StoredCRL aCRL = m_aCRLs.get (sURL);
+    _scheduleRefresh (sURL, aRegistration, aCRL == null ? 0 : _getRefreshDelayMillis (aCRL));
+  }
+
+  /**
+   * @return The number of CRL URLs that are kept up to date.
+   */
+  @Nonnegative
+  int getRegisteredURLCount ()
+  {
+    return m_aRegistered.size ();
+  }
+
+  boolean isRegistered (@NonNull final String sURL)
+  {
+    return m_aRegistered.containsKey (sURL);
+  }
+
+  /**
+   * @return The number of CRLs in memory.
+   */
+  @Nonnegative
+  int getCRLCount ()
+  {
+    return m_aCRLs.size ();
+  }
+
+  @NonNull
+  private CompletableFuture <StoredCRL> _startDownload (@NonNull final String sURL)
+  {
+    final CompletableFuture <StoredCRL> ret = new CompletableFuture <> ();
+    try
+    {
+      m_aDownloadExecutor.execute ( () -> {
+        try
+        {
+          m_aDownloadPermits.acquire ();
+          try
+          {
+            final StoredCRL aCRL = _download (sURL);
+            // Keep it up to date, even if the caller timed out
+            register (sURL);
+            ret.complete (aCRL);
+          }
+          finally
+          {
+            m_aDownloadPermits.release ();
+          }
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          ret.completeExceptionally (ex);
+        }
+        catch (final Exception ex)
+        {
+          ret.completeExceptionally (ex);
+        }
+        finally
+        {
+          m_aPending.remove (sURL, ret);
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aPending.remove (sURL, ret);
+      ret.completeExceptionally (ex);
+    }
+    return ret;
+  }
+
+  @Override
+  @Nullable
+  protected byte [] downloadContent (@NonNull final URL aDestURL) throws IOException
+  {
+    final String sURL = aDestURL.toExternalForm ();
+    final StoredCRL aCRL = m_aCRLs.get (sURL);
+    if (aCRL != null)
+    {
+      register (sURL);
+      return aCRL.m_aBytes;
+    }
+
+    // Not known yet - download once in the background, even if requested concurrently
+    final CompletableFuture <StoredCRL> aFuture = m_aPending.computeIfAbsent (sURL, this::_startDownload);
+    try
+    {
+      // Only wait shortly, to not block the request
+      final StoredCRL ret = aFuture.get (m_nRequestWaitMillis, TimeUnit.MILLISECONDS);
+      m_aPending.remove (sURL, aFuture);
+      return ret.m_aBytes;
+    }
+    catch (final TimeoutException ex)
+    {
+      // The download continues in the background and is used by later checks
+      throw new IOException ("CRL from '" + sURL + "' is not available after waiting " + m_nRequestWaitMillis + " ms",
+                             ex);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new IOException ("Interrupted while downloading CRL from '" + sURL + "'", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      // Allow a new attempt with the next request
+      m_aPending.remove (sURL, aFuture);
+      throw new IOException ("Failed to download CRL from '" + sURL + "'", ex.getCause ());
+    }
+  }
+
+  /**
+   * Get all CRL distribution point URLs of the provided certificate.
+   *
+   * @param aCert
+   *        The certificate to use. May not be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty set.
+   */
+  @NonNull
+  public static Set <String> getAllCRLDistributionPointURLs (@NonNull final X509Certificate aCert)
+  {
+    final Set <String> ret = new LinkedHashSet <> ();
+    final byte [] aExtValue = aCert.getExtensionValue (Extension.cRLDistributionPoints.getId ());
+    if (aExtValue != null)
+      try
+      {
+        final ASN1Primitive aPrimitive = JcaX509ExtensionUtils.parseExtensionValue (aExtValue);
+        for (final DistributionPoint aDP : CRLDistPoint.getInstance (aPrimitive).getDistributionPoints ())
+        {
+          final DistributionPointName aDPN = aDP.getDistributionPoint ();
+          if (aDPN != null && aDPN.getType () == DistributionPointName.FULL_NAME)
+            for (final GeneralName aName : GeneralNames.getInstance (aDPN.getName ()).getNames ())
+              if (aName.getTagNo () == GeneralName.uniformResourceIdentifier)
+                ret.add (aName.getName ().toString ());
+        }
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to read the CRL distribution points of the certificate", ex);
+      }
+    return ret;
+  }
+
+  /**
+   * Get the earliest <code>nextUpdate</code> of all CRLs of the provided certificate, that are
+   * already known.
+   *
+   * @param aCert
+   *        The certificate to use. May not be <code>null</code>.
+   * @return The <code>nextUpdate</code> in milliseconds since the epoch or -1 if the downloader is
+   *         not installed or none of the CRLs is known.
+   */
+  public static long getEarliestNextUpdateMillis (@NonNull final X509Certificate aCert)
+  {
+    final PersistentCRLDownloader aDownloader;
+    LOCK.lock ();
+    try
+    {
+      aDownloader = s_aInstance;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+    if (aDownloader == null)
+      return -1;
+
+    long ret = -1;
+    for (final String sURL : getAllCRLDistributionPointURLs (aCert))
+    {
+      final StoredCRL aCRL = aDownloader.m_aCRLs.get (sURL);
+      if (aCRL != null && (ret < 0 || aCRL.m_nNextUpdateMillis < ret))
+        ret = aCRL.m_nNextUpdateMillis;
+    }
+    return ret;
+  }
+
+  /**
+   * Install the persistent downloader as the default CRL source and prefetch all CRLs that are
+   * known from the last run or from the configuration.
+   *
+   * @param aHCS
+   *        The HTTP client settings for downloading. May not be <code>null</code>.
+   */
+  public static void install (@NonNull final HttpClientSettings aHCS)
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+        return;
+
+      final PersistentCRLDownloader aDownloader = new PersistentCRLDownloader (aHCS,
+                                                                               APConfig.getCRLStoreDirectory (),
+                                                                               APConfig.getCRLRefreshMarginSeconds (),
+                                                                               APConfig.getCRLMaxRefreshIntervalSeconds (),
+                                                                               APConfig.getCRLRequestWaitMillis (),
+                                                                               APConfig.getCRLMaxURLs (),
+                                                                               TimeUnit.SECONDS.toMillis (APConfig.getCRLUnusedExpirySeconds ()));
+      aDownloader._loadAll ();
+      CertificateRevocationCheckerDefaults.setDefaultCRLCache (new CRLCache (aDownloader, CRL_CACHE_DURATION));
+
+      // Prefetch
+      for (final String sURL : aDownloader.m_aCRLs.keySet ())
+        aDownloader.register (sURL);
+      for (final String sURL : APConfig.getCRLPrefetchURLs ())
+        aDownloader.register (sURL);
+
+      s_aInstance = aDownloader;
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Prefetch the CRLs of the provided certificate. For the own AP certificate these are the CRLs
+   * of the Peppol AP CA, that are needed to check all other APs.
+   *
+   * @param aCert
+   *        The certificate to use. May not be <code>null</code>.
+   */
+  public static void prefetchFor (@NonNull final X509Certificate aCert)
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+        for (final String sURL : getAllCRLDistributionPointURLs (aCert))
+          s_aInstance.register (sURL);
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+
+  /**
+   * Stop the background refresh and all running downloads.
+   */
+  void close ()
+  {
+    m_aRefreshExecutor.shutdownNow ();
+    m_aDownloadExecutor.shutdownNow ();
+  }
+
+  /**
+   * Stop the background refresh.
+   */
+  public static void shutdown ()
+  {
+    LOCK.lock ();
+    try
+    {
+      if (s_aInstance != null)
+      {
+        s_aInstance.close ();
+        s_aInstance = null;
+      }
+    }
+    finally
+    {
+      LOCK.unlock ();
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.helger.phase4.peppolstandalone.servlet;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 
@@ -36,7 +37,6 @@ import com.helger.httpclient.HttpDebugger;
 import com.helger.mime.CMimeType;
 import com.helger.peppol.reporting.api.backend.IPeppolReportingBackendSPI;
 import com.helger.peppol.reporting.api.backend.PeppolReportingBackend;
-import com.helger.peppol.security.PeppolTrustedCA;
 import com.helger.peppol.servicedomain.EPeppolNetwork;
 import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.crypto.AS4CryptoFactoryConfiguration;
@@ -51,6 +51,20 @@ import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.APConfigWatcher;
+import com.helger.phase4.peppolstandalone.dump.AsyncAS4IncomingDumper;
+import com.helger.phase4.peppolstandalone.dump.AsyncAS4OutgoingDumper;
+import com.helger.phase4.peppolstandalone.dump.AsyncDumpWriter;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicy;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicyManager;
+import com.helger.phase4.peppolstandalone.inbound.DuplicateIndex;
+import com.helger.phase4.peppolstandalone.inbound.InboundSpool;
+import com.helger.phase4.peppolstandalone.outbound.AsyncSendJobManager;
+import com.helger.phase4.peppolstandalone.outbound.OutboundHttpClientPool;
+import com.helger.phase4.peppolstandalone.outbound.OutboundQueue;
+import com.helger.phase4.peppolstandalone.security.CertificateCheckCache;
+import com.helger.phase4.peppolstandalone.security.PersistentCRLDownloader;
+import com.helger.phase4.peppolstandalone.spi.CustomPeppolIncomingSBDHandlerSPI;
 import com.helger.phase4.profile.peppol.AS4PeppolProfileRegistarSPI;
 import com.helger.phase4.profile.peppol.PeppolCRLDownloader;
 import com.helger.phase4.profile.peppol.Phase4PeppolHttpClientSettings;
@@ -161,8 +175,28 @@ public class ServletConfig
     AS4ServerInitializer.initAS4Server ();
 
     // dump all messages to a file
-    AS4DumpManager.setIncomingDumper (new AS4IncomingDumperFileBased ());
-    AS4DumpManager.setOutgoingDumper (new AS4OutgoingDumperFileBased ());
+    if (APConfig.isAsyncDumpEnabled ())
+    {
+      // Keep the file I/O away from the request threads
+      final AsyncDumpWriter aDumpWriter;
+      try
+      {
+        aDumpWriter = AsyncDumpWriter.init ();
+      }
+      catch (final IOException ex)
+      {
+        throw new InitializationException ("Failed to init the asynchronous AS4 message dumper", ex);
+      }
+      // Decides which exchanges are dumped - can be changed at runtime
+      DumpPolicyManager.getInstance ().setPolicy (DumpPolicy.createFromConfig ());
+      AS4DumpManager.setIncomingDumper (new AsyncAS4IncomingDumper (aDumpWriter));
+      AS4DumpManager.setOutgoingDumper (new AsyncAS4OutgoingDumper (aDumpWriter));
+    }
+    else
+    {
+      AS4DumpManager.setIncomingDumper (new AS4IncomingDumperFileBased ());
+      AS4DumpManager.setOutgoingDumper (new AS4OutgoingDumperFileBased ());
+    }
   }
 
   private static void _initPeppolAS4 ()
@@ -173,7 +207,13 @@ public class ServletConfig
     {
       final Phase4PeppolHttpClientSettings aHCS = new Phase4PeppolHttpClientSettings ();
       APConfig.applyHttpProxySettings (aHCS);
-      PeppolCRLDownloader.setAsDefaultCRLCache (aHCS);
+      if (APConfig.isCRLStoreEnabled ())
+      {
+        // Keep the CRLs up to date in the background and persist them
+        PersistentCRLDownloader.install (aHCS);
+      }
+      else
+        PeppolCRLDownloader.setAsDefaultCRLCache (aHCS);
     }
 
     // Throws an exception if configuration parameters are missing
@@ -195,8 +235,10 @@ public class ServletConfig
 
     final X509Certificate aAPCert = (X509Certificate) aPKE.getCertificate ();
 
-    final TrustedCAChecker aAPCAChecker = eStage.isProduction () ? PeppolTrustedCA.peppolProductionAP ()
-                                                                 : PeppolTrustedCA.peppolTestAP ();
+    // The CRLs of our own issuer are needed to check the other APs
+    PersistentCRLDownloader.prefetchFor (aAPCert);
+
+    final TrustedCAChecker aAPCAChecker = APConfig.getAPCAChecker ();
 
     // Check the configured Peppol AP certificate
     // * No caching
@@ -223,6 +265,10 @@ public class ServletConfig
     // Must be set independent on the enabled/disable status
     Phase4PeppolDefaultReceiverConfiguration.setAPCAChecker (aAPCAChecker);
 
+    // Avoid checking the same certificates over and over again
+    CertificateCheckCache.getInstance ().load ();
+    CertificateCheckCache.getInstance ().takeOverIncomingRevocationCheck ();
+
     // Eventually enable the receiver check, so that for each incoming request
     // the validity is crosscheck against the owning SMP
     final String sSMPURL = APConfig.getMySmpUrl ();
@@ -248,6 +294,47 @@ public class ServletConfig
     // Initialize the Reporting Backend only once
     if (PeppolReportingBackend.getBackendService ().initBackend (APConfig.getConfig ()).isFailure ())
       throw new InitializationException ("Failed to init Peppol Reporting Backend Service");
+
+    // Resume all messages that were not sent before the last shutdown
+    if (APConfig.isOutboundQueueEnabled ())
+    {
+      try
+      {
+        OutboundQueue.init ();
+      }
+      catch (final IOException ex)
+      {
+        throw new InitializationException ("Failed to init the durable outbound queue", ex);
+      }
+    }
+
+    // Process all messages that were received but not processed before the last shutdown
+    if (APConfig.isInboundSpoolEnabled ())
+    {
+      try
+      {
+        InboundSpool.init (CustomPeppolIncomingSBDHandlerSPI::processInboundMessage);
+      }
+      catch (final IOException ex)
+      {
+        throw new InitializationException ("Failed to init the durable inbound spool", ex);
+      }
+    }
+
+    if (APConfig.isDuplicateIndexEnabled ())
+    {
+      try
+      {
+        DuplicateIndex.init ();
+      }
+      catch (final IOException ex)
+      {
+        throw new InitializationException ("Failed to init the inbound duplicate index", ex);
+      }
+    }
+
+    // Apply changes to the configuration file without a restart
+    APConfigWatcher.start ();
   }
 
   /**
@@ -262,12 +349,35 @@ public class ServletConfig
     {
       if (WebScopeManager.isGlobalScopePresent ())
       {
+        APConfigWatcher.stop ();
+
         // Shutdown the Peppol Reporting Backend service, if it was initialized
         final IPeppolReportingBackendSPI aPRBS = PeppolReportingBackend.getBackendService ();
         if (aPRBS != null && aPRBS.isInitialized ())
           aPRBS.shutdownBackend ();
 
+        // Finish pending asynchronous sending jobs
+        AsyncSendJobManager.getInstance ().shutdown ();
+
+        // Stop the outbound queue - unfinished messages are resumed on the next start
+        OutboundQueue.shutdown ();
+
+        // Stop the inbound spool - unprocessed messages are resumed on the next start
+        InboundSpool.shutdown ();
+        DuplicateIndex.shutdown ();
+
+        // Close all outbound connections
+        OutboundHttpClientPool.shutdown ();
+
+        // Keep the certificate check results for the next start
+        CertificateCheckCache.getInstance ().save ();
+        PersistentCRLDownloader.shutdown ();
+
         AS4ServerInitializer.shutdownAS4Server ();
+
+        // Write all pending dumps
+        AsyncDumpWriter.shutdown ();
+
         WebFileIO.resetPaths ();
         WebScopeManager.onGlobalEnd ();
       }
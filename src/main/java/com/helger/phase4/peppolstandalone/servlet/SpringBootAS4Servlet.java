@@ -31,6 +31,7 @@ import com.helger.phase4.peppol.servlet.Phase4PeppolAS4Servlet;
 import com.helger.phase4.peppol.servlet.Phase4PeppolDefaultReceiverConfiguration;
 import com.helger.phase4.peppol.servlet.Phase4PeppolReceiverConfiguration;
 import com.helger.phase4.peppol.servlet.Phase4PeppolServletMessageProcessorSPI;
+import com.helger.phase4.peppolstandalone.inbound.InboundMetrics;
 import com.helger.phase4.servlet.AS4UnifiedResponse;
 import com.helger.security.certificate.CertificateDecodeHelper;
 import com.helger.smpclient.peppol.SMPClientReadOnly;
@@ -52,6 +53,9 @@ public class SpringBootAS4Servlet extends Phase4PeppolAS4Servlet
         // Parent always first
         super.customizeBeforeHandling (aRequestScope, aUnifiedResponse, aRequestHandler);
 
+        // Start measuring the inbound message
+        InboundMetrics.begin ();
+
         final AS4CryptoFactoryInMemoryKeyStore aCryptoFactory = ServletConfig.getCryptoFactoryToUse ();
 
         // This method refers to the outer static method
@@ -118,6 +122,16 @@ public class SpringBootAS4Servlet extends Phase4PeppolAS4Servlet
                          .setReceiverCheckData (aReceiverCheckData);
         }
 
+        // Remember AS4 errors for the inbound metrics
+        aRequestHandler.setErrorConsumer ( (aMessageMetadata, aIncomingState, aEbmsErrors, aAS4ErrorMsg) -> {
+          final InboundMetrics aMetrics = InboundMetrics.getCurrent ();
+          if (aMetrics != null)
+          {
+            aMetrics.setC2Certificate (aIncomingState.getSigningCertificate ());
+            aMetrics.setAS4Error ();
+          }
+        });
+
         if (false)
         {
           // Install a global consumer that is called every time an inbound message triggers an AS4
@@ -136,6 +150,9 @@ public class SpringBootAS4Servlet extends Phase4PeppolAS4Servlet
                                           @NonNull final AS4UnifiedResponse aUnifiedResponse,
                                           @NonNull final AS4RequestHandler aRequestHandler)
       {
+        // Publish the metrics of the inbound message
+        InboundMetrics.end ();
+
         // Parent always last
         super.customizeAfterHandling (aRequestScope, aUnifiedResponse, aRequestHandler);
       }
@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.peppolstandalone.spi;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 
 import org.jspecify.annotations.NonNull;
@@ -40,11 +41,20 @@ import com.helger.phase4.incoming.IAS4IncomingMessageMetadata;
 import com.helger.phase4.incoming.IAS4IncomingMessageState;
 import com.helger.phase4.logging.Phase4LoggerFactory;
 import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.peppol.servlet.IPhase4PeppolIncomingSBDHandlerSPI;
 import com.helger.phase4.peppol.servlet.Phase4PeppolServletMessageProcessorSPI;
 import com.helger.phase4.peppolstandalone.APConfig;
+import com.helger.phase4.peppolstandalone.dump.DumpMessageInfo;
+import com.helger.phase4.peppolstandalone.dump.DumpPolicyManager;
+import com.helger.phase4.peppolstandalone.inbound.DuplicateIndex;
+import com.helger.phase4.peppolstandalone.inbound.InboundMetrics;
+import com.helger.phase4.peppolstandalone.inbound.InboundMessage;
+import com.helger.phase4.peppolstandalone.inbound.InboundSpool;
+import com.helger.phase4.peppolstandalone.security.CertificateCheckCache;
 import com.helger.phase4.util.Phase4Exception;
 import com.helger.security.certificate.CertificateHelper;
+import com.helger.security.certificate.ECertificateCheckResult;
 
 /**
  * This is a way of handling incoming Peppol messages
@@ -65,10 +75,97 @@ public class CustomPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingS
                                  @NonNull final IAS4IncomingMessageState aIncomingState,
                                  @NonNull final AS4ErrorList aProcessingErrorMessages) throws Exception
   {
-    if (!APConfig.isReceivingEnabled ())
+    final InboundMetrics aMetrics = InboundMetrics.getCurrent ();
+    if (aMetrics == null)
     {
-      LOGGER.info ("Peppol AP receiving is disabled");
-      throw new Phase4Exception ("Peppol AP receiving is disabled");
+      _handleIncomingSBD (aMessageMetadata, aUserMessage, aSBDBytes, aPeppolSBD, aIncomingState, null);
+      return;
+    }
+
+    // Decryption, signature verification, receiver check and SBDH parsing are done
+    aMetrics.endStage (InboundMetrics.EStage.AS4_PROCESSING);
+    aMetrics.setC2Certificate (aIncomingState.getSigningCertificate ());
+    aMetrics.setDocTypeID (aPeppolSBD.getDocumentTypeAsIdentifier ());
+    try
+    {
+      _handleIncomingSBD (aMessageMetadata, aUserMessage, aSBDBytes, aPeppolSBD, aIncomingState, aMetrics);
+    }
+    catch (final Exception ex)
+    {
+      aMetrics.setHandlerException ();
+      throw ex;
+    }
+    finally
+    {
+      aMetrics.endStage (InboundMetrics.EStage.HANDLER);
+    }
+  }
+
+  private static void _handleIncomingSBD (@NonNull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                          @NonNull final Ebms3UserMessage aUserMessage,
+                                          @NonNull final byte [] aSBDBytes,
+                                          @NonNull final PeppolSBDHData aPeppolSBD,
+                                          @NonNull final IAS4IncomingMessageState aIncomingState,
+                                          @Nullable final InboundMetrics aMetrics) throws Exception
+  {
+    // SBDH instance identifiers are only unique per sender
+    final String sAS4MessageID = aUserMessage.getMessageInfo ().getMessageId ();
+    final String sSBDHKey = "sbdh:" +
+                            aPeppolSBD.getSenderAsIdentifier ().getURIEncoded () +
+                            ":" +
+                            aPeppolSBD.getInstanceIdentifier ();
+    final String [] aDuplicateKeys = { "as4:" + sAS4MessageID, sSBDHKey };
+    final DuplicateIndex aDuplicateIndex = DuplicateIndex.getInstance ();
+    final boolean bDuplicate;
+    try
+    {
+      if (!APConfig.isReceivingEnabled ())
+      {
+        LOGGER.info ("Peppol AP receiving is disabled");
+        throw new Phase4Exception ("Peppol AP receiving is disabled");
+      }
+
+      // Provide the message details to a dump decision that is still pending
+      final DumpMessageInfo aDumpInfo = DumpPolicyManager.getInstance ()
+                                                         .getIncomingInfo (aMessageMetadata.getIncomingUniqueID ());
+      if (aDumpInfo != null)
+        aDumpInfo.setAS4MessageID (aUserMessage.getMessageInfo ().getMessageId ())
+                 .setSBDHInstanceID (aPeppolSBD.getInstanceIdentifier ())
+                 .setSenderID (aPeppolSBD.getSenderAsIdentifier ().getURIEncoded ())
+                 .setReceiverID (aPeppolSBD.getReceiverAsIdentifier ().getURIEncoded ())
+                 .setDocTypeID (aPeppolSBD.getDocumentTypeAsIdentifier ().getURIEncoded ())
+                 .setSendingAPID (CertificateHelper.getSubjectCN (aIncomingState.getSigningCertificate ()));
+
+      final CertificateCheckCache aCertCheckCache = CertificateCheckCache.getInstance ();
+      if (aCertCheckCache.isIncomingCheckEnabled ())
+      {
+        // Revocation check of the C2 signing certificate via the shared cache
+        final ECertificateCheckResult eCheckResult = aCertCheckCache.checkCertificate (APConfig.getAPCAChecker (),
+                                                                                       aIncomingState.getSigningCertificate (),
+                                                                                       MetaAS4Manager.getTimestampMgr ()
+                                                                                                     .getCurrentDateTime ());
+        if (eCheckResult.isInvalid ())
+          throw new Phase4Exception ("The signing certificate of the sending AP is not valid: " + eCheckResult);
+      }
+
+      // Check and claim atomically, so that concurrent duplicates are not processed twice
+      bDuplicate = aDuplicateIndex != null && !aDuplicateIndex.tryClaim (aDuplicateKeys);
+    }
+    finally
+    {
+      // Also for rejected messages
+      if (aMetrics != null)
+        aMetrics.endStage (InboundMetrics.EStage.SENDER_CHECK);
+    }
+    if (bDuplicate)
+    {
+      // Positive receipt, but no further processing
+      LOGGER.warn ("Ignoring duplicate inbound message with AS4 message ID '" +
+                   sAS4MessageID +
+                   "' and SBDH instance identifier '" +
+                   aPeppolSBD.getInstanceIdentifier () +
+                   "'");
+      return;
     }
 
     final String sMyPeppolSeatID = APConfig.getMyPeppolSeatID ();
@@ -83,29 +180,51 @@ public class CustomPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingS
     LOGGER.info ("  Process = " + aPeppolSBD.getProcessAsIdentifier ().getURIEncoded ());
     LOGGER.info ("  CountryC1 = " + aPeppolSBD.getCountryC1 ());
 
-    // TODO add your code here
-    // E.g. write to disk, write to S3, write to database, write to queue...
-    LOGGER.error ("You need to implement handleIncomingSBD to deal with incoming messages");
-
-    if (false)
+    try
     {
-      // TODO example code on how to identify Factur-X payloads
-      final Element aXMLPayload = aPeppolSBD.getBusinessMessageNoClone ();
-      if (ObjectFactory._BinaryContent_QNAME.getLocalPart ().equals (aXMLPayload.getLocalName ()) &&
-        ObjectFactory._BinaryContent_QNAME.getNamespaceURI ().equals (aXMLPayload.getNamespaceURI ()))
+      final InboundMessage aMessage = new InboundMessage (aMessageMetadata.getIncomingUniqueID (),
+                                                          aMessageMetadata.getIncomingDT (),
+                                                          sAS4MessageID,
+                                                          aIncomingState.getSigningCertificate (),
+                                                          aSBDBytes,
+                                                          aPeppolSBD);
+      final InboundSpool aSpool = InboundSpool.getInstance ();
+      if (aSpool != null)
       {
-        if ("urn:peppol:doctype:pdf+xml".equals (aPeppolSBD.getStandard ()) &&
-          "0".equals (aPeppolSBD.getTypeVersion ()) &&
-          "factur-x".equals (aPeppolSBD.getType ()))
-        {
-          // Handle as Factur-X
-          final BinaryContentType aBinaryContent = new PeppolSBDHPayloadBinaryMarshaller ().read (aXMLPayload);
-          final byte [] aPDFBytes = aBinaryContent.getValue ();
-          // TODO do something with the PDF bytes
-        }
+        // Only store it durably - the processing happens after the receipt was sent
+        if (!aSpool.submit (aMessage.getIncomingID (),
+                            aMessage.getReceivedDT (),
+                            aMessage.getAS4MessageID (),
+                            aMessage.getSigningCertificate (),
+                            aSBDBytes))
+          throw new Phase4Exception ("The inbound spool is full - please retry later");
       }
+      else
+        processInboundMessage (aMessage);
+    }
+    catch (final Exception ex)
+    {
+      // Not stored or processed - accept a retry of the sender
+      if (aDuplicateIndex != null)
+        aDuplicateIndex.releaseClaim (aDuplicateKeys);
+      throw ex;
     }
 
+    // Stored or processed - only from now on a resend is a duplicate
+    if (aDuplicateIndex != null)
+      try
+      {
+        aDuplicateIndex.commitClaim (aDuplicateKeys);
+      }
+      catch (final IOException ex)
+      {
+        // The message itself was handled - a resend would be processed again
+        LOGGER.error ("Failed to record inbound message with AS4 message ID '" +
+                      sAS4MessageID +
+                      "' in the duplicate index",
+                      ex);
+      }
+
     // In case there is an error, throw any Exception -> will lead to an AS4
     // Error Message to the sender
 
@@ -146,6 +265,43 @@ public class CustomPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingS
     }).start ();
   }
 
+  /**
+   * The business processing of a received message. It is either called directly from
+   * {@link #handleIncomingSBD}, or from the {@link InboundSpool} if it is enabled.
+   *
+   * @param aMessage
+   *        The received message. Never <code>null</code>.
+   * @throws Exception
+   *         In case of an error. Leads to an AS4 error message or to a retry in the spool.
+   */
+  public static void processInboundMessage (@NonNull final InboundMessage aMessage) throws Exception
+  {
+    final PeppolSBDHData aPeppolSBD = aMessage.getPeppolSBD ();
+
+    // TODO add your code here
+    // E.g. write to disk, write to S3, write to database, write to queue...
+    LOGGER.error ("You need to implement processInboundMessage to deal with incoming messages");
+
+    if (false)
+    {
+      // TODO example code on how to identify Factur-X payloads
+      final Element aXMLPayload = aPeppolSBD.getBusinessMessageNoClone ();
+      if (ObjectFactory._BinaryContent_QNAME.getLocalPart ().equals (aXMLPayload.getLocalName ()) &&
+        ObjectFactory._BinaryContent_QNAME.getNamespaceURI ().equals (aXMLPayload.getNamespaceURI ()))
+      {
+        if ("urn:peppol:doctype:pdf+xml".equals (aPeppolSBD.getStandard ()) &&
+          "0".equals (aPeppolSBD.getTypeVersion ()) &&
+          "factur-x".equals (aPeppolSBD.getType ()))
+        {
+          // Handle as Factur-X
+          final BinaryContentType aBinaryContent = new PeppolSBDHPayloadBinaryMarshaller ().read (aXMLPayload);
+          final byte [] aPDFBytes = aBinaryContent.getValue ();
+          // TODO do something with the PDF bytes
+        }
+      }
+    }
+  }
+
   public void processAS4ResponseMessage (@NonNull final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
                                          @NonNull final IAS4IncomingMessageState aIncomingState,
                                          @NonNull @Nonempty final String sResponseMessageID,
@@ -154,7 +310,18 @@ public class CustomPeppolIncomingSBDHandlerSPI implements IPhase4PeppolIncomingS
                                          @NonNull final AS4ErrorList aEbmsErrorMessages)
   {
     if (aIncomingMessageMetadata.getMode () == EAS4MessageMode.REQUEST)
+    {
       LOGGER.info ("AS4 response on an inbound message");
+
+      if (aEbmsErrorMessages.isNotEmpty ())
+      {
+        // Relevant for dump policies that only dump failed exchanges
+        final DumpMessageInfo aDumpInfo = DumpPolicyManager.getInstance ()
+                                                           .getIncomingInfo (aIncomingMessageMetadata.getIncomingUniqueID ());
+        if (aDumpInfo != null)
+          aDumpInfo.setFailed (true);
+      }
+    }
     else
       LOGGER.info ("AS4 response on an outbound message");
 
@@ -0,0 +1,663 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.jspecify.annotations.NonNull;
+import org.slf4j.Logger;
+
+import com.helger.annotation.Nonempty;
+import com.helger.annotation.concurrent.GuardedBy;
+import com.helger.annotation.concurrent.Immutable;
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * A crash-safe, append-only journal made of segment files. Each record consists of a length, a
+ * CRC32 checksum, a type byte and the record body. All appends are written by a single writer
+ * thread that collects concurrent appends into one batch and calls <code>fsync</code> once per
+ * batch (group commit). The future returned by {@link #append(byte, byte[])} is completed after the
+ * record is durable on disk.<br>
+ * On opening, all existing records are replayed in order. A partially written record at the end of
+ * the last segment (e.g. after a power loss) is truncated. If writing a batch fails at runtime, the
+ * unsynced part of the batch is truncated again and all of its records are failed, so that no
+ * acknowledged record ever follows a broken one.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class AppendOnlyJournal implements AutoCloseable
+{
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (AppendOnlyJournal.class);
+
+  // length + CRC + type
+  private static final int HEADER_SIZE = 4 + 4 + 1;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * The position of a single record inside the journal.
+   */
+  @Immutable
+  public static final class Position
+  {
+    private final long m_nSegmentID;
+    private final long m_nOffset;
+
+    Position (final long nSegmentID, final long nOffset)
+    {
+      m_nSegmentID = nSegmentID;
+      m_nOffset = nOffset;
+    }
+
+    public long getSegmentID ()
+    {
+      return m_nSegmentID;
+    }
+
+    public long getOffset ()
+    {
+      return m_nOffset;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return m_nSegmentID + ":" + m_nOffset;
+    }
+  }
+
+  /**
+   * Callback interface for replaying existing records.
+   */
+  @FunctionalInterface
+  public interface IRecordHandler
+  {
+    void onRecord (@NonNull Position aPosition, byte nType, byte @NonNull [] aBody);
+  }
+
+  private static final class PendingWrite
+  {
+    private final byte m_nType;
+    private final byte [] m_aBody;
+    private final CompletableFuture <Position> m_aFuture = new CompletableFuture <> ();
+    private Position m_aPosition;
+
+    PendingWrite (final byte nType, final byte [] aBody)
+    {
+      m_nType = nType;
+      m_aBody = aBody;
+    }
+  }
+
+  // Signals the writer thread to stop
+  private static final PendingWrite STOP = new PendingWrite ((byte) 0, new byte [0]);
+
+  private final File m_aDir;
+  private final long m_nMaxSegmentBytes;
+  private final int m_nMaxBatchSize;
+  private final BlockingQueue <PendingWrite> m_aQueue = new LinkedBlockingQueue <> ();
+  private final Thread m_aWriterThread;
+  // Makes sure that nothing is enqueued after the writer stopped
+  private final ReentrantLock m_aStateLock = new ReentrantLock ();
+  @GuardedBy ("m_aStateLock")
+  private boolean m_bClosed = false;
+  private volatile long m_nCurrentSegmentID;
+  // Only accessed by the writer thread after construction
+  private FileChannel m_aChannel;
+  private long m_nCurrentSize;
+  // The current segment could not be repaired after a write error
+  private boolean m_bNeedsNewSegment = false;
+
+  private AppendOnlyJournal (@NonNull final File aDir,
+                             @NonNull @Nonempty final String sName,
+                             final long nMaxSegmentBytes,
+                             final int nMaxBatchSize,
+                             @NonNull final IRecordHandler aReplayHandler) throws IOException
+  {
+    m_aDir = aDir;
+    m_nMaxSegmentBytes = nMaxSegmentBytes;
+    m_nMaxBatchSize = nMaxBatchSize;
+
+    Files.createDirectories (aDir.toPath ());
+
+    // Replay all existing segments
+    final long [] aSegmentIDs = _getAllSegmentIDs ();
+    int nRecords = 0;
+    for (int i = 0; i < aSegmentIDs.length; ++i)
+    {
+      final long nSegmentID = aSegmentIDs[i];
+      final File aFile = _getSegmentFile (nSegmentID);
+      final long [] aResult = _replaySegment (nSegmentID, aFile, aReplayHandler);
+      final long nValidLength = aResult[0];
+      nRecords += (int) aResult[1];
+      if (nValidLength < aFile.length ())
+      {
+        if (i == aSegmentIDs.length - 1)
+        {
+          LOGGER.warn ("Truncating incomplete record at the end of journal segment " +
+                       aFile.getAbsolutePath () +
+                       " from " +
+                       aFile.length () +
+                       " to " +
+                       nValidLength +
+                       " bytes");
+          try (final FileChannel aFC = FileChannel.open (aFile.toPath (), StandardOpenOption.WRITE))
+          {
+            aFC.truncate (nValidLength);
+            aFC.force (true);
+          }
+        }
+        else
+          LOGGER.error ("Journal segment " + aFile.getAbsolutePath () + " is corrupt after " + nValidLength + " bytes");
+      }
+    }
+    LOGGER.info ("Replayed " +
+                 nRecords +
+                 " records from " +
+                 aSegmentIDs.length +
+                 " segments of journal '" +
+                 sName +
+                 "' in " +
+                 aDir.getAbsolutePath ());
+
+    // Continue with the last segment
+    if (aSegmentIDs.length > 0)
+      _openSegment (aSegmentIDs[aSegmentIDs.length - 1]);
+    else
+      _openSegment (1);
+
+    m_aWriterThread = new Thread (this::_writerLoop, "phase4-journal-" + sName);
+    m_aWriterThread.setDaemon (true);
+    m_aWriterThread.start ();
+  }
+
+  /**
+   * Open a journal, replay all existing records and start the writer.
+   *
+   * @param aDir
+   *        The directory to store the segment files in. Is created if not existing. May not be
+   *        <code>null</code>.
+   * @param sName
+   *        The name of the journal, used for logging. May neither be <code>null</code> nor empty.
+   * @param nMaxSegmentBytes
+   *        The size after which a new segment is started. Must be &gt; 0.
+   * @param nMaxBatchSize
+   *        The maximum number of records written before a single <code>fsync</code>. Must be
+   *        &gt; 0.
+   * @param aReplayHandler
+   *        The handler that is invoked for every existing record, before this method returns. May
+   *        not be <code>null</code>.
+   * @return The opened journal. Never <code>null</code>.
+   * @throws IOException
+   *         On I/O error
+   */
+  @NonNull
+  public static AppendOnlyJournal open (@NonNull final File aDir,
+                                        @NonNull @Nonempty final String sName,
+                                        final long nMaxSegmentBytes,
+                                        final int nMaxBatchSize,
+                                        @NonNull final IRecordHandler aReplayHandler) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.isGT0 (nMaxSegmentBytes, "MaxSegmentBytes");
+    ValueEnforcer.isGT0 (nMaxBatchSize, "MaxBatchSize");
+    ValueEnforcer.notNull (aReplayHandler, "ReplayHandler");
+    return new AppendOnlyJournal (aDir, sName, nMaxSegmentBytes, nMaxBatchSize, aReplayHandler);
+  }
+
+  @NonNull
+  private File _getSegmentFile (final long nSegmentID)
+  {
+    return new File (m_aDir, SEGMENT_PREFIX + String.format ("%016d", Long.valueOf (nSegmentID)) + SEGMENT_SUFFIX);
+  }
+
+  private long @NonNull [] _getAllSegmentIDs ()
+  {
+    final String [] aNames = m_aDir.list ( (d, n) -> n.startsWith (SEGMENT_PREFIX) && n.endsWith (SEGMENT_SUFFIX));
+    if (aNames == null)
+      return new long [0];
+
+    final List <Long> aIDs = new ArrayList <> ();
+    for (final String sName : aNames)
+    {
+      try
+      {
+        aIDs.add (Long.valueOf (sName.substring (SEGMENT_PREFIX.length (), sName.length () - SEGMENT_SUFFIX.length ())));
+      }
+      catch (final NumberFormatException ex)
+      {
+        LOGGER.warn ("Ignoring unexpected file '" + sName + "' in journal directory");
+      }
+    }
+    return aIDs.stream ().mapToLong (Long::longValue).sorted ().toArray ();
+  }
+
+  private static int _getCRC (final byte nType, final byte @NonNull [] aBody)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (nType);
+    aCRC.update (aBody);
+    return (int) aCRC.getValue ();
+  }
+
+  /**
+   * @return [valid length, number of records]
+   */
+  private static long @NonNull [] _replaySegment (final long nSegmentID,
+                                                  @NonNull final File aFile,
+                                                  @NonNull final IRecordHandler aHandler) throws IOException
+  {
+    final long nFileSize = aFile.length ();
+    long nOffset = 0;
+    long nRecords = 0;
+    try (final InputStream aIS = Files.newInputStream (aFile.toPath ());
+         final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (aIS, 64 * 1024)))
+    {
+      while (nOffset + HEADER_SIZE <= nFileSize)
+      {
+        final int nLength = aDIS.readInt ();
+        final int nCRC = aDIS.readInt ();
+        final byte nType = aDIS.readByte ();
+        if (nLength < 0 || nOffset + HEADER_SIZE + nLength > nFileSize)
+          break;
+        final byte [] aBody = new byte [nLength];
+        aDIS.readFully (aBody);
+        if (_getCRC (nType, aBody) != nCRC)
+          break;
+
+        aHandler.onRecord (new Position (nSegmentID, nOffset), nType, aBody);
+        nOffset += HEADER_SIZE + nLength;
+        nRecords++;
+      }
+    }
+    catch (final EOFException ex)
+    {
+      // Incomplete record
+    }
+    return new long [] { nOffset, nRecords };
+  }
+
+  private void _openSegment (final long nSegmentID) throws IOException
+  {
+    final FileChannel aChannel = FileChannel.open (_getSegmentFile (nSegmentID).toPath (),
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.WRITE);
+    try
+    {
+      final long nSize = aChannel.size ();
+      aChannel.position (nSize);
+      // Only switch if the new segment is usable
+      m_aChannel = aChannel;
+      m_nCurrentSize = nSize;
+      m_nCurrentSegmentID = nSegmentID;
+    }
+    catch (final IOException ex)
+    {
+      aChannel.close ();
+      throw ex;
+    }
+  }
+
+  private void _switchToNextSegment () throws IOException
+  {
+    final FileChannel aOldChannel = m_aChannel;
+    _openSegment (m_nCurrentSegmentID + 1);
+    try
+    {
+      aOldChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close journal segment", ex);
+    }
+    // Make the new file entry durable as well
+    try (final FileChannel aDirChannel = FileChannel.open (m_aDir.toPath (), StandardOpenOption.READ))
+    {
+      aDirChannel.force (true);
+    }
+    catch (final IOException ex)
+    {
+      // Not supported on all platforms
+    }
+  }
+
+  private void _rollSegment () throws IOException
+  {
+    m_aChannel.force (false);
+    _switchToNextSegment ();
+  }
+
+  /**
+   * Remove everything after the provided size from the current segment, after writing a batch
+   * failed. If this fails as well, the next batch is written to a new segment.
+   */
+  private void _truncateAfterError (final long nValidSize)
+  {
+    try
+    {
+      m_aChannel.truncate (nValidSize);
+      m_aChannel.position (nValidSize);
+      m_aChannel.force (false);
+      m_nCurrentSize = nValidSize;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Failed to truncate journal segment " +
+                    m_nCurrentSegmentID +
+                    " to " +
+                    nValidSize +
+                    " bytes - continuing with a new segment",
+                    ex);
+      m_bNeedsNewSegment = true;
+    }
+  }
+
+  private static void _complete (@NonNull final List <PendingWrite> aBatch, final int nStart, final int nEnd)
+  {
+    for (int i = nStart; i < nEnd; ++i)
+    {
+      final PendingWrite aWrite = aBatch.get (i);
+      aWrite.m_aFuture.complete (aWrite.m_aPosition);
+    }
+  }
+
+  private void _writeAll (@NonNull final ByteBuffer [] aBuffers) throws IOException
+  {
+    // Check all buffers, as the last one may be empty from the start
+    long nRemaining = 0;
+    for (final ByteBuffer aBuffer : aBuffers)
+      nRemaining += aBuffer.remaining ();
+    while (nRemaining > 0)
+      nRemaining -= m_aChannel.write (aBuffers);
+  }
+
+  /**
+   * Write all records of the batch and complete their futures. The records that are not yet
+   * durable when an error occurs are removed from the segment and failed.
+   */
+  private void _writeBatch (@NonNull final List <PendingWrite> aBatch)
+  {
+    // The records from this index on are not yet synced to disk
+    int nFirstUnsynced = 0;
+    long nUnsyncedStartSize = m_nCurrentSize;
+    try
+    {
+      if (m_bNeedsNewSegment)
+      {
+        // Never append behind a record that could not be removed
+        _switchToNextSegment ();
+        m_bNeedsNewSegment = false;
+        nUnsyncedStartSize = m_nCurrentSize;
+      }
+
+      for (int i = 0; i < aBatch.size (); ++i)
+      {
+        final PendingWrite aWrite = aBatch.get (i);
+        final int nRecordSize = HEADER_SIZE + aWrite.m_aBody.length;
+        if (m_nCurrentSize > 0 && m_nCurrentSize + nRecordSize > m_nMaxSegmentBytes)
+        {
+          _rollSegment ();
+          // Everything in the previous segment is durable now
+          _complete (aBatch, nFirstUnsynced, i);
+          nFirstUnsynced = i;
+          nUnsyncedStartSize = m_nCurrentSize;
+        }
+
+        final ByteBuffer aHeader = ByteBuffer.allocate (HEADER_SIZE);
+        aHeader.putInt (aWrite.m_aBody.length);
+        aHeader.putInt (_getCRC (aWrite.m_nType, aWrite.m_aBody));
+        aHeader.put (aWrite.m_nType);
+        aHeader.flip ();
+        _writeAll (new ByteBuffer [] { aHeader, ByteBuffer.wrap (aWrite.m_aBody) });
+
+        aWrite.m_aPosition = new Position (m_nCurrentSegmentID, m_nCurrentSize);
+        m_nCurrentSize += nRecordSize;
+      }
+      // One fsync for the whole batch
+      m_aChannel.force (false);
+      _complete (aBatch, nFirstUnsynced, aBatch.size ());
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Failed to write " + (aBatch.size () - nFirstUnsynced) + " records to the journal", ex);
+      if (!m_bNeedsNewSegment)
+        _truncateAfterError (nUnsyncedStartSize);
+      for (int i = nFirstUnsynced; i < aBatch.size (); ++i)
+        aBatch.get (i).m_aFuture.completeExceptionally (ex);
+    }
+  }
+
+  private void _writerLoop ()
+  {
+    final List <PendingWrite> aBatch = new ArrayList <> (m_nMaxBatchSize);
+    boolean bStop = false;
+    while (!bStop)
+    {
+      try
+      {
+        aBatch.add (m_aQueue.take ());
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      m_aQueue.drainTo (aBatch, m_nMaxBatchSize - 1);
+      if (aBatch.remove (STOP))
+        bStop = true;
+
+      if (!aBatch.isEmpty ())
+      {
+        _writeBatch (aBatch);
+        aBatch.clear ();
+      }
+    }
+
+    // Only reached without STOP if interrupted - don't accept anything new
+    m_aStateLock.lock ();
+    try
+    {
+      m_bClosed = true;
+    }
+    finally
+    {
+      m_aStateLock.unlock ();
+    }
+
+    // Fail everything that is left
+    final List <PendingWrite> aRest = new ArrayList <> ();
+    m_aQueue.drainTo (aRest);
+    for (final PendingWrite aWrite : aRest)
+      aWrite.m_aFuture.completeExceptionally (new IOException ("Journal is closed"));
+  }
+
+  /**
+   * Append a new record. This method never blocks.
+   *
+   * @param nType
+   *        The record type. Interpretation is up to the caller.
+   * @param aBody
+   *        The record body. May not be <code>null</code>.
+   * @return A future that is completed with the position of the record, as soon as the record is
+   *         durable. Never <code>null</code>.
+   */
+  @NonNull
+  public CompletableFuture <Position> append (final byte nType, final byte @NonNull [] aBody)
+  {
+    ValueEnforcer.notNull (aBody, "Body");
+
+    final PendingWrite aWrite = new PendingWrite (nType, aBody);
+    boolean bClosed;
+    m_aStateLock.lock ();
+    try
+    {
+      // Enqueued before STOP, or not at all
+      bClosed = m_bClosed;
+      if (!bClosed)
+        m_aQueue.add (aWrite);
+    }
+    finally
+    {
+      m_aStateLock.unlock ();
+    }
+    if (bClosed)
+      aWrite.m_aFuture.completeExceptionally (new IOException ("Journal is closed"));
+    return aWrite.m_aFuture;
+  }
+
+  private static void _readFully (@NonNull final FileChannel aFC, @NonNull final ByteBuffer aBuf, final long nPos) throws IOException
+  {
+    long nCurPos = nPos;
+    while (aBuf.hasRemaining ())
+    {
+      final int nRead = aFC.read (aBuf, nCurPos);
+      if (nRead < 0)
+        throw new EOFException ("Unexpected end of journal segment");
+      nCurPos += nRead;
+    }
+  }
+
+  /**
+   * Read the body of a single record that was previously written.
+   *
+   * @param aPosition
+   *        The position of the record. May not be <code>null</code>.
+   * @return The record body. Never <code>null</code>.
+   * @throws IOException
+   *         If the record could not be read or is corrupt
+   */
+  public byte @NonNull [] read (@NonNull final Position aPosition) throws IOException
+  {
+    ValueEnforcer.notNull (aPosition, "Position");
+
+    try (final FileChannel aFC = FileChannel.open (_getSegmentFile (aPosition.getSegmentID ()).toPath (),
+                                                   StandardOpenOption.READ))
+    {
+      final ByteBuffer aHeader = ByteBuffer.allocate (HEADER_SIZE);
+      _readFully (aFC, aHeader, aPosition.getOffset ());
+      aHeader.flip ();
+      final int nLength = aHeader.getInt ();
+      final int nCRC = aHeader.getInt ();
+      final byte nType = aHeader.get ();
+
+      final ByteBuffer aBody = ByteBuffer.allocate (nLength);
+      _readFully (aFC, aBody, aPosition.getOffset () + HEADER_SIZE);
+      if (_getCRC (nType, aBody.array ()) != nCRC)
+        throw new IOException ("Checksum mismatch for journal record at " + aPosition);
+      return aBody.array ();
+    }
+  }
+
+  /**
+   * @return The ID of the segment that is currently written to.
+   */
+  public long getCurrentSegmentID ()
+  {
+    return m_nCurrentSegmentID;
+  }
+
+  /**
+   * Delete all segments before the provided segment. The current segment is never deleted. The
+   * caller is responsible that the deleted segments contain no more relevant records.
+   *
+   * @param nSegmentID
+   *        The first segment ID to keep.
+   * @return The number of deleted segments.
+   */
+  public int deleteSegmentsBefore (final long nSegmentID)
+  {
+    final long nLimit = Math.min (nSegmentID, m_nCurrentSegmentID);
+    int ret = 0;
+    for (final long nID : _getAllSegmentIDs ())
+    {
+      if (nID >= nLimit)
+        break;
+      final File aFile = _getSegmentFile (nID);
+      try
+      {
+        Files.deleteIfExists (aFile.toPath ());
+        ret++;
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to delete journal segment " + aFile.getAbsolutePath (), ex);
+      }
+    }
+    if (ret > 0)
+      LOGGER.info ("Deleted " + ret + " fully processed journal segments");
+    return ret;
+  }
+
+  /**
+   * Stop the writer after all pending records were written and close the current segment.
+   */
+  public void close ()
+  {
+    m_aStateLock.lock ();
+    try
+    {
+      // The writer may already have stopped on its own
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        m_aQueue.add (STOP);
+      }
+    }
+    finally
+    {
+      m_aStateLock.unlock ();
+    }
+    try
+    {
+      m_aWriterThread.join (30_000);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    try
+    {
+      final FileChannel aChannel = m_aChannel;
+      if (aChannel != null)
+        aChannel.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close journal segment", ex);
+    }
+  }
+}
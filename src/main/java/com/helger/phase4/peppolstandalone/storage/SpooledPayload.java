@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.storage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+
+import com.helger.annotation.concurrent.ThreadSafe;
+import com.helger.base.enforce.ValueEnforcer;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayInputStream;
+import com.helger.base.io.nonblocking.NonBlockingByteArrayOutputStream;
+import com.helger.phase4.logging.Phase4LoggerFactory;
+
+/**
+ * A payload that is kept in memory as long as it is small, and is spilled to a temporary file
+ * otherwise. This avoids that large request bodies are fully held in memory. Use
+ * {@link #openInputStream()} to read it as often as needed and close it when done, to delete the
+ * temporary file.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class SpooledPayload implements AutoCloseable
+{
+  /**
+   * Thrown if the payload exceeds the maximum allowed size.
+   *
+   * @author Philip Helger
+   */
+  public static class PayloadTooLargeException extends IOException
+  {
+    public PayloadTooLargeException (@NonNull final String sMsg)
+    {
+      super (sMsg);
+    }
+  }
+
+  private static final Logger LOGGER = Phase4LoggerFactory.getLogger (SpooledPayload.class);
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final byte [] m_aBytes;
+  private final File m_aFile;
+  private final long m_nSize;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  private SpooledPayload (final byte @Nullable [] aBytes, @Nullable final File aFile, final long nSize)
+  {
+    m_aBytes = aBytes;
+    m_aFile = aFile;
+    m_nSize = nSize;
+  }
+
+  /**
+   * @return The payload size in bytes.
+   */
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the payload is stored in a temporary file, <code>false</code> if it
+   *         is in memory.
+   */
+  public boolean isSpilled ()
+  {
+    return m_aFile != null;
+  }
+
+  /**
+   * @return A new input stream to read the payload from the start. Must be closed by the caller.
+   * @throws IOException
+   *         If the temporary file cannot be opened
+   */
+  @NonNull
+  public InputStream openInputStream () throws IOException
+  {
+    if (m_aClosed.get ())
+      throw new IllegalStateException ("The payload was already closed");
+    if (m_aFile != null)
+      return new BufferedInputStream (Files.newInputStream (m_aFile.toPath ()), BUFFER_SIZE);
+    return new NonBlockingByteArrayInputStream (m_aBytes);
+  }
+
+  /**
+   * Get the whole payload as a byte array. Only use this where the consumer needs a byte array
+   * anyway, as this loads spilled payloads into memory.
+   *
+   * @param nMaxBytes
+   *        The maximum number of bytes that may be loaded into memory. Must be &gt; 0.
+   * @return The payload bytes. Never <code>null</code>.
+   * @throws PayloadTooLargeException
+   *         If the payload is larger than <code>nMaxBytes</code>
+   * @throws IOException
+   *         If the temporary file cannot be read
+   */
+  public byte @NonNull [] getAllBytes (final long nMaxBytes) throws IOException
+  {
+    ValueEnforcer.isGT0 (nMaxBytes, "MaxBytes");
+    if (m_nSize > nMaxBytes)
+      throw new PayloadTooLargeException ("The payload of " +
+                                          m_nSize +
+                                          " bytes exceeds the maximum in-memory size of " +
+                                          nMaxBytes +
+                                          " bytes");
+    if (m_aFile != null)
+      return Files.readAllBytes (m_aFile.toPath ());
+    return m_aBytes;
+  }
+
+  /**
+   * Delete the temporary file, if any. Further reading is not possible.
+   */
+  public void close ()
+  {
+    if (m_aClosed.compareAndSet (false, true) && m_aFile != null)
+      try
+      {
+        Files.deleteIfExists (m_aFile.toPath ());
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.warn ("Failed to delete temporary payload file '" + m_aFile.getAbsolutePath () + "'", ex);
+      }
+  }
+
+  /**
+   * Wrap an existing byte array without copying.
+   *
+   * @param aBytes
+   *        The bytes to wrap. May not be <code>null</code>.
+   * @return The in-memory payload. Never <code>null</code>.
+   */
+  @NonNull
+  public static SpooledPayload wrap (final byte @NonNull [] aBytes)
+  {
+    ValueEnforcer.notNull (aBytes, "Bytes");
+    return new SpooledPayload (aBytes, null, aBytes.length);
+  }
+
+  /**
+   * Read the provided input stream completely. Up to <code>nThresholdBytes</code> are kept in
+   * memory, everything larger is written to a temporary file in the provided directory.
+   *
+   * @param aIS
+   *        The input stream to read. Is not closed. May not be <code>null</code>.
+   * @param nThresholdBytes
+   *        The maximum number of bytes to keep in memory. Must be &ge; 0.
+   * @param nMaxBytes
+   *        The maximum number of bytes accepted at all. Must be &gt; 0.
+   * @param aTempDir
+   *        The directory for temporary files. May be <code>null</code> to use the system default.
+   * @return The spooled payload. Never <code>null</code>.
+   * @throws PayloadTooLargeException
+   *         If the payload is larger than <code>nMaxBytes</code>
+   * @throws IOException
+   *         On reading or writing errors
+   */
+  @NonNull
+  public static SpooledPayload read (@NonNull final InputStream aIS,
+                                     final long nThresholdBytes,
+                                     final long nMaxBytes,
+                                     @Nullable final File aTempDir) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.isGE0 (nThresholdBytes, "ThresholdBytes");
+    ValueEnforcer.isGT0 (nMaxBytes, "MaxBytes");
+
+    final byte [] aBuffer = new byte [BUFFER_SIZE];
+    long nTotal = 0;
+    int nRead;
+
+    // Memory phase
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      while ((nRead = aIS.read (aBuffer)) >= 0)
+      {
+        nTotal += nRead;
+        if (nTotal > nMaxBytes)
+          throw new PayloadTooLargeException ("The payload exceeds the maximum size of " + nMaxBytes + " bytes");
+        aBAOS.write (aBuffer, 0, nRead);
+        if (nTotal > nThresholdBytes)
+          break;
+      }
+      if (nRead < 0)
+        return new SpooledPayload (aBAOS.toByteArray (), null, nTotal);
+
+      // Spill phase
+      if (aTempDir != null)
+        Files.createDirectories (aTempDir.toPath ());
+      final File aFile = Files.createTempFile (aTempDir == null ? null : aTempDir.toPath (), "payload-", ".tmp")
+                              .toFile ();
+      boolean bSuccess = false;
+      try
+      {
+        try (final OutputStream aOS = Files.newOutputStream (aFile.toPath ()))
+        {
+          aBAOS.writeTo (aOS);
+          while ((nRead = aIS.read (aBuffer)) >= 0)
+          {
+            nTotal += nRead;
+            if (nTotal > nMaxBytes)
+              throw new PayloadTooLargeException ("The payload exceeds the maximum size of " + nMaxBytes + " bytes");
+            aOS.write (aBuffer, 0, nRead);
+          }
+        }
+        bSuccess = true;
+      }
+      finally
+      {
+        if (!bSuccess)
+          Files.deleteIfExists (aFile.toPath ());
+      }
+
+      LOGGER.info ("Spilled payload of " + nTotal + " bytes to temporary file '" + aFile.getName () + "'");
+      return new SpooledPayload (null, aFile, nTotal);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link MetricTagLimiter}.
+ *
+ * @author Philip Helger
+ */
+public final class MetricTagLimiterTest
+{
+  @Test
+  public void testKnownValues ()
+  {
+    final MetricTagLimiter aLimiter = new MetricTagLimiter (List.of ("a", "b"), 1);
+    assertEquals ("a", aLimiter.getTagValue ("a"));
+    assertEquals ("b", aLimiter.getTagValue ("b"));
+    assertEquals (MetricTagLimiter.OTHER, aLimiter.getTagValue ("c"));
+    assertEquals (MetricTagLimiter.UNKNOWN, aLimiter.getTagValue (null));
+    assertEquals (MetricTagLimiter.UNKNOWN, aLimiter.getTagValue (""));
+  }
+
+  @Test
+  public void testMaxValues ()
+  {
+    final MetricTagLimiter aLimiter = new MetricTagLimiter (List.of (), 2);
+    assertEquals ("a", aLimiter.getTagValue ("a"));
+    assertEquals ("b", aLimiter.getTagValue ("b"));
+    assertEquals (MetricTagLimiter.OTHER, aLimiter.getTagValue ("c"));
+    // Values in use stay in use
+    assertEquals ("a", aLimiter.getTagValue ("a"));
+    assertEquals (MetricTagLimiter.UNKNOWN, aLimiter.getTagValue (null));
+
+    final MetricTagLimiter aNone = new MetricTagLimiter (List.of (), 0);
+    assertEquals (MetricTagLimiter.OTHER, aNone.getTagValue ("a"));
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.asm.ClassReader;
+import org.springframework.asm.ClassVisitor;
+import org.springframework.asm.MethodVisitor;
+import org.springframework.asm.Opcodes;
+
+/**
+ * Checks related to the virtual thread mode.
+ *
+ * @author Philip Helger
+ */
+public final class VirtualThreadTest
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (VirtualThreadTest.class);
+
+  // Simulates blocking network I/O like an SMP lookup or an AS4 round trip
+  private static final int TASKS = 2_000;
+  private static final long TASK_MILLIS = 50;
+  private static final int PLATFORM_THREADS = 200;
+
+  @Test
+  public void testNoSynchronizedInClasses () throws Exception
+  {
+    // "synchronized" pins a virtual thread to its carrier thread while blocking. The compiled classes
+    // are checked, so that comments, strings and generated code don't matter.
+    final Path aClassesDir = Paths.get (APThreadFactory.class.getProtectionDomain ()
+                                                              .getCodeSource ()
+                                                              .getLocation ()
+                                                              .toURI ());
+    final List <String> aViolations = new ArrayList <> ();
+    final AtomicInteger aClassCount = new AtomicInteger ();
+    try (final Stream <Path> aStream = Files.walk (aClassesDir))
+    {
+      for (final Path aFile : (Iterable <Path>) aStream.filter (x -> x.toString ().endsWith (".class"))::iterator)
+      {
+        final ClassReader aReader = new ClassReader (Files.readAllBytes (aFile));
+        aReader.accept (new ClassVisitor (Opcodes.ASM9)
+        {
+          @Override
+          public MethodVisitor visitMethod (final int nAccess,
+                                            final String sName,
+                                            final String sDescriptor,
+                                            final String sSignature,
+                                            final String [] aExceptions)
+          {
+            final String sMethod = aReader.getClassName () + "." + sName;
+            if ((nAccess & Opcodes.ACC_SYNCHRONIZED) != 0)
+              aViolations.add (sMethod + " (synchronized method)");
+            return new MethodVisitor (Opcodes.ASM9)
+            {
+              @Override
+              public void visitInsn (final int nOpcode)
+              {
+                if (nOpcode == Opcodes.MONITORENTER)
+                  aViolations.add (sMethod + " (synchronized block)");
+              }
+            };
+          }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        aClassCount.incrementAndGet ();
+      }
+    }
+    // Make sure the send path was really checked
+    assertTrue (Files.isRegularFile (aClassesDir.resolve ("com/helger/phase4/peppolstandalone/controller/PeppolSender.class")));
+    assertTrue (aClassCount.get () > 0);
+    assertTrue (aViolations.isEmpty (), "Use a ReentrantLock instead of synchronized: " + aViolations);
+  }
+
+  private static long _runBlockingTasks (final ExecutorService aExecutor) throws InterruptedException
+  {
+    final CountDownLatch aLatch = new CountDownLatch (TASKS);
+    final long nStart = System.nanoTime ();
+    try
+    {
+      for (int i = 0; i < TASKS; ++i)
+        aExecutor.execute ( () -> {
+          try
+          {
+            Thread.sleep (TASK_MILLIS);
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+          aLatch.countDown ();
+        });
+      assertTrue (aLatch.await (2, TimeUnit.MINUTES));
+    }
+    finally
+    {
+      aExecutor.shutdownNow ();
+    }
+    return TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart);
+  }
+
+  @Test
+  public void testThroughputComparison () throws Exception
+  {
+    // The platform threads need TASKS / PLATFORM_THREADS rounds
+    final long nPlatformMillis = _runBlockingTasks (Executors.newFixedThreadPool (PLATFORM_THREADS));
+    LOGGER.info (TASKS + " blocking tasks on " + PLATFORM_THREADS + " platform threads took " + nPlatformMillis + " ms");
+    assertTrue (nPlatformMillis >= TASKS / PLATFORM_THREADS * TASK_MILLIS);
+
+    assumeTrue (APThreadFactory.isVirtualThreadSupported (), "Virtual threads require Java 21+");
+
+    // Executors.newVirtualThreadPerTaskExecutor () - via reflection, as we compile for Java 17
+    final ExecutorService aVirtual = (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor")
+                                                                      .invoke (null);
+    final long nVirtualMillis = _runBlockingTasks (aVirtual);
+    LOGGER.info (TASKS + " blocking tasks on virtual threads took " + nVirtualMillis + " ms");
+
+    // All tasks run concurrently, so it must be clearly faster than the pool that needs 10 rounds
+    assertTrue (nVirtualMillis < nPlatformMillis,
+                "Virtual threads (" + nVirtualMillis + " ms) not faster than platform threads (" + nPlatformMillis + " ms)");
+  }
+
+  @Test
+  public void testThreadFactory () throws Exception
+  {
+    final Thread t = APThreadFactory.create ("test-").newThread ( () -> {});
+    assertEquals ("test-1", t.getName ());
+  }
+
+  @Test
+  public void testCreateExecutor () throws Exception
+  {
+    final ExecutorService aExecutor = APThreadFactory.createExecutor ("test-executor-", 2);
+    try
+    {
+      // More tasks than platform threads - all of them must be executed
+      final CountDownLatch aLatch = new CountDownLatch (10);
+      for (int i = 0; i < 10; ++i)
+        aExecutor.execute (aLatch::countDown);
+      assertTrue (aLatch.await (10, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aExecutor.shutdown ();
+    }
+    assertTrue (aExecutor.awaitTermination (10, TimeUnit.SECONDS));
+  }
+}
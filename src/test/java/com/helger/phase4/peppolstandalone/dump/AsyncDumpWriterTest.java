@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.function.LongSupplier;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link AsyncDumpWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class AsyncDumpWriterTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  private static void _waitFor (final long nExpected, @NonNull final LongSupplier aSupplier) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (aSupplier.getAsLong () != nExpected && System.currentTimeMillis () < nEnd)
+      Thread.sleep (10);
+    assertEquals (nExpected, aSupplier.getAsLong ());
+  }
+
+  @Test
+  public void testWriterSurvivesUncheckedException () throws Exception
+  {
+    final DumpSegmentStore aStore = new DumpSegmentStore (m_aTempDir.toFile (), 0, 0);
+    final AsyncDumpWriter aWriter = new AsyncDumpWriter (aStore,
+                                                         1,
+                                                         1024,
+                                                         1024,
+                                                         AsyncDumpWriter.EOverflowPolicy.BLOCK,
+                                                         10);
+    try
+    {
+      // The length doesn't match the data, so the compression fails with an unchecked exception
+      aWriter.submit (AsyncDumpWriter.PREFIX_INCOMING, System.currentTimeMillis (), new byte [1], 5);
+      _waitFor (1, aWriter::getDroppedCount);
+
+      // The writer is still running - with a single entry buffer, this would block forever otherwise
+      final byte [] aData = "message\n".getBytes (StandardCharsets.US_ASCII);
+      for (int i = 0; i < 3; ++i)
+        aWriter.submit (AsyncDumpWriter.PREFIX_INCOMING, System.currentTimeMillis (), aData, aData.length);
+      _waitFor (3, aWriter::getWrittenCount);
+      assertEquals (1, aWriter.getDroppedCount ());
+    }
+    finally
+    {
+      aWriter.close ();
+    }
+  }
+}
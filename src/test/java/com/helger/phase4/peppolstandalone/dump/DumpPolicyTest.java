@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link DumpPolicy}.
+ *
+ * @author Philip Helger
+ */
+public final class DumpPolicyTest
+{
+  private static final long NOW = 1_800_000_000_000L;
+
+  @Test
+  public void testDumpAll ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (true, false, 0, List.of (), List.of ());
+    assertEquals (DumpPolicy.EDecision.DUMP, aPolicy.getDecisionOnBegin (null, NOW, 99));
+  }
+
+  @Test
+  public void testNothing ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, false, 0, List.of (), List.of ());
+    assertEquals (DumpPolicy.EDecision.SKIP, aPolicy.getDecisionOnBegin (null, NOW, 0));
+    assertFalse (aPolicy.isDumpOnEnd (null, true, NOW));
+  }
+
+  @Test
+  public void testFailuresOnly ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, true, 0, List.of (), List.of ());
+    assertEquals (DumpPolicy.EDecision.DEFER, aPolicy.getDecisionOnBegin (null, NOW, 0));
+    assertTrue (aPolicy.isDumpOnEnd (null, true, NOW));
+    assertFalse (aPolicy.isDumpOnEnd (null, false, NOW));
+  }
+
+  @Test
+  public void testSampling ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, false, 10, List.of (), List.of ());
+    assertEquals (DumpPolicy.EDecision.DUMP, aPolicy.getDecisionOnBegin (null, NOW, 9));
+    assertEquals (DumpPolicy.EDecision.SKIP, aPolicy.getDecisionOnBegin (null, NOW, 10));
+  }
+
+  @Test
+  public void testPartyIDs ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false,
+                                               false,
+                                               0,
+                                               List.of ("9915:Test", "iso6523-actorid-upis::0088:123"),
+                                               List.of ());
+    // Unknown at the beginning
+    assertEquals (DumpPolicy.EDecision.DEFER, aPolicy.getDecisionOnBegin (null, NOW, 0));
+
+    // Match without the identifier scheme and case insensitive
+    assertTrue (aPolicy.isSelected (new DumpMessageInfo ().setSenderID ("iso6523-actorid-upis::9915:test"), NOW));
+    assertTrue (aPolicy.isSelected (new DumpMessageInfo ().setReceiverID ("iso6523-actorid-upis::0088:123"), NOW));
+    assertFalse (aPolicy.isSelected (new DumpMessageInfo ().setReceiverID ("iso6523-actorid-upis::0088:1234"), NOW));
+
+    final DumpMessageInfo aInfo = new DumpMessageInfo ().setReceiverID ("iso6523-actorid-upis::9915:test");
+    assertEquals (DumpPolicy.EDecision.DUMP, aPolicy.getDecisionOnBegin (aInfo, NOW, 0));
+    assertTrue (aPolicy.isDumpOnEnd (aInfo, false, NOW));
+  }
+
+  @Test
+  public void testDocTypeIDs ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, false, 0, List.of (), List.of ("busdox-docid-qns::urn:x"));
+    assertTrue (aPolicy.isSelected (new DumpMessageInfo ().setDocTypeID ("busdox-docid-qns::urn:x"), NOW));
+    assertFalse (aPolicy.isSelected (new DumpMessageInfo ().setDocTypeID ("busdox-docid-qns::urn:y"), NOW));
+  }
+
+  @Test
+  public void testMessageIDExpiry ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, false, 0, List.of (), List.of ()).withMessageID ("MSG-1",
+                                                                                                       NOW + 1000,
+                                                                                                       NOW);
+    final DumpMessageInfo aInfo = new DumpMessageInfo ().setAS4MessageID ("msg-1");
+    assertEquals (DumpPolicy.EDecision.DUMP, aPolicy.getDecisionOnBegin (aInfo, NOW, 0));
+    assertEquals (DumpPolicy.EDecision.DEFER, aPolicy.getDecisionOnBegin (null, NOW, 0));
+
+    // Expired
+    assertFalse (aPolicy.isSelected (aInfo, NOW + 1000));
+    assertEquals (DumpPolicy.EDecision.SKIP, aPolicy.getDecisionOnBegin (null, NOW + 1000, 0));
+  }
+
+  @Test
+  public void testDumpAllUntil ()
+  {
+    final DumpPolicy aPolicy = new DumpPolicy (false, false, 0, List.of (), List.of ()).withDumpAllUntil (NOW + 1000);
+    assertEquals (DumpPolicy.EDecision.DUMP, aPolicy.getDecisionOnBegin (null, NOW, 99));
+    assertEquals (DumpPolicy.EDecision.SKIP, aPolicy.getDecisionOnBegin (null, NOW + 1000, 99));
+  }
+}
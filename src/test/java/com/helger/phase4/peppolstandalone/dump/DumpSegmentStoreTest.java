@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.dump;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link DumpSegmentStore}.
+ *
+ * @author Philip Helger
+ */
+public final class DumpSegmentStoreTest
+{
+  private static final long HOUR_13 = OffsetDateTime.of (2026, 1, 17, 13, 5, 0, 0, ZoneOffset.UTC)
+                                                    .toInstant ()
+                                                    .toEpochMilli ();
+  private static final long HOUR_14 = HOUR_13 + TimeUnit.HOURS.toMillis (1);
+
+  @TempDir
+  Path m_aTempDir;
+
+  private static void _write (@NonNull final DumpSegmentStore aStore,
+                              @NonNull final String sPrefix,
+                              final long nMillis,
+                              @NonNull final String sData) throws Exception
+  {
+    final byte [] aBytes = sData.getBytes (StandardCharsets.UTF_8);
+    aStore.write (sPrefix, nMillis, aBytes, aBytes.length);
+  }
+
+  @NonNull
+  private static String _readAll (@NonNull final File aFile) throws Exception
+  {
+    // Reads all concatenated gzip members
+    try (final InputStream aIS = new GZIPInputStream (new FileInputStream (aFile)))
+    {
+      return new String (aIS.readAllBytes (), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testHourlySegments () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    try (final DumpSegmentStore aStore = new DumpSegmentStore (aDir, 0, 0))
+    {
+      _write (aStore, "incoming", HOUR_13, "first\n");
+      _write (aStore, "outgoing", HOUR_13, "out\n");
+      _write (aStore, "incoming", HOUR_13 + 1000, "second\n");
+      _write (aStore, "incoming", HOUR_14, "third\n");
+    }
+
+    assertEquals ("first\nsecond\n", _readAll (new File (aDir, "incoming-20260117-13.dump.gz")));
+    assertEquals ("third\n", _readAll (new File (aDir, "incoming-20260117-14.dump.gz")));
+    assertEquals ("out\n", _readAll (new File (aDir, "outgoing-20260117-13.dump.gz")));
+
+    // Appending to an existing segment after a restart
+    try (final DumpSegmentStore aStore = new DumpSegmentStore (aDir, 0, 0))
+    {
+      _write (aStore, "incoming", HOUR_13, "fourth\n");
+    }
+    assertEquals ("first\nsecond\nfourth\n", _readAll (new File (aDir, "incoming-20260117-13.dump.gz")));
+  }
+
+  @Test
+  public void testRetention () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final long nNow = System.currentTimeMillis ();
+    try (final DumpSegmentStore aStore = new DumpSegmentStore (aDir, TimeUnit.HOURS.toMillis (24), 0))
+    {
+      _write (aStore, "incoming", HOUR_13, "old\n");
+      _write (aStore, "incoming", HOUR_14, "new\n");
+      _write (aStore, "outgoing", HOUR_13, "open\n");
+      aStore.flush ();
+
+      final File aOld = new File (aDir, "incoming-20260117-13.dump.gz");
+      final File aNew = new File (aDir, "incoming-20260117-14.dump.gz");
+      final File aOpen = new File (aDir, "outgoing-20260117-13.dump.gz");
+      assertTrue (aOld.setLastModified (nNow - TimeUnit.HOURS.toMillis (48)));
+      assertTrue (aOpen.setLastModified (nNow - TimeUnit.HOURS.toMillis (48)));
+
+      // The open segments are never deleted
+      assertEquals (1, aStore.applyRetention (nNow));
+      assertFalse (aOld.exists ());
+      assertTrue (aNew.exists ());
+      assertTrue (aOpen.exists ());
+    }
+  }
+
+  @Test
+  public void testMaxTotalBytes () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final long nNow = System.currentTimeMillis ();
+    try (final DumpSegmentStore aStore = new DumpSegmentStore (aDir, 0, 1))
+    {
+      _write (aStore, "incoming", HOUR_13, "a\n");
+      _write (aStore, "incoming", HOUR_14, "b\n");
+      _write (aStore, "incoming", HOUR_14 + TimeUnit.HOURS.toMillis (1), "c\n");
+      aStore.flush ();
+      assertTrue (new File (aDir, "incoming-20260117-13.dump.gz").setLastModified (nNow - 2000));
+      assertTrue (new File (aDir, "incoming-20260117-14.dump.gz").setLastModified (nNow - 1000));
+
+      // Everything except the open segment is deleted
+      assertEquals (2, aStore.applyRetention (nNow));
+      assertTrue (new File (aDir, "incoming-20260117-15.dump.gz").exists ());
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link DuplicateIndex}.
+ *
+ * @author Philip Helger
+ */
+public final class DuplicateIndexTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    try (final DuplicateIndex aIndex = new DuplicateIndex (m_aTempDir.toFile (), 100, 7, aToday::get))
+    {
+      assertFalse (aIndex.containsAny ("as4:a", "sbdh:a"));
+      aIndex.record ("as4:a", "sbdh:a");
+      assertTrue (aIndex.containsAny ("as4:a"));
+      assertTrue (aIndex.containsAny ("as4:other", "sbdh:a"));
+      assertFalse (aIndex.containsAny ("as4:b", null));
+      assertEquals (2, aIndex.getSize ());
+
+      // Recording twice has no effect
+      aIndex.record ("as4:a");
+      assertEquals (2, aIndex.getSize ());
+    }
+  }
+
+  @Test
+  public void testOverflowAndReopen () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    final File aDir = m_aTempDir.toFile ();
+    try (final DuplicateIndex aIndex = new DuplicateIndex (aDir, 10, 7, aToday::get))
+    {
+      for (int i = 0; i < 1000; ++i)
+        aIndex.record ("key" + i);
+      assertEquals (1000, aIndex.getSize ());
+    }
+    // More than one table for that day
+    assertTrue (aDir.listFiles ().length > 1);
+
+    try (final DuplicateIndex aIndex = new DuplicateIndex (aDir, 10, 7, aToday::get))
+    {
+      assertEquals (1000, aIndex.getSize ());
+      for (int i = 0; i < 1000; ++i)
+        assertTrue (aIndex.containsAny ("key" + i));
+      assertFalse (aIndex.containsAny ("key1000"));
+    }
+  }
+
+  @Test
+  public void testClaimCommitAndRelease () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    try (final DuplicateIndex aIndex = new DuplicateIndex (m_aTempDir.toFile (), 100, 7, aToday::get))
+    {
+      assertTrue (aIndex.tryClaim ("as4:a", "sbdh:a"));
+      // Claimed but not yet recorded
+      assertFalse (aIndex.containsAny ("as4:a", "sbdh:a"));
+      assertEquals (0, aIndex.getSize ());
+      // A concurrent duplicate - one known key is enough and nothing is claimed
+      assertFalse (aIndex.tryClaim ("as4:b", "sbdh:a"));
+      assertTrue (aIndex.tryClaim ("as4:b"));
+      aIndex.releaseClaim ("as4:b");
+
+      // A failed message may be received again
+      aIndex.releaseClaim ("as4:a", "sbdh:a");
+      assertEquals (0, aIndex.getSize ());
+      assertTrue (aIndex.tryClaim ("as4:a", "sbdh:a"));
+
+      // A handled message is a duplicate from now on
+      aIndex.commitClaim ("as4:a", "sbdh:a");
+      assertEquals (2, aIndex.getSize ());
+      assertTrue (aIndex.containsAny ("as4:a"));
+      assertFalse (aIndex.tryClaim ("as4:b", "sbdh:a"));
+    }
+  }
+
+  @Test
+  public void testOnlyCommittedKeysSurviveRestart () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    final File aDir = m_aTempDir.toFile ();
+    try (final DuplicateIndex aIndex = new DuplicateIndex (aDir, 100, 7, aToday::get))
+    {
+      assertTrue (aIndex.tryClaim ("as4:committed"));
+      aIndex.commitClaim ("as4:committed");
+      // E.g. a crash before the message was stored
+      assertTrue (aIndex.tryClaim ("as4:pending"));
+    }
+    try (final DuplicateIndex aIndex = new DuplicateIndex (aDir, 100, 7, aToday::get))
+    {
+      assertFalse (aIndex.tryClaim ("as4:committed"));
+      // The resend is accepted
+      assertTrue (aIndex.tryClaim ("as4:pending"));
+    }
+  }
+
+  @Test
+  public void testRemoveKeepsOtherKeys () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    // Small tables with many collisions
+    try (final DuplicateIndex aIndex = new DuplicateIndex (m_aTempDir.toFile (), 10, 7, aToday::get))
+    {
+      for (int i = 0; i < 200; ++i)
+        aIndex.record ("key" + i);
+      for (int i = 0; i < 200; i += 2)
+        aIndex.remove ("key" + i);
+      assertEquals (100, aIndex.getSize ());
+      for (int i = 0; i < 200; ++i)
+        assertEquals (i % 2 == 1, aIndex.containsAny ("key" + i), "key" + i);
+    }
+  }
+
+  @Test
+  public void testRetention () throws Exception
+  {
+    final AtomicLong aToday = new AtomicLong (20_000);
+    final File aDir = m_aTempDir.toFile ();
+    try (final DuplicateIndex aIndex = new DuplicateIndex (aDir, 100, 2, aToday::get))
+    {
+      aIndex.record ("old");
+      aToday.addAndGet (1);
+      aIndex.record ("new");
+      assertTrue (aIndex.containsAny ("old"));
+      assertTrue (aIndex.containsAny ("new"));
+
+      aToday.addAndGet (2);
+      assertFalse (aIndex.containsAny ("old"));
+      assertTrue (aIndex.containsAny ("new"));
+      assertEquals (1, aDir.listFiles ().length);
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link InboundMetrics}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundMetricsTest
+{
+  @Test
+  public void testBoundToThread ()
+  {
+    assertNull (InboundMetrics.getCurrent ());
+    InboundMetrics.begin ();
+    try
+    {
+      assertNotNull (InboundMetrics.getCurrent ());
+    }
+    finally
+    {
+      InboundMetrics.end ();
+    }
+    assertNull (InboundMetrics.getCurrent ());
+
+    // No error without begin
+    InboundMetrics.end ();
+  }
+
+  @Test
+  public void testOutcome ()
+  {
+    InboundMetrics aMetrics = new InboundMetrics (System.nanoTime ());
+    assertEquals (InboundMetrics.EOutcome.SUCCESS, aMetrics.getOutcome ());
+    aMetrics.setAS4Error ();
+    assertEquals (InboundMetrics.EOutcome.AS4_ERROR, aMetrics.getOutcome ());
+    aMetrics.setHandlerException ();
+    assertEquals (InboundMetrics.EOutcome.HANDLER_EXCEPTION, aMetrics.getOutcome ());
+
+    // The handler exception also results in an AS4 error
+    aMetrics = new InboundMetrics (System.nanoTime ());
+    aMetrics.setHandlerException ();
+    aMetrics.setAS4Error ();
+    assertEquals (InboundMetrics.EOutcome.HANDLER_EXCEPTION, aMetrics.getOutcome ());
+  }
+
+  @Test
+  public void testStages ()
+  {
+    final long nStart = System.nanoTime ();
+    final InboundMetrics aMetrics = new InboundMetrics (nStart);
+    assertEquals (-1, aMetrics.getDurationNanos (InboundMetrics.EStage.AS4_PROCESSING));
+
+    aMetrics.endStage (InboundMetrics.EStage.AS4_PROCESSING);
+    aMetrics.endStage (InboundMetrics.EStage.HANDLER);
+    final long nAS4 = aMetrics.getDurationNanos (InboundMetrics.EStage.AS4_PROCESSING);
+    final long nHandler = aMetrics.getDurationNanos (InboundMetrics.EStage.HANDLER);
+    assertTrue (nAS4 >= 0);
+    assertTrue (nHandler >= 0);
+    assertEquals (-1, aMetrics.getDurationNanos (InboundMetrics.EStage.SENDER_CHECK));
+
+    final long nEnd = System.nanoTime ();
+    aMetrics.publish (nEnd);
+    assertEquals (nEnd - nStart, aMetrics.getDurationNanos (InboundMetrics.EStage.TOTAL));
+    assertTrue (nAS4 + nHandler <= nEnd - nStart);
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.inbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link InboundSpool}.
+ *
+ * @author Philip Helger
+ */
+public final class InboundSpoolTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @NonNull
+  private InboundSpool _open (@NonNull final IInboundMessageProcessor aProcessor, final int nMaxAttempts) throws IOException
+  {
+    // Backoff of at most one second
+    return new InboundSpool (aProcessor,
+                             InboundSpool.createSBDHReader (),
+                             m_aTempDir.toFile (),
+                             1024 * 1024,
+                             2,
+                             nMaxAttempts,
+                             1,
+                             1,
+                             100);
+  }
+
+  private static byte @NonNull [] _createSBD (final int nIndex)
+  {
+    return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+            "<StandardBusinessDocument xmlns=\"http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader\">" +
+            "<StandardBusinessDocumentHeader>" +
+            "<HeaderVersion>1.0</HeaderVersion>" +
+            "<Sender><Identifier Authority=\"iso6523-actorid-upis\">9915:sender</Identifier></Sender>" +
+            "<Receiver><Identifier Authority=\"iso6523-actorid-upis\">9915:receiver</Identifier></Receiver>" +
+            "<DocumentIdentification>" +
+            "<Standard>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2</Standard>" +
+            "<TypeVersion>2.1</TypeVersion>" +
+            "<InstanceIdentifier>instance-" +
+            nIndex +
+            "</InstanceIdentifier>" +
+            "<Type>Invoice</Type>" +
+            "<CreationDateAndTime>2026-01-01T12:00:00Z</CreationDateAndTime>" +
+            "</DocumentIdentification>" +
+            "<BusinessScope>" +
+            "<Scope><Type>DOCUMENTID</Type>" +
+            "<InstanceIdentifier>urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1</InstanceIdentifier>" +
+            "<Identifier>busdox-docid-qns</Identifier></Scope>" +
+            "<Scope><Type>PROCESSID</Type>" +
+            "<InstanceIdentifier>urn:fdc:peppol.eu:2017:poacc:billing:01:1.0</InstanceIdentifier>" +
+            "<Identifier>cenbii-procid-ubl</Identifier></Scope>" +
+            "<Scope><Type>COUNTRY_C1</Type><InstanceIdentifier>AT</InstanceIdentifier></Scope>" +
+            "</BusinessScope>" +
+            "</StandardBusinessDocumentHeader>" +
+            "<Invoice xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:Invoice-2\"><ID>" +
+            nIndex +
+            "</ID></Invoice>" +
+            "</StandardBusinessDocument>").getBytes (StandardCharsets.UTF_8);
+  }
+
+  private static void _submit (@NonNull final InboundSpool aSpool, final int nCount) throws IOException
+  {
+    for (int i = 0; i < nCount; ++i)
+      assertTrue (aSpool.submit ("incoming-" + i, OffsetDateTime.now (), "as4-" + i, null, _createSBD (i)));
+  }
+
+  private static void _waitFor (@NonNull final BooleanSupplier aCondition) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 20_000;
+    while (!aCondition.getAsBoolean () && System.currentTimeMillis () < nEnd)
+      Thread.sleep (10);
+    assertTrue (aCondition.getAsBoolean ());
+  }
+
+  @Test
+  public void testReplayAfterRestart () throws Exception
+  {
+    // Not started - nothing is processed
+    InboundSpool aSpool = _open (aMessage -> {
+      throw new IllegalStateException ("Not expected");
+    }, 3);
+    try
+    {
+      _submit (aSpool, 3);
+      assertEquals (3, aSpool.getPendingCount ());
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+
+    final Set <String> aProcessed = ConcurrentHashMap.newKeySet ();
+    aSpool = _open (aMessage -> {
+      assertEquals ("instance-" + aMessage.getIncomingID ().substring (9),
+                    aMessage.getPeppolSBD ().getInstanceIdentifier ());
+      aProcessed.add (aMessage.getIncomingID ());
+    }, 3);
+    try
+    {
+      assertEquals (3, aSpool.getPendingCount ());
+      aSpool.start ();
+      final InboundSpool aFinalSpool = aSpool;
+      _waitFor ( () -> aFinalSpool.getPendingCount () == 0);
+      assertEquals (Set.of ("incoming-0", "incoming-1", "incoming-2"), aProcessed);
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+
+    // Finished messages are not replayed
+    aSpool = _open (aMessage -> {}, 3);
+    try
+    {
+      assertEquals (0, aSpool.getPendingCount ());
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+  }
+
+  @Test
+  public void testRetry () throws Exception
+  {
+    final List <String> aAttempts = new CopyOnWriteArrayList <> ();
+    final InboundSpool aSpool = _open (aMessage -> {
+      aAttempts.add (aMessage.getIncomingID ());
+      // Fail the first two attempts
+      if (aAttempts.size () <= 2)
+        throw new IOException ("Simulated failure");
+    }, 5);
+    try
+    {
+      aSpool.start ();
+      _submit (aSpool, 1);
+      _waitFor ( () -> aSpool.getPendingCount () == 0);
+      assertEquals (3, aAttempts.size ());
+      assertEquals (0, new File (m_aTempDir.toFile (), "dead-letter").list ().length);
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+  }
+
+  @Test
+  public void testAttemptsSurviveRestartAndDeadLetter () throws Exception
+  {
+    final AtomicInteger aFirstAttempts = new AtomicInteger ();
+    InboundSpool aSpool = _open (aMessage -> {
+      aFirstAttempts.incrementAndGet ();
+      throw new IOException ("Simulated failure");
+    }, 3);
+    try
+    {
+      aSpool.start ();
+      _submit (aSpool, 1);
+      // Wait until the failed attempt is stored and the retry is scheduled
+      final InboundSpool aFinalSpool = aSpool;
+      _waitFor ( () -> aFirstAttempts.get () == 1 && aFinalSpool.getScheduledCount () == 1);
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+
+    // Only the remaining attempts are made after the restart
+    final AtomicInteger aSecondAttempts = new AtomicInteger ();
+    aSpool = _open (aMessage -> {
+      aSecondAttempts.incrementAndGet ();
+      throw new IOException ("Simulated failure");
+    }, 3);
+    try
+    {
+      aSpool.start ();
+      final InboundSpool aFinalSpool = aSpool;
+      _waitFor ( () -> aFinalSpool.getPendingCount () == 0);
+      assertEquals (1, aFirstAttempts.get ());
+      assertEquals (2, aSecondAttempts.get ());
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+
+    // Moved to the dead letters with the SBD and the metadata
+    final String [] aDeadLetters = new File (m_aTempDir.toFile (), "dead-letter").list ();
+    assertEquals (2, aDeadLetters.length);
+
+    aSpool = _open (aMessage -> {}, 3);
+    try
+    {
+      assertEquals (0, aSpool.getPendingCount ());
+    }
+    finally
+    {
+      aSpool.close ();
+    }
+  }
+}
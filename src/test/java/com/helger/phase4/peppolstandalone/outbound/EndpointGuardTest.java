@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.security.KeyStoreException;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+
+import com.helger.phase4.sender.EAS4UserMessageSendResult;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Test class for class {@link EndpointGuard}.
+ *
+ * @author Philip Helger
+ */
+public final class EndpointGuardTest
+{
+  private static final String URL = "https://ap.example.org/as4";
+
+  @Test
+  public void testIsTransportFailure ()
+  {
+    assertTrue (EndpointGuard.isTransportFailure (new SocketTimeoutException ("Read timed out")));
+    assertTrue (EndpointGuard.isTransportFailure (new Phase4Exception ("Wrapped",
+                                                                       new SocketTimeoutException ("Read timed out"))));
+    assertFalse (EndpointGuard.isTransportFailure (null));
+    assertFalse (EndpointGuard.isTransportFailure (new IllegalStateException ("Failed to build message")));
+    assertFalse (EndpointGuard.isTransportFailure (new Phase4Exception ("Failed to sign", new KeyStoreException ())));
+  }
+
+  @Test
+  public void testLocalExceptionsDontOpenCircuit ()
+  {
+    final EndpointGuard aGuard = new EndpointGuard (true, 2, 1, 2, 60);
+    for (int i = 0; i < 5; ++i)
+      assertThrows (Phase4Exception.class, () -> aGuard.send (URL, () -> {
+        throw new Phase4Exception ("Failed to sign", new KeyStoreException ());
+      }));
+    assertEquals (EndpointGuard.ECircuitState.CLOSED, aGuard.getCircuitState (URL));
+  }
+
+  @Test
+  public void testTransportFailuresOpenCircuit () throws Exception
+  {
+    final EndpointGuard aGuard = new EndpointGuard (true, 2, 1, 2, 60);
+    assertEquals (EAS4UserMessageSendResult.TRANSPORT_ERROR,
+                  aGuard.send (URL, () -> EAS4UserMessageSendResult.TRANSPORT_ERROR));
+    assertEquals (EndpointGuard.ECircuitState.CLOSED, aGuard.getCircuitState (URL));
+    assertThrows (SocketTimeoutException.class, () -> aGuard.send (URL, () -> {
+      throw new SocketTimeoutException ("Read timed out");
+    }));
+    assertEquals (EndpointGuard.ECircuitState.OPEN, aGuard.getCircuitState (URL));
+
+    // Rejected without calling the sender
+    assertThrows (OutboundEndpointUnavailableException.class,
+                  () -> aGuard.send (URL, () -> EAS4UserMessageSendResult.SUCCESS));
+  }
+
+  private static EndpointGuard.@NonNull EndpointState _createHalfOpenState ()
+  {
+    // Opens after one failure, immediately probing afterwards
+    final EndpointGuard.EndpointState aState = new EndpointGuard.EndpointState (2);
+    aState.onResult (URL, aState.tryPass (System.currentTimeMillis ()), true, 1, 0);
+    assertEquals (EndpointGuard.ECircuitState.OPEN, aState.getState ());
+    return aState;
+  }
+
+  @Test
+  public void testOnlyTheProbeMayCancel ()
+  {
+    final EndpointGuard.EndpointState aState = new EndpointGuard.EndpointState (2);
+    // Admitted before the circuit opened
+    final EndpointGuard.Pass aLate = aState.tryPass (System.currentTimeMillis ());
+    assertTrue (aLate.isPassed ());
+    assertFalse (aLate.isProbe ());
+    aState.onResult (URL, aState.tryPass (System.currentTimeMillis ()), true, 1, 0);
+
+    final EndpointGuard.Pass aProbe = aState.tryPass (System.currentTimeMillis ());
+    assertTrue (aProbe.isProbe ());
+    assertEquals (EndpointGuard.ECircuitState.HALF_OPEN, aState.getState ());
+    assertFalse (aState.tryPass (System.currentTimeMillis ()).isPassed ());
+
+    // E.g. the late call did not get a bulkhead slot - the probe is still running
+    aState.cancelPass (aLate);
+    assertFalse (aState.tryPass (System.currentTimeMillis ()).isPassed ());
+
+    // The probe itself was cancelled - the next call may probe
+    aState.cancelPass (aProbe);
+    final EndpointGuard.Pass aNextProbe = aState.tryPass (System.currentTimeMillis ());
+    assertTrue (aNextProbe.isProbe ());
+    assertFalse (aState.tryPass (System.currentTimeMillis ()).isPassed ());
+
+    // The old probe can't interfere anymore
+    aState.cancelPass (aProbe);
+    assertFalse (aState.tryPass (System.currentTimeMillis ()).isPassed ());
+  }
+
+  @Test
+  public void testOnlyTheProbeResolvesHalfOpen ()
+  {
+    final EndpointGuard.EndpointState aState = new EndpointGuard.EndpointState (2);
+    final EndpointGuard.Pass aLate = aState.tryPass (System.currentTimeMillis ());
+    aState.onResult (URL, aState.tryPass (System.currentTimeMillis ()), true, 1, 0);
+
+    final EndpointGuard.Pass aProbe = aState.tryPass (System.currentTimeMillis ());
+    assertTrue (aProbe.isProbe ());
+
+    // Late results don't close or reopen the circuit
+    aState.onResult (URL, aLate, false, 1, 0);
+    assertEquals (EndpointGuard.ECircuitState.HALF_OPEN, aState.getState ());
+    aState.onResult (URL, aLate, true, 1, 0);
+    assertEquals (EndpointGuard.ECircuitState.HALF_OPEN, aState.getState ());
+    assertFalse (aState.tryPass (System.currentTimeMillis ()).isPassed ());
+
+    // The probe result decides
+    aState.onResult (URL, aProbe, false, 1, 0);
+    assertEquals (EndpointGuard.ECircuitState.CLOSED, aState.getState ());
+
+    // A failed probe reopens the circuit
+    final EndpointGuard.EndpointState aState2 = _createHalfOpenState ();
+    final EndpointGuard.Pass aProbe2 = aState2.tryPass (System.currentTimeMillis ());
+    assertTrue (aProbe2.isProbe ());
+    aState2.onResult (URL, aProbe2, true, 1, 60_000);
+    assertEquals (EndpointGuard.ECircuitState.OPEN, aState2.getState ());
+    assertFalse (aState2.tryPass (System.currentTimeMillis ()).isPassed ());
+  }
+}
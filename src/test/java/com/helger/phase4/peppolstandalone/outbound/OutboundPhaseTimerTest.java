@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.json.IJsonObject;
+
+/**
+ * Test class for class {@link OutboundPhaseTimer}.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundPhaseTimerTest
+{
+  @Test
+  public void testPhases ()
+  {
+    final OutboundPhaseTimer aTimer = new OutboundPhaseTimer ();
+    assertNull (aTimer.getCurrentPhase ());
+    assertEquals (-1, aTimer.getDurationNanos (EOutboundPhase.SMP_LOOKUP));
+
+    aTimer.begin (EOutboundPhase.SMP_LOOKUP);
+    assertEquals (EOutboundPhase.SMP_LOOKUP, aTimer.getCurrentPhase ());
+    aTimer.begin (EOutboundPhase.C3_CERT_CHECK);
+    assertEquals (EOutboundPhase.C3_CERT_CHECK, aTimer.getCurrentPhase ());
+    assertTrue (aTimer.getDurationNanos (EOutboundPhase.SMP_LOOKUP) >= 0);
+    assertEquals (-1, aTimer.getDurationNanos (EOutboundPhase.C3_CERT_CHECK));
+
+    aTimer.end ();
+    assertNull (aTimer.getCurrentPhase ());
+    assertTrue (aTimer.getDurationNanos (EOutboundPhase.C3_CERT_CHECK) >= 0);
+  }
+
+  @Test
+  public void testRepeatedPhaseIsSummedUp () throws Exception
+  {
+    final OutboundPhaseTimer aTimer = new OutboundPhaseTimer ();
+    aTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
+    Thread.sleep (5);
+    aTimer.end ();
+    final long nFirst = aTimer.getDurationNanos (EOutboundPhase.PAYLOAD_PARSE);
+    assertTrue (nFirst >= 5_000_000L);
+
+    aTimer.begin (EOutboundPhase.PAYLOAD_PARSE);
+    Thread.sleep (5);
+    aTimer.end ();
+    assertTrue (aTimer.getDurationNanos (EOutboundPhase.PAYLOAD_PARSE) >= nFirst + 5_000_000L);
+  }
+
+  @Test
+  public void testFinish ()
+  {
+    final OutboundPhaseTimer aTimer = new OutboundPhaseTimer ();
+    aTimer.begin (EOutboundPhase.HTTP_TRANSMISSION);
+    aTimer.finish (false);
+    assertNull (aTimer.getCurrentPhase ());
+    assertTrue (aTimer.getDurationNanos (EOutboundPhase.HTTP_TRANSMISSION) >= 0);
+
+    // Ignored after finishing
+    aTimer.begin (EOutboundPhase.RECEIPT_VERIFICATION);
+    assertNull (aTimer.getCurrentPhase ());
+    aTimer.end ();
+    assertEquals (-1, aTimer.getDurationNanos (EOutboundPhase.RECEIPT_VERIFICATION));
+  }
+
+  @Test
+  public void testAsJson ()
+  {
+    final OutboundPhaseTimer aTimer = new OutboundPhaseTimer ();
+    assertEquals (0, aTimer.getAsJson ().size ());
+
+    aTimer.begin (EOutboundPhase.SMP_LOOKUP);
+    aTimer.begin (EOutboundPhase.C3_CERT_CHECK);
+    aTimer.end ();
+    aTimer.begin (EOutboundPhase.HTTP_TRANSMISSION);
+
+    final IJsonObject aJson = aTimer.getAsJson ();
+    assertEquals (2, aJson.size ());
+    assertTrue (aJson.containsKey ("smpLookupMillis"));
+    assertTrue (aJson.containsKey ("c3CertCheckMillis"));
+  }
+}
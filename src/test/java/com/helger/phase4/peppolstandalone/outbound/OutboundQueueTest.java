@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link OutboundQueue}. The queue is never started, so nothing is sent.
+ *
+ * @author Philip Helger
+ */
+public final class OutboundQueueTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @NonNull
+  private OutboundQueue _open (final long nSegmentBytes) throws IOException
+  {
+    return new OutboundQueue (m_aTempDir.toFile (), nSegmentBytes, 1, 3, 1, 10, 100, 3600);
+  }
+
+  @NonNull
+  private List <String> _submit (@NonNull final OutboundQueue aQueue, final int nCount) throws IOException
+  {
+    final List <String> ret = new ArrayList <> ();
+    for (int i = 0; i < nCount; ++i)
+    {
+      final OutboundQueue.Entry aEntry = aQueue.submit (OutboundQueue.ESendType.PREDEFINED_SBDH,
+                                                        ("<sbdh>" + i + "</sbdh>").getBytes (StandardCharsets.UTF_8));
+      assertNotNull (aEntry);
+      ret.add (aEntry.getJobID ());
+    }
+    return ret;
+  }
+
+  @NonNull
+  private File _getLastSegment ()
+  {
+    final File [] aFiles = new File (m_aTempDir.toFile (), "journal").listFiles ();
+    assertNotNull (aFiles);
+    Arrays.sort (aFiles);
+    return aFiles[aFiles.length - 1];
+  }
+
+  private static void _assertAllPending (@NonNull final OutboundQueue aQueue, @NonNull final List <String> aIDs)
+  {
+    assertEquals (aIDs.size (), aQueue.getPendingCount ());
+    for (final String sID : aIDs)
+    {
+      final OutboundQueue.Entry aEntry = aQueue.getEntry (sID);
+      assertNotNull (aEntry, sID);
+      assertEquals (OutboundQueue.EStatus.QUEUED, aEntry.getStatus ());
+      assertFalse (aEntry.isFinished ());
+    }
+  }
+
+  @Test
+  public void testReplayAfterCrashDuringWrite () throws Exception
+  {
+    final List <String> aIDs = new ArrayList <> ();
+    OutboundQueue aQueue = _open (1024 * 1024);
+    try
+    {
+      aIDs.addAll (_submit (aQueue, 3));
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+
+    // Simulate a crash in the middle of writing the next record
+    final File aSegment = _getLastSegment ();
+    final long nValidLength = aSegment.length ();
+    Files.write (aSegment.toPath (), new byte [] { 0, 0, 1, 0, 7, 7, 7, 7, 1, 42 }, StandardOpenOption.APPEND);
+
+    aQueue = _open (1024 * 1024);
+    try
+    {
+      // All acknowledged messages are resumed and the broken record is gone
+      _assertAllPending (aQueue, aIDs);
+      assertEquals (nValidLength, aSegment.length ());
+
+      aIDs.addAll (_submit (aQueue, 2));
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+
+    // Messages accepted after the repair are replayed as well
+    aQueue = _open (1024 * 1024);
+    try
+    {
+      _assertAllPending (aQueue, aIDs);
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+  }
+
+  @Test
+  public void testReplayOverManySegments () throws Exception
+  {
+    final List <String> aIDs;
+    // Small segments, so that nearly every message is in its own segment
+    OutboundQueue aQueue = _open (100);
+    try
+    {
+      aIDs = _submit (aQueue, 10);
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+    assertTrue (new File (m_aTempDir.toFile (), "journal").list ().length > 1);
+
+    aQueue = _open (100);
+    try
+    {
+      _assertAllPending (aQueue, aIDs);
+    }
+    finally
+    {
+      aQueue.close ();
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Test class for class {@link SMPEndpointCache}.
+ *
+ * @author Philip Helger
+ */
+public final class SMPEndpointCacheTest
+{
+  @Test
+  public void testIsNotFoundException ()
+  {
+    assertTrue (SMPEndpointCache.isNotFoundException (new SMPEndpointNotFoundException ("no endpoint", null)));
+    // Wrapped, as thrown to the callers of a cached entry
+    assertTrue (SMPEndpointCache.isNotFoundException (new Phase4Exception ("x",
+                                                                           new SMPEndpointNotFoundException ("no endpoint",
+                                                                                                             null))));
+
+    // Technical errors are never "not found"
+    assertFalse (SMPEndpointCache.isNotFoundException (new Phase4Exception ("x")));
+    assertFalse (SMPEndpointCache.isNotFoundException (new Phase4Exception ("x", new IOException ("timeout"))));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.outbound;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for class {@link XMLRootElementReader}.
+ *
+ * @author Philip Helger
+ */
+public final class XMLRootElementReaderTest
+{
+  private static InputStream _is (final String s)
+  {
+    return new ByteArrayInputStream (s.getBytes (StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testRootElement () throws Exception
+  {
+    // Content after the root element start is not read
+    final QName aName = XMLRootElementReader.readRootElementName (_is ("<?xml version='1.0'?>\n<!-- c -->" +
+                                                                        "<Invoice xmlns='urn:x'><a>" +
+                                                                        "</Invoice-broken-later"));
+    assertEquals (new QName ("urn:x", "Invoice"), aName);
+
+    assertEquals ("", XMLRootElementReader.readRootElementName (_is ("<Invoice/>")).getNamespaceURI ());
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    assertThrows (XMLStreamException.class, () -> XMLRootElementReader.readRootElementName (_is ("no xml")));
+    assertThrows (XMLStreamException.class, () -> XMLRootElementReader.readRootElementName (_is ("<?xml version='1.0'?>")));
+    assertThrows (XMLStreamException.class, () -> XMLRootElementReader.readRootElementName (_is ("")));
+  }
+
+  @Test
+  public void testConcurrentUse () throws Exception
+  {
+    // The factory is shared by all threads
+    final ExecutorService aExecutor = Executors.newFixedThreadPool (8);
+    try
+    {
+      final List <Future <QName>> aFutures = new ArrayList <> ();
+      for (int i = 0; i < 200; ++i)
+      {
+        final String sLocalName = "Root" + i;
+        aFutures.add (aExecutor.submit ( () -> XMLRootElementReader.readRootElementName (_is ("<" +
+                                                                                            sLocalName +
+                                                                                            " xmlns='urn:x'/>"))));
+      }
+      for (int i = 0; i < aFutures.size (); ++i)
+        assertEquals (new QName ("urn:x", "Root" + i), aFutures.get (i).get ());
+    }
+    finally
+    {
+      aExecutor.shutdown ();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link PeppolReportCache}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportCacheTest
+{
+  private static final YearMonth LAST_MONTH = YearMonth.now (ZoneOffset.UTC).minusMonths (1);
+
+  @TempDir
+  Path m_aTempDir;
+
+  private static byte @NonNull [] _createXML (final int nIndex)
+  {
+    return ("<report index=\"" + nIndex + "\"/>").getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testCachedUntilVersionChanges () throws Exception
+  {
+    final AtomicLong aVersion = new AtomicLong (5);
+    final AtomicInteger aCreated = new AtomicInteger ();
+    final PeppolReportCache aCache = new PeppolReportCache (true, null, x -> aVersion.get ());
+    final PeppolReportCache.IReportCreator aCreator = x -> _createXML (aCreated.incrementAndGet ());
+
+    final PeppolReportCache.Report aReport1 = aCache.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                  LAST_MONTH,
+                                                                  aCreator);
+    assertNotNull (aReport1);
+    assertSame (aReport1, aCache.getOrCreate (PeppolReportCache.EReportType.TSR, LAST_MONTH, aCreator));
+    assertEquals (1, aCreated.get ());
+
+    // Other report types are cached separately
+    assertNotNull (aCache.getOrCreate (PeppolReportCache.EReportType.EUSR, LAST_MONTH, aCreator));
+    assertEquals (2, aCreated.get ());
+
+    // A late reporting item was stored
+    aVersion.incrementAndGet ();
+    final PeppolReportCache.Report aReport2 = aCache.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                  LAST_MONTH,
+                                                                  aCreator);
+    assertNotNull (aReport2);
+    assertEquals (3, aCreated.get ());
+    assertNotEquals (aReport1.getETag (null), aReport2.getETag (null));
+    assertSame (aReport2, aCache.getOrCreate (PeppolReportCache.EReportType.TSR, LAST_MONTH, aCreator));
+    assertEquals (3, aCreated.get ());
+  }
+
+  @Test
+  public void testConcurrentChangeIsNotCached () throws Exception
+  {
+    final AtomicLong aVersion = new AtomicLong (1);
+    final AtomicInteger aCreated = new AtomicInteger ();
+    final PeppolReportCache aCache = new PeppolReportCache (true, m_aTempDir.toFile (), x -> aVersion.get ());
+
+    // A reporting item is stored while the report is created
+    assertNotNull (aCache.getOrCreate (PeppolReportCache.EReportType.TSR, LAST_MONTH, x -> {
+      aVersion.incrementAndGet ();
+      return _createXML (aCreated.incrementAndGet ());
+    }));
+    assertEquals (0, m_aTempDir.toFile ().list ().length);
+
+    // So it is created again
+    assertNotNull (aCache.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                       LAST_MONTH,
+                                       x -> _createXML (aCreated.incrementAndGet ())));
+    assertEquals (2, aCreated.get ());
+  }
+
+  @Test
+  public void testDiskCacheSurvivesRestart () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final String sPrefix = "tsr-" + LAST_MONTH + "-";
+
+    final PeppolReportCache aCache1 = new PeppolReportCache (true, aDir, x -> 1);
+    final PeppolReportCache.Report aReport1 = aCache1.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                   LAST_MONTH,
+                                                                   x -> _createXML (1));
+    assertNotNull (aReport1);
+    assertTrue (new File (aDir, sPrefix + "1.xml").isFile ());
+
+    // Restart with the same version - read from disk
+    final PeppolReportCache aCache2 = new PeppolReportCache (true, aDir, x -> 1);
+    final PeppolReportCache.Report aReport2 = aCache2.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                   LAST_MONTH,
+                                                                   x -> {
+                                                                     throw new IllegalStateException ("Not expected");
+                                                                   });
+    assertNotNull (aReport2);
+    assertArrayEquals (aReport1.getXMLBytes (), aReport2.getXMLBytes ());
+    assertEquals (aReport1.getETag (null), aReport2.getETag (null));
+
+    // Restart with a new version - the old file is replaced
+    final PeppolReportCache aCache3 = new PeppolReportCache (true, aDir, x -> 2);
+    final PeppolReportCache.Report aReport3 = aCache3.getOrCreate (PeppolReportCache.EReportType.TSR,
+                                                                   LAST_MONTH,
+                                                                   x -> _createXML (2));
+    assertNotNull (aReport3);
+    assertArrayEquals (_createXML (2), aReport3.getXMLBytes ());
+    assertFalse (new File (aDir, sPrefix + "1.xml").exists ());
+    assertTrue (new File (aDir, sPrefix + "2.xml").isFile ());
+    // No temporary files left over
+    assertEquals (1, aDir.list ().length);
+  }
+
+  @Test
+  public void testUnversionedBackendIsNotCached () throws Exception
+  {
+    final AtomicInteger aCreated = new AtomicInteger ();
+    final PeppolReportCache aCache = new PeppolReportCache (true, m_aTempDir.toFile (), x -> -1);
+    final PeppolReportCache.IReportCreator aCreator = x -> _createXML (aCreated.incrementAndGet ());
+
+    assertNotNull (aCache.getOrCreate (PeppolReportCache.EReportType.TSR, LAST_MONTH, aCreator));
+    assertNotNull (aCache.getOrCreate (PeppolReportCache.EReportType.TSR, LAST_MONTH, aCreator));
+    assertEquals (2, aCreated.get ());
+    assertEquals (0, m_aTempDir.toFile ().list ().length);
+
+    // The current month is never cached
+    final PeppolReportCache aVersionedCache = new PeppolReportCache (true, m_aTempDir.toFile (), x -> 1);
+    final YearMonth aThisMonth = YearMonth.now (ZoneOffset.UTC);
+    assertFalse (aVersionedCache.isCacheable (aThisMonth));
+    assertNotNull (aVersionedCache.getOrCreate (PeppolReportCache.EReportType.TSR, aThisMonth, aCreator));
+    assertNotNull (aVersionedCache.getOrCreate (PeppolReportCache.EReportType.TSR, aThisMonth, aCreator));
+    assertEquals (4, aCreated.get ());
+  }
+}
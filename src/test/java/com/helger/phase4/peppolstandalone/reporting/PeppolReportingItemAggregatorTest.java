@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Test class for class {@link PeppolReportingItemAggregator}.
+ *
+ * @author Philip Helger
+ */
+public final class PeppolReportingItemAggregatorTest
+{
+  @NonNull
+  private static PeppolReportingItem _createItem (final int nDay, @NonNull final String sEndUserID)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (OffsetDateTime.of (2025, 3, nDay, 10, 0, 0, 0, ZoneOffset.UTC))
+                              .directionSending ()
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .c4CountryCode ("DE")
+                              .endUserID (sEndUserID)
+                              .build ();
+  }
+
+  @Test
+  public void testAggregation ()
+  {
+    final PeppolReportingItemAggregator aAggregator = new PeppolReportingItemAggregator ();
+    // The exchange date is not relevant
+    final PeppolReportingItem aFirstA = _createItem (1, "a");
+    aAggregator.accept (aFirstA);
+    aAggregator.accept (_createItem (2, "a"));
+    final PeppolReportingItem aFirstB = _createItem (3, "b");
+    aAggregator.accept (aFirstB);
+    aAggregator.accept (_createItem (4, "a"));
+    assertEquals (4, aAggregator.getItemCount ());
+    assertEquals (2, aAggregator.getDistinctCount ());
+
+    final List <PeppolReportingItem> aList = aAggregator.getAsItemList ();
+    assertEquals (4, aList.size ());
+    assertSame (aFirstA, aList.get (0));
+    assertSame (aFirstA, aList.get (1));
+    assertSame (aFirstA, aList.get (2));
+    assertSame (aFirstB, aList.get (3));
+    assertThrows (IndexOutOfBoundsException.class, () -> aList.get (4));
+
+    // Iteration returns the same as index based access
+    final List <PeppolReportingItem> aIterated = new ArrayList <> ();
+    for (final PeppolReportingItem aItem : aList)
+      aIterated.add (aItem);
+    assertEquals (aList, aIterated);
+  }
+
+  @Test
+  public void testEmpty ()
+  {
+    final PeppolReportingItemAggregator aAggregator = new PeppolReportingItemAggregator ();
+    assertEquals (0, aAggregator.getItemCount ());
+    assertEquals (0, aAggregator.getAsItemList ().size ());
+    assertFalse (aAggregator.getAsItemList ().iterator ().hasNext ());
+  }
+}
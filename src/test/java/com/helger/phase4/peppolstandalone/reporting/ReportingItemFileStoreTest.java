@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.reporting;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.jspecify.annotations.NonNull;
+import org.jspecify.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.peppol.reporting.api.EReportingDirection;
+import com.helger.peppol.reporting.api.PeppolReportingItem;
+
+/**
+ * Test class for class {@link ReportingItemFileStore}.
+ *
+ * @author Philip Helger
+ */
+public final class ReportingItemFileStoreTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @NonNull
+  private static PeppolReportingItem _createItem (@NonNull final OffsetDateTime aDT,
+                                                  @NonNull final EReportingDirection eDirection,
+                                                  @Nullable final String sC4CountryCode,
+                                                  @NonNull final String sEndUserID)
+  {
+    return PeppolReportingItem.builder ()
+                              .exchangeDateTime (aDT)
+                              .direction (eDirection)
+                              .c2ID ("pop000001")
+                              .c3ID ("pop000002")
+                              .docTypeIDScheme ("busdox-docid-qns")
+                              .docTypeIDValue ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1")
+                              .processIDScheme ("cenbii-procid-ubl")
+                              .processIDValue ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0")
+                              .transportProtocolPeppolAS4v2 ()
+                              .c1CountryCode ("AT")
+                              .c4CountryCode (sC4CountryCode)
+                              .endUserID (sEndUserID)
+                              .build ();
+  }
+
+  @NonNull
+  private static List <PeppolReportingItem> _read (@NonNull final ReportingItemFileStore aStore,
+                                                   @NonNull final LocalDate aStart,
+                                                   @NonNull final LocalDate aEnd) throws Exception
+  {
+    final List <PeppolReportingItem> ret = new ArrayList <> ();
+    aStore.forEach (aStart, aEnd, ret::add);
+    return ret;
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+    {
+      for (int i = 1; i <= 31; ++i)
+        aStore.append (_createItem (OffsetDateTime.of (2025, 3, i, 12, 0, 0, 0, ZoneOffset.UTC),
+                                    i % 2 == 0 ? EReportingDirection.SENDING : EReportingDirection.RECEIVING,
+                                    i % 3 == 0 ? null : "DE",
+                                    "enduser" + (i % 5)));
+      final long nMarchSize = aStore.getPartitionSize (YearMonth.of (2025, 3));
+      assertTrue (nMarchSize > 0);
+      assertEquals (0, aStore.getPartitionSize (YearMonth.of (2025, 2)));
+      // Belongs to February in UTC
+      aStore.append (_createItem (OffsetDateTime.of (2025, 3, 1, 0, 30, 0, 0, ZoneOffset.ofHours (2)),
+                                  EReportingDirection.SENDING,
+                                  "DE",
+                                  "enduser"));
+      // The size of each month only changes with its items
+      assertEquals (nMarchSize, aStore.getPartitionSize (YearMonth.of (2025, 3)));
+      assertTrue (aStore.getPartitionSize (YearMonth.of (2025, 2)) > 0);
+
+      final List <PeppolReportingItem> aMarch = _read (aStore, LocalDate.of (2025, 3, 1), LocalDate.of (2025, 3, 31));
+      assertEquals (31, aMarch.size ());
+      final PeppolReportingItem aThird = aMarch.get (2);
+      assertEquals (EReportingDirection.RECEIVING, aThird.getDirection ());
+      assertNull (aThird.getC4CountryCode ());
+      assertEquals ("enduser3", aThird.getEndUserID ());
+      assertEquals ("pop000002", aThird.getC3ID ());
+
+      assertEquals (1, _read (aStore, LocalDate.of (2025, 2, 1), LocalDate.of (2025, 2, 28)).size ());
+      assertEquals (5, _read (aStore, LocalDate.of (2025, 3, 10), LocalDate.of (2025, 3, 14)).size ());
+      assertEquals (List.of (YearMonth.of (2025, 2), YearMonth.of (2025, 3)), aStore.getAllPartitions ());
+    }
+
+    // Reopen
+    try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+    {
+      assertEquals (31, _read (aStore, LocalDate.of (2025, 3, 1), LocalDate.of (2025, 3, 31)).size ());
+      assertEquals (1, aStore.deletePartitionsBefore (YearMonth.of (2025, 3)));
+      assertEquals (0, _read (aStore, LocalDate.of (2025, 2, 1), LocalDate.of (2025, 2, 28)).size ());
+    }
+  }
+
+  @Test
+  public void testIncompleteRecordAtEnd () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+    {
+      aStore.append (_createItem (OffsetDateTime.of (2025, 4, 1, 12, 0, 0, 0, ZoneOffset.UTC),
+                                  EReportingDirection.SENDING,
+                                  "DE",
+                                  "a"));
+    }
+
+    // Simulate a crash in the middle of writing an item
+    final File aFile = new File (aDir, "reporting-2025-04.bin");
+    final long nLength = aFile.length ();
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+    {
+      aRAF.seek (nLength);
+      aRAF.write (new byte [] { 2, (byte) 0x80 });
+    }
+
+    try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+    {
+      assertEquals (1, _read (aStore, LocalDate.of (2025, 4, 1), LocalDate.of (2025, 4, 30)).size ());
+      aStore.append (_createItem (OffsetDateTime.of (2025, 4, 2, 12, 0, 0, 0, ZoneOffset.UTC),
+                                  EReportingDirection.RECEIVING,
+                                  "DE",
+                                  "b"));
+      final List <PeppolReportingItem> aItems = _read (aStore, LocalDate.of (2025, 4, 1), LocalDate.of (2025, 4, 30));
+      assertEquals (2, aItems.size ());
+      assertEquals ("b", aItems.get (1).getEndUserID ());
+      assertTrue (aFile.length () > nLength);
+    }
+  }
+
+  @Test
+  public void testInvalidTail () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final File aFile = new File (aDir, "reporting-2025-05.bin");
+    final LocalDate aStart = LocalDate.of (2025, 5, 1);
+    final LocalDate aEnd = LocalDate.of (2025, 5, 31);
+    final Random aRandom = new Random (42);
+    for (int i = 0; i < 30; ++i)
+    {
+      try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+      {
+        assertEquals (i, _read (aStore, aStart, aEnd).size ());
+        aStore.append (_createItem (OffsetDateTime.of (2025, 5, 1 + i % 28, 12, 0, 0, 0, ZoneOffset.UTC),
+                                    EReportingDirection.SENDING,
+                                    "DE",
+                                    "enduser" + i));
+        assertEquals (i + 1, _read (aStore, aStart, aEnd).size ());
+      }
+
+      // Simulate what may be left at the end of the file after a crash
+      final byte [] aTail = new byte [1 + aRandom.nextInt (64)];
+      switch (i % 3)
+      {
+        case 0:
+          // Zeros
+          break;
+        case 1:
+          aRandom.nextBytes (aTail);
+          break;
+        default:
+          // A complete item record with a wrong CRC
+          aRandom.nextBytes (aTail);
+          aTail[0] = 2;
+          if (aTail.length >= 9)
+          {
+            aTail[1] = 0;
+            aTail[2] = 0;
+            aTail[3] = 0;
+            aTail[4] = (byte) (aTail.length - 9);
+          }
+          break;
+      }
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+      {
+        aRAF.seek (aRAF.length ());
+        aRAF.write (aTail);
+      }
+    }
+
+    try (final ReportingItemFileStore aStore = new ReportingItemFileStore (aDir))
+    {
+      final List <PeppolReportingItem> aItems = _read (aStore, aStart, aEnd);
+      assertEquals (30, aItems.size ());
+      assertEquals ("enduser29", aItems.get (29).getEndUserID ());
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.security;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.security.certificate.ECertificateCheckResult;
+
+/**
+ * Test class for class {@link CertificateCheckCache}.
+ *
+ * @author Philip Helger
+ */
+public final class CertificateCheckCacheTest
+{
+  private static final long TTL_SECONDS = TimeUnit.DAYS.toSeconds (1);
+
+  @TempDir
+  Path m_aTempDir;
+
+  @NonNull
+  static X509Certificate createCert (final int nIndex, final long nValidMillis) throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("EC");
+    aKPG.initialize (256);
+    final KeyPair aKP = aKPG.generateKeyPair ();
+    final X500Name aName = new X500Name ("CN=Test AP " + nIndex);
+    final long nNow = System.currentTimeMillis ();
+    final JcaX509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (aName,
+                                                                                  BigInteger.valueOf (nIndex + 1L),
+                                                                                  new Date (nNow - 60_000),
+                                                                                  new Date (nNow + nValidMillis),
+                                                                                  aName,
+                                                                                  aKP.getPublic ());
+    return new JcaX509CertificateConverter ().getCertificate (aBuilder.build (new JcaContentSignerBuilder ("SHA256withECDSA").build (aKP.getPrivate ())));
+  }
+
+  @NonNull
+  private static Supplier <ECertificateCheckResult> _counting (@NonNull final ECertificateCheckResult eResult,
+                                                              @NonNull final AtomicInteger aCounter)
+  {
+    return () -> {
+      aCounter.incrementAndGet ();
+      return eResult;
+    };
+  }
+
+  @Test
+  public void testOnlyDecisiveResultsAreCached () throws Exception
+  {
+    final CertificateCheckCache aCache = new CertificateCheckCache (true, TTL_SECONDS, 100);
+    final X509Certificate aCert = createCert (0, TimeUnit.DAYS.toMillis (30));
+    final OffsetDateTime aNow = OffsetDateTime.now ();
+
+    final AtomicInteger aValidCalls = new AtomicInteger ();
+    for (int i = 0; i < 3; ++i)
+      assertEquals (ECertificateCheckResult.VALID,
+                    aCache.checkCertificate (aCert, aNow, _counting (ECertificateCheckResult.VALID, aValidCalls)));
+    assertEquals (1, aValidCalls.get ());
+
+    final X509Certificate aOtherCert = createCert (1, TimeUnit.DAYS.toMillis (30));
+    final AtomicInteger aExpiredCalls = new AtomicInteger ();
+    for (int i = 0; i < 3; ++i)
+      assertEquals (ECertificateCheckResult.EXPIRED,
+                    aCache.checkCertificate (aOtherCert,
+                                             aNow,
+                                             _counting (ECertificateCheckResult.EXPIRED, aExpiredCalls)));
+    assertEquals (3, aExpiredCalls.get ());
+  }
+
+  @Test
+  public void testEvictsEntriesExpiringFirst () throws Exception
+  {
+    final CertificateCheckCache aCache = new CertificateCheckCache (true, TTL_SECONDS, 10);
+    final OffsetDateTime aNow = OffsetDateTime.now ();
+
+    // The certificate expiry limits the cache expiry - the first certificates expire first
+    final List <X509Certificate> aCerts = new ArrayList <> ();
+    for (int i = 0; i < 11; ++i)
+      aCerts.add (createCert (i, TimeUnit.HOURS.toMillis (i + 1L)));
+    // Insert in reverse order, so that insertion order and expiry order differ
+    final AtomicInteger aCalls = new AtomicInteger ();
+    for (int i = 10; i >= 1; --i)
+      aCache.checkCertificate (aCerts.get (i), aNow, _counting (ECertificateCheckResult.VALID, aCalls));
+    assertEquals (10, aCache.size ());
+
+    aCache.checkCertificate (aCerts.get (0), aNow, _counting (ECertificateCheckResult.VALID, aCalls));
+    assertTrue (aCache.size () <= 10);
+
+    // The one that expires last is still there
+    aCalls.set (0);
+    aCache.checkCertificate (aCerts.get (10), aNow, _counting (ECertificateCheckResult.VALID, aCalls));
+    assertEquals (0, aCalls.get ());
+    // The ones that expire first were removed
+    aCache.checkCertificate (aCerts.get (1), aNow, _counting (ECertificateCheckResult.VALID, aCalls));
+    assertEquals (1, aCalls.get ());
+  }
+
+  @Test
+  public void testSaveAndLoad () throws Exception
+  {
+    final File aFile = new File (m_aTempDir.toFile (), "certificate-check-cache.txt");
+    final X509Certificate aValidCert = createCert (0, TimeUnit.DAYS.toMillis (30));
+    final X509Certificate aRevokedCert = createCert (1, TimeUnit.DAYS.toMillis (30));
+    final OffsetDateTime aNow = OffsetDateTime.now ();
+
+    final CertificateCheckCache aCache = new CertificateCheckCache (true, TTL_SECONDS, 100);
+    final AtomicInteger aCalls = new AtomicInteger ();
+    aCache.checkCertificate (aValidCert, aNow, _counting (ECertificateCheckResult.VALID, aCalls));
+    aCache.checkCertificate (aRevokedCert, aNow, _counting (ECertificateCheckResult.REVOKED, aCalls));
+    aCache.save (aFile);
+    assertTrue (aFile.isFile ());
+
+    // A new cache starts with the persisted results
+    final CertificateCheckCache aLoaded = new CertificateCheckCache (true, TTL_SECONDS, 100);
+    aLoaded.load (aFile);
+    assertEquals (2, aLoaded.size ());
+    aCalls.set (0);
+    assertEquals (ECertificateCheckResult.VALID,
+                  aLoaded.checkCertificate (aValidCert, aNow, _counting (ECertificateCheckResult.EXPIRED, aCalls)));
+    assertEquals (ECertificateCheckResult.REVOKED,
+                  aLoaded.checkCertificate (aRevokedCert, aNow, _counting (ECertificateCheckResult.EXPIRED, aCalls)));
+    assertEquals (0, aCalls.get ());
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.security;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.jspecify.annotations.NonNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.helger.httpclient.HttpClientSettings;
+
+/**
+ * Test class for class {@link PersistentCRLDownloader}.
+ *
+ * @author Philip Helger
+ */
+public final class PersistentCRLDownloaderTest
+{
+  private static final long NO_EXPIRY = TimeUnit.DAYS.toMillis (1);
+
+  @TempDir
+  Path m_aTempDir;
+
+  private static final class MockDownloader extends PersistentCRLDownloader
+  {
+    private final byte [] m_aCRL;
+    private final CountDownLatch m_aRelease;
+    private final AtomicInteger m_aFailures;
+    private final AtomicInteger m_aCalls = new AtomicInteger ();
+
+    MockDownloader (@NonNull final File aDir,
+                    final long nRequestWaitMillis,
+                    final int nMaxURLs,
+                    final long nUnusedExpiryMillis,
+                    final byte @NonNull [] aCRL,
+                    @NonNull final CountDownLatch aRelease,
+                    final int nFailures)
+    {
+      super (new HttpClientSettings (), aDir, 60, 3600, nRequestWaitMillis, nMaxURLs, nUnusedExpiryMillis);
+      m_aCRL = aCRL;
+      m_aRelease = aRelease;
+      m_aFailures = new AtomicInteger (nFailures);
+    }
+
+    @Override
+    protected byte [] downloadFromNetwork (@NonNull final URL aURL) throws IOException
+    {
+      m_aCalls.incrementAndGet ();
+      try
+      {
+        m_aRelease.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        throw new IOException (ex);
+      }
+      if (m_aFailures.getAndDecrement () > 0)
+        throw new IOException ("Simulated failure");
+      return m_aCRL;
+    }
+  }
+
+  private static byte @NonNull [] _createCRL () throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("EC");
+    aKPG.initialize (256);
+    final KeyPair aKP = aKPG.generateKeyPair ();
+    final long nNow = System.currentTimeMillis ();
+    final X509v2CRLBuilder aBuilder = new X509v2CRLBuilder (new X500Name ("CN=Test CA"), new Date (nNow));
+    aBuilder.setNextUpdate (new Date (nNow + TimeUnit.DAYS.toMillis (1)));
+    return aBuilder.build (new JcaContentSignerBuilder ("SHA256withECDSA").build (aKP.getPrivate ())).getEncoded ();
+  }
+
+  private static void _waitFor (final int nExpected, @NonNull final IntSupplier aSupplier) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (aSupplier.getAsInt () != nExpected && System.currentTimeMillis () < nEnd)
+      Thread.sleep (10);
+    assertEquals (nExpected, aSupplier.getAsInt ());
+  }
+
+  @Test
+  public void testFirstDownloadTimeout () throws Exception
+  {
+    final byte [] aCRL = _createCRL ();
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final MockDownloader aDownloader = new MockDownloader (m_aTempDir.toFile (), 200, 10, NO_EXPIRY, aCRL, aRelease, 0);
+    try
+    {
+      final URL aURL = new URL ("http://crl.example.org/ca.crl");
+      final long nStart = System.currentTimeMillis ();
+      assertThrows (IOException.class, () -> aDownloader.downloadContent (aURL));
+      assertTrue (System.currentTimeMillis () - nStart < 5_000);
+
+      // The download finishes in the background and is used afterwards
+      aRelease.countDown ();
+      _waitFor (1, aDownloader::getCRLCount);
+      assertArrayEquals (aCRL, aDownloader.downloadContent (aURL));
+      assertEquals (1, aDownloader.getRegisteredURLCount ());
+    }
+    finally
+    {
+      aRelease.countDown ();
+      aDownloader.close ();
+    }
+  }
+
+  @Test
+  public void testRequestDoesNotWait () throws Exception
+  {
+    final byte [] aCRL = _createCRL ();
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final MockDownloader aDownloader = new MockDownloader (m_aTempDir.toFile (), 0, 10, NO_EXPIRY, aCRL, aRelease, 0);
+    try
+    {
+      final URL aURL = new URL ("http://crl.example.org/ca.crl");
+      final long nStart = System.currentTimeMillis ();
+      assertThrows (IOException.class, () -> aDownloader.downloadContent (aURL));
+      // Concurrent requests don't start another download
+      assertThrows (IOException.class, () -> aDownloader.downloadContent (aURL));
+      assertTrue (System.currentTimeMillis () - nStart < 1_000);
+
+      aRelease.countDown ();
+      _waitFor (1, aDownloader::getCRLCount);
+      assertArrayEquals (aCRL, aDownloader.downloadContent (aURL));
+      assertEquals (1, aDownloader.m_aCalls.get ());
+    }
+    finally
+    {
+      aRelease.countDown ();
+      aDownloader.close ();
+    }
+  }
+
+  @Test
+  public void testFailedDownloadIsRetried () throws Exception
+  {
+    final byte [] aCRL = _createCRL ();
+    final CountDownLatch aRelease = new CountDownLatch (0);
+    final MockDownloader aDownloader = new MockDownloader (m_aTempDir.toFile (), 5_000, 10, NO_EXPIRY, aCRL, aRelease, 1);
+    try
+    {
+      final URL aURL = new URL ("http://crl.example.org/ca.crl");
+      assertThrows (IOException.class, () -> aDownloader.downloadContent (aURL));
+      assertArrayEquals (aCRL, aDownloader.downloadContent (aURL));
+      assertEquals (2, aDownloader.m_aCalls.get ());
+    }
+    finally
+    {
+      aDownloader.close ();
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedURLIsDropped () throws Exception
+  {
+    final byte [] aCRL = _createCRL ();
+    // Keep the downloads blocked, only the registrations matter
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final MockDownloader aDownloader = new MockDownloader (m_aTempDir.toFile (), 5_000, 2, NO_EXPIRY, aCRL, aRelease, 0);
+    try
+    {
+      aDownloader.register ("http://crl.example.org/1.crl");
+      Thread.sleep (5);
+      aDownloader.register ("http://crl.example.org/2.crl");
+      Thread.sleep (5);
+      // Mark the first one as used again
+      aDownloader.register ("http://crl.example.org/1.crl");
+      Thread.sleep (5);
+      aDownloader.register ("http://crl.example.org/3.crl");
+
+      assertEquals (2, aDownloader.getRegisteredURLCount ());
+      assertTrue (aDownloader.isRegistered ("http://crl.example.org/1.crl"));
+      assertFalse (aDownloader.isRegistered ("http://crl.example.org/2.crl"));
+      assertTrue (aDownloader.isRegistered ("http://crl.example.org/3.crl"));
+    }
+    finally
+    {
+      aRelease.countDown ();
+      aDownloader.close ();
+    }
+  }
+
+  @Test
+  public void testUnusedURLIsDropped () throws Exception
+  {
+    final byte [] aCRL = _createCRL ();
+    final CountDownLatch aRelease = new CountDownLatch (0);
+    final MockDownloader aDownloader = new MockDownloader (m_aTempDir.toFile (), 5_000, 10, 0, aCRL, aRelease, 0);
+    try
+    {
+      // The first refresh already finds it unused
+      aDownloader.register ("http://crl.example.org/ca.crl");
+      _waitFor (0, aDownloader::getRegisteredURLCount);
+      assertEquals (0, aDownloader.getCRLCount ());
+      assertEquals (0, aDownloader.m_aCalls.get ());
+    }
+    finally
+    {
+      aDownloader.close ();
+    }
+  }
+}
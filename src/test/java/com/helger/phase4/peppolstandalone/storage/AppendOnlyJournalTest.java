@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link AppendOnlyJournal}.
+ *
+ * @author Philip Helger
+ */
+public final class AppendOnlyJournalTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @Test
+  public void testWriteAndReplay () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final List <AppendOnlyJournal.Position> aPositions = new ArrayList <> ();
+
+    // Small segments to enforce rolling
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 100, 16, (p, t, b) -> {}))
+    {
+      final List <CompletableFuture <AppendOnlyJournal.Position>> aFutures = new ArrayList <> ();
+      for (int i = 0; i < 20; ++i)
+        aFutures.add (aJournal.append ((byte) (i % 3), ("record" + i).getBytes (StandardCharsets.UTF_8)));
+      for (final CompletableFuture <AppendOnlyJournal.Position> aFuture : aFutures)
+        aPositions.add (aFuture.get ());
+
+      assertTrue (aJournal.getCurrentSegmentID () > 1);
+      assertArrayEquals ("record7".getBytes (StandardCharsets.UTF_8), aJournal.read (aPositions.get (7)));
+    }
+
+    // Reopen and replay
+    final List <String> aReplayed = new ArrayList <> ();
+    final AppendOnlyJournal.IRecordHandler aHandler = (p, t, b) -> aReplayed.add (t +
+                                                                             ":" +
+                                                                             new String (b, StandardCharsets.UTF_8));
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 100, 16, aHandler))
+    {
+      assertEquals (20, aReplayed.size ());
+      assertEquals ("0:record0", aReplayed.get (0));
+      assertEquals ("1:record19", aReplayed.get (19));
+
+      // Delete everything before the segment of the last record
+      aJournal.deleteSegmentsBefore (aPositions.get (19).getSegmentID ());
+    }
+
+    aReplayed.clear ();
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 100, 16, (p, t, b) -> aReplayed.add ("")))
+    {
+      assertTrue (aReplayed.size () < 20);
+    }
+  }
+
+  @Test
+  public void testTornWrite () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 1024, 16, (p, t, b) -> {}))
+    {
+      aJournal.append ((byte) 1, new byte [] { 1, 2, 3 }).get ();
+      aJournal.append ((byte) 1, new byte [] { 4, 5, 6 }).get ();
+    }
+
+    // Simulate a crash in the middle of writing a record
+    final File [] aFiles = aDir.listFiles ();
+    assertEquals (1, aFiles.length);
+    final long nValidLength = aFiles[0].length ();
+    Files.write (aFiles[0].toPath (), new byte [] { 0, 0, 0, 10, 1, 2 }, StandardOpenOption.APPEND);
+
+    final List <byte []> aReplayed = new ArrayList <> ();
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 1024, 16, (p, t, b) -> aReplayed.add (b)))
+    {
+      assertEquals (2, aReplayed.size ());
+      assertEquals (nValidLength, aFiles[0].length ());
+
+      // Appending continues after the last valid record
+      aJournal.append ((byte) 1, new byte [] { 7 }).get ();
+    }
+
+    aReplayed.clear ();
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 1024, 16, (p, t, b) -> aReplayed.add (b)))
+    {
+      assertEquals (3, aReplayed.size ());
+      assertArrayEquals (new byte [] { 7 }, aReplayed.get (2));
+    }
+  }
+
+  @Test
+  public void testEmptyRecord () throws Exception
+  {
+    final File aDir = m_aTempDir.toFile ();
+    final AppendOnlyJournal.Position aEmptyPos;
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir, "test", 1024, 16, (p, t, b) -> {}))
+    {
+      aJournal.append ((byte) 1, new byte [] { 1 }).get ();
+      aEmptyPos = aJournal.append ((byte) 2, new byte [0]).get ();
+      aJournal.append ((byte) 3, new byte [] { 3 }).get ();
+      assertEquals (0, aJournal.read (aEmptyPos).length);
+    }
+
+    // All records survive the recovery
+    final List <String> aReplayed = new ArrayList <> ();
+    try (final AppendOnlyJournal aJournal = AppendOnlyJournal.open (aDir,
+                                                                    "test",
+                                                                    1024,
+                                                                    16,
+                                                                    (p, t, b) -> aReplayed.add (t + ":" + b.length)))
+    {
+      assertEquals (List.of ("1:1", "2:0", "3:1"), aReplayed);
+    }
+  }
+
+  @Test
+  public void testAppendAfterClose () throws Exception
+  {
+    final AppendOnlyJournal aJournal = AppendOnlyJournal.open (m_aTempDir.toFile (), "test", 1024, 16, (p, t, b) -> {});
+    final CompletableFuture <AppendOnlyJournal.Position> aBefore = aJournal.append ((byte) 1, new byte [] { 1 });
+    aJournal.close ();
+
+    // Everything appended before close is written, everything afterwards fails and never hangs
+    assertNotNull (aBefore.get (10, TimeUnit.SECONDS));
+    final CompletableFuture <AppendOnlyJournal.Position> aAfter = aJournal.append ((byte) 1, new byte [] { 2 });
+    assertTrue (aAfter.isCompletedExceptionally ());
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2023-2026 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppolstandalone.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for class {@link SpooledPayload}.
+ *
+ * @author Philip Helger
+ */
+public final class SpooledPayloadTest
+{
+  @TempDir
+  Path m_aTempDir;
+
+  @Test
+  public void testInMemory () throws Exception
+  {
+    final byte [] aData = new byte [100];
+    new Random (1).nextBytes (aData);
+    try (final SpooledPayload aPayload = SpooledPayload.read (new ByteArrayInputStream (aData),
+                                                              1000,
+                                                              10_000,
+                                                              m_aTempDir.toFile ()))
+    {
+      assertFalse (aPayload.isSpilled ());
+      assertEquals (100, aPayload.getSize ());
+      assertArrayEquals (aData, aPayload.getAllBytes (100));
+    }
+  }
+
+  @Test
+  public void testSpilled () throws Exception
+  {
+    final byte [] aData = new byte [100_000];
+    new Random (2).nextBytes (aData);
+    final File aDir = m_aTempDir.toFile ();
+    try (final SpooledPayload aPayload = SpooledPayload.read (new ByteArrayInputStream (aData), 1000, 1_000_000, aDir))
+    {
+      assertTrue (aPayload.isSpilled ());
+      assertEquals (aData.length, aPayload.getSize ());
+      assertEquals (1, aDir.listFiles ().length);
+
+      // Can be read multiple times
+      for (int i = 0; i < 2; ++i)
+        try (final InputStream aIS = aPayload.openInputStream ())
+        {
+          assertArrayEquals (aData, aIS.readAllBytes ());
+        }
+
+      // Only loaded into memory up to the provided limit
+      assertArrayEquals (aData, aPayload.getAllBytes (aData.length));
+      assertThrows (SpooledPayload.PayloadTooLargeException.class, () -> aPayload.getAllBytes (aData.length - 1));
+    }
+    // Temporary file is gone
+    assertEquals (0, aDir.listFiles ().length);
+  }
+
+  @Test
+  public void testTooLarge ()
+  {
+    final File aDir = m_aTempDir.toFile ();
+    assertThrows (SpooledPayload.PayloadTooLargeException.class,
+                  () -> SpooledPayload.read (new ByteArrayInputStream (new byte [5000]), 1000, 4000, aDir));
+    assertEquals (0, aDir.listFiles ().length);
+  }
+}